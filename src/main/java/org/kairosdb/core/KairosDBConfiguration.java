@@ -5,9 +5,14 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import org.hibernate.validator.constraints.NotEmpty;
 
 import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.util.List;
 
 public class KairosDBConfiguration extends Configuration {
+  public static final Logger logger = LoggerFactory.getLogger(KairosDBConfiguration.class);
+
   public static class TelnetServer {
     @JsonProperty
     private int port;
@@ -119,22 +124,169 @@ public class KairosDBConfiguration extends Configuration {
         }
       }
 
+      public static class RollupDefinition {
+        @JsonProperty
+        private String name;
+        @JsonProperty("metric_pattern")
+        private String metricPattern = ".*";
+        @JsonProperty("sampling_value")
+        private int samplingValue = 1;
+        @JsonProperty("sampling_unit")
+        private String samplingUnit = "hours";
+        @JsonProperty
+        private List<String> aggregators = ImmutableList.of("sum", "min", "max");
+        @JsonProperty
+        private boolean streaming = false;
+
+        public String getName() {
+          return name;
+        }
+
+        public String getMetricPattern() {
+          return metricPattern;
+        }
+
+        public int getSamplingValue() {
+          return samplingValue;
+        }
+
+        public String getSamplingUnit() {
+          return samplingUnit;
+        }
+
+        public List<String> getAggregators() {
+          return aggregators;
+        }
+
+        public boolean getStreaming() {
+          return streaming;
+        }
+      }
+
+      public static class RetentionDefinition {
+        @JsonProperty("metric_pattern")
+        private String metricPattern = ".*";
+        @JsonProperty
+        private long ttl = 0L;
+
+        public String getMetricPattern() {
+          return metricPattern;
+        }
+
+        public long getTtl() {
+          return ttl;
+        }
+      }
+
+      public static class RowWidthDefinition {
+        @JsonProperty("metric_pattern")
+        private String metricPattern = ".*";
+        @JsonProperty("row_width")
+        private long rowWidth = 1814400000L;
+
+        public String getMetricPattern() {
+          return metricPattern;
+        }
+
+        public long getRowWidth() {
+          return rowWidth;
+        }
+      }
+
       @JsonProperty("host_list")
       private String hosts;
       @JsonProperty("replication_factor")
       private int replicationFactor;
+      @JsonProperty("max_active")
+      private int maxActive = 50;
+      @JsonProperty("max_wait_time_when_exhausted")
+      private long maxWaitTimeWhenExhausted = -1L;
+      @JsonProperty("socket_timeout")
+      private int socketTimeout = 0;
+      @JsonProperty("load_balancing_policy")
+      private String loadBalancingPolicy = "least_active";
+      @JsonProperty("retry_downed_hosts")
+      private boolean retryDownedHosts = true;
+      @JsonProperty("retry_downed_hosts_delay")
+      private int retryDownedHostsDelay = 10;
+      @JsonProperty("auto_discover_hosts")
+      private boolean autoDiscoverHosts = false;
+      @JsonProperty("auto_discovery_delay")
+      private int autoDiscoveryDelay = 30;
       @JsonProperty("write_delay")
       private int writeDelay;
       @JsonProperty("write_buffer_max_size")
       private int writeBufferMaxSize;
+      @JsonProperty("write_buffer_stripes")
+      private int writeBufferStripes;
+      @JsonProperty("write_flush_threads")
+      private int writeFlushThreads = 2;
+      @JsonProperty("write_batch_max_size")
+      private int writeBatchMaxSize = 10000;
+      @JsonProperty("write_batch_max_bytes")
+      private long writeBatchMaxBytes = 4194304L;
+      @JsonProperty("write_batch_target_latency")
+      private long writeBatchTargetLatency = 1000L;
       @JsonProperty("single_row_read_size")
       private int singleRowReadSize;
       @JsonProperty("multi_row_size")
       private int multiRowSize;
       @JsonProperty("multi_row_read_size")
       private int multiRowReadSize;
-      @JsonProperty("increase_buffer_size_schedule")
-      private String increaseBufferSizeSchedule;
+      @JsonProperty("query_threads")
+      private int queryThreads = 10;
+      @JsonProperty("row_read_concurrency")
+      private int rowReadConcurrency = 4;
+      @JsonProperty("row_key_cache_size")
+      private int rowKeyCacheSize = 262144;
+      @JsonProperty("string_cache_size")
+      private int stringCacheSize = 65536;
+      @JsonProperty("block_width")
+      private long blockWidth = 0L;
+      @JsonProperty("block_close_delay")
+      private long blockCloseDelay = 600000L;
+      @JsonProperty("block_compaction_schedule")
+      private String blockCompactionSchedule = "0 */5 * * * ?";
+      @JsonProperty("tag_index")
+      private boolean tagIndex = false;
+      @JsonProperty
+      private List<RollupDefinition> rollups = ImmutableList.of();
+      @JsonProperty("rollup_delay")
+      private long rollupDelay = 600000L;
+      @JsonProperty("rollup_schedule")
+      private String rollupSchedule = "0 */5 * * * ?";
+      @JsonProperty("rollup_max_open_buckets")
+      private int rollupMaxOpenBuckets = 100000;
+      @JsonProperty("wal_dir")
+      private String walDir = "";
+      @JsonProperty("wal_segment_size")
+      private int walSegmentSize = 67108864;
+      @JsonProperty("wal_sync")
+      private String walSync = "periodic";
+      @JsonProperty("wal_sync_interval")
+      private long walSyncInterval = 1000L;
+      @JsonProperty("wal_roll_interval")
+      private long walRollInterval = 60000L;
+      @JsonProperty("write_consistency_level")
+      private String writeConsistencyLevel = "quorum";
+      @JsonProperty("index_write_consistency_level")
+      private String indexWriteConsistencyLevel = "quorum";
+      @JsonProperty("read_consistency_level")
+      private String readConsistencyLevel = "quorum";
+      @JsonProperty("index_read_consistency_level")
+      private String indexReadConsistencyLevel = "quorum";
+      @JsonProperty("speculative_retry_percentile")
+      private double speculativeRetryPercentile = 0.0;
+      @JsonProperty("speculative_retry_min_delay")
+      private long speculativeRetryMinDelay = 10L;
+      @JsonProperty
+      private List<RetentionDefinition> retention = ImmutableList.of();
+      @JsonProperty("retention_schedule")
+      private String retentionSchedule = "0 0 * * * ?";
+      @JsonProperty("row_widths")
+      private List<RowWidthDefinition> rowWidths = ImmutableList.of();
+      @JsonProperty("double_encoding")
+      private String doubleEncoding = "float";
       private Auth auth = new Auth();
 
       public Auth getAuth() {
@@ -150,6 +302,38 @@ public class KairosDBConfiguration extends Configuration {
         return replicationFactor;
       }
 
+      public int getMaxActive() {
+        return maxActive;
+      }
+
+      public long getMaxWaitTimeWhenExhausted() {
+        return maxWaitTimeWhenExhausted;
+      }
+
+      public int getSocketTimeout() {
+        return socketTimeout;
+      }
+
+      public String getLoadBalancingPolicy() {
+        return loadBalancingPolicy;
+      }
+
+      public boolean getRetryDownedHosts() {
+        return retryDownedHosts;
+      }
+
+      public int getRetryDownedHostsDelay() {
+        return retryDownedHostsDelay;
+      }
+
+      public boolean getAutoDiscoverHosts() {
+        return autoDiscoverHosts;
+      }
+
+      public int getAutoDiscoveryDelay() {
+        return autoDiscoveryDelay;
+      }
+
       public int getWriteDelay() {
         return writeDelay;
       }
@@ -158,6 +342,26 @@ public class KairosDBConfiguration extends Configuration {
         return writeBufferMaxSize;
       }
 
+      public int getWriteBufferStripes() {
+        return writeBufferStripes;
+      }
+
+      public int getWriteFlushThreads() {
+        return writeFlushThreads;
+      }
+
+      public int getWriteBatchMaxSize() {
+        return writeBatchMaxSize;
+      }
+
+      public long getWriteBatchMaxBytes() {
+        return writeBatchMaxBytes;
+      }
+
+      public long getWriteBatchTargetLatency() {
+        return writeBatchTargetLatency;
+      }
+
       public int getSingleRowReadSize() {
         return singleRowReadSize;
       }
@@ -170,8 +374,212 @@ public class KairosDBConfiguration extends Configuration {
         return multiRowReadSize;
       }
 
-      public String getIncreaseBufferSizeSchedule() {
-        return increaseBufferSizeSchedule;
+      public int getQueryThreads() {
+        return queryThreads;
+      }
+
+      public int getRowReadConcurrency() {
+        return rowReadConcurrency;
+      }
+
+      public int getRowKeyCacheSize() {
+        return rowKeyCacheSize;
+      }
+
+      public int getStringCacheSize() {
+        return stringCacheSize;
+      }
+
+      public long getBlockWidth() {
+        return blockWidth;
+      }
+
+      public long getBlockCloseDelay() {
+        return blockCloseDelay;
+      }
+
+      public String getBlockCompactionSchedule() {
+        return blockCompactionSchedule;
+      }
+
+      public boolean getTagIndex() {
+        return tagIndex;
+      }
+
+      public List<RollupDefinition> getRollups() {
+        return rollups;
+      }
+
+      public long getRollupDelay() {
+        return rollupDelay;
+      }
+
+      public String getRollupSchedule() {
+        return rollupSchedule;
+      }
+
+      public int getRollupMaxOpenBuckets() {
+        return rollupMaxOpenBuckets;
+      }
+
+      public String getWalDir() {
+        return walDir;
+      }
+
+      public int getWalSegmentSize() {
+        return walSegmentSize;
+      }
+
+      public String getWalSync() {
+        return walSync;
+      }
+
+      public long getWalSyncInterval() {
+        return walSyncInterval;
+      }
+
+      public long getWalRollInterval() {
+        return walRollInterval;
+      }
+
+      public String getWriteConsistencyLevel() {
+        return writeConsistencyLevel;
+      }
+
+      public String getIndexWriteConsistencyLevel() {
+        return indexWriteConsistencyLevel;
+      }
+
+      public String getReadConsistencyLevel() {
+        return readConsistencyLevel;
+      }
+
+      public String getIndexReadConsistencyLevel() {
+        return indexReadConsistencyLevel;
+      }
+
+      public double getSpeculativeRetryPercentile() {
+        return speculativeRetryPercentile;
+      }
+
+      public long getSpeculativeRetryMinDelay() {
+        return speculativeRetryMinDelay;
+      }
+
+      public List<RetentionDefinition> getRetention() {
+        return retention;
+      }
+
+      public String getRetentionSchedule() {
+        return retentionSchedule;
+      }
+
+      public List<RowWidthDefinition> getRowWidths() {
+        return rowWidths;
+      }
+
+      public String getDoubleEncoding() {
+        return doubleEncoding;
+      }
+
+      /**
+       The write buffers size their batches themselves now, the property is
+       still accepted so existing configuration files load.
+       */
+      @Deprecated
+      @JsonProperty("increase_buffer_size_schedule")
+      private void setIncreaseBufferSizeSchedule(String schedule) {
+        logger.warn("increase_buffer_size_schedule is no longer used and is ignored");
+      }
+    }
+
+    public static class DynamoDB {
+      public static class TableDefinition {
+        @JsonProperty
+        private String table;
+        @JsonProperty("read_capacity")
+        private long readCapacity = 1L;
+        @JsonProperty("write_capacity")
+        private long writeCapacity = 1L;
+
+        public String getTable() {
+          return table;
+        }
+
+        public long getReadCapacity() {
+          return readCapacity;
+        }
+
+        public long getWriteCapacity() {
+          return writeCapacity;
+        }
+      }
+
+      @JsonProperty
+      private String endpoint = "";
+      @JsonProperty("credentials_provider")
+      private String credentialsProvider = "default";
+      @JsonProperty("access_key")
+      private String accessKey = "";
+      @JsonProperty("secret_key")
+      private String secretKey = "";
+      @JsonProperty("write_delay")
+      private int writeDelay = 1000;
+      @JsonProperty("write_buffer_max_size")
+      private int writeBufferMaxSize = 500000;
+      @JsonProperty("max_buffered_points")
+      private int maxBufferedPoints = 500000;
+      @JsonProperty("query_threads")
+      private int queryThreads = 10;
+      @JsonProperty
+      private List<TableDefinition> tables = ImmutableList.of();
+      @JsonProperty("table_poll_interval")
+      private long tablePollInterval = 1000L;
+      @JsonProperty("table_create_timeout")
+      private long tableCreateTimeout = 600000L;
+
+      public String getEndpoint() {
+        return endpoint;
+      }
+
+      public String getCredentialsProvider() {
+        return credentialsProvider;
+      }
+
+      public String getAccessKey() {
+        return accessKey;
+      }
+
+      public String getSecretKey() {
+        return secretKey;
+      }
+
+      public int getWriteDelay() {
+        return writeDelay;
+      }
+
+      public int getWriteBufferMaxSize() {
+        return writeBufferMaxSize;
+      }
+
+      public int getMaxBufferedPoints() {
+        return maxBufferedPoints;
+      }
+
+      public int getQueryThreads() {
+        return queryThreads;
+      }
+
+      public List<TableDefinition> getTables() {
+        return tables;
+      }
+
+      public long getTablePollInterval() {
+        return tablePollInterval;
+      }
+
+      public long getTableCreateTimeout() {
+        return tableCreateTimeout;
       }
     }
 
@@ -235,6 +643,8 @@ public class KairosDBConfiguration extends Configuration {
     private H2 h2 = new H2();
     @JsonProperty
     private Cassandra cassandra = new Cassandra();
+    @JsonProperty("dynamodb")
+    private DynamoDB dynamoDB = new DynamoDB();
     @JsonProperty
     private HBase hbase = new HBase();
     @JsonProperty
@@ -256,6 +666,10 @@ public class KairosDBConfiguration extends Configuration {
       return cassandra;
     }
 
+    public DynamoDB getDynamoDB() {
+      return dynamoDB;
+    }
+
     public Remote getRemote() {
       return remote;
     }
@@ -1,6 +1,14 @@
 package org.kairosdb.core;
 
 import javax.inject.Named;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.ClasspathPropertiesFileCredentialsProvider;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.auth.InstanceProfileCredentialsProvider;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
@@ -9,17 +17,32 @@ import com.google.inject.AbstractModule;
 import com.google.inject.Singleton;
 import com.google.inject.TypeLiteral;
 import com.google.inject.name.Names;
+import me.prettyprint.cassandra.connection.DynamicLoadBalancingPolicy;
+import me.prettyprint.cassandra.connection.LeastActiveBalancingPolicy;
+import me.prettyprint.cassandra.connection.LoadBalancingPolicy;
+import me.prettyprint.cassandra.connection.RoundRobinBalancingPolicy;
+import me.prettyprint.cassandra.service.CassandraHostConfigurator;
 import org.kairosdb.core.KairosDBConfiguration;
 import org.kairosdb.core.datastore.QueryQueuingManager;
 import org.kairosdb.core.http.rest.MetricsResource;
 import org.kairosdb.core.jobs.CacheFileCleaner;
 import org.kairosdb.core.reporting.MetricReporterService;
+import org.kairosdb.core.datastore.Rollup;
+import org.kairosdb.core.datastore.Sampling;
+import org.kairosdb.core.datastore.TimeUnit;
+import org.kairosdb.datastore.cassandra.BlockCompactionJob;
 import org.kairosdb.datastore.cassandra.CassandraDatastore;
 import org.kairosdb.datastore.cassandra.CassandraModule;
+import org.kairosdb.datastore.cassandra.RetentionJob;
+import org.kairosdb.datastore.cassandra.RetentionPolicy;
+import org.kairosdb.datastore.cassandra.RollupJob;
+import org.kairosdb.datastore.cassandra.RowWidthPolicy;
+import org.kairosdb.datastore.cassandra.StreamingRollups;
+import org.kairosdb.datastore.dynamodb.DynamoDBDatastore;
 import org.kairosdb.core.datastore.KairosDatastore;
-import org.kairosdb.datastore.cassandra.IncreaseMaxBufferSizesJob;
 import org.kairosdb.util.Util;
 
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.List;
 import java.util.HashMap;
@@ -39,12 +62,6 @@ public class KairosDBModule extends AbstractModule {
     return authMap;
   }
 
-  @Provides
-  @Named(IncreaseMaxBufferSizesJob.SCHEDULE)
-  public String provideIncreaseBufferSizeSchedule(KairosDBConfiguration configuration) {
-    return configuration.getDatastore().getCassandra().getIncreaseBufferSizeSchedule();
-  }
-
   @Provides
   @Named("kairosdb.telnetserver.port")
   public int provideTelnetServerPort(KairosDBConfiguration configuration) {
@@ -81,6 +98,37 @@ public class KairosDBModule extends AbstractModule {
     return configuration.getDatastore().getCassandra().getHosts();
   }
 
+  @Provides
+  public CassandraHostConfigurator provideHostConfigurator(
+      @Named(CassandraDatastore.HOST_LIST_PROPERTY) String hosts,
+      KairosDBConfiguration configuration) {
+    KairosDBConfiguration.Datastore.Cassandra cassandra = configuration.getDatastore().getCassandra();
+
+    CassandraHostConfigurator hostConfig = new CassandraHostConfigurator(hosts);
+    hostConfig.setMaxActive(cassandra.getMaxActive());
+    hostConfig.setMaxWaitTimeWhenExhausted(cassandra.getMaxWaitTimeWhenExhausted());
+    hostConfig.setCassandraThriftSocketTimeout(cassandra.getSocketTimeout());
+    hostConfig.setLoadBalancingPolicy(createLoadBalancingPolicy(cassandra.getLoadBalancingPolicy()));
+    hostConfig.setRetryDownedHosts(cassandra.getRetryDownedHosts());
+    hostConfig.setRetryDownedHostsDelayInSeconds(cassandra.getRetryDownedHostsDelay());
+    hostConfig.setAutoDiscoverHosts(cassandra.getAutoDiscoverHosts());
+    hostConfig.setAutoDiscoveryDelayInSeconds(cassandra.getAutoDiscoveryDelay());
+    hostConfig.setRunAutoDiscoveryAtStartup(cassandra.getAutoDiscoverHosts());
+    return hostConfig;
+  }
+
+  private static LoadBalancingPolicy createLoadBalancingPolicy(String policy) {
+    if ("round_robin".equals(policy))
+      return new RoundRobinBalancingPolicy();
+    else if ("least_active".equals(policy))
+      return new LeastActiveBalancingPolicy();
+    else if ("dynamic".equals(policy))
+      return new DynamicLoadBalancingPolicy();
+    else
+      throw new IllegalArgumentException("Unknown load_balancing_policy " + policy +
+          ", must be round_robin, least_active or dynamic");
+  }
+
   @Provides
   @Named(CassandraDatastore.REPLICATION_FACTOR_PROPERTY)
   public int provideReplicationFactor(KairosDBConfiguration configuration) {
@@ -106,6 +154,36 @@ public class KairosDBModule extends AbstractModule {
     return configuration.getDatastore().getCassandra().getWriteBufferMaxSize();
   }
 
+  @Provides
+  @Named(CassandraDatastore.WRITE_BUFFER_STRIPES_PROPERTY)
+  public int provideWriteBufferStripes(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getWriteBufferStripes();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.WRITE_FLUSH_THREADS_PROPERTY)
+  public int provideWriteFlushThreads(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getWriteFlushThreads();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.WRITE_BATCH_MAX_SIZE_PROPERTY)
+  public int provideWriteBatchMaxSize(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getWriteBatchMaxSize();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.WRITE_BATCH_MAX_BYTES_PROPERTY)
+  public long provideWriteBatchMaxBytes(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getWriteBatchMaxBytes();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.WRITE_BATCH_TARGET_LATENCY_PROPERTY)
+  public long provideWriteBatchTargetLatency(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getWriteBatchTargetLatency();
+  }
+
   @Provides
   @Named(CassandraDatastore.SINGLE_ROW_READ_SIZE_PROPERTY)
   public int provideSingleRowReadSize(KairosDBConfiguration configuration) {
@@ -123,4 +201,272 @@ public class KairosDBModule extends AbstractModule {
   public int provideMultiRowSize(KairosDBConfiguration configuration) {
     return configuration.getDatastore().getCassandra().getMultiRowSize();
   }
+
+  @Provides
+  @Named(CassandraDatastore.QUERY_THREADS_PROPERTY)
+  public int provideQueryThreads(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getQueryThreads();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.ROW_READ_CONCURRENCY_PROPERTY)
+  public int provideRowReadConcurrency(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getRowReadConcurrency();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.ROW_KEY_CACHE_SIZE_PROPERTY)
+  public int provideRowKeyCacheSize(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getRowKeyCacheSize();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.STRING_CACHE_SIZE_PROPERTY)
+  public int provideStringCacheSize(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getStringCacheSize();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.BLOCK_WIDTH_PROPERTY)
+  public long provideBlockWidth(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getBlockWidth();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.BLOCK_CLOSE_DELAY_PROPERTY)
+  public long provideBlockCloseDelay(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getBlockCloseDelay();
+  }
+
+  @Provides
+  @Named(BlockCompactionJob.SCHEDULE)
+  public String provideBlockCompactionSchedule(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getBlockCompactionSchedule();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.TAG_INDEX_PROPERTY)
+  public boolean provideTagIndex(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getTagIndex();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.ROLLUPS_PROPERTY)
+  public List<Rollup> provideRollups(KairosDBConfiguration configuration) {
+    List<Rollup> rollups = new ArrayList<Rollup>();
+    for (KairosDBConfiguration.Datastore.Cassandra.RollupDefinition rollup :
+        configuration.getDatastore().getCassandra().getRollups()) {
+      rollups.add(new Rollup(rollup.getName(), rollup.getMetricPattern(),
+          new Sampling(rollup.getSamplingValue(), TimeUnit.from(rollup.getSamplingUnit())),
+          rollup.getAggregators(), rollup.getStreaming()));
+    }
+    return rollups;
+  }
+
+  @Provides
+  @Named(CassandraDatastore.ROLLUP_DELAY_PROPERTY)
+  public long provideRollupDelay(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getRollupDelay();
+  }
+
+  @Provides
+  @Named(RollupJob.SCHEDULE)
+  public String provideRollupSchedule(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getRollupSchedule();
+  }
+
+  @Provides
+  @Named(StreamingRollups.MAX_OPEN_BUCKETS_PROPERTY)
+  public int provideRollupMaxOpenBuckets(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getRollupMaxOpenBuckets();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.RETENTION_PROPERTY)
+  public List<RetentionPolicy> provideRetentionPolicies(KairosDBConfiguration configuration) {
+    List<RetentionPolicy> policies = new ArrayList<RetentionPolicy>();
+    for (KairosDBConfiguration.Datastore.Cassandra.RetentionDefinition retention :
+        configuration.getDatastore().getCassandra().getRetention()) {
+      policies.add(new RetentionPolicy(retention.getMetricPattern(), retention.getTtl()));
+    }
+    return policies;
+  }
+
+  @Provides
+  @Named(CassandraDatastore.ROW_WIDTHS_PROPERTY)
+  public List<RowWidthPolicy> provideRowWidthPolicies(KairosDBConfiguration configuration) {
+    List<RowWidthPolicy> policies = new ArrayList<RowWidthPolicy>();
+    for (KairosDBConfiguration.Datastore.Cassandra.RowWidthDefinition rowWidth :
+        configuration.getDatastore().getCassandra().getRowWidths()) {
+      policies.add(new RowWidthPolicy(rowWidth.getMetricPattern(), rowWidth.getRowWidth()));
+    }
+    return policies;
+  }
+
+  @Provides
+  @Named(CassandraDatastore.DOUBLE_ENCODING_PROPERTY)
+  public String provideDoubleEncoding(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getDoubleEncoding();
+  }
+
+  @Provides
+  @Named(RetentionJob.SCHEDULE)
+  public String provideRetentionSchedule(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getRetentionSchedule();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.WAL_DIR_PROPERTY)
+  public String provideWalDir(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getWalDir();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.WAL_SEGMENT_SIZE_PROPERTY)
+  public int provideWalSegmentSize(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getWalSegmentSize();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.WAL_SYNC_PROPERTY)
+  public String provideWalSync(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getWalSync();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.WAL_SYNC_INTERVAL_PROPERTY)
+  public long provideWalSyncInterval(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getWalSyncInterval();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.WAL_ROLL_INTERVAL_PROPERTY)
+  public long provideWalRollInterval(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getWalRollInterval();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.WRITE_CONSISTENCY_LEVEL_PROPERTY)
+  public String provideWriteConsistencyLevel(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getWriteConsistencyLevel();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.INDEX_WRITE_CONSISTENCY_LEVEL_PROPERTY)
+  public String provideIndexWriteConsistencyLevel(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getIndexWriteConsistencyLevel();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.READ_CONSISTENCY_LEVEL_PROPERTY)
+  public String provideReadConsistencyLevel(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getReadConsistencyLevel();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.INDEX_READ_CONSISTENCY_LEVEL_PROPERTY)
+  public String provideIndexReadConsistencyLevel(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getIndexReadConsistencyLevel();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.SPECULATIVE_RETRY_PERCENTILE_PROPERTY)
+  public double provideSpeculativeRetryPercentile(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getSpeculativeRetryPercentile();
+  }
+
+  @Provides
+  @Named(CassandraDatastore.SPECULATIVE_RETRY_MIN_DELAY_PROPERTY)
+  public long provideSpeculativeRetryMinDelay(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getCassandra().getSpeculativeRetryMinDelay();
+  }
+
+  @Provides
+  public AmazonDynamoDBClient provideDynamoDBClient(KairosDBConfiguration configuration) {
+    KairosDBConfiguration.Datastore.DynamoDB dynamoDB = configuration.getDatastore().getDynamoDB();
+
+    AmazonDynamoDBClient client = new AmazonDynamoDBClient(createCredentialsProvider(dynamoDB));
+    //Set to use DynamoDB Local or another region
+    String endpoint = dynamoDB.getEndpoint();
+    if (endpoint != null && !endpoint.isEmpty())
+      client.setEndpoint(endpoint);
+    return client;
+  }
+
+  private static AWSCredentialsProvider createCredentialsProvider(
+      KairosDBConfiguration.Datastore.DynamoDB dynamoDB) {
+    String provider = dynamoDB.getCredentialsProvider();
+    if ("default".equals(provider))
+      return new DefaultAWSCredentialsProviderChain();
+    else if ("classpath".equals(provider))
+      return new ClasspathPropertiesFileCredentialsProvider();
+    else if ("instance_profile".equals(provider))
+      return new InstanceProfileCredentialsProvider();
+    else if ("static".equals(provider)) {
+      final AWSCredentials credentials = new BasicAWSCredentials(dynamoDB.getAccessKey(),
+          dynamoDB.getSecretKey());
+      return new AWSCredentialsProvider() {
+        @Override
+        public AWSCredentials getCredentials() {
+          return credentials;
+        }
+
+        @Override
+        public void refresh() {
+        }
+      };
+    }
+    else
+      throw new IllegalArgumentException("Unknown credentials_provider " + provider +
+          ", must be default, classpath, instance_profile or static");
+  }
+
+  @Provides
+  @Named(DynamoDBDatastore.WRITE_DELAY_PROPERTY)
+  public int provideDynamoDBWriteDelay(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getDynamoDB().getWriteDelay();
+  }
+
+  @Provides
+  @Named(DynamoDBDatastore.WRITE_BUFFER_SIZE)
+  public int provideDynamoDBWriteBufferSize(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getDynamoDB().getWriteBufferMaxSize();
+  }
+
+  @Provides
+  @Named(DynamoDBDatastore.MAX_BUFFERED_POINTS_PROPERTY)
+  public int provideDynamoDBMaxBufferedPoints(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getDynamoDB().getMaxBufferedPoints();
+  }
+
+  @Provides
+  @Named(DynamoDBDatastore.QUERY_THREADS_PROPERTY)
+  public int provideDynamoDBQueryThreads(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getDynamoDB().getQueryThreads();
+  }
+
+  @Provides
+  @Named(DynamoDBDatastore.TABLE_THROUGHPUT_PROPERTY)
+  public Map<String, ProvisionedThroughput> provideDynamoDBTableThroughput(KairosDBConfiguration configuration) {
+    Map<String, ProvisionedThroughput> throughput = new HashMap<String, ProvisionedThroughput>();
+    for (KairosDBConfiguration.Datastore.DynamoDB.TableDefinition table :
+        configuration.getDatastore().getDynamoDB().getTables()) {
+      throughput.put(table.getTable(), new ProvisionedThroughput()
+          .withReadCapacityUnits(table.getReadCapacity())
+          .withWriteCapacityUnits(table.getWriteCapacity()));
+    }
+    return throughput;
+  }
+
+  @Provides
+  @Named(DynamoDBDatastore.TABLE_POLL_INTERVAL_PROPERTY)
+  public long provideDynamoDBTablePollInterval(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getDynamoDB().getTablePollInterval();
+  }
+
+  @Provides
+  @Named(DynamoDBDatastore.TABLE_CREATE_TIMEOUT_PROPERTY)
+  public long provideDynamoDBTableCreateTimeout(KairosDBConfiguration configuration) {
+    return configuration.getDatastore().getDynamoDB().getTableCreateTimeout();
+  }
 }
@@ -46,38 +46,52 @@ public abstract class RangeAggregator implements Aggregator
 	{
 		checkNotNull(dataPointGroup);
 
-		if (m_alignSampling)
-		{
-			TimeUnit tu = m_sampling.getUnit();
+		m_startTime = getRangeStartTime();
 
-			DateTime dt = new DateTime(m_startTime);
-			switch (tu)
-			{
-				case YEARS:
-				case MONTHS:
-				case WEEKS:
-				case DAYS:
-					if (tu == TimeUnit.WEEKS)
-						dt = dt.withDayOfWeek(1);
-					else if (tu == TimeUnit.MONTHS)
-						dt = dt.withDayOfMonth(1);
-					else
-						dt = dt.withDayOfYear(1);
-                 
-				case HOURS:
-				case MINUTES:
-				case SECONDS:
-				case MILLISECONDS:
-					dt = dt.withHourOfDay(0);
-					dt = dt.withMinuteOfHour(0);
-					dt = dt.withSecondOfMinute(0);
-					dt = dt.withMillisOfSecond(0);
-			}
+		return (new RangeDataPointAggregator(dataPointGroup, getSubAggregator()));
+	}
 
-			m_startTime = dt.getMillis();
+	/**
+	 Time the first range starts at, this is the start time moved back to the
+	 start of the day, week, month or year when sampling is aligned.
+	 */
+	public long getRangeStartTime()
+	{
+		if (!m_alignSampling)
+			return (m_startTime);
+
+		TimeUnit tu = m_sampling.getUnit();
+
+		DateTime dt = new DateTime(m_startTime);
+		switch (tu)
+		{
+			case YEARS:
+			case MONTHS:
+			case WEEKS:
+			case DAYS:
+				if (tu == TimeUnit.WEEKS)
+					dt = dt.withDayOfWeek(1);
+				else if (tu == TimeUnit.MONTHS)
+					dt = dt.withDayOfMonth(1);
+				else
+					dt = dt.withDayOfYear(1);
+                 
+			case HOURS:
+			case MINUTES:
+			case SECONDS:
+			case MILLISECONDS:
+				dt = dt.withHourOfDay(0);
+				dt = dt.withMinuteOfHour(0);
+				dt = dt.withSecondOfMinute(0);
+				dt = dt.withMillisOfSecond(0);
 		}
 
-		return (new RangeDataPointAggregator(dataPointGroup, getSubAggregator()));
+		return (dt.getMillis());
+	}
+
+	public Sampling getSampling()
+	{
+		return (m_sampling);
 	}
 
 	public void setSampling(Sampling sampling)
@@ -56,6 +56,7 @@ public class KairosDatastore
 	private final QueryQueuingManager m_queuingManager;
 	private final List<DataPointListener> m_dataPointListeners;
 	private final String m_hostname;
+	private final RollupQueryRewriter m_rollupQueryRewriter;
 
 	private String m_baseCacheDir;
 	private volatile String m_cacheDir;
@@ -71,6 +72,11 @@ public class KairosDatastore
 		m_queuingManager = checkNotNull(queuingManager);
 		m_hostname = checkNotNullOrEmpty(hostname);
 
+		if (datastore instanceof RollupDatastore)
+			m_rollupQueryRewriter = new RollupQueryRewriter((RollupDatastore) datastore);
+		else
+			m_rollupQueryRewriter = null;
+
 		m_baseCacheDir = System.getProperty("java.io.tmpdir") + "/kairos_cache/";
 
 		cleanDirectory(new File(m_baseCacheDir));
@@ -205,9 +211,14 @@ public class KairosDatastore
 
 		DatastoreQuery dq;
 
+		//Serve the query from a rollup if one gives the same result
+		RollupQuery rollupQuery = null;
+		if (m_rollupQueryRewriter != null)
+			rollupQuery = m_rollupQueryRewriter.rewrite(metric);
+
 		try
 		{
-			dq = new DatastoreQueryImpl(metric);
+			dq = new DatastoreQueryImpl(metric, rollupQuery);
 		}
 		catch (UnsupportedEncodingException e)
 		{
@@ -362,10 +373,11 @@ public class KairosDatastore
 	{
 		private String m_cacheFilename;
 		private QueryMetric m_metric;
+		private RollupQuery m_rollupQuery;
 		private List<DataPointGroup> m_results;
 		private int m_dataPointCount;
 		
-		public DatastoreQueryImpl(QueryMetric metric)
+		public DatastoreQueryImpl(QueryMetric metric, RollupQuery rollupQuery)
 				throws UnsupportedEncodingException, NoSuchAlgorithmException,
 				InterruptedException, DatastoreException
 		{
@@ -377,7 +389,11 @@ public class KairosDatastore
 			}
 
 			m_metric = metric;
+			m_rollupQuery = rollupQuery;
 			m_cacheFilename = calculateFilenameHash(metric);
+			//Averages read from a rollup are cached as sums and counts
+			if (rollupQuery != null && rollupQuery.getAggregator().equals(Rollup.AVG))
+				m_cacheFilename += "-" + Rollup.AVG;
 			m_queuingManager.waitForTimeToRun(m_cacheFilename);
 		}
 
@@ -415,7 +431,13 @@ public class KairosDatastore
 					logger.debug("Cache MISS!");
 					cachedResults = CachedSearchResult.createCachedSearchResult(m_metric.getName(),
 							tempFile);
-					m_datastore.queryDatabase(m_metric, cachedResults);
+					if (m_rollupQuery != null)
+					{
+						logger.debug("Reading from rollup " + m_rollupQuery.getRollup().getName());
+						m_rollupQuery.run(m_datastore, cachedResults);
+					}
+					else
+						m_datastore.queryDatabase(m_metric, cachedResults);
 					returnedRows = cachedResults.getRows();
 				}
 			}
@@ -450,6 +472,8 @@ public class KairosDatastore
 				DataPointGroup aggregatedGroup = queryResult;
 
 				List<Aggregator> aggregators = m_metric.getAggregators();
+				if (m_rollupQuery != null)
+					aggregators = m_rollupQuery.getAggregators(aggregators);
 
 				//This will pipe the aggregators together.
 				for (Aggregator aggregator : aggregators)
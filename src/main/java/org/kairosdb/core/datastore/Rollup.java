@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.kairosdb.util.Preconditions.checkNotNullOrEmpty;
+
+/**
+ Definition of a rollup, the metrics matching the pattern are aggregated over
+ each sampling period and the results are kept so queries that aggregate over
+ whole periods do not have to read every data point.
+ */
+public class Rollup
+{
+	public static final String SUM = "sum";
+	public static final String MIN = "min";
+	public static final String MAX = "max";
+	public static final String COUNT = "count";
+
+	/**
+	 Not kept itself, averages are served from the sum and count.
+	 */
+	public static final String AVG = "avg";
+
+	/**
+	 Aggregators a rollup can keep.  Sum, min and max give the same result
+	 when applied to their own results, the count is kept for averages.
+	 */
+	public static final Set<String> AGGREGATORS = ImmutableSet.of(SUM, MIN, MAX, COUNT);
+
+	private final String m_name;
+	private final Pattern m_metricPattern;
+	private final Sampling m_sampling;
+	private final Set<String> m_aggregators;
+	private final boolean m_streaming;
+
+	public Rollup(String name, String metricPattern, Sampling sampling,
+			Collection<String> aggregators)
+	{
+		this(name, metricPattern, sampling, aggregators, false);
+	}
+
+	/**
+	 @param streaming If true the periods are aggregated as data points are
+	 written instead of being read back once they are over
+	 */
+	public Rollup(String name, String metricPattern, Sampling sampling,
+			Collection<String> aggregators, boolean streaming)
+	{
+		m_name = checkNotNullOrEmpty(name);
+		m_metricPattern = Pattern.compile(checkNotNullOrEmpty(metricPattern));
+		m_sampling = checkNotNull(sampling);
+		m_aggregators = ImmutableSet.copyOf(aggregators);
+		m_streaming = streaming;
+
+		checkArgument(sampling.getUnit() != TimeUnit.MONTHS, "Rollup sampling can not be in months");
+		checkArgument(sampling.getSampling() > 0, "Rollup sampling must be greater than zero");
+		checkArgument(AGGREGATORS.containsAll(m_aggregators), "Rollup aggregators must be in " + AGGREGATORS);
+	}
+
+	public String getName()
+	{
+		return (m_name);
+	}
+
+	public boolean matches(String metricName)
+	{
+		return (m_metricPattern.matcher(metricName).matches());
+	}
+
+	public Sampling getSampling()
+	{
+		return (m_sampling);
+	}
+
+	public long getSamplingMillis()
+	{
+		return (m_sampling.getSampling());
+	}
+
+	public Set<String> getAggregators()
+	{
+		return (m_aggregators);
+	}
+
+	/**
+	 @return true if queries with the aggregator can be served from this rollup
+	 */
+	public boolean canServe(String aggregator)
+	{
+		if (aggregator.equals(AVG))
+			return (m_aggregators.contains(SUM) && m_aggregators.contains(COUNT));
+		else
+			return (m_aggregators.contains(aggregator));
+	}
+
+	public boolean isStreaming()
+	{
+		return (m_streaming);
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import org.kairosdb.core.exception.DatastoreException;
+
+import java.util.List;
+
+/**
+ Implemented by datastores that keep rollups.  KairosDatastore serves queries
+ from the rollups when they give the same result as the raw data points.
+ */
+public interface RollupDatastore
+{
+	public List<Rollup> getRollups();
+
+	/**
+	 Time the rollup starts at, data before this has not been rolled up.
+	 */
+	public long getRollupStartTime(Rollup rollup) throws DatastoreException;
+
+	/**
+	 Time the rollup is complete up to (exclusive), equal to the start time if
+	 nothing has been rolled up yet.
+	 */
+	public long getRollupEndTime(Rollup rollup) throws DatastoreException;
+
+	/**
+	 Queries the rolled up data points of the aggregator, each one is stamped
+	 with the time of the first data point in its sampling period.
+	 */
+	public void queryRollup(Rollup rollup, String aggregator, DatastoreMetricQuery query,
+			QueryCallback queryCallback) throws DatastoreException;
+}
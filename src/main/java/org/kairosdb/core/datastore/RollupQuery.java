@@ -0,0 +1,248 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.aggregator.Aggregator;
+import org.kairosdb.core.aggregator.RangeAggregator;
+import org.kairosdb.core.exception.DatastoreException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ A query served partly from a rollup.  The whole rollup periods between the
+ rollup start and end times are read from the rollup, anything before or
+ after that is read from the raw data points.
+
+ Averages are read as sums and counts, sums are doubles and counts are longs.
+ Each raw data point becomes a sum of its value and a count of one.  The avg
+ aggregator of the query is swapped for one that divides the sum of the
+ sums by the sum of the counts in each range, see getAggregators.
+ */
+public class RollupQuery
+{
+	private final RollupDatastore m_rollupDatastore;
+	private final QueryMetric m_metric;
+	private final Rollup m_rollup;
+	private final String m_aggregator;
+	private final long m_rollupStartTime;
+	private final long m_rollupEndTime;
+
+	public RollupQuery(RollupDatastore rollupDatastore, QueryMetric metric, Rollup rollup,
+			String aggregator, long rollupStartTime, long rollupEndTime)
+	{
+		m_rollupDatastore = rollupDatastore;
+		m_metric = metric;
+		m_rollup = rollup;
+		m_aggregator = aggregator;
+		m_rollupStartTime = rollupStartTime;
+		m_rollupEndTime = rollupEndTime;
+	}
+
+	public Rollup getRollup()
+	{
+		return (m_rollup);
+	}
+
+	public String getAggregator()
+	{
+		return (m_aggregator);
+	}
+
+	public long getRollupStartTime()
+	{
+		return (m_rollupStartTime);
+	}
+
+	public long getRollupEndTime()
+	{
+		return (m_rollupEndTime);
+	}
+
+	/**
+	 Runs the query, the rows from each part are sent to the callback
+	 separately and merged when the results are grouped.
+	 */
+	public void run(Datastore datastore, QueryCallback queryCallback) throws DatastoreException
+	{
+		QueryCallback partCallback = new PartCallback(queryCallback);
+		boolean avg = m_aggregator.equals(Rollup.AVG);
+		QueryCallback rawCallback = (avg ? new SumCountCallback(queryCallback) : partCallback);
+
+		if (m_metric.getStartTime() < m_rollupStartTime)
+			datastore.queryDatabase(createPart(m_metric.getStartTime(), m_rollupStartTime - 1), rawCallback);
+
+		DatastoreMetricQuery rollupPart = createPart(m_rollupStartTime, m_rollupEndTime - 1);
+		if (avg)
+		{
+			m_rollupDatastore.queryRollup(m_rollup, Rollup.SUM, rollupPart, new SumCallback(queryCallback));
+			m_rollupDatastore.queryRollup(m_rollup, Rollup.COUNT, rollupPart, partCallback);
+		}
+		else
+			m_rollupDatastore.queryRollup(m_rollup, m_aggregator, rollupPart, partCallback);
+
+		if (m_rollupEndTime <= m_metric.getEndTime())
+			datastore.queryDatabase(createPart(m_rollupEndTime, m_metric.getEndTime()), rawCallback);
+
+		try
+		{
+			queryCallback.endDataPoints();
+		}
+		catch (IOException e)
+		{
+			throw new DatastoreException(e);
+		}
+	}
+
+	/**
+	 Returns the aggregators to run over the results of run.  For averages
+	 the first aggregator is replaced by one that reads sums and counts.
+	 */
+	public List<Aggregator> getAggregators(List<Aggregator> aggregators)
+	{
+		if (!m_aggregator.equals(Rollup.AVG))
+			return (aggregators);
+
+		RangeAggregator avgAggregator = (RangeAggregator) aggregators.get(0);
+		SumCountAvgAggregator sumCountAggregator = new SumCountAvgAggregator();
+		sumCountAggregator.setSampling(avgAggregator.getSampling());
+		sumCountAggregator.setStartTime(avgAggregator.getRangeStartTime());
+
+		List<Aggregator> ret = new ArrayList<Aggregator>(aggregators);
+		ret.set(0, sumCountAggregator);
+
+		return (ret);
+	}
+
+	private QueryMetric createPart(long startTime, long endTime)
+	{
+		return (new QueryMetric(startTime, endTime, 0, m_metric.getName())
+				.setTags(m_metric.getTags()));
+	}
+
+	/**
+	 Passes everything on except the end of the data points.
+	 */
+	private static class PartCallback implements QueryCallback
+	{
+		private final QueryCallback m_queryCallback;
+
+		public PartCallback(QueryCallback queryCallback)
+		{
+			m_queryCallback = queryCallback;
+		}
+
+		@Override
+		public void addDataPoint(long timestamp, long value) throws IOException
+		{
+			m_queryCallback.addDataPoint(timestamp, value);
+		}
+
+		@Override
+		public void addDataPoint(long timestamp, double value) throws IOException
+		{
+			m_queryCallback.addDataPoint(timestamp, value);
+		}
+
+		@Override
+		public void startDataPointSet(Map<String, String> tags) throws IOException
+		{
+			m_queryCallback.startDataPointSet(tags);
+		}
+
+		@Override
+		public void endDataPoints()
+		{
+		}
+	}
+
+	/**
+	 Writes each raw data point as a double sum and a long count of one.
+	 */
+	private static class SumCountCallback extends PartCallback
+	{
+		public SumCountCallback(QueryCallback queryCallback)
+		{
+			super(queryCallback);
+		}
+
+		@Override
+		public void addDataPoint(long timestamp, long value) throws IOException
+		{
+			super.addDataPoint(timestamp, (double) value);
+			super.addDataPoint(timestamp, 1L);
+		}
+
+		@Override
+		public void addDataPoint(long timestamp, double value) throws IOException
+		{
+			super.addDataPoint(timestamp, value);
+			super.addDataPoint(timestamp, 1L);
+		}
+	}
+
+	/**
+	 Writes the rolled up sums as doubles so they are not taken for counts.
+	 */
+	private static class SumCallback extends PartCallback
+	{
+		public SumCallback(QueryCallback queryCallback)
+		{
+			super(queryCallback);
+		}
+
+		@Override
+		public void addDataPoint(long timestamp, long value) throws IOException
+		{
+			super.addDataPoint(timestamp, (double) value);
+		}
+	}
+
+	/**
+	 Averages the sums and counts written by run.
+	 */
+	private static class SumCountAvgAggregator extends RangeAggregator
+	{
+		@Override
+		protected RangeSubAggregator getSubAggregator()
+		{
+			return (new RangeSubAggregator()
+			{
+				@Override
+				public Iterable<DataPoint> getNextDataPoints(long returnTime, Iterator<DataPoint> dataPointRange)
+				{
+					double sum = 0;
+					long count = 0;
+					while (dataPointRange.hasNext())
+					{
+						DataPoint dataPoint = dataPointRange.next();
+						if (dataPoint.isInteger())
+							count += dataPoint.getLongValue();
+						else
+							sum += dataPoint.getDoubleValue();
+					}
+
+					return (Collections.singletonList(new DataPoint(returnTime, sum / count)));
+				}
+			});
+		}
+	}
+}
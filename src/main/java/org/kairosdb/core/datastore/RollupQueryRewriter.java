@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.datastore;
+
+import org.kairosdb.core.aggregator.Aggregator;
+import org.kairosdb.core.aggregator.AvgAggregator;
+import org.kairosdb.core.aggregator.MaxAggregator;
+import org.kairosdb.core.aggregator.MinAggregator;
+import org.kairosdb.core.aggregator.RangeAggregator;
+import org.kairosdb.core.aggregator.SumAggregator;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.core.groupby.GroupBy;
+import org.kairosdb.core.groupby.TagGroupBy;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ Finds the coarsest rollup a query can be served from.  A query qualifies when
+ its first aggregator is a sum, min or max whose ranges are made up of whole
+ rollup periods, the aggregator then gives the same result over the rolled up
+ points as over the raw points.  An avg qualifies the same way when the rollup
+ keeps both the sum and the count.  Group bys other than by tag look at each
+ data point so queries with them are never rewritten.
+ */
+public class RollupQueryRewriter
+{
+	private final RollupDatastore m_rollupDatastore;
+
+	public RollupQueryRewriter(RollupDatastore rollupDatastore)
+	{
+		m_rollupDatastore = checkNotNull(rollupDatastore);
+	}
+
+	/**
+	 @return null if the query can not be served from a rollup
+	 */
+	public RollupQuery rewrite(QueryMetric metric) throws DatastoreException
+	{
+		List<Aggregator> aggregators = metric.getAggregators();
+		if (aggregators.isEmpty())
+			return (null);
+
+		String aggregatorName = getRollupAggregator(aggregators.get(0));
+		if (aggregatorName == null)
+			return (null);
+
+		RangeAggregator rangeAggregator = (RangeAggregator) aggregators.get(0);
+		Sampling sampling = rangeAggregator.getSampling();
+		if (sampling == null || sampling.getUnit() == TimeUnit.MONTHS)
+			return (null);
+
+		for (GroupBy groupBy : metric.getGroupBys())
+		{
+			if (!(groupBy instanceof TagGroupBy))
+				return (null);
+		}
+
+		long querySampling = sampling.getSampling();
+		long rangeStartTime = rangeAggregator.getRangeStartTime();
+		long startTime = metric.getStartTime();
+		long endTime = metric.getEndTime();
+
+		RollupQuery ret = null;
+		for (Rollup rollup : m_rollupDatastore.getRollups())
+		{
+			long rollupSampling = rollup.getSamplingMillis();
+
+			if (ret != null && ret.getRollup().getSamplingMillis() >= rollupSampling)
+				continue;
+
+			if (!rollup.matches(metric.getName()) || !rollup.canServe(aggregatorName))
+				continue;
+
+			//Every rollup period has to fall inside one range of the aggregator
+			if (querySampling % rollupSampling != 0 || rangeStartTime % rollupSampling != 0)
+				continue;
+
+			//Only whole periods within the query are read from the rollup
+			long rollupStartTime = Math.max(alignUp(startTime, rollupSampling),
+					m_rollupDatastore.getRollupStartTime(rollup));
+			long rollupEndTime = Math.min(alignDown(endTime + 1, rollupSampling),
+					m_rollupDatastore.getRollupEndTime(rollup));
+
+			if (rollupStartTime >= rollupEndTime)
+				continue;
+
+			ret = new RollupQuery(m_rollupDatastore, metric, rollup, aggregatorName,
+					rollupStartTime, rollupEndTime);
+		}
+
+		return (ret);
+	}
+
+	private static String getRollupAggregator(Aggregator aggregator)
+	{
+		if (aggregator instanceof SumAggregator)
+			return (Rollup.SUM);
+		else if (aggregator instanceof MinAggregator)
+			return (Rollup.MIN);
+		else if (aggregator instanceof MaxAggregator)
+			return (Rollup.MAX);
+		else if (aggregator instanceof AvgAggregator)
+			return (Rollup.AVG);
+		else
+			return (null);
+	}
+
+	private static long alignUp(long time, long sampling)
+	{
+		return (alignDown(time + sampling - 1, sampling));
+	}
+
+	private static long alignDown(long time, long sampling)
+	{
+		return (time - (time % sampling));
+	}
+}
@@ -21,7 +21,9 @@ import org.kairosdb.core.DataPointSet;
 import org.kairosdb.core.datastore.KairosDatastore;
 import org.kairosdb.core.exception.DatastoreException;
 
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
@@ -145,6 +147,24 @@ public class ThreadReporter
 		}
 	}
 
+	/**
+	 Removes the data reported on this thread and returns the values summed by
+	 metric name.  Used to hand data reported on worker threads to the thread
+	 that submits it, where it is added under that thread's tags.
+	 */
+	public static Map<String, Long> takeSummedData()
+	{
+		Map<String, Long> ret = new HashMap<String, Long>();
+		while (s_reporterData.getListSize() != 0)
+		{
+			ReporterDataPoint dp = s_reporterData.getNextDataPoint();
+			Long sum = ret.get(dp.getMetricName());
+			ret.put(dp.getMetricName(), (sum == null ? 0L : sum) + dp.getValue());
+		}
+
+		return (ret);
+	}
+
 	/**
 	 Used in finally block to clear out unsent data in case an exception occurred.
 	 */
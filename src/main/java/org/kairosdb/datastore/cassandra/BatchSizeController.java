@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+/**
+ Controls the number of mutations sent to Cassandra in a single batch using
+ additive increase / multiplicative decrease.  Every batch that completes
+ within the target latency grows the size by a fixed step, a slow batch
+ halves it and a failed batch quarters it.  The size always stays between
+ the min and max batch sizes.
+ */
+public class BatchSizeController
+{
+	private final int m_minBatchSize;
+	private final int m_maxBatchSize;
+	private final int m_increaseStep;
+	private final long m_targetLatency;
+
+	private int m_batchSize;
+
+	/**
+	 @param minBatchSize Smallest batch size the controller will go to
+	 @param maxBatchSize Largest batch size, this is also the starting size
+	 @param targetLatency Batches taking longer than this (in milliseconds)
+	 cause the batch size to be reduced.
+	 */
+	public BatchSizeController(int minBatchSize, int maxBatchSize, long targetLatency)
+	{
+		m_minBatchSize = Math.max(1, minBatchSize);
+		m_maxBatchSize = Math.max(m_minBatchSize, maxBatchSize);
+		m_increaseStep = m_minBatchSize;
+		m_targetLatency = targetLatency;
+		m_batchSize = m_maxBatchSize;
+	}
+
+	public synchronized int getBatchSize()
+	{
+		return (m_batchSize);
+	}
+
+	/**
+	 Called after a batch has been sent successfully.
+	 @param latency Time in milliseconds it took to send the batch
+	 */
+	public synchronized void batchSucceeded(long latency)
+	{
+		if (latency > m_targetLatency)
+			m_batchSize = Math.max(m_minBatchSize, m_batchSize / 2);
+		else
+			m_batchSize = Math.min(m_maxBatchSize, m_batchSize + m_increaseStep);
+	}
+
+	/**
+	 Called when sending a batch failed.
+	 */
+	public synchronized void batchFailed()
+	{
+		m_batchSize = Math.max(m_minBatchSize, m_batchSize / 4);
+	}
+}
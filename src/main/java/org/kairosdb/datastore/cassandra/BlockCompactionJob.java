@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.core.scheduler.KairosDBJob;
+import org.quartz.CronScheduleBuilder;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.Trigger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.quartz.TriggerBuilder.newTrigger;
+
+/**
+ Rewrites the closed time blocks written since the last run as compressed
+ blocks.  Does nothing unless block storage is turned on.
+ */
+public class BlockCompactionJob implements KairosDBJob
+{
+	public static final Logger logger = LoggerFactory.getLogger(BlockCompactionJob.class);
+	public static final String SCHEDULE = "kairosdb.datastore.cassandra.block_compaction_schedule";
+
+	private final CassandraDatastore datastore;
+	private String schedule;
+
+	@Inject
+	public BlockCompactionJob(@Named(SCHEDULE) String schedule, CassandraDatastore datastore)
+	{
+		this.datastore = datastore;
+		this.schedule = schedule;
+	}
+
+	@Override
+	public void execute(JobExecutionContext jobExecutionContext) throws JobExecutionException
+	{
+		logger.debug("Executing job...");
+		try
+		{
+			datastore.compactBlocks();
+		}
+		catch (DatastoreException e)
+		{
+			logger.error("Block compaction failed", e);
+		}
+		logger.debug("Job Completed");
+	}
+
+	@Override
+	public Trigger getTrigger()
+	{
+		return newTrigger()
+				.withIdentity(this.getClass().getSimpleName())
+				.withSchedule(CronScheduleBuilder.cronSchedule(schedule))
+				.build();
+	}
+}
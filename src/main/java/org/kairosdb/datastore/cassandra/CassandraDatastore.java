@@ -15,9 +15,13 @@
  */
 package org.kairosdb.datastore.cassandra;
 
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.SetMultimap;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
+import me.prettyprint.cassandra.model.ConfigurableConsistencyLevel;
 import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
 import me.prettyprint.cassandra.serializers.IntegerSerializer;
 import me.prettyprint.cassandra.serializers.StringSerializer;
@@ -25,38 +29,42 @@ import me.prettyprint.cassandra.service.CassandraHostConfigurator;
 import me.prettyprint.cassandra.service.ColumnSliceIterator;
 import me.prettyprint.cassandra.service.ThriftKsDef;
 import me.prettyprint.hector.api.Cluster;
+import me.prettyprint.hector.api.HConsistencyLevel;
 import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.HColumn;
 import me.prettyprint.hector.api.ddl.ColumnFamilyDefinition;
 import me.prettyprint.hector.api.ddl.ComparatorType;
 import me.prettyprint.hector.api.ddl.KeyspaceDefinition;
 import me.prettyprint.hector.api.exceptions.HectorException;
 import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.Mutator;
 import me.prettyprint.hector.api.query.CountQuery;
 import me.prettyprint.hector.api.query.SliceQuery;
 import org.kairosdb.core.DataPoint;
 import org.kairosdb.core.DataPointSet;
 import org.kairosdb.core.datastore.*;
 import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.core.reporting.KairosMetricReporter;
 import org.kairosdb.core.reporting.ThreadReporter;
+import org.kairosdb.util.DataPointBlock;
 import org.kairosdb.util.MemoryMonitor;
+import org.kairosdb.util.MemoryMonitorException;
+import org.kairosdb.util.StringPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-public class CassandraDatastore implements Datastore
+public class CassandraDatastore implements Datastore, RollupDatastore, KairosMetricReporter
 {
 	public static final Logger logger = LoggerFactory.getLogger(CassandraDatastore.class);
 
-	public static final int ROW_KEY_CACHE_SIZE = 1024;
-	public static final int STRING_CACHE_SIZE = 1024;
-
 	public static final int LONG_FLAG = 0x0;
 	public static final int FLOAT_FLAG = 0x1;
 
@@ -68,37 +76,158 @@ public class CassandraDatastore implements Datastore
 	public static final String WRITE_DELAY_PROPERTY = "kairosdb.datastore.cassandra.write_delay";
 	public static final String KEY_QUERY_TIME = "kairosdb.datastore.cassandra.key_query_time";
 	public static final String WRITE_BUFFER_SIZE = "kairosdb.datastore.cassandra.write_buffer_max_size";
+	public static final String WRITE_BUFFER_STRIPES_PROPERTY = "kairosdb.datastore.cassandra.write_buffer_stripes";
+	public static final String WRITE_FLUSH_THREADS_PROPERTY = "kairosdb.datastore.cassandra.write_flush_threads";
+	public static final String WRITE_BATCH_MAX_SIZE_PROPERTY = "kairosdb.datastore.cassandra.write_batch_max_size";
+	public static final String WRITE_BATCH_MAX_BYTES_PROPERTY = "kairosdb.datastore.cassandra.write_batch_max_bytes";
+	public static final String WRITE_BATCH_TARGET_LATENCY_PROPERTY = "kairosdb.datastore.cassandra.write_batch_target_latency";
 	public static final String SINGLE_ROW_READ_SIZE_PROPERTY = "kairosdb.datastore.cassandra.single_row_read_size";
 	public static final String MULTI_ROW_READ_SIZE_PROPERTY = "kairosdb.datastore.cassandra.multi_row_read_size";
 	public static final String MULTI_ROW_SIZE_PROPERTY = "kairosdb.datastore.cassandra.multi_row_size";
+	public static final String QUERY_THREADS_PROPERTY = "kairosdb.datastore.cassandra.query_threads";
+	public static final String ROW_READ_CONCURRENCY_PROPERTY = "kairosdb.datastore.cassandra.row_read_concurrency";
+	public static final String QUERY_RUNNER_COUNT = "kairosdb.datastore.cassandra.query_runner_count";
+	public static final String QUERY_RUNNERS_IN_FLIGHT = "kairosdb.datastore.cassandra.query_runners_in_flight";
+	public static final String QUERY_DATA_POINTS_READ = "kairosdb.datastore.cassandra.query_data_points_read";
+	public static final String ROW_KEY_CACHE_SIZE_PROPERTY = "kairosdb.datastore.cassandra.row_key_cache_size";
+	public static final String STRING_CACHE_SIZE_PROPERTY = "kairosdb.datastore.cassandra.string_cache_size";
+	public static final String BLOCK_WIDTH_PROPERTY = "kairosdb.datastore.cassandra.block_width";
+	public static final String BLOCK_CLOSE_DELAY_PROPERTY = "kairosdb.datastore.cassandra.block_close_delay";
+	public static final String TAG_INDEX_PROPERTY = "kairosdb.datastore.cassandra.tag_index";
+	public static final String TAG_INDEX_POSTINGS_READ = "kairosdb.datastore.cassandra.tag_index_postings_read";
+	public static final String ROLLUPS_PROPERTY = "kairosdb.datastore.cassandra.rollups";
+	public static final String ROLLUP_DELAY_PROPERTY = "kairosdb.datastore.cassandra.rollup_delay";
+	public static final String WAL_DIR_PROPERTY = "kairosdb.datastore.cassandra.wal_dir";
+	public static final String WAL_SEGMENT_SIZE_PROPERTY = "kairosdb.datastore.cassandra.wal_segment_size";
+	public static final String WAL_SYNC_PROPERTY = "kairosdb.datastore.cassandra.wal_sync";
+	public static final String WAL_SYNC_INTERVAL_PROPERTY = "kairosdb.datastore.cassandra.wal_sync_interval";
+	public static final String WAL_ROLL_INTERVAL_PROPERTY = "kairosdb.datastore.cassandra.wal_roll_interval";
+	public static final String WRITE_CONSISTENCY_LEVEL_PROPERTY = "kairosdb.datastore.cassandra.write_consistency_level";
+	public static final String INDEX_WRITE_CONSISTENCY_LEVEL_PROPERTY = "kairosdb.datastore.cassandra.index_write_consistency_level";
+	public static final String READ_CONSISTENCY_LEVEL_PROPERTY = "kairosdb.datastore.cassandra.read_consistency_level";
+	public static final String INDEX_READ_CONSISTENCY_LEVEL_PROPERTY = "kairosdb.datastore.cassandra.index_read_consistency_level";
+	public static final String SPECULATIVE_RETRY_PERCENTILE_PROPERTY = "kairosdb.datastore.cassandra.speculative_retry_percentile";
+	public static final String SPECULATIVE_RETRY_MIN_DELAY_PROPERTY = "kairosdb.datastore.cassandra.speculative_retry_min_delay";
+	public static final String RETENTION_PROPERTY = "kairosdb.datastore.cassandra.retention";
+	public static final String ROW_WIDTHS_PROPERTY = "kairosdb.datastore.cassandra.row_widths";
+	public static final String DOUBLE_ENCODING_PROPERTY = "kairosdb.datastore.cassandra.double_encoding";
 
 	public static final String KEYSPACE = "kairosdb";
 	public static final String CF_DATA_POINTS = "data_points";
 	public static final String CF_ROW_KEY_INDEX = "row_key_index";
 	public static final String CF_STRING_INDEX = "string_index";
+	public static final String CF_DATA_POINT_BLOCKS = "data_point_blocks";
+	public static final String CF_TAG_INDEX = "tag_index";
+	public static final String CF_DATA_POINT_ROLLUPS = "data_point_rollups";
+
+	/**
+	 Longest time block compaction waits for the data point buffer to flush.
+	 */
+	public static final long BLOCK_FLUSH_TIMEOUT = 60000L;
+
+	/**
+	 How often the tag index start times recorded by the nodes are read again.
+	 */
+	public static final long TAG_INDEX_START_REFRESH = 60000L;
+
+	/**
+	 Posting lists are only counted up to this many row keys when planning
+	 a tag index lookup.
+	 */
+	public static final int MAX_POSTING_COUNT = 100000;
+
+	/**
+	 Number of rollup row keys remembered as already written to the index.
+	 */
+	public static final int ROLLUP_ROW_KEY_CACHE_SIZE = 16384;
+
+	/**
+	 Longest TTL Cassandra accepts, 20 years in seconds.
+	 */
+	public static final int MAX_TTL = 630720000;
+
+	/**
+	 Most periods of a rollup rolled up in one run, a rollup that has fallen
+	 behind catches up over several runs.
+	 */
+	public static final int MAX_ROLLUP_PERIODS = 100;
 
 	public static final String ROW_KEY_METRIC_NAMES = "metric_names";
 	public static final String ROW_KEY_TAG_NAMES = "tag_names";
 	public static final String ROW_KEY_TAG_VALUES = "tag_values";
+	public static final String ROW_KEY_TAG_INDEX_START = "tag_index_start";
+	public static final String ROW_KEY_ROLLUP_TIMES = "rollup_times";
+	public static final String ROW_KEY_ROW_WIDTHS = "row_widths";
+	public static final String ROW_KEY_OPEN_BLOCKS = "open_blocks";
+	public static final String ROW_KEY_DIRTY_ROLLUP_PERIODS = "dirty_rollup_periods";
 
 
 	private Cluster m_cluster;
 	private Keyspace m_keyspace;
+	private Keyspace m_indexKeyspace;
 	private int m_singleRowReadSize;
 	private int m_multiRowSize;
 	private int m_multiRowReadSize;
+	private int m_queryThreads;
+	private ExecutorService m_queryExecutor;
+	private int m_rowReadConcurrency;
+	private ExecutorService m_rowReadExecutor;
 	private WriteBuffer<DataPointsRowKey, Integer, ByteBuffer> m_dataPointWriteBuffer;
 	private WriteBuffer<String, DataPointsRowKey, String> m_rowKeyWriteBuffer;
 	private WriteBuffer<String, String, String> m_stringIndexWriteBuffer;
-
-	private DataCache<DataPointsRowKey> m_rowKeyCache = new DataCache<DataPointsRowKey>(ROW_KEY_CACHE_SIZE);
-	private DataCache<String> m_metricNameCache = new DataCache<String>(STRING_CACHE_SIZE);
-	private DataCache<String> m_tagNameCache = new DataCache<String>(STRING_CACHE_SIZE);
-	private DataCache<String> m_tagValueCache = new DataCache<String>(STRING_CACHE_SIZE);
+	private WriteBuffer<String, DataPointsRowKey, String> m_tagIndexWriteBuffer;
+	private WriteBuffer<DataPointsRowKey, Integer, ByteBuffer> m_rollupWriteBuffer;
+	private volatile WriteAheadLog m_writeAheadLog;
+
+	//Hector picks the level of a batch mutate by the operation type alone so
+	//the data point and index column families each have their own keyspace
+	private final ConfigurableConsistencyLevel m_consistencyLevel = new ConfigurableConsistencyLevel();
+	private final ConfigurableConsistencyLevel m_indexConsistencyLevel = new ConfigurableConsistencyLevel();
+	private volatile SpeculativeRetry m_speculativeRetry;
+
+	//Retention in milliseconds of each metric written to, 0 if it is kept forever
+	private List<RetentionPolicy> m_retentionPolicies = Collections.emptyList();
+	private final ConcurrentMap<String, Long> m_retentions = new ConcurrentHashMap<String, Long>();
+	private List<RowWidthPolicy> m_rowWidthPolicies = Collections.emptyList();
+	private final ConcurrentMap<String, Long> m_rowWidths = new ConcurrentHashMap<String, Long>();
+	private volatile ValueSerializer.DoubleEncoding m_doubleEncoding = ValueSerializer.DoubleEncoding.FLOAT;
+
+	private DataCache<DataPointsRowKey> m_rowKeyCache;
+	//Separate so rollup keys do not push out the data point keys
+	private DataCache<DataPointsRowKey> m_rollupRowKeyCache;
+	private DataCache<String> m_metricNameCache;
+	private DataCache<String> m_tagNameCache;
+	private DataCache<String> m_tagValueCache;
+	//Decodes row keys read by queries, the strings are pooled across queries
+	private DataPointsRowKeySerializer m_queryRowKeySerializer;
+	private String m_hostname;
+
+	//Blocks that have had data written to them since they were last compacted,
+	//each one is also recorded in the open blocks row of the string index
+	private long m_blockWidth;
+	private long m_blockCloseDelay;
+	private final Set<BlockKey> m_openBlocks =
+			Collections.newSetFromMap(new ConcurrentHashMap<BlockKey, Boolean>());
+
+	//Time tiers starting at or after m_tagIndexStart have a complete tag index
+	private boolean m_tagIndex;
+	private volatile long m_tagIndexStart = Long.MAX_VALUE;
+	private volatile long m_tagIndexStartRead = 0L;
+
+	//Rollups cover the time from their start time up to their end time
+	private List<Rollup> m_rollups;
+	private long m_rollupDelay;
+	private final Map<String, Long> m_rollupStartTimes = new ConcurrentHashMap<String, Long>();
+	private final Map<String, Long> m_rollupEndTimes = new ConcurrentHashMap<String, Long>();
+
+	//Streaming rollups only have the periods after this time in memory
+	private final long m_streamingStartTime = System.currentTimeMillis();
+	private final Set<DirtyRollupPeriod> m_dirtyRollupPeriods =
+			Collections.newSetFromMap(new ConcurrentHashMap<DirtyRollupPeriod, Boolean>());
 
 
 	@Inject
-	public CassandraDatastore(@Named(HOST_LIST_PROPERTY) String cassandraHostList,
+	public CassandraDatastore(CassandraHostConfigurator hostConfig,
 	                          @Named(CassandraModule.CASSANDRA_AUTH_MAP) Map<String, String> cassandraAuthentication,
 	                          @Named(REPLICATION_FACTOR_PROPERTY) int replicationFactor,
 	                          @Named(SINGLE_ROW_READ_SIZE_PROPERTY) int singleRowReadSize,
@@ -106,6 +235,20 @@ public class CassandraDatastore implements Datastore
 	                          @Named(MULTI_ROW_READ_SIZE_PROPERTY) int multiRowReadSize,
 	                          @Named(WRITE_DELAY_PROPERTY) int writeDelay,
 	                          @Named(WRITE_BUFFER_SIZE) int maxWriteSize,
+	                          @Named(WRITE_BUFFER_STRIPES_PROPERTY) int writeBufferStripes,
+	                          @Named(WRITE_FLUSH_THREADS_PROPERTY) int writeFlushThreads,
+	                          @Named(WRITE_BATCH_MAX_SIZE_PROPERTY) int writeBatchMaxSize,
+	                          @Named(WRITE_BATCH_MAX_BYTES_PROPERTY) long writeBatchMaxBytes,
+	                          @Named(WRITE_BATCH_TARGET_LATENCY_PROPERTY) long writeBatchTargetLatency,
+	                          @Named(QUERY_THREADS_PROPERTY) int queryThreads,
+	                          @Named(ROW_READ_CONCURRENCY_PROPERTY) int rowReadConcurrency,
+	                          @Named(ROW_KEY_CACHE_SIZE_PROPERTY) int rowKeyCacheSize,
+	                          @Named(STRING_CACHE_SIZE_PROPERTY) int stringCacheSize,
+	                          @Named(BLOCK_WIDTH_PROPERTY) long blockWidth,
+	                          @Named(BLOCK_CLOSE_DELAY_PROPERTY) long blockCloseDelay,
+	                          @Named(TAG_INDEX_PROPERTY) boolean tagIndex,
+	                          @Named(ROLLUPS_PROPERTY) List<Rollup> rollups,
+	                          @Named(ROLLUP_DELAY_PROPERTY) long rollupDelay,
 	                          final @Named("HOSTNAME") String hostname) throws DatastoreException
 	{
 		try
@@ -113,9 +256,43 @@ public class CassandraDatastore implements Datastore
 			m_singleRowReadSize = singleRowReadSize;
 			m_multiRowSize = multiRowSize;
 			m_multiRowReadSize = multiRowReadSize;
+			m_hostname = hostname;
+			m_blockWidth = blockWidth;
+			m_blockCloseDelay = blockCloseDelay;
+			m_tagIndex = tagIndex;
+			m_rollups = rollups;
+			m_rollupDelay = rollupDelay;
+
+			//A rollup period has to fall within one row
+			for (Rollup rollup : rollups)
+			{
+				if (ROW_WIDTH % rollup.getSamplingMillis() != 0)
+					throw new DatastoreException("Sampling of rollup " + rollup.getName() +
+							" does not divide the row width of " + ROW_WIDTH + " milliseconds");
+			}
 
-			CassandraHostConfigurator hostConfig = new CassandraHostConfigurator(cassandraHostList);
-			//TODO: fine tune the hostConfig
+			m_rowKeyCache = new DataCache<DataPointsRowKey>(rowKeyCacheSize);
+			m_rollupRowKeyCache = new DataCache<DataPointsRowKey>(ROLLUP_ROW_KEY_CACHE_SIZE);
+			m_metricNameCache = new DataCache<String>(stringCacheSize);
+			m_tagNameCache = new DataCache<String>(stringCacheSize);
+			m_tagValueCache = new DataCache<String>(stringCacheSize);
+			m_queryRowKeySerializer = new DataPointsRowKeySerializer(new StringPool(stringCacheSize));
+
+			//Query runners are shared by all queries, a single query never has
+			//more than m_queryThreads runners in flight.
+			m_queryThreads = Math.max(1, queryThreads);
+			m_queryExecutor = Executors.newFixedThreadPool(m_queryThreads,
+					new ThreadFactoryBuilder().setDaemon(true)
+							.setNameFormat("cassandra-query-runner-%d").build());
+
+			//Row readers spend most of their time blocked handing pages to the
+			//runners, the number of them per query is limited by m_rowReadConcurrency
+			//so this pool is not bounded.
+			m_rowReadConcurrency = Math.max(1, rowReadConcurrency);
+			m_rowReadExecutor = Executors.newCachedThreadPool(
+					new ThreadFactoryBuilder().setDaemon(true)
+							.setNameFormat("cassandra-row-reader-%d").build());
+			m_speculativeRetry = new SpeculativeRetry(m_rowReadExecutor, 0, 0L);
 
 			m_cluster = HFactory.getOrCreateCluster("kairosdb-cluster",
 					hostConfig, cassandraAuthentication);
@@ -124,72 +301,532 @@ public class CassandraDatastore implements Datastore
 
 			if (keyspaceDef == null)
 				createSchema(replicationFactor);
+			else
+			{
+				addMissingColumnFamily(keyspaceDef, CF_DATA_POINT_BLOCKS, ComparatorType.BYTESTYPE);
+				addMissingColumnFamily(keyspaceDef, CF_TAG_INDEX, ComparatorType.BYTESTYPE);
+				addMissingColumnFamily(keyspaceDef, CF_DATA_POINT_ROLLUPS, ComparatorType.BYTESTYPE);
+			}
 
-			m_keyspace = HFactory.createKeyspace(KEYSPACE, m_cluster);
-
-			ReentrantLock mutatorLock = new ReentrantLock();
-			Condition lockCondition = mutatorLock.newCondition();
+			m_keyspace = HFactory.createKeyspace(KEYSPACE, m_cluster, m_consistencyLevel);
+			m_indexKeyspace = HFactory.createKeyspace(KEYSPACE, m_cluster, m_indexConsistencyLevel);
 
 			m_dataPointWriteBuffer = new WriteBuffer<DataPointsRowKey, Integer, ByteBuffer>(
 					m_keyspace, CF_DATA_POINTS, writeDelay, maxWriteSize,
 					DATA_POINTS_ROW_KEY_SERIALIZER,
 					IntegerSerializer.get(),
 					ByteBufferSerializer.get(),
-					new WriteBufferStats()
-					{
-						@Override
-						public void saveWriteSize(int pendingWrites)
-						{
-							DataPointSet dps = new DataPointSet("kairosdb.datastore.write_size");
-							dps.addTag("host", hostname);
-							dps.addTag("buffer", CF_DATA_POINTS);
-							dps.addDataPoint(new DataPoint(System.currentTimeMillis(), pendingWrites));
-							putInternalDataPoints(dps);
-						}
-					}, mutatorLock, lockCondition);
+					newWriteBufferStats(CF_DATA_POINTS), writeBufferStripes, writeFlushThreads,
+					writeBatchMaxSize, writeBatchMaxBytes, writeBatchTargetLatency);
 
 			m_rowKeyWriteBuffer = new WriteBuffer<String, DataPointsRowKey, String>(
-					m_keyspace, CF_ROW_KEY_INDEX, writeDelay, maxWriteSize,
+					m_indexKeyspace, CF_ROW_KEY_INDEX, writeDelay, maxWriteSize,
 					StringSerializer.get(),
 					DATA_POINTS_ROW_KEY_SERIALIZER,
 					StringSerializer.get(),
-					new WriteBufferStats()
-					{
-						@Override
-						public void saveWriteSize(int pendingWrites)
-						{
-							DataPointSet dps = new DataPointSet("kairosdb.datastore.write_size");
-							dps.addTag("host", hostname);
-							dps.addTag("buffer", CF_ROW_KEY_INDEX);
-							dps.addDataPoint(new DataPoint(System.currentTimeMillis(), pendingWrites));
-							putInternalDataPoints(dps);
-						}
-					}, mutatorLock, lockCondition);
+					newWriteBufferStats(CF_ROW_KEY_INDEX), writeBufferStripes, writeFlushThreads,
+					writeBatchMaxSize, writeBatchMaxBytes, writeBatchTargetLatency);
 
 			m_stringIndexWriteBuffer = new WriteBuffer<String, String, String>(
-					m_keyspace, CF_STRING_INDEX, writeDelay, maxWriteSize,
+					m_indexKeyspace, CF_STRING_INDEX, writeDelay, maxWriteSize,
+					StringSerializer.get(),
+					StringSerializer.get(),
 					StringSerializer.get(),
+					newWriteBufferStats(CF_STRING_INDEX), writeBufferStripes, writeFlushThreads,
+					writeBatchMaxSize, writeBatchMaxBytes, writeBatchTargetLatency);
+
+			m_tagIndexWriteBuffer = new WriteBuffer<String, DataPointsRowKey, String>(
+					m_indexKeyspace, CF_TAG_INDEX, writeDelay, maxWriteSize,
 					StringSerializer.get(),
+					DATA_POINTS_ROW_KEY_SERIALIZER,
 					StringSerializer.get(),
-					new WriteBufferStats()
+					newWriteBufferStats(CF_TAG_INDEX), writeBufferStripes, writeFlushThreads,
+					writeBatchMaxSize, writeBatchMaxBytes, writeBatchTargetLatency);
+
+			m_rollupWriteBuffer = new WriteBuffer<DataPointsRowKey, Integer, ByteBuffer>(
+					m_keyspace, CF_DATA_POINT_ROLLUPS, writeDelay, maxWriteSize,
+					DATA_POINTS_ROW_KEY_SERIALIZER,
+					IntegerSerializer.get(),
+					ByteBufferSerializer.get(),
+					newWriteBufferStats(CF_DATA_POINT_ROLLUPS), writeBufferStripes, writeFlushThreads,
+					writeBatchMaxSize, writeBatchMaxBytes, writeBatchTargetLatency);
+
+			recordTagIndexStart();
+
+			for (Rollup rollup : m_rollups)
+				loadRollupTimes(rollup);
+
+			if (m_blockWidth > 0)
+				loadOpenBlocks();
+		}
+		catch (HectorException e)
+		{
+			throw new DatastoreException(e);
+		}
+	}
+
+	/**
+	 Reads the blocks left open by the previous run, and by other nodes, so
+	 they are compacted.
+	 */
+	private void loadOpenBlocks()
+	{
+		SliceQuery<String, String, String> sliceQuery =
+				HFactory.createSliceQuery(m_indexKeyspace, StringSerializer.get(), StringSerializer.get(),
+						StringSerializer.get());
+
+		sliceQuery.setColumnFamily(CF_STRING_INDEX);
+		sliceQuery.setKey(ROW_KEY_OPEN_BLOCKS);
+
+		ColumnSliceIterator<String, String, String> columnIterator =
+				new ColumnSliceIterator<String, String, String>(sliceQuery, "", (String) null, false, m_singleRowReadSize);
+
+		while (columnIterator.hasNext())
+		{
+			String columnName = columnIterator.next().getName();
+			try
+			{
+				m_openBlocks.add(BlockKey.fromColumnName(columnName));
+			}
+			catch (IllegalArgumentException e)
+			{
+				logger.warn("Ignoring invalid open block " + columnName);
+			}
+		}
+
+		logger.info("Loaded " + m_openBlocks.size() + " open blocks");
+	}
+
+	/**
+	 Reports the number of writes pending in the buffer for the column family
+	 as kairosdb.datastore.write_size.
+	 */
+	private WriteBufferStats newWriteBufferStats(final String cfName)
+	{
+		return (new WriteBufferStats()
+		{
+			@Override
+			public void saveWriteSize(int pendingWrites)
+			{
+				DataPointSet dps = new DataPointSet("kairosdb.datastore.write_size");
+				dps.addTag("host", m_hostname);
+				dps.addTag("buffer", cfName);
+				dps.addDataPoint(new DataPoint(System.currentTimeMillis(), pendingWrites));
+				putInternalDataPoints(dps);
+			}
+		});
+	}
+
+	/**
+	 Records when this node turned the tag index on, unless it already has.
+	 With the index off the record is taken out so turning it on again records
+	 a new start, the node does not index the rows it writes in between.
+	 */
+	private void recordTagIndexStart()
+	{
+		HColumn<String, String> column = HFactory.createStringColumnQuery(m_indexKeyspace)
+				.setColumnFamily(CF_STRING_INDEX)
+				.setKey(ROW_KEY_TAG_INDEX_START)
+				.setName(m_hostname)
+				.execute().get();
+
+		Mutator<String> mutator = HFactory.createMutator(m_indexKeyspace, StringSerializer.get());
+		if (m_tagIndex && (column == null))
+		{
+			mutator.insert(ROW_KEY_TAG_INDEX_START, CF_STRING_INDEX,
+					newStringColumn(m_hostname, String.valueOf(System.currentTimeMillis())));
+		}
+		else if (!m_tagIndex && (column != null))
+		{
+			mutator.addDeletion(ROW_KEY_TAG_INDEX_START, CF_STRING_INDEX, m_hostname,
+					StringSerializer.get(), System.currentTimeMillis());
+			mutator.execute();
+		}
+	}
+
+	/**
+	 Returns the time from which every node indexes the rows it writes, rows in
+	 earlier time tiers may be missing from the index.  This is the latest start
+	 recorded by any node and it is read again every TAG_INDEX_START_REFRESH so
+	 a node turning on the index later moves it forward.  Nodes that have never
+	 turned the index on have no record, the index should be turned on for all
+	 of them before the start is relied on.
+	 */
+	private long getTagIndexStart()
+	{
+		long now = System.currentTimeMillis();
+		if (now - m_tagIndexStartRead < TAG_INDEX_START_REFRESH)
+			return (m_tagIndexStart);
+
+		try
+		{
+			m_tagIndexStart = readTagIndexStart();
+			m_tagIndexStartRead = now;
+		}
+		catch (HectorException e)
+		{
+			logger.error("Unable to read the tag index start", e);
+		}
+
+		return (m_tagIndexStart);
+	}
+
+	/*package*/ long readTagIndexStart()
+	{
+		SliceQuery<String, String, String> sliceQuery =
+				HFactory.createSliceQuery(m_indexKeyspace, StringSerializer.get(), StringSerializer.get(),
+						StringSerializer.get());
+
+		sliceQuery.setColumnFamily(CF_STRING_INDEX)
+				.setKey(ROW_KEY_TAG_INDEX_START);
+
+		ColumnSliceIterator<String, String, String> columnIterator =
+				new ColumnSliceIterator<String, String, String>(sliceQuery, "", (String) null, false, m_singleRowReadSize);
+
+		//Nothing recorded means no node has turned the index on
+		long ret = Long.MAX_VALUE;
+		boolean first = true;
+		while (columnIterator.hasNext())
+		{
+			HColumn<String, String> column = columnIterator.next();
+			long start;
+			try
+			{
+				//Older versions used the zero padded time as the column name
+				if (column.getValue().isEmpty())
+					start = Long.parseLong(column.getName());
+				else
+					start = Long.parseLong(column.getValue());
+			}
+			catch (NumberFormatException e)
+			{
+				logger.warn("Ignoring invalid tag index start " + column.getName());
+				continue;
+			}
+
+			ret = first ? start : Math.max(ret, start);
+			first = false;
+		}
+
+		return (ret);
+	}
+
+	/**
+	 Sets the consistency levels for reading and writing data points, rollups
+	 included, and for reading and writing the indexes.  The data point column
+	 families are only used through m_keyspace and the index column families
+	 through m_indexKeyspace.  Each level is one of the Hector consistency
+	 levels, like ONE or QUORUM.
+	 @param writeLevel Level data points and rollups are written with
+	 @param indexWriteLevel Level the row key, string and tag indexes are written with
+	 @param readLevel Level data points and rollups are read with
+	 @param indexReadLevel Level the indexes are read with
+	 */
+	@Inject(optional = true)
+	public void setConsistencyLevels(@Named(WRITE_CONSISTENCY_LEVEL_PROPERTY) String writeLevel,
+			@Named(INDEX_WRITE_CONSISTENCY_LEVEL_PROPERTY) String indexWriteLevel,
+			@Named(READ_CONSISTENCY_LEVEL_PROPERTY) String readLevel,
+			@Named(INDEX_READ_CONSISTENCY_LEVEL_PROPERTY) String indexReadLevel)
+	{
+		m_consistencyLevel.setDefaultWriteConsistencyLevel(HConsistencyLevel.valueOf(writeLevel.toUpperCase()));
+		m_consistencyLevel.setDefaultReadConsistencyLevel(HConsistencyLevel.valueOf(readLevel.toUpperCase()));
+		m_indexConsistencyLevel.setDefaultWriteConsistencyLevel(HConsistencyLevel.valueOf(indexWriteLevel.toUpperCase()));
+		m_indexConsistencyLevel.setDefaultReadConsistencyLevel(HConsistencyLevel.valueOf(indexReadLevel.toUpperCase()));
+	}
+
+	/**
+	 Turns on speculative retries for the multigets of queries.
+	 @param percentile Latency percentile after which a multiget is sent again,
+	 0 turns retries off
+	 @param minDelay Least number of milliseconds to wait before a retry
+	 */
+	@Inject(optional = true)
+	public void setSpeculativeRetry(@Named(SPECULATIVE_RETRY_PERCENTILE_PROPERTY) double percentile,
+			@Named(SPECULATIVE_RETRY_MIN_DELAY_PROPERTY) long minDelay)
+	{
+		m_speculativeRetry = new SpeculativeRetry(m_rowReadExecutor, percentile, minDelay);
+	}
+
+	/**
+	 Sets how long the data points of each metric are kept.  Data points are
+	 written with a TTL so they expire retention seconds after their
+	 timestamp, the first policy matching the metric is used.
+	 */
+	@Inject(optional = true)
+	public void setRetentionPolicies(@Named(RETENTION_PROPERTY) List<RetentionPolicy> retentionPolicies)
+	{
+		m_retentionPolicies = retentionPolicies;
+		m_retentions.clear();
+	}
+
+	/**
+	 Sets how doubles are written to data point and rollup columns.  Columns
+	 written with any of the encodings can be read back whatever the setting.
+	 @param doubleEncoding One of float, double or compact
+	 */
+	@Inject(optional = true)
+	public void setDoubleEncoding(@Named(DOUBLE_ENCODING_PROPERTY) String doubleEncoding)
+	{
+		m_doubleEncoding = ValueSerializer.DoubleEncoding.valueOf(doubleEncoding.toUpperCase());
+	}
+
+	/**
+	 Sets the row widths new metrics are written with, the first policy
+	 matching the metric is used.  Metrics that match none use ROW_WIDTH.
+	 */
+	@Inject(optional = true)
+	public void setRowWidthPolicies(@Named(ROW_WIDTHS_PROPERTY) List<RowWidthPolicy> rowWidthPolicies)
+	{
+		m_rowWidthPolicies = rowWidthPolicies;
+		m_rowWidths.clear();
+	}
+
+	/**
+	 Returns the width of the rows of the metric.  The width a metric is first
+	 written with is kept in the string index so it stays the same when the
+	 policies change, metrics with data from before a policy matched them
+	 keep ROW_WIDTH.
+	 @param assign If the metric has no width yet the one from the policies
+	 is stored, only done when writing
+	 */
+	/*package*/ long getRowWidth(String metricName, boolean assign)
+	{
+		Long rowWidth = m_rowWidths.get(metricName);
+		if (rowWidth != null)
+			return (rowWidth);
+
+		rowWidth = readRowWidth(metricName);
+		if (rowWidth == null)
+		{
+			rowWidth = ROW_WIDTH;
+			for (RowWidthPolicy policy : m_rowWidthPolicies)
+			{
+				if (policy.matches(metricName))
+				{
+					rowWidth = policy.getRowWidth();
+					break;
+				}
+			}
+
+			if (rowWidth != ROW_WIDTH)
+			{
+				if (metricExists(metricName))
+					rowWidth = ROW_WIDTH;
+				else if (assign)
+					writeRowWidth(metricName, rowWidth);
+				else
+					return (ROW_WIDTH); //Nothing has been written yet, not cached
+			}
+		}
+
+		m_rowWidths.put(metricName, rowWidth);
+		return (rowWidth);
+	}
+
+	private Long readRowWidth(String metricName)
+	{
+		HColumn<String, String> column = HFactory.createStringColumnQuery(m_indexKeyspace)
+				.setColumnFamily(CF_STRING_INDEX)
+				.setKey(ROW_KEY_ROW_WIDTHS)
+				.setName(metricName)
+				.execute().get();
+
+		if (column == null)
+			return (null);
+		else
+			return (Long.parseLong(column.getValue()));
+	}
+
+	/**
+	 Written straight away rather than buffered so the width is stored before
+	 any data using it.
+	 */
+	private void writeRowWidth(String metricName, long rowWidth)
+	{
+		Mutator<String> mutator = HFactory.createMutator(m_indexKeyspace, StringSerializer.get());
+		mutator.insert(ROW_KEY_ROW_WIDTHS, CF_STRING_INDEX,
+				newStringColumn(metricName, String.valueOf(rowWidth)));
+	}
+
+	/**
+	 Stamped in milliseconds like the write buffer writes, Hector's default
+	 clock is in microseconds and a buffered delete would never shadow it.
+	 */
+	private static HColumn<String, String> newStringColumn(String name, String value)
+	{
+		return (HFactory.createColumn(name, value, System.currentTimeMillis(),
+				StringSerializer.get(), StringSerializer.get()));
+	}
+
+	private boolean metricExists(String metricName)
+	{
+		return (HFactory.createStringColumnQuery(m_indexKeyspace)
+				.setColumnFamily(CF_STRING_INDEX)
+				.setKey(ROW_KEY_METRIC_NAMES)
+				.setName(metricName)
+				.execute().get() != null);
+	}
+
+	private long getRetention(String metricName)
+	{
+		Long retention = m_retentions.get(metricName);
+		if (retention == null)
+		{
+			retention = 0L;
+			for (RetentionPolicy policy : m_retentionPolicies)
+			{
+				if (policy.matches(metricName))
+				{
+					retention = policy.getTtl() * 1000;
+					break;
+				}
+			}
+
+			m_retentions.put(metricName, retention);
+		}
+
+		return (retention);
+	}
+
+	/**
+	 @return TTL in seconds for a column holding data up to dataTime, 0 if the
+	 metric is kept forever and -1 if the data has already expired
+	 */
+	/*package*/ int getTtl(String metricName, long dataTime, long now)
+	{
+		long retention = getRetention(metricName);
+		if (retention == 0)
+			return (0);
+
+		long ttl = (dataTime + retention - now + 999) / 1000;
+		if (ttl <= 0)
+			return (-1);
+
+		return ((int) Math.min(ttl, MAX_TTL));
+	}
+
+	/**
+	 Turns on the write ahead log.  Anything left in the log from a previous
+	 run is replayed into the write buffers before new writes are accepted.
+	 @param walDir Directory for the log segments, the log is disabled if empty
+	 @param syncPolicy One of none, periodic or always
+	 @param rollInterval Milliseconds before a segment is sealed even if it is
+	 not full, bounds how long flushed data stays in the log
+	 */
+	@Inject(optional = true)
+	public void setWriteAheadLog(@Named(WAL_DIR_PROPERTY) String walDir,
+			@Named(WAL_SEGMENT_SIZE_PROPERTY) int segmentSize,
+			@Named(WAL_SYNC_PROPERTY) String syncPolicy,
+			@Named(WAL_SYNC_INTERVAL_PROPERTY) long syncInterval,
+			@Named(WAL_ROLL_INTERVAL_PROPERTY) long rollInterval) throws DatastoreException
+	{
+		if (walDir == null || walDir.equals(""))
+			return;
+
+		try
+		{
+			WriteAheadLog writeAheadLog = new WriteAheadLog(new File(walDir), segmentSize,
+					WriteAheadLog.SyncPolicy.valueOf(syncPolicy.toUpperCase()), syncInterval, rollInterval,
+					new WriteAheadLog.CheckpointFactory()
 					{
 						@Override
-						public void saveWriteSize(int pendingWrites)
+						public WriteAheadLog.FlushCheckpoint createCheckpoint()
 						{
-							DataPointSet dps = new DataPointSet("kairosdb.datastore.write_size");
-							dps.addTag("host", hostname);
-							dps.addTag("buffer", CF_STRING_INDEX);
-							dps.addDataPoint(new DataPoint(System.currentTimeMillis(), pendingWrites));
-							putInternalDataPoints(dps);
+							return (createFlushCheckpoint());
 						}
-					}, mutatorLock, lockCondition);
+					});
+
+			int replayed = writeAheadLog.replay(new WriteAheadLog.ReplayHandler()
+			{
+				@Override
+				public void replay(DataPointSet dps) throws DatastoreException
+				{
+					writeDataPoints(dps);
+				}
+			});
+
+			if (replayed != 0)
+				logger.info("Replayed " + replayed + " data point sets from the write ahead log");
+
+			m_writeAheadLog = writeAheadLog;
 		}
-		catch (HectorException e)
+		catch (IOException e)
 		{
 			throw new DatastoreException(e);
 		}
 	}
 
+	/**
+	 Captures how far each write buffer has gotten, the checkpoint is flushed
+	 once everything added to the buffers up to now is in Cassandra.
+	 */
+	private WriteAheadLog.FlushCheckpoint createFlushCheckpoint()
+	{
+		final long dataPointMarker = m_dataPointWriteBuffer.getFlushMarker();
+		final long rowKeyMarker = m_rowKeyWriteBuffer.getFlushMarker();
+		final long stringIndexMarker = m_stringIndexWriteBuffer.getFlushMarker();
+		final long tagIndexMarker = m_tagIndexWriteBuffer.getFlushMarker();
+		final long rollupMarker = m_rollupWriteBuffer.getFlushMarker();
+
+		return (new WriteAheadLog.FlushCheckpoint()
+		{
+			@Override
+			public boolean isFlushed()
+			{
+				return (m_dataPointWriteBuffer.isFlushed(dataPointMarker) &&
+						m_rowKeyWriteBuffer.isFlushed(rowKeyMarker) &&
+						m_stringIndexWriteBuffer.isFlushed(stringIndexMarker) &&
+						m_tagIndexWriteBuffer.isFlushed(tagIndexMarker) &&
+						m_rollupWriteBuffer.isFlushed(rollupMarker));
+			}
+		});
+	}
+
+	@Override
+	public List<DataPointSet> getMetrics(long now)
+	{
+		List<DataPointSet> ret = new ArrayList<DataPointSet>();
+
+		addCacheMetrics(ret, now, "row_key", m_rowKeyCache);
+		addCacheMetrics(ret, now, "rollup_row_key", m_rollupRowKeyCache);
+		addCacheMetrics(ret, now, "metric_name", m_metricNameCache);
+		addCacheMetrics(ret, now, "tag_name", m_tagNameCache);
+		addCacheMetrics(ret, now, "tag_value", m_tagValueCache);
+
+		if (m_speculativeRetry.isEnabled())
+		{
+			DataPointSet dps = new DataPointSet("kairosdb.datastore.cassandra.speculative_retries");
+			dps.addTag("host", m_hostname);
+			dps.addDataPoint(new DataPoint(now, m_speculativeRetry.getAndClearRetryCount()));
+			ret.add(dps);
+		}
+
+		return (ret);
+	}
+
+	/**
+	 Hits, misses and evictions are counted per interval like the other
+	 kairosdb.* counters.
+	 */
+	private void addCacheMetrics(List<DataPointSet> metrics, long now, String cacheName,
+			DataCache<?> cache)
+	{
+		metrics.add(newCacheMetric("kairosdb.datastore.cache.hits", cacheName, now, cache.getAndClearHitCount()));
+		metrics.add(newCacheMetric("kairosdb.datastore.cache.misses", cacheName, now, cache.getAndClearMissCount()));
+		metrics.add(newCacheMetric("kairosdb.datastore.cache.evictions", cacheName, now, cache.getAndClearEvictionCount()));
+		metrics.add(newCacheMetric("kairosdb.datastore.cache.size", cacheName, now, cache.size()));
+	}
+
+	private DataPointSet newCacheMetric(String metricName, String cacheName, long now, long value)
+	{
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", m_hostname);
+		dps.addTag("cache", cacheName);
+		dps.addDataPoint(new DataPoint(now, value));
+
+		return (dps);
+	}
+
 	private void putInternalDataPoints(DataPointSet dps)
 	{
 		try
@@ -215,6 +852,15 @@ public class CassandraDatastore implements Datastore
 		cfDef.add(HFactory.createColumnFamilyDefinition(
 				KEYSPACE, CF_STRING_INDEX, ComparatorType.UTF8TYPE));
 
+		cfDef.add(HFactory.createColumnFamilyDefinition(
+				KEYSPACE, CF_DATA_POINT_BLOCKS, ComparatorType.BYTESTYPE));
+
+		cfDef.add(HFactory.createColumnFamilyDefinition(
+				KEYSPACE, CF_TAG_INDEX, ComparatorType.BYTESTYPE));
+
+		cfDef.add(HFactory.createColumnFamilyDefinition(
+				KEYSPACE, CF_DATA_POINT_ROLLUPS, ComparatorType.BYTESTYPE));
+
 		KeyspaceDefinition newKeyspace = HFactory.createKeyspaceDefinition(
 				KEYSPACE, ThriftKsDef.DEF_STRATEGY_CLASS,
 				replicationFactor, cfDef);
@@ -222,24 +868,71 @@ public class CassandraDatastore implements Datastore
 		m_cluster.addKeyspace(newKeyspace, true);
 	}
 
-	public void increaseMaxBufferSizes()
+	/**
+	 Adds a column family that was introduced after the keyspace was created.
+	 */
+	private void addMissingColumnFamily(KeyspaceDefinition keyspaceDef, String cfName,
+			ComparatorType comparatorType)
 	{
-		m_dataPointWriteBuffer.increaseMaxBufferSize();
-		m_rowKeyWriteBuffer.increaseMaxBufferSize();
-		m_stringIndexWriteBuffer.increaseMaxBufferSize();
+		for (ColumnFamilyDefinition cfDef : keyspaceDef.getCfDefs())
+		{
+			if (cfDef.getName().equals(cfName))
+				return;
+		}
+
+		m_cluster.addColumnFamily(HFactory.createColumnFamilyDefinition(
+				KEYSPACE, cfName, comparatorType), true);
 	}
 
 	@Override
 	public void close() throws InterruptedException
 	{
+		m_queryExecutor.shutdown();
+		m_rowReadExecutor.shutdown();
 		m_dataPointWriteBuffer.close();
 		m_rowKeyWriteBuffer.close();
 		m_stringIndexWriteBuffer.close();
+		m_tagIndexWriteBuffer.close();
+		m_rollupWriteBuffer.close();
+
+		//The log takes a final checkpoint and deletes the flushed segments,
+		//anything not flushed is replayed on startup
+		if (m_writeAheadLog != null)
+			m_writeAheadLog.close();
 	}
 
 
 	@Override
 	public void putDataPoints(DataPointSet dps) throws DatastoreException
+	{
+		WriteAheadLog writeAheadLog = m_writeAheadLog;
+		if (writeAheadLog == null)
+		{
+			writeDataPoints(dps);
+			return;
+		}
+
+		WriteAheadLog.Segment segment;
+		try
+		{
+			segment = writeAheadLog.append(dps);
+		}
+		catch (IOException e)
+		{
+			throw new DatastoreException(e);
+		}
+
+		try
+		{
+			writeDataPoints(dps);
+		}
+		finally
+		{
+			writeAheadLog.release(segment);
+		}
+	}
+
+	private void writeDataPoints(DataPointSet dps) throws DatastoreException
 	{
 		try
 		{
@@ -248,20 +941,53 @@ public class CassandraDatastore implements Datastore
 			//time the data is written.
 			long writeTime = System.currentTimeMillis();
 
+			//All the values share one array instead of one buffer each
+			ByteBuffer[] values = ValueSerializer.toByteBuffers(dps.getDataPoints(), m_doubleEncoding);
+			int valueIndex = 0;
+			long blockTime = -1L;
+			long rowWidth = getRowWidth(dps.getName(), true);
+
 			for (DataPoint dp : dps.getDataPoints())
 			{
 				if (dp.getTimestamp() < 0)
 					throw new DatastoreException("Timestamp must be greater than or equal to zero.");
-				long newRowTime = calculateRowTime(dp.getTimestamp());
+
+				//Already past the retention of the metric
+				int ttl = getTtl(dps.getName(), dp.getTimestamp(), writeTime);
+				if (ttl < 0)
+				{
+					valueIndex++;
+					continue;
+				}
+
+				long newRowTime = calculateRowTime(dp.getTimestamp(), rowWidth);
 				if (newRowTime != rowTime)
 				{
+					blockTime = -1L;
 					rowTime = newRowTime;
 					rowKey = new DataPointsRowKey(dps.getName(), rowTime, dps.getTags());
 
 					long now = System.currentTimeMillis();
-					//Write out the row key if it is not cached
-					if (!m_rowKeyCache.isCached(rowKey))
-						m_rowKeyWriteBuffer.addData(dps.getName(), rowKey, "", now);
+					//Write out the row key if it is not cached, otherwise use the
+					//cached key so it is only serialized once
+					DataPointsRowKey cachedRowKey = m_rowKeyCache.cacheItem(rowKey);
+					if (cachedRowKey == null)
+					{
+						//Index entries expire with the last point the row can hold
+						int keyTtl = getTtl(dps.getName(), rowTime + rowWidth - 1, now);
+						m_rowKeyWriteBuffer.addData(dps.getName(), rowKey, "", now, keyTtl);
+
+						if (m_tagIndex)
+						{
+							for (Map.Entry<String, String> tag : rowKey.getTags().entrySet())
+							{
+								m_tagIndexWriteBuffer.addData(getTagIndexKey(dps.getName(), rowTime,
+										tag.getKey(), tag.getValue()), rowKey, "", now, keyTtl);
+							}
+						}
+					}
+					else
+						rowKey = cachedRowKey;
 
 					//Write metric name if not in cache
 					if (!m_metricNameCache.isCached(dps.getName()))
@@ -290,17 +1016,28 @@ public class CassandraDatastore implements Datastore
 				}
 
 				int columnTime = getColumnName(rowTime, dp.getTimestamp(), dp.isInteger());
-				if (dp.isInteger())
-				{
-					m_dataPointWriteBuffer.addData(rowKey, columnTime,
-							ValueSerializer.toByteBuffer(dp.getLongValue()), writeTime);
-				}
-				else
+				m_dataPointWriteBuffer.addData(rowKey, columnTime, values[valueIndex++], writeTime, ttl);
+
+				//Marked after the data is buffered so compaction always sees it
+				if (m_blockWidth > 0)
 				{
-					m_dataPointWriteBuffer.addData(rowKey, columnTime,
-							ValueSerializer.toByteBuffer((float) dp.getDoubleValue()), writeTime);
+					long newBlockTime = getBlockTime(rowTime, dp.getTimestamp());
+					if (newBlockTime != blockTime)
+					{
+						blockTime = newBlockTime;
+						BlockKey block = new BlockKey(rowKey, blockTime);
+						if (m_openBlocks.add(block))
+						{
+							int blockTtl = getTtl(dps.getName(), blockTime + m_blockWidth - 1, writeTime);
+							m_stringIndexWriteBuffer.addData(ROW_KEY_OPEN_BLOCKS, block.toColumnName(),
+									"", writeTime, Math.max(blockTtl, 0));
+						}
+					}
 				}
 			}
+
+			//Marked after the data is buffered so the recompute sees it
+			markLateRollupPeriods(dps);
 		}
 		catch (DatastoreException e)
 		{
@@ -308,206 +1045,1176 @@ public class CassandraDatastore implements Datastore
 		}
 		catch (Exception e)
 		{
-			throw new DatastoreException(e);
+			throw new DatastoreException(e);
+		}
+	}
+
+	/**
+	 Points written to periods that have already been rolled up have those
+	 periods rolled up again.  Streaming rollups mark their own late points.
+	 */
+	private void markLateRollupPeriods(DataPointSet dps)
+	{
+		for (Rollup rollup : m_rollups)
+		{
+			if (rollup.isStreaming() || !rollup.matches(dps.getName()))
+				continue;
+
+			long sampling = rollup.getSamplingMillis();
+			long startTime = m_rollupStartTimes.get(rollup.getName());
+			long endTime = m_rollupEndTimes.get(rollup.getName());
+			long lastPeriod = -1L;
+
+			for (DataPoint dp : dps.getDataPoints())
+			{
+				long periodStart = alignDown(dp.getTimestamp(), sampling);
+				if (periodStart != lastPeriod && periodStart >= startTime && periodStart < endTime)
+					markRollupPeriodDirty(rollup, dps.getName(), periodStart);
+
+				lastPeriod = periodStart;
+			}
+		}
+	}
+
+	@Override
+	public Iterable<String> getMetricNames()
+	{
+		SliceQuery<String, String, String> sliceQuery =
+				HFactory.createSliceQuery(m_indexKeyspace, StringSerializer.get(), StringSerializer.get(),
+						StringSerializer.get());
+
+		sliceQuery.setColumnFamily(CF_STRING_INDEX);
+		sliceQuery.setKey(ROW_KEY_METRIC_NAMES);
+
+		ColumnSliceIterator<String, String, String> columnIterator =
+				new ColumnSliceIterator<String, String, String>(sliceQuery, "", (String) null, false, m_singleRowReadSize);
+
+		List<String> ret = new ArrayList<String>();
+
+		while (columnIterator.hasNext())
+			ret.add(columnIterator.next().getName());
+
+		return (ret);
+	}
+
+	@Override
+	public Iterable<String> getTagNames()
+	{
+		SliceQuery<String, String, String> sliceQuery =
+				HFactory.createSliceQuery(m_indexKeyspace, StringSerializer.get(), StringSerializer.get(),
+						StringSerializer.get());
+
+		sliceQuery.setColumnFamily(CF_STRING_INDEX);
+		sliceQuery.setKey(ROW_KEY_TAG_NAMES);
+
+		ColumnSliceIterator<String, String, String> columnIterator =
+				new ColumnSliceIterator<String, String, String>(sliceQuery, "", (String) null, false, m_singleRowReadSize);
+
+		List<String> ret = new ArrayList<String>();
+
+		while (columnIterator.hasNext())
+			ret.add(columnIterator.next().getName());
+
+		return (ret);
+	}
+
+	@Override
+	public Iterable<String> getTagValues()
+	{
+		SliceQuery<String, String, String> sliceQuery =
+				HFactory.createSliceQuery(m_indexKeyspace, StringSerializer.get(), StringSerializer.get(),
+						StringSerializer.get());
+
+		sliceQuery.setColumnFamily(CF_STRING_INDEX);
+		sliceQuery.setKey(ROW_KEY_TAG_VALUES);
+
+		ColumnSliceIterator<String, String, String> columnIterator =
+				new ColumnSliceIterator<String, String, String>(sliceQuery, "", (String) null, false, m_singleRowReadSize);
+
+		List<String> ret = new ArrayList<String>();
+
+		while (columnIterator.hasNext())
+			ret.add(columnIterator.next().getName());
+
+		return (ret);
+	}
+
+	@Override
+	public TagSet queryMetricTags(DatastoreMetricQuery query)
+	{
+		TagSetImpl tagSet = new TagSetImpl();
+		Iterator<DataPointsRowKey> rowKeys = getKeysForQueryIterator(query);
+
+		MemoryMonitor mm = new MemoryMonitor(20);
+		while (rowKeys.hasNext())
+		{
+			DataPointsRowKey dataPointsRowKey = rowKeys.next();
+			for (Map.Entry<String, String> tag : dataPointsRowKey.getTags().entrySet())
+			{
+				tagSet.addTag(tag.getKey(), tag.getValue());
+				mm.checkMemoryAndThrowException();
+			}
+		}
+
+		return (tagSet);
+	}
+
+	@Override
+	public void queryDatabase(DatastoreMetricQuery query, QueryCallback queryCallback)
+			throws DatastoreException
+	{
+		queryWithRowKeys(query, CF_DATA_POINTS, getRowWidth(query.getName(), false), m_blockWidth,
+				queryCallback, getKeysForQueryIterator(query));
+	}
+
+	/**
+	 Streams the row keys into query runners.  A runner is started as soon as
+	 the keys for it are known and the key scan carries on with the next time
+	 tier while it reads data.  See RunnerPipeline for how far the scan can get
+	 ahead of the runners.
+	 */
+	private void queryWithRowKeys(DatastoreMetricQuery query, String columnFamily, long rowWidth,
+			long blockWidth, QueryCallback queryCallback, Iterator<DataPointsRowKey> rowKeys)
+			throws DatastoreException
+	{
+		long keyQueryTime = 0L;
+		long currentTimeTier = 0L;
+		int runnerCount = 0;
+
+		List<DataPointsRowKey> queryKeys = new ArrayList<DataPointsRowKey>();
+		Semaphore rowReadPermits = new Semaphore(m_rowReadConcurrency);
+
+		MemoryMonitor mm = new MemoryMonitor(20);
+		RunnerPipeline pipeline = new RunnerPipeline(mm);
+		try
+		{
+			while (true)
+			{
+				//Only time spent scanning keys counts, not time waiting on runners
+				long scanStart = System.currentTimeMillis();
+				DataPointsRowKey rowKey = rowKeys.hasNext() ? rowKeys.next() : null;
+				keyQueryTime += System.currentTimeMillis() - scanStart;
+
+				if (rowKey == null)
+					break;
+
+				if (currentTimeTier == 0L)
+					currentTimeTier = rowKey.getTimestamp();
+
+				if ((rowKey.getTimestamp() == currentTimeTier) && queryKeys.size() < m_multiRowSize)
+				{
+					queryKeys.add(rowKey);
+				}
+				else
+				{
+					pipeline.submit(new QueryRunner(m_keyspace, columnFamily, queryKeys,
+							query.getStartTime(), query.getEndTime(), queryCallback, m_singleRowReadSize,
+							m_multiRowReadSize, m_rowReadExecutor, rowReadPermits, rowWidth, blockWidth,
+							m_speculativeRetry));
+					runnerCount++;
+
+					queryKeys = new ArrayList<DataPointsRowKey>();
+					queryKeys.add(rowKey);
+					currentTimeTier = rowKey.getTimestamp();
+				}
+
+				mm.checkMemoryAndThrowException();
+			}
+
+			ThreadReporter.addDataPoint(KEY_QUERY_TIME, keyQueryTime);
+
+			//Changing the check rate
+			mm.setCheckRate(1);
+
+			//There may be stragglers that are not ran
+			if (!queryKeys.isEmpty())
+			{
+				QueryRunner runner = new QueryRunner(m_keyspace, columnFamily, queryKeys,
+						query.getStartTime(), query.getEndTime(), queryCallback, m_singleRowReadSize,
+						m_multiRowReadSize, m_rowReadExecutor, rowReadPermits, rowWidth, blockWidth,
+						m_speculativeRetry);
+				runnerCount++;
+
+				if (runnerCount == 1)
+				{
+					//No need to hand off to another thread
+					pipeline.runInline(runner);
+				}
+				else
+					pipeline.submit(runner);
+			}
+
+			ThreadReporter.addDataPoint(QUERY_RUNNER_COUNT, runnerCount);
+
+			pipeline.waitForAll();
+
+			queryCallback.endDataPoints();
+		}
+		catch (IOException e)
+		{
+			throw new DatastoreException(e);
+		}
+		finally
+		{
+			//Only does something if we bailed out early
+			pipeline.cancel();
+
+			ThreadReporter.addDataPoint(QUERY_RUNNERS_IN_FLIGHT, pipeline.getMaxInFlight());
+			pipeline.reportRunnerData();
+		}
+	}
+
+	/**
+	 Runs the query runners of one query on the query executor.  No more than
+	 m_queryThreads runners are in flight at one time, submitting another one
+	 waits for one to finish.  This holds up the key scan so only the keys of
+	 the runners in flight are held in memory.  Each runner writes complete
+	 rows to the callback while holding the callback monitor so the rows from
+	 different runners do not get interleaved.
+
+	 What the runners report through ThreadReporter on the executor threads is
+	 summed and added on the calling thread so it goes out with the query.
+	 */
+	private class RunnerPipeline
+	{
+		private final CompletionService<Map<String, Long>> m_completionService =
+				new ExecutorCompletionService<Map<String, Long>>(m_queryExecutor);
+		private final Set<Future<Map<String, Long>>> m_inFlight = new HashSet<Future<Map<String, Long>>>();
+		private final MemoryMonitor m_memoryMonitor;
+		private final Map<String, Long> m_runnerData = new HashMap<String, Long>();
+		private int m_maxInFlight = 0;
+
+		public RunnerPipeline(MemoryMonitor memoryMonitor)
+		{
+			m_memoryMonitor = memoryMonitor;
+		}
+
+		public void submit(QueryRunner runner) throws IOException, DatastoreException
+		{
+			while (m_inFlight.size() >= m_queryThreads)
+				waitForOne();
+
+			m_inFlight.add(m_completionService.submit(newRunnerTask(runner)));
+			m_maxInFlight = Math.max(m_maxInFlight, m_inFlight.size());
+		}
+
+		public void runInline(QueryRunner runner) throws IOException, DatastoreException
+		{
+			m_maxInFlight = Math.max(m_maxInFlight, 1);
+			runner.runQuery();
+			m_memoryMonitor.checkMemoryAndThrowException();
+		}
+
+		public void waitForAll() throws IOException, DatastoreException
+		{
+			while (!m_inFlight.isEmpty())
+				waitForOne();
+		}
+
+		private void waitForOne() throws IOException, DatastoreException
+		{
+			try
+			{
+				Future<Map<String, Long>> done = m_completionService.take();
+				m_inFlight.remove(done);
+				addRunnerData(getRunnerResult(done));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new DatastoreException(e);
+			}
+
+			m_memoryMonitor.checkMemoryAndThrowException();
+		}
+
+		public void cancel()
+		{
+			for (Future<Map<String, Long>> future : m_inFlight)
+				future.cancel(true);
+		}
+
+		private void addRunnerData(Map<String, Long> data)
+		{
+			for (Map.Entry<String, Long> entry : data.entrySet())
+			{
+				Long sum = m_runnerData.get(entry.getKey());
+				m_runnerData.put(entry.getKey(), (sum == null ? 0L : sum) + entry.getValue());
+			}
+		}
+
+		/**
+		 Adds the summed runner data on the calling thread.
+		 */
+		public void reportRunnerData()
+		{
+			for (Map.Entry<String, Long> entry : m_runnerData.entrySet())
+				ThreadReporter.addDataPoint(entry.getKey(), entry.getValue());
+		}
+
+		public int getMaxInFlight()
+		{
+			return (m_maxInFlight);
+		}
+	}
+
+	private static Callable<Map<String, Long>> newRunnerTask(final QueryRunner runner)
+	{
+		return new Callable<Map<String, Long>>()
+		{
+			@Override
+			public Map<String, Long> call() throws Exception
+			{
+				try
+				{
+					runner.runQuery();
+					return (ThreadReporter.takeSummedData());
+				}
+				finally
+				{
+					//Executor threads are reused, nothing is left for the next runner
+					ThreadReporter.clear();
+				}
+			}
+		};
+	}
+
+	private static Map<String, Long> getRunnerResult(Future<Map<String, Long>> future)
+			throws IOException, DatastoreException, InterruptedException
+	{
+		try
+		{
+			return (future.get());
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof MemoryMonitorException)
+				throw (MemoryMonitorException) cause;
+
+			throw new DatastoreException(cause);
+		}
+	}
+
+	@Override
+	public void deleteDataPoints(DatastoreMetricQuery deleteQuery) throws DatastoreException
+	{
+		checkNotNull(deleteQuery);
+
+		long now = System.currentTimeMillis();
+
+		// Get number of columns in the row key
+		CountQuery<String, DataPointsRowKey> countQuery = HFactory.createCountQuery(m_indexKeyspace, StringSerializer.get(), DATA_POINTS_ROW_KEY_SERIALIZER);
+		countQuery.setColumnFamily(CF_ROW_KEY_INDEX).
+				setKey(deleteQuery.getName()).
+				setRange(new DataPointsRowKey(deleteQuery.getName(), 0L), new DataPointsRowKey(deleteQuery.getName(), Long.MAX_VALUE), Integer.MAX_VALUE);
+		int rowKeyColumnCount = countQuery.execute().get();
+
+		long rowWidth = getRowWidth(deleteQuery.getName(), false);
+		Iterator<DataPointsRowKey> rowKeyIterator = getKeysForQueryIterator(deleteQuery);
+		List<DataPointsRowKey> partialRows = new ArrayList<DataPointsRowKey>();
+		Mutator<DataPointsRowKey> blockMutator = HFactory.createMutator(m_keyspace, DATA_POINTS_ROW_KEY_SERIALIZER);
+
+		while (rowKeyIterator.hasNext())
+		{
+			DataPointsRowKey rowKey = rowKeyIterator.next();
+			long rowKeyTimestamp = rowKey.getTimestamp();
+			if (deleteQuery.getStartTime() <= rowKeyTimestamp && (deleteQuery.getEndTime() >= rowKeyTimestamp + rowWidth - 1))
+			{
+				deleteRow(rowKey, blockMutator, now);
+				m_rowKeyCache.clear();
+				m_rollupRowKeyCache.clear();
+				rowKeyColumnCount--;
+			}
+			else
+				partialRows.add(rowKey);
+		}
+
+
+		if (blockMutator.getPendingMutationCount() != 0)
+			blockMutator.execute();
+
+		for (DataPointsRowKey rowKey : partialRows)
+		{
+			deleteColumnRange(CF_DATA_POINTS, rowKey, rowWidth, deleteQuery.getStartTime(),
+					deleteQuery.getEndTime(), now);
+			deleteFromBlocks(rowKey, rowWidth, deleteQuery.getStartTime(), deleteQuery.getEndTime(), now);
+		}
+
+		for (Rollup rollup : m_rollups)
+		{
+			if (rollup.matches(deleteQuery.getName()))
+				deleteFromRollup(rollup, deleteQuery, now);
+		}
+
+		// If index is gone, delete metric name from Strings column family
+		if (rowKeyColumnCount < 1)
+		{
+			m_rowKeyWriteBuffer.deleteRow(deleteQuery.getName(), now);
+			m_stringIndexWriteBuffer.deleteColumn(ROW_KEY_METRIC_NAMES, deleteQuery.getName(), now);
+			//A metric written again later gets its width from the policies
+			m_stringIndexWriteBuffer.deleteColumn(ROW_KEY_ROW_WIDTHS, deleteQuery.getName(), now);
+			m_rowWidths.remove(deleteQuery.getName());
+			m_rowKeyCache.clear();
+			m_rollupRowKeyCache.clear();
+			m_metricNameCache.clear();
+		}
+	}
+
+	/**
+	 Deletes the whole row along with its blocks and index entries without
+	 reading it.
+	 */
+	private void deleteRow(DataPointsRowKey rowKey, Mutator<DataPointsRowKey> blockMutator, long now)
+	{
+		m_dataPointWriteBuffer.deleteRow(rowKey, now);
+		blockMutator.addDeletion(rowKey, CF_DATA_POINT_BLOCKS, now);
+		m_rowKeyWriteBuffer.deleteColumn(rowKey.getMetricName(), rowKey, now);
+		for (Map.Entry<String, String> tag : rowKey.getTags().entrySet())
+		{
+			m_tagIndexWriteBuffer.deleteColumn(getTagIndexKey(rowKey.getMetricName(),
+					rowKey.getTimestamp(), tag.getKey(), tag.getValue()), rowKey, now);
+		}
+	}
+
+	/**
+	 Deletes the rows of each metric with a retention policy that only hold
+	 data past the retention.  Rows written with a TTL expire on their own,
+	 this removes the rows written before the policy was set without reading
+	 them.  Rows only partly past the retention are left alone.
+	 */
+	public void deleteExpiredRows() throws DatastoreException
+	{
+		if (m_retentionPolicies.isEmpty())
+			return;
+
+		long now = System.currentTimeMillis();
+		int deleted = 0;
+
+		for (String metricName : getMetricNames())
+		{
+			long retention = getRetention(metricName);
+			if (retention == 0)
+				continue;
+
+			//Start time of the last row that ends before the cutoff
+			long rowWidth = getRowWidth(metricName, false);
+			long lastRowTime = calculateRowTime(now - retention, rowWidth) - rowWidth;
+			if (lastRowTime < 0)
+				continue;
+
+			Iterator<DataPointsRowKey> rowKeyIterator = new FilteredRowKeyIterator(metricName, rowWidth,
+					0L, lastRowTime, HashMultimap.<String, String>create());
+			Mutator<DataPointsRowKey> blockMutator = HFactory.createMutator(m_keyspace, DATA_POINTS_ROW_KEY_SERIALIZER);
+
+			while (rowKeyIterator.hasNext())
+			{
+				deleteRow(rowKeyIterator.next(), blockMutator, now);
+				deleted++;
+			}
+
+			if (blockMutator.getPendingMutationCount() != 0)
+				blockMutator.execute();
+		}
+
+		if (deleted != 0)
+		{
+			m_rowKeyCache.clear();
+			m_rollupRowKeyCache.clear();
+			logger.info("Deleted " + deleted + " expired rows");
+		}
+	}
+
+	@Override
+	public List<Rollup> getRollups()
+	{
+		return (m_rollups);
+	}
+
+	@Override
+	public long getRollupStartTime(Rollup rollup)
+	{
+		return (m_rollupStartTimes.get(rollup.getName()));
+	}
+
+	@Override
+	public long getRollupEndTime(Rollup rollup)
+	{
+		return (m_rollupEndTimes.get(rollup.getName()));
+	}
+
+	@Override
+	public void queryRollup(Rollup rollup, String aggregator, DatastoreMetricQuery query,
+			QueryCallback queryCallback) throws DatastoreException
+	{
+		//Rollup rows are not in the tag index and always ROW_WIDTH wide
+		String metricName = getRollupMetricName(rollup, aggregator, query.getName());
+		queryWithRowKeys(query, CF_DATA_POINT_ROLLUPS, ROW_WIDTH, 0L, queryCallback,
+				new FilteredRowKeyIterator(metricName, ROW_WIDTH, query.getStartTime(),
+						query.getEndTime(), query.getTags()));
+	}
+
+	/**
+	 Rollup rows have the same layout as data point rows, they are told apart
+	 by a metric name that can not be written.
+	 */
+	public static String getRollupMetricName(Rollup rollup, String aggregator, String metricName)
+	{
+		return (rollup.getName() + ':' + aggregator + ':' + metricName);
+	}
+
+	private static long alignDown(long time, long sampling)
+	{
+		return (time - (time % sampling));
+	}
+
+	/**
+	 Reads the times the rollup covers from the string index, a rollup that
+	 has never been run starts with the current period.
+	 */
+	private void loadRollupTimes(Rollup rollup)
+	{
+		Long startTime = readRollupTime(rollup.getName() + ".start");
+		Long endTime = readRollupTime(rollup.getName() + ".end");
+
+		if (startTime == null || endTime == null)
+		{
+			startTime = alignDown(System.currentTimeMillis() - m_rollupDelay, rollup.getSamplingMillis());
+			endTime = startTime;
+			writeRollupTime(rollup.getName() + ".start", startTime);
+			writeRollupTime(rollup.getName() + ".end", endTime);
+		}
+
+		m_rollupStartTimes.put(rollup.getName(), startTime);
+		m_rollupEndTimes.put(rollup.getName(), endTime);
+	}
+
+	private Long readRollupTime(String name)
+	{
+		HColumn<String, String> column = HFactory.createStringColumnQuery(m_indexKeyspace)
+				.setColumnFamily(CF_STRING_INDEX)
+				.setKey(ROW_KEY_ROLLUP_TIMES)
+				.setName(name)
+				.execute().get();
+
+		if (column == null)
+			return (null);
+		else
+			return (Long.parseLong(column.getValue()));
+	}
+
+	private void writeRollupTime(String name, long time)
+	{
+		Mutator<String> mutator = HFactory.createMutator(m_indexKeyspace, StringSerializer.get());
+		mutator.insert(ROW_KEY_ROLLUP_TIMES, CF_STRING_INDEX,
+				newStringColumn(name, String.valueOf(time)));
+	}
+
+	/**
+	 Rolls up the periods of each rollup that ended at least the rollup delay
+	 before now and have not been rolled up yet.  Periods of streaming rollups
+	 have been written by StreamingRollups by the time this is called, only
+	 the ones it could not keep in memory are read back from the data points.
+	 */
+	public void updateRollups(long now) throws DatastoreException
+	{
+		if (m_rollups.isEmpty())
+			return;
+
+		try
+		{
+			Iterable<String> metricNames = getMetricNames();
+
+			try
+			{
+				loadDirtyRollupPeriods();
+			}
+			catch (HectorException e)
+			{
+				logger.error("Unable to load dirty rollup periods", e);
+			}
+
+			for (Rollup rollup : m_rollups)
+			{
+				try
+				{
+					updateRollup(rollup, metricNames, now);
+				}
+				catch (HectorException e)
+				{
+					logger.error("Unable to update rollup " + rollup.getName(), e);
+				}
+			}
+		}
+		finally
+		{
+			//Nothing reports the query metrics from this thread
+			ThreadReporter.clear();
+		}
+	}
+
+	private void updateRollup(Rollup rollup, Iterable<String> metricNames, long now)
+			throws DatastoreException
+	{
+		//Another node may have moved the rollup since we last looked
+		loadRollupTimes(rollup);
+
+		long sampling = rollup.getSamplingMillis();
+		long closeTime = alignDown(now - m_rollupDelay, sampling);
+		long startTime = m_rollupEndTimes.get(rollup.getName());
+		long endTime = Math.min(closeTime, startTime + MAX_ROLLUP_PERIODS * sampling);
+
+		long batchEndTime = endTime;
+		if (rollup.isStreaming())
+			batchEndTime = Math.min(endTime, alignDown(m_streamingStartTime + sampling - 1, sampling));
+
+		//Taken out before waiting for the data points so a period marked again
+		//after this is rolled up again by the next run
+		long dirtyTime = System.currentTimeMillis();
+		List<DirtyRollupPeriod> dirtyPeriods = new ArrayList<DirtyRollupPeriod>();
+		for (DirtyRollupPeriod dirtyPeriod : m_dirtyRollupPeriods)
+		{
+			if (dirtyPeriod.m_rollup == rollup && dirtyPeriod.m_periodStart < closeTime &&
+					m_dirtyRollupPeriods.remove(dirtyPeriod))
+				dirtyPeriods.add(dirtyPeriod);
+		}
+
+		if (startTime >= endTime && dirtyPeriods.isEmpty())
+			return;
+
+		//The periods are read back from the data points so they have to be in Cassandra
+		try
+		{
+			if (!waitForFlush(m_dataPointWriteBuffer, m_dataPointWriteBuffer.getFlushMarker()))
+			{
+				m_dirtyRollupPeriods.addAll(dirtyPeriods);
+				logger.warn("Write buffer did not flush, rollup " + rollup.getName() + " not updated");
+				return;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			m_dirtyRollupPeriods.addAll(dirtyPeriods);
+			Thread.currentThread().interrupt();
+			throw new DatastoreException(e);
+		}
+
+		//Streaming rollups may have written some of the periods before the node restarted
+		for (long periodStart = startTime; periodStart < batchEndTime; periodStart += sampling)
+		{
+			for (String metricName : metricNames)
+			{
+				if (rollup.matches(metricName))
+					rollUpPeriod(rollup, metricName, periodStart, null, System.currentTimeMillis(),
+							rollup.isStreaming());
+			}
+		}
+
+		for (DirtyRollupPeriod dirtyPeriod : dirtyPeriods)
+		{
+			rollUpPeriod(rollup, dirtyPeriod.m_metricName, dirtyPeriod.m_periodStart, null,
+					System.currentTimeMillis(), true);
+			m_stringIndexWriteBuffer.deleteColumn(ROW_KEY_DIRTY_ROLLUP_PERIODS,
+					dirtyPeriod.toColumnName(), dirtyTime);
+		}
+
+		//Queries can only use the new periods once they are in Cassandra
+		try
+		{
+			if (!waitForFlush(m_rollupWriteBuffer, m_rollupWriteBuffer.getFlushMarker()))
+			{
+				logger.warn("Write buffer did not flush, rollup " + rollup.getName() + " not moved forward");
+				return;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new DatastoreException(e);
+		}
+
+		if (startTime < endTime)
+		{
+			writeRollupTime(rollup.getName() + ".end", endTime);
+			m_rollupEndTimes.put(rollup.getName(), endTime);
+
+			logger.debug("Rolled up " + rollup.getName() + " to " + endTime);
+		}
+	}
+
+	/**
+	 Has the period rolled up again from the data points by the next rollup
+	 job once it has closed.  The period is recorded in the string index so
+	 it is not lost if the node goes down, any node running the rollup job
+	 picks it up.
+	 */
+	void markRollupPeriodDirty(Rollup rollup, String metricName, long periodStart)
+	{
+		DirtyRollupPeriod dirtyPeriod = new DirtyRollupPeriod(rollup, metricName, periodStart);
+		if (m_dirtyRollupPeriods.add(dirtyPeriod))
+		{
+			m_stringIndexWriteBuffer.addData(ROW_KEY_DIRTY_ROLLUP_PERIODS, dirtyPeriod.toColumnName(),
+					"", System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 Reads the dirty periods recorded by this and other nodes.
+	 */
+	private void loadDirtyRollupPeriods()
+	{
+		Map<String, Rollup> rollups = new HashMap<String, Rollup>();
+		for (Rollup rollup : m_rollups)
+			rollups.put(rollup.getName(), rollup);
+
+		SliceQuery<String, String, String> sliceQuery =
+				HFactory.createSliceQuery(m_indexKeyspace, StringSerializer.get(), StringSerializer.get(),
+						StringSerializer.get());
+
+		sliceQuery.setColumnFamily(CF_STRING_INDEX);
+		sliceQuery.setKey(ROW_KEY_DIRTY_ROLLUP_PERIODS);
+
+		ColumnSliceIterator<String, String, String> columnIterator =
+				new ColumnSliceIterator<String, String, String>(sliceQuery, "", (String) null, false, m_singleRowReadSize);
+
+		while (columnIterator.hasNext())
+		{
+			String columnName = columnIterator.next().getName();
+			try
+			{
+				DirtyRollupPeriod dirtyPeriod = DirtyRollupPeriod.fromColumnName(columnName, rollups);
+				//Rollups no longer configured are left alone
+				if (dirtyPeriod != null)
+					m_dirtyRollupPeriods.add(dirtyPeriod);
+			}
+			catch (IllegalArgumentException e)
+			{
+				logger.warn("Ignoring invalid dirty rollup period " + columnName);
+			}
+		}
+	}
+
+	/**
+	 Writes the aggregates of one series over a period to the rollup rows.
+	 The results are stamped with the time of the first data point in the
+	 period, the same time the range aggregators give it.
+	 */
+	void writeRollupPeriod(Rollup rollup, String metricName, SortedMap<String, String> tags,
+			long periodStart, RollupPeriod period, long writeTime)
+	{
+		long rowTime = calculateRowTime(periodStart);
+
+		for (String aggregator : rollup.getAggregators())
+		{
+			int columnName = getColumnName(rowTime, period.getFirstTimestamp(), period.isInteger(aggregator));
+
+			DataPointsRowKey rowKey = new DataPointsRowKey(
+					getRollupMetricName(rollup, aggregator, metricName), rowTime, tags);
+			if (m_rollupRowKeyCache.cacheItem(rowKey) == null)
+				m_rowKeyWriteBuffer.addData(rowKey.getMetricName(), rowKey, "", writeTime);
+			m_rollupWriteBuffer.addData(rowKey, columnName, period.getValue(aggregator, m_doubleEncoding), writeTime);
+		}
+	}
+
+	/**
+	 Rolls the period up from the data points.
+	 @param replace If true whatever was rolled up for the period before is
+	 deleted first, the old results may be stamped with another time
+	 */
+	private void rollUpPeriod(Rollup rollup, String metricName, long periodStart,
+			SetMultimap<String, String> tags, long writeTime, boolean replace) throws DatastoreException
+	{
+		if (replace)
+		{
+			deleteRollupPeriods(rollup, metricName, tags, periodStart,
+					periodStart + rollup.getSamplingMillis(), writeTime);
+			writeTime++;
+		}
+
+		QueryMetric query = new QueryMetric(periodStart, periodStart + rollup.getSamplingMillis() - 1,
+				0, metricName);
+		if (tags != null)
+			query.setTags(tags);
+
+		queryWithRowKeys(query, CF_DATA_POINTS, getRowWidth(metricName, false), m_blockWidth,
+				new RollupCallback(rollup, metricName, periodStart, writeTime),
+				getKeysForQueryIterator(query));
+	}
+
+	/**
+	 Removes the rolled up periods that overlap the deleted range.  The periods
+	 only partly deleted are rolled up again from the data points that are
+	 left once the deletes are in Cassandra.  If that takes too long the end
+	 of the rollup is moved back to the first deleted period instead so the
+	 rollup job does it.
+	 */
+	private void deleteFromRollup(Rollup rollup, DatastoreMetricQuery deleteQuery, long now)
+			throws DatastoreException
+	{
+		long sampling = rollup.getSamplingMillis();
+		long rollupStartTime = m_rollupStartTimes.get(rollup.getName());
+		long rollupEndTime = m_rollupEndTimes.get(rollup.getName());
+
+		long startTime = Math.max(alignDown(deleteQuery.getStartTime(), sampling), rollupStartTime);
+		long endTime = Math.min(alignDown(deleteQuery.getEndTime(), sampling) + sampling, rollupEndTime);
+		if (startTime >= endTime)
+			return;
+
+		deleteRollupPeriods(rollup, deleteQuery.getName(), deleteQuery.getTags(), startTime, endTime, now);
+
+		Set<Long> partialPeriods = new TreeSet<Long>();
+		if (deleteQuery.getStartTime() > startTime)
+			partialPeriods.add(startTime);
+		if (deleteQuery.getEndTime() < endTime - 1)
+			partialPeriods.add(endTime - sampling);
+
+		if (partialPeriods.isEmpty())
+			return;
+
+		try
+		{
+			if (waitForFlush(m_dataPointWriteBuffer, m_dataPointWriteBuffer.getFlushMarker()))
+			{
+				//Written after the rollup deletes
+				for (long periodStart : partialPeriods)
+					rollUpPeriod(rollup, deleteQuery.getName(), periodStart, deleteQuery.getTags(), now + 1, false);
+
+				return;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		logger.warn("Write buffer did not flush, rollup " + rollup.getName() + " moved back to " + startTime);
+		writeRollupTime(rollup.getName() + ".end", startTime);
+		m_rollupEndTimes.put(rollup.getName(), startTime);
+	}
+
+	/**
+	 Deletes the rolled up results of the series of the metric between
+	 startTime and endTime (exclusive).
+	 @param tags null for all the series
+	 */
+	private void deleteRollupPeriods(Rollup rollup, String metricName, SetMultimap<String, String> tags,
+			long startTime, long endTime, long now)
+	{
+		if (tags == null)
+			tags = HashMultimap.create();
+
+		for (String aggregator : rollup.getAggregators())
+		{
+			Iterator<DataPointsRowKey> rowKeyIterator = new FilteredRowKeyIterator(
+					getRollupMetricName(rollup, aggregator, metricName), ROW_WIDTH, startTime, endTime - 1, tags);
+
+			while (rowKeyIterator.hasNext())
+			{
+				deleteColumnRange(CF_DATA_POINT_ROLLUPS, rowKeyIterator.next(), ROW_WIDTH,
+						startTime, endTime - 1, now);
+			}
+		}
+	}
+
+	private long getBlockTime(long rowTime, long timestamp)
+	{
+		return (rowTime + ((timestamp - rowTime) / m_blockWidth) * m_blockWidth);
+	}
+
+	/**
+	 Rewrites the blocks that have been closed for at least the block close delay
+	 and have had data written to them since they were last compacted.  The raw
+	 columns of a block are merged into its compressed block column and deleted
+	 in the same batch.  Open blocks are recorded in the string index so the
+	 ones left after a restart are loaded and compacted too.
+	 */
+	public void compactBlocks() throws DatastoreException
+	{
+		if (m_blockWidth <= 0)
+			return;
+
+		long now = System.currentTimeMillis();
+		List<BlockKey> closedBlocks = new ArrayList<BlockKey>();
+
+		Iterator<BlockKey> it = m_openBlocks.iterator();
+		while (it.hasNext())
+		{
+			BlockKey block = it.next();
+			if (block.m_blockTime + m_blockWidth + m_blockCloseDelay <= now)
+			{
+				closedBlocks.add(block);
+				it.remove();
+			}
+		}
+
+		if (closedBlocks.isEmpty())
+			return;
+
+		//Everything written to these blocks has to be in Cassandra before they
+		//are read.  Raw columns and open block markers are deleted at the
+		//timestamp they were read with so a write that lands after the read is
+		//not deleted, whatever its timestamp.
+		long flushMarker = m_dataPointWriteBuffer.getFlushMarker();
+
+		try
+		{
+			if (!waitForFlush(m_dataPointWriteBuffer, flushMarker))
+			{
+				logger.warn("Write buffer did not flush, skipping block compaction");
+				m_openBlocks.addAll(closedBlocks);
+				return;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			m_openBlocks.addAll(closedBlocks);
+			Thread.currentThread().interrupt();
+			throw new DatastoreException(e);
+		}
+
+		int compacted = 0;
+		for (BlockKey block : closedBlocks)
+		{
+			try
+			{
+				//Read before the raw columns, a write after that marks the block again
+				HColumn<String, String> marker = HFactory.createStringColumnQuery(m_indexKeyspace)
+						.setColumnFamily(CF_STRING_INDEX)
+						.setKey(ROW_KEY_OPEN_BLOCKS)
+						.setName(block.toColumnName())
+						.execute().get();
+
+				if (compactBlock(block.m_rowKey, block.m_blockTime))
+					compacted++;
+
+				if (marker != null)
+					m_stringIndexWriteBuffer.deleteColumn(ROW_KEY_OPEN_BLOCKS, block.toColumnName(), marker.getClock());
+			}
+			catch (HectorException e)
+			{
+				logger.error("Unable to compact block for " + block.m_rowKey, e);
+				m_openBlocks.add(block);
+			}
+		}
+
+		logger.debug("Compacted " + compacted + " blocks");
+	}
+
+	/**
+	 Waits up to BLOCK_FLUSH_TIMEOUT for everything added to the write buffer
+	 before the marker was taken to be written.
+	 @return false if it timed out
+	 */
+	private static boolean waitForFlush(WriteBuffer<?, ?, ?> writeBuffer, long flushMarker)
+			throws InterruptedException
+	{
+		long waitUntil = System.currentTimeMillis() + BLOCK_FLUSH_TIMEOUT;
+		while (!writeBuffer.isFlushed(flushMarker))
+		{
+			if (System.currentTimeMillis() > waitUntil)
+				return (false);
+
+			Thread.sleep(100);
 		}
+
+		return (true);
 	}
 
-	@Override
-	public Iterable<String> getMetricNames()
+	/**
+	 Merges the raw columns for the block into the block column.  Each raw
+	 column is deleted at the timestamp it was read with so only the version
+	 merged into the block is removed.
+	 @return false if there were no raw columns
+	 */
+	private boolean compactBlock(DataPointsRowKey rowKey, long blockTime)
 	{
-		SliceQuery<String, String, String> sliceQuery =
-				HFactory.createSliceQuery(m_keyspace, StringSerializer.get(), StringSerializer.get(),
-						StringSerializer.get());
-
-		sliceQuery.setColumnFamily(CF_STRING_INDEX);
-		sliceQuery.setKey(ROW_KEY_METRIC_NAMES);
-
-		ColumnSliceIterator<String, String, String> columnIterator =
-				new ColumnSliceIterator<String, String, String>(sliceQuery, "", (String) null, false, m_singleRowReadSize);
+		long rowTime = rowKey.getTimestamp();
+		long rowWidth = getRowWidth(rowKey.getMetricName(), false);
+		long blockEnd = Math.min(blockTime + m_blockWidth, rowTime + rowWidth) - 1;
 
-		List<String> ret = new ArrayList<String>();
+		SliceQuery<DataPointsRowKey, Integer, ByteBuffer> sliceQuery =
+				HFactory.createSliceQuery(m_keyspace, DATA_POINTS_ROW_KEY_SERIALIZER,
+						IntegerSerializer.get(), ByteBufferSerializer.get());
+		sliceQuery.setColumnFamily(CF_DATA_POINTS).setKey(rowKey);
 
-		while (columnIterator.hasNext())
-			ret.add(columnIterator.next().getName());
+		ColumnSliceIterator<DataPointsRowKey, Integer, ByteBuffer> columnIterator =
+				new ColumnSliceIterator<DataPointsRowKey, Integer, ByteBuffer>(sliceQuery,
+						getColumnName(rowTime, blockTime, true),
+						getColumnName(rowTime, blockEnd, false), false, m_singleRowReadSize);
 
-		return (ret);
-	}
+		if (!columnIterator.hasNext())
+			return (false);
 
-	@Override
-	public Iterable<String> getTagNames()
-	{
-		SliceQuery<String, String, String> sliceQuery =
-				HFactory.createSliceQuery(m_keyspace, StringSerializer.get(), StringSerializer.get(),
-						StringSerializer.get());
+		//Keyed by timestamp and type so raw columns replace the same point in the block
+		TreeMap<Long, DataPoint> dataPoints = readBlock(rowKey, blockTime);
+		Mutator<DataPointsRowKey> mutator = HFactory.createMutator(m_keyspace, DATA_POINTS_ROW_KEY_SERIALIZER);
 
-		sliceQuery.setColumnFamily(CF_STRING_INDEX);
-		sliceQuery.setKey(ROW_KEY_TAG_NAMES);
+		while (columnIterator.hasNext())
+		{
+			HColumn<Integer, ByteBuffer> column = columnIterator.next();
+			int columnName = column.getName();
+			long timestamp = getColumnTimestamp(rowTime, columnName);
 
-		ColumnSliceIterator<String, String, String> columnIterator =
-				new ColumnSliceIterator<String, String, String>(sliceQuery, "", (String) null, false, m_singleRowReadSize);
+			DataPoint dataPoint;
+			if (isLongValue(columnName))
+				dataPoint = new DataPoint(timestamp, ValueSerializer.getLongFromByteBuffer(column.getValue()));
+			else
+				dataPoint = new DataPoint(timestamp, ValueSerializer.getDoubleFromByteBuffer(column.getValue()));
 
-		List<String> ret = new ArrayList<String>();
+			dataPoints.put(getBlockPointKey(dataPoint), dataPoint);
+			mutator.addDeletion(rowKey, CF_DATA_POINTS, columnName, IntegerSerializer.get(), column.getClock());
+		}
 
-		while (columnIterator.hasNext())
-			ret.add(columnIterator.next().getName());
+		writeBlock(mutator, rowKey, blockTime, dataPoints);
+		mutator.execute();
 
-		return (ret);
+		return (true);
 	}
 
-	@Override
-	public Iterable<String> getTagValues()
+	/**
+	 Deletes the columns of the row between startTime and endTime.  The
+	 slice is bounded by the column names of the range so nothing outside it
+	 is read.  Thrift has no slice that returns names only so the values of
+	 the range are transferred too, they are just never decoded.  Thrift does
+	 not take slice ranges in deletions either so each column gets its own
+	 tombstone, they are sent in batches of m_singleRowReadSize on their own
+	 mutator rather than going through the data point write buffer.
+	 */
+	private void deleteColumnRange(String columnFamily, DataPointsRowKey rowKey, long rowWidth,
+			long startTime, long endTime, long now)
 	{
-		SliceQuery<String, String, String> sliceQuery =
-				HFactory.createSliceQuery(m_keyspace, StringSerializer.get(), StringSerializer.get(),
-						StringSerializer.get());
+		long rowTime = rowKey.getTimestamp();
+		int startColumn = getColumnName(rowTime, Math.max(rowTime, startTime), true);
+		int endColumn = getColumnName(rowTime, Math.min(endTime, rowTime + rowWidth - 1), false);
 
-		sliceQuery.setColumnFamily(CF_STRING_INDEX);
-		sliceQuery.setKey(ROW_KEY_TAG_VALUES);
+		SliceQuery<DataPointsRowKey, Integer, ByteBuffer> sliceQuery =
+				HFactory.createSliceQuery(m_keyspace, DATA_POINTS_ROW_KEY_SERIALIZER,
+						IntegerSerializer.get(), ByteBufferSerializer.get());
+		sliceQuery.setColumnFamily(columnFamily).setKey(rowKey);
 
-		ColumnSliceIterator<String, String, String> columnIterator =
-				new ColumnSliceIterator<String, String, String>(sliceQuery, "", (String) null, false, m_singleRowReadSize);
+		ColumnSliceIterator<DataPointsRowKey, Integer, ByteBuffer> columnIterator =
+				new ColumnSliceIterator<DataPointsRowKey, Integer, ByteBuffer>(sliceQuery,
+						startColumn, endColumn, false, m_singleRowReadSize);
 
-		List<String> ret = new ArrayList<String>();
+		Mutator<DataPointsRowKey> mutator = HFactory.createMutator(m_keyspace, DATA_POINTS_ROW_KEY_SERIALIZER);
 
 		while (columnIterator.hasNext())
-			ret.add(columnIterator.next().getName());
-
-		return (ret);
-	}
-
-	@Override
-	public TagSet queryMetricTags(DatastoreMetricQuery query)
-	{
-		TagSetImpl tagSet = new TagSetImpl();
-		Iterator<DataPointsRowKey> rowKeys = getKeysForQueryIterator(query);
-
-		MemoryMonitor mm = new MemoryMonitor(20);
-		while (rowKeys.hasNext())
 		{
-			DataPointsRowKey dataPointsRowKey = rowKeys.next();
-			for (Map.Entry<String, String> tag : dataPointsRowKey.getTags().entrySet())
+			mutator.addDeletion(rowKey, columnFamily, columnIterator.next().getName(),
+					IntegerSerializer.get(), now);
+
+			if (mutator.getPendingMutationCount() >= m_singleRowReadSize)
 			{
-				tagSet.addTag(tag.getKey(), tag.getValue());
-				mm.checkMemoryAndThrowException();
+				mutator.execute();
+				mutator.discardPendingMutations();
 			}
 		}
 
-		return (tagSet);
+		if (mutator.getPendingMutationCount() != 0)
+			mutator.execute();
 	}
 
-	@Override
-	public void queryDatabase(DatastoreMetricQuery query, QueryCallback queryCallback)
+	/**
+	 Removes the points between startTime and endTime from the compressed
+	 blocks of the row.
+	 */
+	private void deleteFromBlocks(DataPointsRowKey rowKey, long rowWidth, long startTime, long endTime, long now)
 	{
-		queryWithRowKeys(query, queryCallback, getKeysForQueryIterator(query));
-	}
+		long rowTime = rowKey.getTimestamp();
+		//Blocks may have been written before block storage was turned off
+		int startColumn = 0;
+		if (m_blockWidth > 0)
+			startColumn = (int) (getBlockTime(rowTime, Math.max(rowTime, startTime)) - rowTime);
+		int endColumn = (int) (Math.min(endTime, rowTime + rowWidth - 1) - rowTime);
 
-	private void queryWithRowKeys(DatastoreMetricQuery query,
-			QueryCallback queryCallback, Iterator<DataPointsRowKey> rowKeys)
-	{
-		long startTime = System.currentTimeMillis();
-		long currentTimeTier = 0L;
+		SliceQuery<DataPointsRowKey, Integer, ByteBuffer> sliceQuery =
+				HFactory.createSliceQuery(m_keyspace, DATA_POINTS_ROW_KEY_SERIALIZER,
+						IntegerSerializer.get(), ByteBufferSerializer.get());
+		sliceQuery.setColumnFamily(CF_DATA_POINT_BLOCKS).setKey(rowKey);
 
-		List<QueryRunner> runners = new ArrayList<QueryRunner>();
-		List<DataPointsRowKey> queryKeys = new ArrayList<DataPointsRowKey>();
+		ColumnSliceIterator<DataPointsRowKey, Integer, ByteBuffer> blockIterator =
+				new ColumnSliceIterator<DataPointsRowKey, Integer, ByteBuffer>(sliceQuery,
+						startColumn, endColumn, false, m_singleRowReadSize);
 
-		MemoryMonitor mm = new MemoryMonitor(20);
-		while (rowKeys.hasNext())
+		Mutator<DataPointsRowKey> mutator = HFactory.createMutator(m_keyspace, DATA_POINTS_ROW_KEY_SERIALIZER);
+
+		while (blockIterator.hasNext())
 		{
-			DataPointsRowKey rowKey = rowKeys.next();
-			if (currentTimeTier == 0L)
-				currentTimeTier = rowKey.getTimestamp();
+			HColumn<Integer, ByteBuffer> column = blockIterator.next();
+			long blockTime = rowTime + column.getName();
 
-			if ((rowKey.getTimestamp() == currentTimeTier) && queryKeys.size() < m_multiRowSize)
-			{
-				queryKeys.add(rowKey);
-			}
-			else
+			TreeMap<Long, DataPoint> dataPoints = new TreeMap<Long, DataPoint>();
+			boolean removed = false;
+			for (DataPoint dataPoint : DataPointBlock.decode(blockTime, column.getValue()))
 			{
-				runners.add(new QueryRunner(m_keyspace, CF_DATA_POINTS, queryKeys,
-						query.getStartTime(), query.getEndTime(), queryCallback, m_singleRowReadSize,
-						m_multiRowReadSize));
-
-				queryKeys = new ArrayList<DataPointsRowKey>();
-				queryKeys.add(rowKey);
-				currentTimeTier = rowKey.getTimestamp();
+				if (dataPoint.getTimestamp() < startTime || dataPoint.getTimestamp() > endTime)
+					dataPoints.put(getBlockPointKey(dataPoint), dataPoint);
+				else
+					removed = true;
 			}
 
-			mm.checkMemoryAndThrowException();
-		}
+			if (!removed)
+				continue;
 
-		//There may be stragglers that are not ran
-		if (!queryKeys.isEmpty())
-		{
-			runners.add(new QueryRunner(m_keyspace, CF_DATA_POINTS, queryKeys,
-					query.getStartTime(), query.getEndTime(), queryCallback, m_singleRowReadSize,
-					m_multiRowReadSize));
+			if (dataPoints.isEmpty())
+				mutator.addDeletion(rowKey, CF_DATA_POINT_BLOCKS, column.getName(), IntegerSerializer.get(), now);
+			else
+				writeBlock(mutator, rowKey, blockTime, dataPoints);
 		}
 
-		ThreadReporter.addDataPoint(KEY_QUERY_TIME, System.currentTimeMillis() - startTime);
+		if (mutator.getPendingMutationCount() != 0)
+			mutator.execute();
+	}
 
-		//Changing the check rate
-		mm.setCheckRate(1);
-		try
-		{
-			//TODO: Run this with multiple threads
-			for (QueryRunner runner : runners)
-			{
-				runner.runQuery();
+	private TreeMap<Long, DataPoint> readBlock(DataPointsRowKey rowKey, long blockTime)
+	{
+		TreeMap<Long, DataPoint> ret = new TreeMap<Long, DataPoint>();
 
-				mm.checkMemoryAndThrowException();
-			}
+		HColumn<Integer, ByteBuffer> column = HFactory.createColumnQuery(m_keyspace,
+				DATA_POINTS_ROW_KEY_SERIALIZER, IntegerSerializer.get(), ByteBufferSerializer.get())
+				.setColumnFamily(CF_DATA_POINT_BLOCKS)
+				.setKey(rowKey)
+				.setName((int) (blockTime - rowKey.getTimestamp()))
+				.execute().get();
 
-			queryCallback.endDataPoints();
-		}
-		catch (IOException e)
+		if (column != null)
 		{
-			e.printStackTrace();
+			for (DataPoint dataPoint : DataPointBlock.decode(blockTime, column.getValue()))
+				ret.put(getBlockPointKey(dataPoint), dataPoint);
 		}
+
+		return (ret);
 	}
 
-	@Override
-	public void deleteDataPoints(DatastoreMetricQuery deleteQuery) throws DatastoreException
+	private void writeBlock(Mutator<DataPointsRowKey> mutator, DataPointsRowKey rowKey,
+			long blockTime, TreeMap<Long, DataPoint> dataPoints)
 	{
-		checkNotNull(deleteQuery);
-
 		long now = System.currentTimeMillis();
+		int columnName = (int) (blockTime - rowKey.getTimestamp());
 
-		// Get number of columns in the row key
-		CountQuery<String, DataPointsRowKey> countQuery = HFactory.createCountQuery(m_keyspace, StringSerializer.get(), DATA_POINTS_ROW_KEY_SERIALIZER);
-		countQuery.setColumnFamily(CF_ROW_KEY_INDEX).
-				setKey(deleteQuery.getName()).
-				setRange(new DataPointsRowKey(deleteQuery.getName(), 0L), new DataPointsRowKey(deleteQuery.getName(), Long.MAX_VALUE), Integer.MAX_VALUE);
-		int rowKeyColumnCount = countQuery.execute().get();
-
-		Iterator<DataPointsRowKey> rowKeyIterator = getKeysForQueryIterator(deleteQuery);
-		List<DataPointsRowKey> partialRows = new ArrayList<DataPointsRowKey>();
-
-		while (rowKeyIterator.hasNext())
+		//The block lives as long as its last point
+		int ttl = getTtl(rowKey.getMetricName(), dataPoints.lastEntry().getValue().getTimestamp(), now);
+		if (ttl < 0)
 		{
-			DataPointsRowKey rowKey = rowKeyIterator.next();
-			long rowKeyTimestamp = rowKey.getTimestamp();
-			if (deleteQuery.getStartTime() <= rowKeyTimestamp && (deleteQuery.getEndTime() >= rowKeyTimestamp + ROW_WIDTH - 1))
-			{
-				m_dataPointWriteBuffer.deleteRow(rowKey, now);  // delete the whole row
-				m_rowKeyWriteBuffer.deleteColumn(rowKey.getMetricName(), rowKey, now); // Delete the index
-				m_rowKeyCache.clear();
-				rowKeyColumnCount--;
-			}
-			else
-				partialRows.add(rowKey);
+			mutator.addDeletion(rowKey, CF_DATA_POINT_BLOCKS, columnName, IntegerSerializer.get(), now);
+			return;
 		}
 
+		ByteBuffer block = DataPointBlock.encode(blockTime, new ArrayList<DataPoint>(dataPoints.values()));
 
-		queryWithRowKeys(deleteQuery, new DeletingCallback(deleteQuery.getName()), partialRows.iterator());
+		HColumn<Integer, ByteBuffer> column = HFactory.createColumn(columnName, block, now,
+				IntegerSerializer.get(), ByteBufferSerializer.get());
+		if (ttl > 0)
+			column.setTtl(ttl);
 
-		// If index is gone, delete metric name from Strings column family
-		if (rowKeyColumnCount < 1)
-		{
-			m_rowKeyWriteBuffer.deleteRow(deleteQuery.getName(), now);
-			m_stringIndexWriteBuffer.deleteColumn(ROW_KEY_METRIC_NAMES, deleteQuery.getName(), now);
-			m_rowKeyCache.clear();
-			m_metricNameCache.clear();
-		}
+		mutator.addInsertion(rowKey, CF_DATA_POINT_BLOCKS, column);
+	}
+
+	private static long getBlockPointKey(DataPoint dataPoint)
+	{
+		return ((dataPoint.getTimestamp() << 1) | (dataPoint.isInteger() ? LONG_FLAG : FLOAT_FLAG));
 	}
 
 	private SortedMap<String, String> getTags(DataPointRow row)
@@ -529,13 +2236,105 @@ public class CassandraDatastore implements Datastore
 	 */
 	/*package*/ Iterator<DataPointsRowKey> getKeysForQueryIterator(DatastoreMetricQuery query)
 	{
-		return (new FilteredRowKeyIterator(query.getName(), query.getStartTime(),
+		long rowWidth = getRowWidth(query.getName(), false);
+
+		if (m_tagIndex && !query.getTags().isEmpty())
+			return (new TagIndexRowKeyIterator(query.getName(), rowWidth, query.getStartTime(),
+					query.getEndTime(), query.getTags()));
+
+		return (new FilteredRowKeyIterator(query.getName(), rowWidth, query.getStartTime(),
 				query.getEndTime(), query.getTags()));
 	}
 
+	/**
+	 Row key of the tag index row listing the data point rows of a metric in
+	 one time tier that have the tag.
+	 */
+	public static String getTagIndexKey(String metricName, long rowTime, String tagName,
+			String tagValue)
+	{
+		return (metricName + '\0' + rowTime + '\0' + tagName + '=' + tagValue);
+	}
+
+	/**
+	 Looks up the row keys for one time tier in the tag index.  The posting
+	 lists of each filter tag are counted and only the smallest is read, the
+	 other filter tags are checked against the tags in those row keys.  If any
+	 filter tag has no postings there are no rows to read at all.
+	 */
+	private List<DataPointsRowKey> lookupTagIndex(String metricName, long rowTime,
+			SetMultimap<String, String> filterTags, RowKeyTagFilter tagFilter)
+	{
+		String bestTag = null;
+		int bestCount = Integer.MAX_VALUE;
+
+		for (String tagName : filterTags.keySet())
+		{
+			int count = 0;
+			for (String tagValue : filterTags.get(tagName))
+			{
+				//No need to count past the smallest list found so far
+				int limit = Math.min(MAX_POSTING_COUNT, bestCount) - count;
+				if (limit <= 0)
+					break;
+
+				CountQuery<String, DataPointsRowKey> countQuery = HFactory.createCountQuery(
+						m_indexKeyspace, StringSerializer.get(), DATA_POINTS_ROW_KEY_SERIALIZER);
+				countQuery.setColumnFamily(CF_TAG_INDEX)
+						.setKey(getTagIndexKey(metricName, rowTime, tagName, tagValue))
+						.setRange(null, null, limit);
+
+				count += countQuery.execute().get();
+			}
+
+			if (count == 0)
+				return (Collections.emptyList());
+
+			if (count < bestCount)
+			{
+				bestCount = count;
+				bestTag = tagName;
+			}
+		}
+
+		List<DataPointsRowKey> ret = new ArrayList<DataPointsRowKey>();
+		int postingsRead = 0;
+
+		for (String tagValue : filterTags.get(bestTag))
+		{
+			SliceQuery<String, ByteBuffer, String> sliceQuery =
+					HFactory.createSliceQuery(m_indexKeyspace, StringSerializer.get(),
+							ByteBufferSerializer.get(), StringSerializer.get());
+			sliceQuery.setColumnFamily(CF_TAG_INDEX)
+					.setKey(getTagIndexKey(metricName, rowTime, bestTag, tagValue));
+
+			ColumnSliceIterator<String, ByteBuffer, String> columnIterator =
+					new ColumnSliceIterator<String, ByteBuffer, String>(sliceQuery,
+							(ByteBuffer) null, (ByteBuffer) null, false, m_singleRowReadSize);
+
+			//Values of one tag are disjoint so there are no duplicates
+			while (columnIterator.hasNext())
+			{
+				ByteBuffer rowKey = columnIterator.next().getName();
+				postingsRead++;
+				if (tagFilter.matches(rowKey))
+					ret.add(m_queryRowKeySerializer.fromByteBuffer(rowKey));
+			}
+		}
+
+		ThreadReporter.addDataPoint(TAG_INDEX_POSTINGS_READ, postingsRead);
+
+		return (ret);
+	}
+
 	public static long calculateRowTime(long timestamp)
 	{
-		return (timestamp - (timestamp % ROW_WIDTH));
+		return (calculateRowTime(timestamp, ROW_WIDTH));
+	}
+
+	public static long calculateRowTime(long timestamp, long rowWidth)
+	{
+		return (timestamp - (timestamp % rowWidth));
 	}
 
 
@@ -563,35 +2362,37 @@ public class CassandraDatastore implements Datastore
 
 	private class FilteredRowKeyIterator implements Iterator<DataPointsRowKey>
 	{
-		private ColumnSliceIterator<String, DataPointsRowKey, String> m_sliceIterator;
+		private ColumnSliceIterator<String, ByteBuffer, String> m_sliceIterator;
 		private DataPointsRowKey m_nextKey;
-		private SetMultimap<String, String> m_filterTags;
+		private RowKeyTagFilter m_tagFilter;
 
-		public FilteredRowKeyIterator(String metricName, long startTime, long endTime,
+		public FilteredRowKeyIterator(String metricName, long rowWidth, long startTime, long endTime,
 				SetMultimap<String, String> filterTags)
 		{
-			m_filterTags = filterTags;
-			SliceQuery<String, DataPointsRowKey, String> sliceQuery =
-					HFactory.createSliceQuery(m_keyspace, StringSerializer.get(),
-							new DataPointsRowKeySerializer(true), StringSerializer.get());
+			m_tagFilter = new RowKeyTagFilter(filterTags);
+			//Keys are read as bytes and only decoded if they pass the tag filter
+			SliceQuery<String, ByteBuffer, String> sliceQuery =
+					HFactory.createSliceQuery(m_indexKeyspace, StringSerializer.get(),
+							ByteBufferSerializer.get(), StringSerializer.get());
 
 			DataPointsRowKey startKey = new DataPointsRowKey(metricName,
-					calculateRowTime(startTime));
+					calculateRowTime(startTime, rowWidth));
 
 			/*
 			Adding 1 to the end time ensures we get all the keys that have end time and
 			have tags in the key.
 			 */
 			DataPointsRowKey endKey = new DataPointsRowKey(metricName,
-					calculateRowTime(endTime) + 1);
+					calculateRowTime(endTime, rowWidth) + 1);
 
 
 			sliceQuery.setColumnFamily(CF_ROW_KEY_INDEX)
 					.setKey(metricName);
 
 			m_sliceIterator =
-					new ColumnSliceIterator<String, DataPointsRowKey, String>(sliceQuery,
-							startKey, endKey, false, m_singleRowReadSize);
+					new ColumnSliceIterator<String, ByteBuffer, String>(sliceQuery,
+							DATA_POINTS_ROW_KEY_SERIALIZER.toByteBuffer(startKey),
+							DATA_POINTS_ROW_KEY_SERIALIZER.toByteBuffer(endKey), false, m_singleRowReadSize);
 
 		}
 
@@ -601,20 +2402,14 @@ public class CassandraDatastore implements Datastore
 		{
 			m_nextKey = null;
 
-			outer:
 			while (m_sliceIterator.hasNext())
 			{
-				DataPointsRowKey rowKey = m_sliceIterator.next().getName();
+				ByteBuffer rowKey = m_sliceIterator.next().getName();
 
-				Map<String, String> keyTags = rowKey.getTags();
-				for (String tag : m_filterTags.keySet())
-				{
-					String value = keyTags.get(tag);
-					if (value == null || !m_filterTags.get(tag).contains(value))
-						continue outer; //Don't want this key
-				}
+				if (!m_tagFilter.matches(rowKey))
+					continue; //Don't want this key
 
-				m_nextKey = rowKey;
+				m_nextKey = m_queryRowKeySerializer.fromByteBuffer(rowKey);
 				break;
 			}
 
@@ -634,54 +2429,251 @@ public class CassandraDatastore implements Datastore
 		}
 	}
 
-	private class DeletingCallback implements QueryCallback
+	/**
+	 Returns the row keys one time tier at a time, tiers written before the tag
+	 index was turned on are scanned from the row key index instead.
+	 */
+	private class TagIndexRowKeyIterator implements Iterator<DataPointsRowKey>
 	{
-		private SortedMap<String, String> m_currentTags;
-		private DataPointsRowKey m_currentRow;
-		private long m_now = System.currentTimeMillis();
-		private final String m_metric;
-
-		public DeletingCallback(String metric)
+		private final String m_metricName;
+		private final long m_rowWidth;
+		private final SetMultimap<String, String> m_filterTags;
+		private final RowKeyTagFilter m_tagFilter;
+		private final long m_lastTier;
+		private long m_nextTier;
+		private Iterator<DataPointsRowKey> m_currentTier;
+
+		public TagIndexRowKeyIterator(String metricName, long rowWidth, long startTime, long endTime,
+				SetMultimap<String, String> filterTags)
 		{
-			m_metric = metric;
+			m_metricName = metricName;
+			m_rowWidth = rowWidth;
+			m_filterTags = filterTags;
+			m_tagFilter = new RowKeyTagFilter(filterTags);
+			m_nextTier = calculateRowTime(startTime, rowWidth);
+			m_lastTier = calculateRowTime(endTime, rowWidth);
+
+			//Last tier that started before the index did
+			long lastScannedTier = Math.min(m_lastTier, calculateRowTime(getTagIndexStart() - 1, rowWidth));
+			if (m_nextTier <= lastScannedTier)
+			{
+				m_currentTier = new FilteredRowKeyIterator(metricName, rowWidth, m_nextTier,
+						lastScannedTier, filterTags);
+				m_nextTier = lastScannedTier + rowWidth;
+			}
+			else
+				m_currentTier = Collections.<DataPointsRowKey>emptyList().iterator();
 		}
 
-		private void deleteDataPoint(long time, boolean isInteger)
+		@Override
+		public boolean hasNext()
 		{
-			long rowTime = calculateRowTime(time);
-			if (m_currentRow == null)
+			while (!m_currentTier.hasNext())
 			{
-				m_currentRow = new DataPointsRowKey(m_metric, rowTime, m_currentTags);
+				if (m_nextTier > m_lastTier)
+					return (false);
+
+				m_currentTier = lookupTagIndex(m_metricName, m_nextTier, m_filterTags,
+						m_tagFilter).iterator();
+				m_nextTier += m_rowWidth;
 			}
 
-			int columnName = getColumnName(rowTime, time, isInteger);
-			m_dataPointWriteBuffer.deleteColumn(m_currentRow, columnName, m_now);
+			return (true);
+		}
+
+		@Override
+		public DataPointsRowKey next()
+		{
+			return (m_currentTier.next());
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 Aggregates one period of a metric for each series and writes the results
+	 to the rollup rows.
+	 */
+	private class RollupCallback implements QueryCallback
+	{
+		private final Rollup m_rollup;
+		private final String m_metricName;
+		private final long m_periodStart;
+		private final long m_writeTime;
+		private final Map<SortedMap<String, String>, RollupPeriod> m_periods =
+				new HashMap<SortedMap<String, String>, RollupPeriod>();
+		private RollupPeriod m_currentPeriod;
+
+		public RollupCallback(Rollup rollup, String metricName, long periodStart, long writeTime)
+		{
+			m_rollup = rollup;
+			m_metricName = metricName;
+			m_periodStart = periodStart;
+			m_writeTime = writeTime;
 		}
 
 		@Override
 		public void addDataPoint(long timestamp, long value) throws IOException
 		{
-			deleteDataPoint(timestamp, true);
+			m_currentPeriod.add(timestamp, value);
 		}
 
 		@Override
 		public void addDataPoint(long timestamp, double value) throws IOException
 		{
-			deleteDataPoint(timestamp, false);
+			m_currentPeriod.add(timestamp, value);
 		}
 
 		@Override
 		public void startDataPointSet(Map<String, String> tags) throws IOException
 		{
-			m_currentTags = new TreeMap<String, String>(tags);
-			//This causes the row key to get reset with the first data point
-			m_currentRow = null;
+			//Raw columns and blocks of a row come as separate sets
+			SortedMap<String, String> seriesTags = new TreeMap<String, String>(tags);
+			m_currentPeriod = m_periods.get(seriesTags);
+			if (m_currentPeriod == null)
+			{
+				m_currentPeriod = new RollupPeriod();
+				m_periods.put(seriesTags, m_currentPeriod);
+			}
 		}
 
 		@Override
 		public void endDataPoints()
 		{
-			//To change body of implemented methods use File | Settings | File Templates.
+			for (Map.Entry<SortedMap<String, String>, RollupPeriod> entry : m_periods.entrySet())
+			{
+				writeRollupPeriod(m_rollup, m_metricName, entry.getKey(), m_periodStart,
+						entry.getValue(), m_writeTime);
+			}
+		}
+	}
+
+	private static class DirtyRollupPeriod
+	{
+		private final Rollup m_rollup;
+		private final String m_metricName;
+		private final long m_periodStart;
+
+		public DirtyRollupPeriod(Rollup rollup, String metricName, long periodStart)
+		{
+			m_rollup = rollup;
+			m_metricName = metricName;
+			m_periodStart = periodStart;
+		}
+
+		/**
+		 The rollup name, period start and metric name.  Rollup names can not
+		 have a colon in them, see getRollupMetricName.
+		 */
+		public String toColumnName()
+		{
+			return (m_rollup.getName() + ':' + m_periodStart + ':' + m_metricName);
+		}
+
+		/**
+		 @return null if the rollup is not in rollups
+		 */
+		public static DirtyRollupPeriod fromColumnName(String columnName, Map<String, Rollup> rollups)
+		{
+			int nameEnd = columnName.indexOf(':');
+			int periodEnd = columnName.indexOf(':', nameEnd + 1);
+			if (nameEnd == -1 || periodEnd == -1)
+				throw new IllegalArgumentException("Missing period start in " + columnName);
+
+			Rollup rollup = rollups.get(columnName.substring(0, nameEnd));
+			if (rollup == null)
+				return (null);
+
+			long periodStart = Long.parseLong(columnName.substring(nameEnd + 1, periodEnd));
+
+			return (new DirtyRollupPeriod(rollup, columnName.substring(periodEnd + 1), periodStart));
+		}
+
+		@SuppressWarnings("RedundantIfStatement")
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			DirtyRollupPeriod that = (DirtyRollupPeriod) o;
+
+			if (m_periodStart != that.m_periodStart) return false;
+			if (m_rollup != that.m_rollup) return false;
+			if (!m_metricName.equals(that.m_metricName)) return false;
+
+			return true;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int result = m_rollup.getName().hashCode();
+			result = 31 * result + m_metricName.hashCode();
+			result = 31 * result + (int) (m_periodStart ^ (m_periodStart >>> 32));
+			return result;
+		}
+	}
+
+	/**
+	 A block of time within a row that has raw columns to be compacted.
+	 */
+	private static class BlockKey
+	{
+		private final DataPointsRowKey m_rowKey;
+		private final long m_blockTime;
+
+		public BlockKey(DataPointsRowKey rowKey, long blockTime)
+		{
+			m_rowKey = rowKey;
+			m_blockTime = blockTime;
+		}
+
+		/**
+		 The serialized row key in hex followed by the block time.
+		 */
+		public String toColumnName()
+		{
+			ByteBuffer buffer = DATA_POINTS_ROW_KEY_SERIALIZER.toByteBuffer(m_rowKey);
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+
+			return (BaseEncoding.base16().encode(bytes) + ':' + m_blockTime);
+		}
+
+		public static BlockKey fromColumnName(String columnName)
+		{
+			int separator = columnName.lastIndexOf(':');
+			if (separator == -1)
+				throw new IllegalArgumentException("Missing block time in " + columnName);
+
+			byte[] bytes = BaseEncoding.base16().decode(columnName.substring(0, separator));
+			long blockTime = Long.parseLong(columnName.substring(separator + 1));
+
+			return (new BlockKey(DATA_POINTS_ROW_KEY_SERIALIZER.fromByteBuffer(ByteBuffer.wrap(bytes)), blockTime));
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			BlockKey that = (BlockKey) o;
+
+			return (m_blockTime == that.m_blockTime && m_rowKey.equals(that.m_rowKey));
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int result = m_rowKey.hashCode();
+			result = 31 * result + (int) (m_blockTime ^ (m_blockTime >>> 32));
+			return result;
 		}
 	}
 }
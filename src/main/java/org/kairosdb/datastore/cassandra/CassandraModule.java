@@ -37,6 +37,9 @@ public class CassandraModule extends AbstractModule
 	{
 		bind(Datastore.class).to(CassandraDatastore.class).in(Scopes.SINGLETON);
 		bind(CassandraDatastore.class).in(Scopes.SINGLETON);
-		bind(IncreaseMaxBufferSizesJob.class).in(Scopes.SINGLETON);
+		bind(BlockCompactionJob.class).in(Scopes.SINGLETON);
+		bind(RollupJob.class).in(Scopes.SINGLETON);
+		bind(RetentionJob.class).in(Scopes.SINGLETON);
+		bind(StreamingRollups.class).in(Scopes.SINGLETON);
 	}
 }
@@ -18,16 +18,25 @@ package org.kairosdb.datastore.cassandra;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  Used to keep a limited size cache in memory.  The data type must implement
  hashcode and equal methods.
+
+ Large caches are split into segments by hash, each segment is a LRU cache
+ with its own lock so threads checking different items rarely contend.
+ Eviction is LRU within a segment.
  */
 public class DataCache<T>
 {
-	private Object m_lock = new Object();
+	/**
+	 Caches smaller than this many items per segment are not split up.
+	 */
+	public static final int MIN_SEGMENT_SIZE = 1024;
+	public static final int MAX_SEGMENTS = 64;
 
-	private class InternalCache extends LinkedHashMap<T, String>
+	private class InternalCache extends LinkedHashMap<T, T>
 	{
 		private int m_cacheSize;
 
@@ -37,17 +46,49 @@ public class DataCache<T>
 			m_cacheSize = cacheSize;
 		}
 
-		protected boolean removeEldestEntry(Map.Entry<T, String> entry)
+		protected boolean removeEldestEntry(Map.Entry<T, T> entry)
 		{
-			return (size() > m_cacheSize);
+			if (size() > m_cacheSize)
+			{
+				m_evictions.incrementAndGet();
+				return (true);
+			}
+
+			return (false);
 		}
 	}
 
-	private InternalCache m_cache;
+	private InternalCache[] m_segments;
+	private final AtomicLong m_hits = new AtomicLong();
+	private final AtomicLong m_misses = new AtomicLong();
+	private final AtomicLong m_evictions = new AtomicLong();
 
+	@SuppressWarnings("unchecked")
 	public DataCache(int cacheSize)
 	{
-		m_cache = new InternalCache(cacheSize);
+		int segmentCount = Math.max(1, Math.min(MAX_SEGMENTS, cacheSize / MIN_SEGMENT_SIZE));
+
+		m_segments = new DataCache.InternalCache[segmentCount];
+		for (int I = 0; I < segmentCount; I++)
+		{
+			//Spread any remainder over the first segments
+			int segmentSize = cacheSize / segmentCount + (I < cacheSize % segmentCount ? 1 : 0);
+			m_segments[I] = new InternalCache(segmentSize);
+		}
+	}
+
+	private InternalCache getSegment(T cacheData)
+	{
+		if (m_segments.length == 1)
+			return (m_segments[0]);
+
+		//Spread the hash so poor hash codes still use all the segments
+		int hash = cacheData.hashCode();
+		hash ^= (hash >>> 16);
+		hash *= 0x85ebca6b;
+		hash ^= (hash >>> 13);
+
+		return (m_segments[(hash & 0x7FFFFFFF) % m_segments.length]);
 	}
 
 	/**
@@ -58,14 +99,33 @@ public class DataCache<T>
 	 */
 	public boolean isCached(T cacheData)
 	{
-		String ret;
+		return (cacheItem(cacheData) != null);
+	}
+
+	/**
+	 Same as isCached but returns the instance that is in the cache.  This
+	 lets callers share one instance of equal items.
+	 @param cacheData Item to check if in cache and or to insert into cache
+	 @return The cached instance or null if the item was not in the cache.
+	 */
+	public T cacheItem(T cacheData)
+	{
+		T ret;
+		InternalCache segment = getSegment(cacheData);
 
-		synchronized (m_lock)
+		synchronized (segment)
 		{
-			ret = m_cache.put(cacheData, "");
+			ret = segment.get(cacheData);
+			if (ret == null)
+				segment.put(cacheData, cacheData);
 		}
 
-		return (ret != null);
+		if (ret != null)
+			m_hits.incrementAndGet();
+		else
+			m_misses.incrementAndGet();
+
+		return (ret);
 	}
 
 	/**
@@ -73,9 +133,69 @@ public class DataCache<T>
 	 */
 	public void clear()
 	{
-		synchronized (m_lock)
+		for (InternalCache segment : m_segments)
 		{
-			m_cache.clear();
+			synchronized (segment)
+			{
+				segment.clear();
+			}
 		}
 	}
+
+	public int size()
+	{
+		int size = 0;
+		for (InternalCache segment : m_segments)
+		{
+			synchronized (segment)
+			{
+				size += segment.size();
+			}
+		}
+
+		return (size);
+	}
+
+	/**
+	 @return Number of times isCached has found the item since the counts were
+	 last cleared
+	 */
+	public long getHitCount()
+	{
+		return (m_hits.get());
+	}
+
+	/**
+	 @return Number of times isCached has not found the item
+	 */
+	public long getMissCount()
+	{
+		return (m_misses.get());
+	}
+
+	/**
+	 @return Number of items that have been pushed out of the cache
+	 */
+	public long getEvictionCount()
+	{
+		return (m_evictions.get());
+	}
+
+	/**
+	 @return Number of hits since the last call, for reporting per interval
+	 */
+	public long getAndClearHitCount()
+	{
+		return (m_hits.getAndSet(0));
+	}
+
+	public long getAndClearMissCount()
+	{
+		return (m_misses.getAndSet(0));
+	}
+
+	public long getAndClearEvictionCount()
+	{
+		return (m_evictions.getAndSet(0));
+	}
 }
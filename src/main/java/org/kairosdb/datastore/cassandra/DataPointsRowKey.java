@@ -15,6 +15,7 @@
  */
 package org.kairosdb.datastore.cassandra;
 
+import java.nio.ByteBuffer;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
@@ -23,6 +24,7 @@ public class DataPointsRowKey
 	private String m_metricName;
 	private long m_timestamp;
 	private SortedMap<String, String> m_tags;
+	private volatile ByteBuffer m_serializedKey;
 
 	public DataPointsRowKey(String metricName, long timestamp)
 	{
@@ -40,6 +42,22 @@ public class DataPointsRowKey
 	public void addTag(String name, String value)
 	{
 		m_tags.put(name, value);
+		m_serializedKey = null;
+	}
+
+	/**
+	 The serialized form of the key, set by DataPointsRowKeySerializer so the
+	 key is only encoded once no matter how many columns are written to the row.
+	 The buffer must not be modified, callers use a duplicate.
+	 */
+	/*package*/ ByteBuffer getSerializedKey()
+	{
+		return (m_serializedKey);
+	}
+
+	/*package*/ void setSerializedKey(ByteBuffer serializedKey)
+	{
+		m_serializedKey = serializedKey;
 	}
 
 	public String getMetricName()
@@ -40,6 +40,15 @@ public class DataPointsRowKeySerializer extends AbstractSerializer<DataPointsRow
 			m_stringPool = new StringPool();
 	}
 
+	/**
+	 Pools strings in the given pool, the pool can be shared by serializers on
+	 different threads.
+	 */
+	public DataPointsRowKeySerializer(StringPool stringPool)
+	{
+		m_stringPool = stringPool;
+	}
+
 	/**
 	 If we are pooling strings the string from the pool will be returned.
 	 @param str
@@ -55,6 +64,18 @@ public class DataPointsRowKeySerializer extends AbstractSerializer<DataPointsRow
 
 	@Override
 	public ByteBuffer toByteBuffer(DataPointsRowKey dataPointsRowKey)
+	{
+		ByteBuffer serializedKey = dataPointsRowKey.getSerializedKey();
+		if (serializedKey == null)
+		{
+			serializedKey = serialize(dataPointsRowKey);
+			dataPointsRowKey.setSerializedKey(serializedKey);
+		}
+
+		return (serializedKey.duplicate());
+	}
+
+	private ByteBuffer serialize(DataPointsRowKey dataPointsRowKey)
 	{
 		int size = 8; //size of timestamp
 		byte[] metricName = dataPointsRowKey.getMetricName().getBytes(UTF8);
@@ -87,29 +108,33 @@ public class DataPointsRowKeySerializer extends AbstractSerializer<DataPointsRow
 		return (sb.toString());
 	}
 
-	private void extractTags(DataPointsRowKey rowKey, String tagString)
+	/**
+	 Decodes the name=value: pairs straight from the buffer, '=' and ':' never
+	 show up inside a multi byte UTF-8 character.
+	 */
+	private void extractTags(DataPointsRowKey rowKey, ByteBuffer byteBuffer)
 	{
-		int mark = 0;
-		int position = 0;
+		byte[] array = byteBuffer.array();
+		int mark = byteBuffer.arrayOffset() + byteBuffer.position();
+		int end = byteBuffer.arrayOffset() + byteBuffer.limit();
 		String tag = null;
-		String value;
 
-		for (position = 0; position < tagString.length(); position ++)
+		for (int position = mark; position < end; position++)
 		{
 			if (tag == null)
 			{
-				if (tagString.charAt(position) == '=')
+				if (array[position] == '=')
 				{
-					tag = tagString.substring(mark, position);
-					mark = position +1;
+					tag = new String(array, mark, position - mark, UTF8);
+					mark = position + 1;
 				}
 			}
 			else
 			{
-				if (tagString.charAt(position) == ':')
+				if (array[position] == ':')
 				{
-					value = tagString.substring(mark, position);
-					mark = position +1;
+					String value = new String(array, mark, position - mark, UTF8);
+					mark = position + 1;
 
 					rowKey.addTag(getString(tag), getString(value));
 					tag = null;
@@ -135,16 +160,22 @@ public class DataPointsRowKeySerializer extends AbstractSerializer<DataPointsRow
 		byteBuffer.get(); //Skip the null
 
 		long timestamp = byteBuffer.getLong();
+		int tagStart = byteBuffer.position() - start;
 
 		DataPointsRowKey rowKey = new DataPointsRowKey(getString(new String(metricName, UTF8)),
 				timestamp);
 
-		byte[] tagString = new byte[byteBuffer.remaining()];
-		byteBuffer.get(tagString);
+		//Keep a copy of the bytes so the key is not encoded again when it is
+		//used in a query.  The buffer we were given may be reused by thrift.
+		byteBuffer.position(start);
+		ByteBuffer serializedKey = ByteBuffer.allocate(byteBuffer.remaining());
+		serializedKey.put(byteBuffer);
 
-		String tags = new String(tagString, UTF8);
+		serializedKey.position(tagStart);
+		extractTags(rowKey, serializedKey);
 
-		extractTags(rowKey, tags);
+		serializedKey.rewind();
+		rowKey.setSerializedKey(serializedKey);
 
 		return rowKey;
 	}
@@ -26,12 +26,27 @@ import me.prettyprint.hector.api.query.MultigetSliceQuery;
 import me.prettyprint.hector.api.query.SliceQuery;
 import org.kairosdb.core.datastore.CachedSearchResult;
 import org.kairosdb.core.datastore.QueryCallback;
+import org.kairosdb.core.reporting.ThreadReporter;
+import org.kairosdb.util.DataPointBlock;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.kairosdb.datastore.cassandra.CassandraDatastore.*;
 
@@ -47,31 +62,67 @@ public class QueryRunner
 	private QueryCallback m_queryCallback;
 	private int m_singleRowReadSize;
 	private int m_multiRowReadSize;
+	private ExecutorService m_rowReadExecutor;
+	private Semaphore m_rowReadPermits;
+	private SpeculativeRetry m_speculativeRetry;
+	private long m_blockWidth;
+	private long m_tierRowTime;
+	private long m_queryStartTime;
+	private long m_queryEndTime;
+	private int m_startBlock; //relative row time of the first block
+	private int m_endBlock; //relative row time
+	private long m_dataPointCount = 0L;
+	//Raw column names returned for each row, only kept when blocks are read
+	private Map<DataPointsRowKey, RawColumns> m_rawColumns;
 
+	/**
+	 @param rowReadExecutor Executor used to page through rows that did not fit
+	 in the multiget.
+	 @param rowReadPermits Permits shared by all the runners of a query, limits how
+	 many rows of the query are paged at the same time.
+	 @param rowWidth Width of the rows of the metric
+	 @param blockWidth Width of the compressed blocks, if greater than zero the
+	 blocks in CF_DATA_POINT_BLOCKS are read along with the raw columns.
+	 @param speculativeRetry Runs the multigets
+	 */
 	public QueryRunner(Keyspace keyspace, String columnFamily,
 			List<DataPointsRowKey> rowKeys, long startTime, long endTime,
 			QueryCallback csResult,
-			int singleRowReadSize, int multiRowReadSize)
+			int singleRowReadSize, int multiRowReadSize,
+			ExecutorService rowReadExecutor, Semaphore rowReadPermits, long rowWidth,
+			long blockWidth, SpeculativeRetry speculativeRetry)
 	{
 		m_keyspace = keyspace;
 		m_columnFamily = columnFamily;
 		m_rowKeys = rowKeys;
-		long m_tierRowTime = rowKeys.get(0).getTimestamp();
+		m_tierRowTime = rowKeys.get(0).getTimestamp();
 		if (startTime < m_tierRowTime)
 			m_startTime = 0;
 		else
 			m_startTime = getColumnName(m_tierRowTime, startTime, true); //Pass true so we get 0x0 for last bit
 
-		if (endTime > (m_tierRowTime + ROW_WIDTH))
-			m_endTime = getColumnName(m_tierRowTime, m_tierRowTime + ROW_WIDTH, false);
+		if (endTime > (m_tierRowTime + rowWidth))
+			m_endTime = getColumnName(m_tierRowTime, m_tierRowTime + rowWidth, false);
 		else
 			m_endTime = getColumnName(m_tierRowTime, endTime, false); //Pass false so we get 0x1 for last bit
 
 		m_queryCallback = csResult;
 		m_singleRowReadSize = singleRowReadSize;
 		m_multiRowReadSize = multiRowReadSize;
+		m_rowReadExecutor = rowReadExecutor;
+		m_rowReadPermits = rowReadPermits;
+		m_speculativeRetry = speculativeRetry;
 
-
+		m_blockWidth = blockWidth;
+		m_queryStartTime = startTime;
+		m_queryEndTime = endTime;
+		if (blockWidth > 0)
+		{
+			long blockStart = Math.max(0L, startTime - m_tierRowTime);
+			m_startBlock = (int) ((blockStart / blockWidth) * blockWidth);
+			m_endBlock = (int) (Math.min(endTime, m_tierRowTime + rowWidth - 1) - m_tierRowTime);
+			m_rawColumns = new HashMap<DataPointsRowKey, RawColumns>();
+		}
 	}
 
 	public void runQuery() throws IOException
@@ -85,8 +136,7 @@ public class QueryRunner
 		msliceQuery.setKeys(m_rowKeys);
 		msliceQuery.setRange(m_startTime, m_endTime, false, m_multiRowReadSize);
 
-		Rows<DataPointsRowKey, Integer, ByteBuffer> rows =
-				msliceQuery.execute().get();
+		Rows<DataPointsRowKey, Integer, ByteBuffer> rows = executeMultiget(msliceQuery);
 
 		List<Row<DataPointsRowKey, Integer, ByteBuffer>> unfinishedRows =
 				new ArrayList<Row<DataPointsRowKey, Integer, ByteBuffer>>();
@@ -101,59 +151,413 @@ public class QueryRunner
 		}
 
 
-		//Iterate through the unfinished rows and get the rest of the data.
-		//todo: use multiple threads to retrieve this data
-		for (Row<DataPointsRowKey, Integer, ByteBuffer> unfinishedRow : unfinishedRows)
+		readUnfinishedRows(unfinishedRows);
+
+		//Read after the raw columns so a block compacted in between is not
+		//missed, the points it shares with the raw columns are skipped
+		if (m_blockWidth > 0)
+			readBlocks();
+
+		ThreadReporter.addDataPoint(QUERY_DATA_POINTS_READ, m_dataPointCount);
+	}
+
+	private Rows<DataPointsRowKey, Integer, ByteBuffer> executeMultiget(
+			final MultigetSliceQuery<DataPointsRowKey, Integer, ByteBuffer> msliceQuery) throws IOException
+	{
+		try
 		{
-			DataPointsRowKey key = unfinishedRow.getKey();
+			return (m_speculativeRetry.execute(new Callable<Rows<DataPointsRowKey, Integer, ByteBuffer>>()
+			{
+				@Override
+				public Rows<DataPointsRowKey, Integer, ByteBuffer> call()
+				{
+					return (msliceQuery.execute().get());
+				}
+			}));
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted reading rows");
+		}
+	}
+
+	/**
+	 Reads the compressed blocks for the rows.  Blocks are paged a multiget
+	 read size at a time.
+	 */
+	private void readBlocks() throws IOException
+	{
+		MultigetSliceQuery<DataPointsRowKey, Integer, ByteBuffer> msliceQuery =
+				HFactory.createMultigetSliceQuery(m_keyspace,
+						ROW_KEY_SERIALIZER,
+						IntegerSerializer.get(), ByteBufferSerializer.get());
 
-			SliceQuery<DataPointsRowKey, Integer, ByteBuffer> sliceQuery =
-					HFactory.createSliceQuery(m_keyspace, ROW_KEY_SERIALIZER,
-					IntegerSerializer.get(), ByteBufferSerializer.get());
+		msliceQuery.setColumnFamily(CF_DATA_POINT_BLOCKS);
+		msliceQuery.setKeys(m_rowKeys);
+		msliceQuery.setRange(m_startBlock, m_endBlock, false, m_multiRowReadSize);
 
-			sliceQuery.setColumnFamily(m_columnFamily);
-			sliceQuery.setKey(key);
+		Rows<DataPointsRowKey, Integer, ByteBuffer> rows = executeMultiget(msliceQuery);
 
-			List<HColumn<Integer, ByteBuffer>> columns = unfinishedRow.getColumnSlice().getColumns();
+		for (Row<DataPointsRowKey, Integer, ByteBuffer> row : rows)
+		{
+			List<HColumn<Integer, ByteBuffer>> columns = row.getColumnSlice().getColumns();
+			writeBlocks(row.getKey(), columns);
 
-			do
+			if (columns.size() == m_multiRowReadSize)
 			{
-				Integer lastTime = columns.get(columns.size() -1).getName();
+				SliceQuery<DataPointsRowKey, Integer, ByteBuffer> sliceQuery =
+						HFactory.createSliceQuery(m_keyspace, ROW_KEY_SERIALIZER,
+								IntegerSerializer.get(), ByteBufferSerializer.get());
+				sliceQuery.setColumnFamily(CF_DATA_POINT_BLOCKS);
+				sliceQuery.setKey(row.getKey());
 
-				sliceQuery.setRange(lastTime+1, m_endTime, false, m_singleRowReadSize);
+				do
+				{
+					int nextBlock = columns.get(columns.size() - 1).getName() + 1;
+					sliceQuery.setRange(nextBlock, m_endBlock, false, m_multiRowReadSize);
+					columns = sliceQuery.execute().get().getColumns();
+					writeBlocks(row.getKey(), columns);
+				} while (columns.size() == m_multiRowReadSize);
+			}
+		}
+	}
 
-				columns = sliceQuery.execute().get().getColumns();
-				writeColumns(key, columns);
-			} while (columns.size() == m_singleRowReadSize);
+	/**
+	 Writes the points of the blocks as one data point set.  Points that were
+	 already returned from a raw column of the row are skipped, these are
+	 columns compacted while the query ran or rewritten since the block was.
+	 */
+	private void writeBlocks(DataPointsRowKey rowKey, List<HColumn<Integer, ByteBuffer>> columns)
+			throws IOException
+	{
+		if (columns.size() != 0)
+		{
+			RawColumns rawColumns = m_rawColumns.get(rowKey);
+			long rowTime = rowKey.getTimestamp();
+
+			synchronized (m_queryCallback)
+			{
+				m_queryCallback.startDataPointSet(rowKey.getTags());
+
+				for (HColumn<Integer, ByteBuffer> column : columns)
+				{
+					DataPointBlock.Reader reader = new DataPointBlock.Reader(
+							m_tierRowTime + column.getName(), column.getValue());
+
+					while (reader.next())
+					{
+						long timestamp = reader.getTimestamp();
+						if (timestamp < m_queryStartTime || timestamp > m_queryEndTime)
+							continue;
+
+						if (rawColumns != null &&
+								rawColumns.contains(getColumnName(rowTime, timestamp, reader.isInteger())))
+							continue;
+
+						m_dataPointCount++;
+
+						if (reader.isInteger())
+							m_queryCallback.addDataPoint(timestamp, reader.getLongValue());
+						else
+							m_queryCallback.addDataPoint(timestamp, reader.getDoubleValue());
+					}
+				}
+			}
 		}
 	}
 
+	/**
+	 Reads the rest of the data for rows that filled up the multiget.  The rows
+	 are paged on the row read executor, as many at a time as there are free
+	 permits (at least one).  Each reader fetches one page ahead of this thread
+	 writing the previous page to the callback.  Rows are written out in order.
+	 */
+	private void readUnfinishedRows(List<Row<DataPointsRowKey, Integer, ByteBuffer>> unfinishedRows)
+			throws IOException
+	{
+		Iterator<Row<DataPointsRowKey, Integer, ByteBuffer>> pending = unfinishedRows.iterator();
+		LinkedList<RowReader> readers = new LinkedList<RowReader>();
+		RowReader current = null;
 
+		try
+		{
+			while (pending.hasNext() || !readers.isEmpty())
+			{
+				//Only block on a permit when we have no readers of our own, otherwise
+				//another runner could be waiting on us to free one up.
+				while (pending.hasNext() && acquireRowReadPermit(readers.isEmpty()))
+				{
+					Row<DataPointsRowKey, Integer, ByteBuffer> row = pending.next();
+					List<HColumn<Integer, ByteBuffer>> columns = row.getColumnSlice().getColumns();
+
+					RowReader reader = new RowReader(row.getKey(),
+							columns.get(columns.size() - 1).getName() + 1);
+					readers.add(reader);
+					reader.start();
+				}
+
+				current = readers.removeFirst();
+				RowPage page;
+				do
+				{
+					page = current.takePage();
+					writeColumns(current.getRowKey(), page.getColumns());
+				} while (!page.isLast());
+
+				current = null;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted reading rows");
+		}
+		finally
+		{
+			//Only does something if we bailed out early
+			if (current != null)
+				current.cancel();
+			for (RowReader reader : readers)
+				reader.cancel();
+		}
+	}
+
+	private boolean acquireRowReadPermit(boolean block) throws InterruptedException
+	{
+		if (block)
+		{
+			m_rowReadPermits.acquire();
+			return (true);
+		}
+		else
+			return (m_rowReadPermits.tryAcquire());
+	}
+
+
+	/**
+	 Writes the columns as one data point set.  Runners for a query can run on
+	 separate threads so the callback is locked for the whole set.
+	 */
 	private void writeColumns(DataPointsRowKey rowKey, List<HColumn<Integer, ByteBuffer>> columns)
 			throws IOException
 	{
 		if (columns.size() != 0)
 		{
 			Map<String, String> tags = rowKey.getTags();
-			m_queryCallback.startDataPointSet(tags);
+			long rowTime = rowKey.getTimestamp();
 
-			for (HColumn<Integer, ByteBuffer> column : columns)
+			if (m_rawColumns != null)
 			{
-				int columnTime = column.getName();
-
-				ByteBuffer value = column.getValue();
-				if (isLongValue(columnTime))
+				RawColumns rawColumns = m_rawColumns.get(rowKey);
+				if (rawColumns == null)
 				{
-					m_queryCallback.addDataPoint(getColumnTimestamp(rowKey.getTimestamp(),
-							columnTime), ValueSerializer.getLongFromByteBuffer(value));
+					rawColumns = new RawColumns();
+					m_rawColumns.put(rowKey, rawColumns);
 				}
-				else
+
+				for (HColumn<Integer, ByteBuffer> column : columns)
+					rawColumns.add(column.getName());
+			}
+
+			synchronized (m_queryCallback)
+			{
+				m_queryCallback.startDataPointSet(tags);
+				m_dataPointCount += columns.size();
+
+				for (HColumn<Integer, ByteBuffer> column : columns)
 				{
-					m_queryCallback.addDataPoint(getColumnTimestamp(rowKey.getTimestamp(),
-							columnTime), ValueSerializer.getDoubleFromByteBuffer(value));
+					int columnTime = column.getName();
+
+					ByteBuffer value = column.getValue();
+					if (isLongValue(columnTime))
+					{
+						m_queryCallback.addDataPoint(getColumnTimestamp(rowTime, columnTime),
+								ValueSerializer.getLongFromByteBuffer(value));
+					}
+					else
+					{
+						m_queryCallback.addDataPoint(getColumnTimestamp(rowTime, columnTime),
+								ValueSerializer.getDoubleFromByteBuffer(value));
+					}
 				}
 			}
 		}
 	}
 
+
+	/**
+	 Column names of a row in the order they are read.  Cassandra compares
+	 the names as unsigned bytes, they are stored with the sign bit flipped so
+	 they stay sorted as ints and can be binary searched.
+	 */
+	private static class RawColumns
+	{
+		private int[] m_names = new int[16];
+		private int m_size = 0;
+
+		public void add(int columnName)
+		{
+			if (m_size == m_names.length)
+				m_names = Arrays.copyOf(m_names, m_size * 2);
+
+			m_names[m_size++] = columnName ^ Integer.MIN_VALUE;
+		}
+
+		public boolean contains(int columnName)
+		{
+			return (Arrays.binarySearch(m_names, 0, m_size, columnName ^ Integer.MIN_VALUE) >= 0);
+		}
+	}
+
+	private static class RowPage
+	{
+		private final List<HColumn<Integer, ByteBuffer>> m_columns;
+		private final boolean m_last;
+		private final Exception m_exception;
+
+		private RowPage(List<HColumn<Integer, ByteBuffer>> columns, boolean last)
+		{
+			m_columns = columns;
+			m_last = last;
+			m_exception = null;
+		}
+
+		private RowPage(Exception exception)
+		{
+			m_columns = null;
+			m_last = true;
+			m_exception = exception;
+		}
+
+		public List<HColumn<Integer, ByteBuffer>> getColumns() throws IOException
+		{
+			if (m_exception instanceof RuntimeException)
+				throw (RuntimeException) m_exception;
+			if (m_exception != null)
+				throw new IOException(m_exception);
+
+			return (m_columns);
+		}
+
+		public boolean isLast()
+		{
+			return (m_last);
+		}
+	}
+
+	/**
+	 Pages through a single row on the row read executor.  The queue only holds
+	 one page so the reader is never more than one page ahead of the consumer.
+	 The row read permit acquired for this reader is released once the last
+	 page has been handed off.
+	 */
+	private class RowReader implements Runnable
+	{
+		private final DataPointsRowKey m_rowKey;
+		private final BlockingQueue<RowPage> m_pages = new ArrayBlockingQueue<RowPage>(1);
+		private int m_startColumn;
+		private volatile boolean m_cancelled = false;
+		private final AtomicBoolean m_permitReleased = new AtomicBoolean(false);
+		private Future<?> m_future;
+
+		public RowReader(DataPointsRowKey rowKey, int startColumn)
+		{
+			m_rowKey = rowKey;
+			m_startColumn = startColumn;
+		}
+
+		public DataPointsRowKey getRowKey()
+		{
+			return (m_rowKey);
+		}
+
+		public void start()
+		{
+			try
+			{
+				m_future = m_rowReadExecutor.submit(this);
+			}
+			catch (RuntimeException e)
+			{
+				releasePermit();
+				throw e;
+			}
+		}
+
+		/**
+		 Called when the reader finishes and when it is canceled as a
+		 canceled reader may never get to run.
+		 */
+		private void releasePermit()
+		{
+			if (m_permitReleased.compareAndSet(false, true))
+				m_rowReadPermits.release();
+		}
+
+		public RowPage takePage() throws InterruptedException
+		{
+			return (m_pages.take());
+		}
+
+		public void cancel()
+		{
+			m_cancelled = true;
+			if (m_future != null)
+				m_future.cancel(true);
+			releasePermit();
+		}
+
+		private boolean putPage(RowPage page) throws InterruptedException
+		{
+			while (!m_cancelled)
+			{
+				if (m_pages.offer(page, 100, TimeUnit.MILLISECONDS))
+					return (true);
+			}
+
+			return (false);
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				SliceQuery<DataPointsRowKey, Integer, ByteBuffer> sliceQuery =
+						HFactory.createSliceQuery(m_keyspace, ROW_KEY_SERIALIZER,
+								IntegerSerializer.get(), ByteBufferSerializer.get());
+
+				sliceQuery.setColumnFamily(m_columnFamily);
+				sliceQuery.setKey(m_rowKey);
+
+				boolean last;
+				do
+				{
+					sliceQuery.setRange(m_startColumn, m_endTime, false, m_singleRowReadSize);
+
+					List<HColumn<Integer, ByteBuffer>> columns = sliceQuery.execute().get().getColumns();
+					last = (columns.size() != m_singleRowReadSize);
+					if (!last)
+						m_startColumn = columns.get(columns.size() - 1).getName() + 1;
+
+					if (!putPage(new RowPage(columns, last)))
+						return;
+				} while (!last);
+			}
+			catch (InterruptedException ignored) {}
+			catch (Exception e)
+			{
+				try
+				{
+					putPage(new RowPage(e));
+				}
+				catch (InterruptedException ignored) {}
+			}
+			finally
+			{
+				releasePermit();
+			}
+		}
+	}
 }
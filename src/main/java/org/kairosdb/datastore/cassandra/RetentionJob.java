@@ -16,8 +16,8 @@
 package org.kairosdb.datastore.cassandra;
 
 import com.google.inject.Inject;
-import org.kairosdb.core.datastore.Datastore;
-import org.kairosdb.core.datastore.KairosDatastore;
+import com.google.inject.name.Named;
+import org.kairosdb.core.exception.DatastoreException;
 import org.kairosdb.core.scheduler.KairosDBJob;
 import org.quartz.CronScheduleBuilder;
 import org.quartz.JobExecutionContext;
@@ -26,20 +26,22 @@ import org.quartz.Trigger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.inject.Named;
-
 import static org.quartz.TriggerBuilder.newTrigger;
 
-public class IncreaseMaxBufferSizesJob implements KairosDBJob
+/**
+ Deletes the rows that are entirely older than the retention of their
+ metric.  Does nothing unless retention policies are configured.
+ */
+public class RetentionJob implements KairosDBJob
 {
-	public static final Logger logger = LoggerFactory.getLogger(IncreaseMaxBufferSizesJob.class);
-	public static final String SCHEDULE = "kairosdb.datastore.cassandra.increase_buffer_size_schedule";
+	public static final Logger logger = LoggerFactory.getLogger(RetentionJob.class);
+	public static final String SCHEDULE = "kairosdb.datastore.cassandra.retention_schedule";
 
 	private final CassandraDatastore datastore;
 	private String schedule;
 
 	@Inject
-	public IncreaseMaxBufferSizesJob(@Named(SCHEDULE) String schedule, CassandraDatastore datastore)
+	public RetentionJob(@Named(SCHEDULE) String schedule, CassandraDatastore datastore)
 	{
 		this.datastore = datastore;
 		this.schedule = schedule;
@@ -49,7 +51,14 @@ public class IncreaseMaxBufferSizesJob implements KairosDBJob
 	public void execute(JobExecutionContext jobExecutionContext) throws JobExecutionException
 	{
 		logger.debug("Executing job...");
-		datastore.increaseMaxBufferSizes();
+		try
+		{
+			datastore.deleteExpiredRows();
+		}
+		catch (DatastoreException e)
+		{
+			logger.error("Deleting expired rows failed", e);
+		}
 		logger.debug("Job Completed");
 	}
 
@@ -61,4 +70,4 @@ public class IncreaseMaxBufferSizesJob implements KairosDBJob
 				.withSchedule(CronScheduleBuilder.cronSchedule(schedule))
 				.build();
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.kairosdb.util.Preconditions.checkNotNullOrEmpty;
+
+/**
+ How long the data points of the metrics matching the pattern are kept.
+ */
+public class RetentionPolicy
+{
+	private final Pattern m_metricPattern;
+	private final long m_ttl;
+
+	/**
+	 @param ttl Seconds the data points are kept after their timestamp
+	 */
+	public RetentionPolicy(String metricPattern, long ttl)
+	{
+		m_metricPattern = Pattern.compile(checkNotNullOrEmpty(metricPattern));
+		m_ttl = ttl;
+
+		checkArgument(ttl > 0, "Retention ttl must be greater than zero");
+	}
+
+	public boolean matches(String metricName)
+	{
+		return (m_metricPattern.matcher(metricName).matches());
+	}
+
+	public long getTtl()
+	{
+		return (m_ttl);
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.core.scheduler.KairosDBJob;
+import org.quartz.CronScheduleBuilder;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.Trigger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.quartz.TriggerBuilder.newTrigger;
+
+/**
+ Rolls up the periods that have ended since the last run, streaming rollups
+ are written out first.  Does nothing unless rollups are configured.
+ */
+public class RollupJob implements KairosDBJob
+{
+	public static final Logger logger = LoggerFactory.getLogger(RollupJob.class);
+	public static final String SCHEDULE = "kairosdb.datastore.cassandra.rollup_schedule";
+
+	private final CassandraDatastore datastore;
+	private final StreamingRollups streamingRollups;
+	private String schedule;
+
+	@Inject
+	public RollupJob(@Named(SCHEDULE) String schedule, CassandraDatastore datastore,
+			StreamingRollups streamingRollups)
+	{
+		this.datastore = datastore;
+		this.streamingRollups = streamingRollups;
+		this.schedule = schedule;
+	}
+
+	@Override
+	public void execute(JobExecutionContext jobExecutionContext) throws JobExecutionException
+	{
+		logger.debug("Executing job...");
+		try
+		{
+			long now = System.currentTimeMillis();
+			streamingRollups.flush(now);
+			datastore.updateRollups(now);
+		}
+		catch (DatastoreException e)
+		{
+			logger.error("Rollup update failed", e);
+		}
+		logger.debug("Job Completed");
+	}
+
+	@Override
+	public Trigger getTrigger()
+	{
+		return newTrigger()
+				.withIdentity(this.getClass().getSimpleName())
+				.withSchedule(CronScheduleBuilder.cronSchedule(schedule))
+				.build();
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import org.kairosdb.core.datastore.Rollup;
+
+import java.nio.ByteBuffer;
+
+/**
+ Aggregates of one series over a rollup period.  Longs are kept as longs
+ until a double shows up.
+ */
+class RollupPeriod
+{
+	private long m_firstTimestamp = Long.MAX_VALUE;
+	private boolean m_isInteger = true;
+	private long m_longSum = 0L;
+	private long m_longMin = Long.MAX_VALUE;
+	private long m_longMax = Long.MIN_VALUE;
+	private double m_sum = 0.0;
+	private double m_min = Double.POSITIVE_INFINITY;
+	private double m_max = Double.NEGATIVE_INFINITY;
+	private long m_count = 0L;
+
+	public void add(long timestamp, long value)
+	{
+		m_firstTimestamp = Math.min(m_firstTimestamp, timestamp);
+		m_longSum += value;
+		m_longMin = Math.min(m_longMin, value);
+		m_longMax = Math.max(m_longMax, value);
+		addDouble(value);
+	}
+
+	public void add(long timestamp, double value)
+	{
+		m_firstTimestamp = Math.min(m_firstTimestamp, timestamp);
+		m_isInteger = false;
+		addDouble(value);
+	}
+
+	private void addDouble(double value)
+	{
+		m_count++;
+		m_sum += value;
+		m_min = Math.min(m_min, value);
+		m_max = Math.max(m_max, value);
+	}
+
+	public long getFirstTimestamp()
+	{
+		return (m_firstTimestamp);
+	}
+
+	public boolean isInteger()
+	{
+		return (m_isInteger);
+	}
+
+	/**
+	 @return true if the value of the aggregator is a long, counts always are
+	 */
+	public boolean isInteger(String aggregator)
+	{
+		return (m_isInteger || aggregator.equals(Rollup.COUNT));
+	}
+
+	public ByteBuffer getValue(String aggregator, ValueSerializer.DoubleEncoding encoding)
+	{
+		if (aggregator.equals(Rollup.COUNT))
+			return (ValueSerializer.toByteBuffer(m_count));
+
+		if (m_isInteger)
+		{
+			if (aggregator.equals(Rollup.MIN))
+				return (ValueSerializer.toByteBuffer(m_longMin));
+			else if (aggregator.equals(Rollup.MAX))
+				return (ValueSerializer.toByteBuffer(m_longMax));
+			else
+				return (ValueSerializer.toByteBuffer(m_longSum));
+		}
+		else
+		{
+			if (aggregator.equals(Rollup.MIN))
+				return (ValueSerializer.toByteBuffer(m_min, encoding));
+			else if (aggregator.equals(Rollup.MAX))
+				return (ValueSerializer.toByteBuffer(m_max, encoding));
+			else
+				return (ValueSerializer.toByteBuffer(m_sum, encoding));
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import com.google.common.collect.SetMultimap;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.kairosdb.datastore.cassandra.DataPointsRowKeySerializer.UTF8;
+
+/**
+ Matches the tag filters of a query against serialized row keys so only the
+ keys that pass have to be decoded.  The tag string of a key is a sorted list
+ of name=value: pairs, '=' and ':' never show up inside a multi byte UTF-8
+ character so the pairs are found by scanning the bytes.
+ */
+public class RowKeyTagFilter
+{
+	private final ByteBuffer[] m_tagNames;
+	private final Set<ByteBuffer>[] m_tagValues;
+
+	@SuppressWarnings("unchecked")
+	public RowKeyTagFilter(SetMultimap<String, String> filterTags)
+	{
+		m_tagNames = new ByteBuffer[filterTags.keySet().size()];
+		m_tagValues = new Set[m_tagNames.length];
+
+		int index = 0;
+		for (String tagName : filterTags.keySet())
+		{
+			m_tagNames[index] = ByteBuffer.wrap(tagName.getBytes(UTF8));
+
+			Set<ByteBuffer> values = new HashSet<ByteBuffer>();
+			for (String value : filterTags.get(tagName))
+				values.add(ByteBuffer.wrap(value.getBytes(UTF8)));
+			m_tagValues[index] = values;
+
+			index++;
+		}
+	}
+
+	/**
+	 @param serializedKey Row key as written by DataPointsRowKeySerializer,
+	 the position of the buffer is not changed
+	 */
+	public boolean matches(ByteBuffer serializedKey)
+	{
+		if (m_tagNames.length == 0)
+			return (true);
+
+		int position = serializedKey.position();
+		int limit = serializedKey.limit();
+
+		//Skip the metric name and timestamp
+		while (serializedKey.get(position) != 0x0)
+			position++;
+		position += 9;
+
+		int matched = 0;
+		ByteBuffer name = serializedKey.duplicate();
+		ByteBuffer value = serializedKey.duplicate();
+
+		while (position < limit)
+		{
+			int nameEnd = indexOf(serializedKey, (byte) '=', position, limit);
+			int valueEnd = indexOf(serializedKey, (byte) ':', nameEnd + 1, limit);
+			if (valueEnd >= limit)
+				break;
+
+			name.limit(nameEnd).position(position);
+			for (int I = 0; I < m_tagNames.length; I++)
+			{
+				if (m_tagNames[I].equals(name))
+				{
+					value.limit(valueEnd).position(nameEnd + 1);
+					if (!m_tagValues[I].contains(value))
+						return (false);
+
+					matched++;
+					break;
+				}
+			}
+
+			position = valueEnd + 1;
+		}
+
+		//Each tag shows up at most once in a key
+		return (matched == m_tagNames.length);
+	}
+
+	private static int indexOf(ByteBuffer buffer, byte b, int position, int limit)
+	{
+		while (position < limit && buffer.get(position) != b)
+			position++;
+
+		return (position);
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.kairosdb.util.Preconditions.checkNotNullOrEmpty;
+
+/**
+ Width of the rows new metrics matching the pattern are written with.
+ Narrow rows suit metrics written every second or faster, they keep rows
+ small enough to compact and page through quickly.
+ */
+public class RowWidthPolicy
+{
+	private final Pattern m_metricPattern;
+	private final long m_rowWidth;
+
+	/**
+	 @param rowWidth Row width in milliseconds, it has to divide the default
+	 row width of three weeks
+	 */
+	public RowWidthPolicy(String metricPattern, long rowWidth)
+	{
+		m_metricPattern = Pattern.compile(checkNotNullOrEmpty(metricPattern));
+		m_rowWidth = rowWidth;
+
+		checkArgument(rowWidth > 0 && CassandraDatastore.ROW_WIDTH % rowWidth == 0,
+				"Row width must divide " + CassandraDatastore.ROW_WIDTH + " milliseconds");
+	}
+
+	public boolean matches(String metricName)
+	{
+		return (m_metricPattern.matcher(metricName).matches());
+	}
+
+	public long getRowWidth()
+	{
+		return (m_rowWidth);
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ Runs a read a second time when the first attempt takes longer than a
+ percentile of the recent read latencies, whichever attempt finishes first
+ wins.  The second attempt goes through the load balancing policy again so
+ it is usually sent to another host.
+
+ Latencies are sampled from the last SAMPLE_SIZE reads, no retries are made
+ until UPDATE_INTERVAL reads have been seen.
+ */
+public class SpeculativeRetry
+{
+	public static final int SAMPLE_SIZE = 1024;
+
+	/**
+	 The retry delay is recalculated after this many reads.
+	 */
+	public static final int UPDATE_INTERVAL = 128;
+
+	private final ExecutorService m_executor;
+	private final double m_percentile;
+	private final long m_minDelay;
+
+	private final long[] m_samples = new long[SAMPLE_SIZE];
+	private long m_sampleCount = 0;
+	private volatile long m_delay = Long.MAX_VALUE;
+
+	private final AtomicLong m_retryCount = new AtomicLong();
+
+	/**
+	 @param executor Executor the attempts run on
+	 @param percentile Latency percentile after which the read is retried,
+	 0 turns retries off and the reads are run on the calling thread
+	 @param minDelay Retries are never made sooner than this many milliseconds
+	 */
+	public SpeculativeRetry(ExecutorService executor, double percentile, long minDelay)
+	{
+		m_executor = executor;
+		m_percentile = percentile;
+		m_minDelay = minDelay;
+	}
+
+	public boolean isEnabled()
+	{
+		return (m_percentile > 0);
+	}
+
+	/**
+	 @return number of retries made since the last call
+	 */
+	public long getAndClearRetryCount()
+	{
+		return (m_retryCount.getAndSet(0));
+	}
+
+	public <T> T execute(Callable<T> read) throws InterruptedException
+	{
+		if (!isEnabled())
+			return (call(read));
+
+		CompletionService<T> completionService = new ExecutorCompletionService<T>(m_executor);
+		long start = System.nanoTime();
+		Future<T> first = completionService.submit(read);
+		Future<T> second = null;
+
+		try
+		{
+			Future<T> done = completionService.poll(m_delay, TimeUnit.MILLISECONDS);
+			if (done == null)
+			{
+				m_retryCount.incrementAndGet();
+				second = completionService.submit(read);
+				done = completionService.take();
+			}
+
+			try
+			{
+				T ret = done.get();
+
+				//Retried reads count too so the delay goes up when everything slows down
+				addSample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+				return (ret);
+			}
+			catch (ExecutionException e)
+			{
+				//Give the other attempt a chance before failing
+				if (second == null)
+					throw unwrap(e);
+
+				try
+				{
+					return (completionService.take().get());
+				}
+				catch (ExecutionException e2)
+				{
+					throw unwrap(e);
+				}
+			}
+		}
+		finally
+		{
+			first.cancel(true);
+			if (second != null)
+				second.cancel(true);
+		}
+	}
+
+	private static <T> T call(Callable<T> read)
+	{
+		try
+		{
+			return (read.call());
+		}
+		catch (RuntimeException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static RuntimeException unwrap(ExecutionException e)
+	{
+		Throwable cause = e.getCause();
+		if (cause instanceof RuntimeException)
+			return ((RuntimeException) cause);
+		if (cause instanceof Error)
+			throw (Error) cause;
+
+		return (new RuntimeException(cause));
+	}
+
+	private void addSample(long latency)
+	{
+		long[] samples = null;
+		int count = 0;
+
+		synchronized (m_samples)
+		{
+			m_samples[(int) (m_sampleCount % SAMPLE_SIZE)] = latency;
+			m_sampleCount++;
+
+			if (m_sampleCount % UPDATE_INTERVAL == 0)
+			{
+				count = (int) Math.min(m_sampleCount, SAMPLE_SIZE);
+				samples = Arrays.copyOf(m_samples, count);
+			}
+		}
+
+		//Sort outside the lock, an update racing another only loses a few samples
+		if (samples != null)
+		{
+			Arrays.sort(samples);
+			int index = (int) Math.min(count - 1, Math.ceil(count * m_percentile / 100.0) - 1);
+			m_delay = Math.max(m_minDelay, samples[Math.max(0, index)]);
+		}
+	}
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointListener;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.datastore.Rollup;
+import org.kairosdb.core.reporting.KairosMetricReporter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ Aggregates the periods of streaming rollups as data points are written so
+ the rollup job does not have to read them back.  Periods are written out by
+ flush once they have been over for the rollup delay.
+
+ Points for a period that has already been written, and periods dropped
+ because there were more than the max open buckets, are marked dirty in the
+ datastore and rolled up from the data points instead.
+ */
+public class StreamingRollups implements DataPointListener, KairosMetricReporter
+{
+	public static final String MAX_OPEN_BUCKETS_PROPERTY = "kairosdb.datastore.cassandra.rollup_max_open_buckets";
+
+	private final CassandraDatastore m_datastore;
+	private final List<Rollup> m_rollups = new ArrayList<Rollup>();
+	private final long m_rollupDelay;
+	private final int m_maxOpenBuckets;
+	private final String m_hostname;
+
+	private final ConcurrentMap<PeriodKey, OpenPeriod> m_openPeriods = new ConcurrentHashMap<PeriodKey, OpenPeriod>();
+	private final AtomicInteger m_openBucketCount = new AtomicInteger();
+
+	//Periods of each rollup starting before this time have been written out
+	private final Map<Rollup, Long> m_flushedTimes = new ConcurrentHashMap<Rollup, Long>();
+
+	private final AtomicLong m_latePointCount = new AtomicLong();
+	private final AtomicLong m_droppedPeriodCount = new AtomicLong();
+
+	@Inject
+	public StreamingRollups(CassandraDatastore datastore,
+			@Named(CassandraDatastore.ROLLUP_DELAY_PROPERTY) long rollupDelay,
+			@Named(MAX_OPEN_BUCKETS_PROPERTY) int maxOpenBuckets,
+			@Named("HOSTNAME") String hostname)
+	{
+		m_datastore = datastore;
+		m_rollupDelay = rollupDelay;
+		m_maxOpenBuckets = maxOpenBuckets;
+		m_hostname = hostname;
+
+		//Periods that started before now are rolled up from the data points
+		long now = System.currentTimeMillis();
+		for (Rollup rollup : datastore.getRollups())
+		{
+			if (rollup.isStreaming())
+			{
+				m_rollups.add(rollup);
+				m_flushedTimes.put(rollup, alignDown(now + rollup.getSamplingMillis() - 1,
+						rollup.getSamplingMillis()));
+			}
+		}
+	}
+
+	private static long alignDown(long time, long sampling)
+	{
+		return (time - (time % sampling));
+	}
+
+	@Override
+	public void dataPoints(DataPointSet dps)
+	{
+		if (m_rollups.isEmpty())
+			return;
+
+		String metricName = dps.getName();
+		SortedMap<String, String> tags = null;
+
+		for (Rollup rollup : m_rollups)
+		{
+			if (!rollup.matches(metricName))
+				continue;
+
+			if (tags == null)
+				tags = new TreeMap<String, String>(dps.getTags());
+
+			long sampling = rollup.getSamplingMillis();
+			long flushedTime = m_flushedTimes.get(rollup);
+			PeriodKey key = null;
+			OpenPeriod openPeriod = null;
+
+			for (DataPoint dataPoint : dps.getDataPoints())
+			{
+				long periodStart = alignDown(dataPoint.getTimestamp(), sampling);
+				if (periodStart < flushedTime)
+				{
+					m_latePointCount.incrementAndGet();
+					m_datastore.markRollupPeriodDirty(rollup, metricName, periodStart);
+					continue;
+				}
+
+				if (key == null || key.m_periodStart != periodStart)
+				{
+					key = new PeriodKey(rollup, metricName, periodStart);
+					openPeriod = getOpenPeriod(key);
+				}
+
+				if (!openPeriod.add(tags, dataPoint))
+				{
+					//Written out or dropped while we were adding to it
+					m_datastore.markRollupPeriodDirty(rollup, metricName, periodStart);
+					key = null;
+				}
+			}
+		}
+	}
+
+	private OpenPeriod getOpenPeriod(PeriodKey key)
+	{
+		OpenPeriod openPeriod = m_openPeriods.get(key);
+		if (openPeriod == null)
+		{
+			openPeriod = new OpenPeriod(key);
+			OpenPeriod mapValue = m_openPeriods.putIfAbsent(key, openPeriod);
+			openPeriod = (mapValue != null ? mapValue : openPeriod);
+		}
+
+		return (openPeriod);
+	}
+
+	/**
+	 Writes out the periods that have been over for the rollup delay.
+	 */
+	public void flush(long now)
+	{
+		if (m_rollups.isEmpty())
+			return;
+
+		Map<Rollup, Long> previousFlushedTimes = new HashMap<Rollup, Long>();
+		for (Rollup rollup : m_rollups)
+		{
+			long previousFlushedTime = m_flushedTimes.get(rollup);
+			previousFlushedTimes.put(rollup, previousFlushedTime);
+			m_flushedTimes.put(rollup, Math.max(previousFlushedTime,
+					alignDown(now - m_rollupDelay, rollup.getSamplingMillis())));
+		}
+
+		Iterator<OpenPeriod> it = m_openPeriods.values().iterator();
+		while (it.hasNext())
+		{
+			OpenPeriod openPeriod = it.next();
+			PeriodKey key = openPeriod.m_key;
+			if (key.m_periodStart >= m_flushedTimes.get(key.m_rollup))
+				continue;
+
+			it.remove();
+			Map<SortedMap<String, String>, RollupPeriod> buckets = openPeriod.close();
+
+			//Opened by a writer that missed the last flush, part of it may already be written
+			if (key.m_periodStart < previousFlushedTimes.get(key.m_rollup))
+			{
+				m_datastore.markRollupPeriodDirty(key.m_rollup, key.m_metricName, key.m_periodStart);
+				continue;
+			}
+
+			for (Map.Entry<SortedMap<String, String>, RollupPeriod> entry : buckets.entrySet())
+			{
+				m_datastore.writeRollupPeriod(key.m_rollup, key.m_metricName, entry.getKey(),
+						key.m_periodStart, entry.getValue(), now);
+			}
+		}
+	}
+
+	@Override
+	public List<DataPointSet> getMetrics(long now)
+	{
+		List<DataPointSet> ret = new ArrayList<DataPointSet>();
+
+		if (m_rollups.isEmpty())
+			return (ret);
+
+		ret.add(newMetric("kairosdb.datastore.rollup.open_buckets", now, m_openBucketCount.get()));
+		ret.add(newMetric("kairosdb.datastore.rollup.late_points", now, m_latePointCount.getAndSet(0)));
+		ret.add(newMetric("kairosdb.datastore.rollup.dropped_periods", now, m_droppedPeriodCount.getAndSet(0)));
+
+		return (ret);
+	}
+
+	private DataPointSet newMetric(String metricName, long now, long value)
+	{
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", m_hostname);
+		dps.addDataPoint(new DataPoint(now, value));
+
+		return (dps);
+	}
+
+	private static class PeriodKey
+	{
+		private final Rollup m_rollup;
+		private final String m_metricName;
+		private final long m_periodStart;
+
+		public PeriodKey(Rollup rollup, String metricName, long periodStart)
+		{
+			m_rollup = rollup;
+			m_metricName = metricName;
+			m_periodStart = periodStart;
+		}
+
+		@SuppressWarnings("RedundantIfStatement")
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			PeriodKey that = (PeriodKey) o;
+
+			if (m_periodStart != that.m_periodStart) return false;
+			if (m_rollup != that.m_rollup) return false;
+			if (!m_metricName.equals(that.m_metricName)) return false;
+
+			return true;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int result = m_rollup.getName().hashCode();
+			result = 31 * result + m_metricName.hashCode();
+			result = 31 * result + (int) (m_periodStart ^ (m_periodStart >>> 32));
+			return result;
+		}
+	}
+
+	/**
+	 The series of one metric in one period of a rollup.
+	 */
+	private class OpenPeriod
+	{
+		private final PeriodKey m_key;
+		private Map<SortedMap<String, String>, RollupPeriod> m_buckets =
+				new HashMap<SortedMap<String, String>, RollupPeriod>();
+		private boolean m_closed = false;
+
+		public OpenPeriod(PeriodKey key)
+		{
+			m_key = key;
+		}
+
+		/**
+		 @return false if the period has been closed
+		 */
+		public synchronized boolean add(SortedMap<String, String> tags, DataPoint dataPoint)
+		{
+			if (m_closed)
+				return (false);
+
+			RollupPeriod bucket = m_buckets.get(tags);
+			if (bucket == null)
+			{
+				if (m_openBucketCount.incrementAndGet() > m_maxOpenBuckets)
+				{
+					//Drop the whole period, the rollup job reads it back
+					m_openBucketCount.decrementAndGet();
+					m_openPeriods.remove(m_key, this);
+					close();
+					m_droppedPeriodCount.incrementAndGet();
+					return (false);
+				}
+
+				bucket = new RollupPeriod();
+				m_buckets.put(tags, bucket);
+			}
+
+			if (dataPoint.isInteger())
+				bucket.add(dataPoint.getTimestamp(), dataPoint.getLongValue());
+			else
+				bucket.add(dataPoint.getTimestamp(), dataPoint.getDoubleValue());
+
+			return (true);
+		}
+
+		/**
+		 Stops the period taking more data points.
+		 @return the series buckets of the period
+		 */
+		public synchronized Map<SortedMap<String, String>, RollupPeriod> close()
+		{
+			Map<SortedMap<String, String>, RollupPeriod> ret = m_buckets;
+			if (!m_closed)
+			{
+				m_closed = true;
+				m_openBucketCount.addAndGet(-ret.size());
+				m_buckets = new HashMap<SortedMap<String, String>, RollupPeriod>();
+			}
+
+			return (ret);
+		}
+	}
+}
@@ -13,48 +13,100 @@
  *    See the License for the specific language governing permissions and
  *    limitations under the License.
  */
-
 package org.kairosdb.datastore.cassandra;
 
+import org.kairosdb.core.DataPoint;
+
 import java.nio.ByteBuffer;
+import java.util.List;
 
 public class ValueSerializer
 {
 	public static final byte FLOAT_VALUE = 0x1;
 	public static final byte DOUBLE_VALUE = 0x2;
+	public static final byte INTEGRAL_VALUE = 0x3;
+
+	public static final int FLOAT_SIZE = 5;
+	public static final int DOUBLE_SIZE = 9;
+
+	//Whole doubles below this are exact as longs
+	private static final double MAX_INTEGRAL = 0x1p63;
+
+	public enum DoubleEncoding
+	{
+		/** Doubles are stored as floats, precision past a float is lost. */
+		FLOAT,
+		/** Doubles are stored in full. */
+		DOUBLE,
+		/**
+		 The smallest lossless form of each value: whole numbers as zigzag
+		 encoded longs, floats when the value fits one exactly and full
+		 doubles otherwise.
+		 */
+		COMPACT
+	}
 
 	public static ByteBuffer toByteBuffer(long value)
 	{
-		ByteBuffer buffer = ByteBuffer.allocate(8);
-		boolean writeRest = false;
+		byte[] buffer = new byte[8];
+		int length = writeLong(value, buffer, 0);
+
+		return (ByteBuffer.wrap(buffer, 0, length));
+	}
+
+	/**
+	 @return Number of bytes writeLong uses for the value.  Leading zero bytes
+	 are not written.
+	 */
+	public static int getLongSize(long value)
+	{
+		return ((64 - Long.numberOfLeadingZeros(value) + 7) / 8);
+	}
 
-		if (value != 0L)  //Short circuit for zero values
+	/**
+	 Writes the value into dest at offset.
+	 @return Number of bytes written
+	 */
+	public static int writeLong(long value, byte[] dest, int offset)
+	{
+		int length = getLongSize(value);
+
+		for (int I = length - 1; I >= 0; I--)
 		{
-			for (int I = 1; I <= 8; I++)
-			{
-				byte b = (byte)((value >>> (64 - (8 * I))) & 0xFF);
-				if (writeRest || b != 0)
-				{
-					buffer.put(b);
-					writeRest = true;
-				}
-			}
+			dest[offset + I] = (byte)value;
+			value >>>= 8;
 		}
 
-		buffer.flip();
-
-		return (buffer);
+		return (length);
 	}
 
 	public static long getLongFromByteBuffer(ByteBuffer byteBuffer)
 	{
 		long ret = 0L;
 
-		while (byteBuffer.hasRemaining())
+		if (byteBuffer.remaining() == 8)
+			return (byteBuffer.getLong());
+
+		if (byteBuffer.hasArray())
 		{
-			ret <<= 8;
-			byte b = byteBuffer.get();
-			ret |= (b & 0xFF);
+			//Read straight from the array rather than a byte at a time
+			byte[] array = byteBuffer.array();
+			int start = byteBuffer.arrayOffset() + byteBuffer.position();
+			int end = byteBuffer.arrayOffset() + byteBuffer.limit();
+
+			for (int I = start; I < end; I++)
+				ret = (ret << 8) | (array[I] & 0xFF);
+
+			byteBuffer.position(byteBuffer.limit());
+		}
+		else
+		{
+			while (byteBuffer.hasRemaining())
+			{
+				ret <<= 8;
+				byte b = byteBuffer.get();
+				ret |= (b & 0xFF);
+			}
 		}
 
 		return (ret);
@@ -63,16 +115,114 @@ public class ValueSerializer
 
 	public static ByteBuffer toByteBuffer(float value)
 	{
-		ByteBuffer buffer = ByteBuffer.allocate(5);
+		byte[] buffer = new byte[FLOAT_SIZE];
+		writeFloat(value, buffer, 0);
+
+		return (ByteBuffer.wrap(buffer));
+	}
+
+	/**
+	 Writes the flag and value into dest at offset.
+	 @return Number of bytes written
+	 */
+	public static int writeFloat(float value, byte[] dest, int offset)
+	{
+		int bits = Float.floatToIntBits(value);
+
+		dest[offset] = FLOAT_VALUE;
+		dest[offset + 1] = (byte)(bits >>> 24);
+		dest[offset + 2] = (byte)(bits >>> 16);
+		dest[offset + 3] = (byte)(bits >>> 8);
+		dest[offset + 4] = (byte)bits;
+
+		return (FLOAT_SIZE);
+	}
+
+
+	public static ByteBuffer toByteBuffer(double value, DoubleEncoding encoding)
+	{
+		byte[] buffer = new byte[DOUBLE_SIZE];
+		int length = writeDouble(value, encoding, buffer, 0);
+
+		return (ByteBuffer.wrap(buffer, 0, length));
+	}
+
+	/**
+	 @return Number of bytes writeDouble uses for the value
+	 */
+	public static int getDoubleSize(double value, DoubleEncoding encoding)
+	{
+		switch (encoding)
+		{
+			case FLOAT:
+				return (FLOAT_SIZE);
+			case DOUBLE:
+				return (DOUBLE_SIZE);
+		}
+
+		int size = isFloat(value) ? FLOAT_SIZE : DOUBLE_SIZE;
+		if (isIntegral(value))
+			size = Math.min(size, 1 + getLongSize(zigzag((long) value)));
+
+		return (size);
+	}
+
+	/**
+	 Writes the flag and value into dest at offset.
+	 @return Number of bytes written
+	 */
+	public static int writeDouble(double value, DoubleEncoding encoding, byte[] dest, int offset)
+	{
+		int size = getDoubleSize(value, encoding);
+
+		if (encoding == DoubleEncoding.FLOAT || (size == FLOAT_SIZE && isFloat(value)))
+			return (writeFloat((float) value, dest, offset));
+
+		if (size == DOUBLE_SIZE)
+		{
+			long bits = Double.doubleToRawLongBits(value);
 
-		buffer.put(FLOAT_VALUE);
-		buffer.putFloat(value);
+			dest[offset] = DOUBLE_VALUE;
+			for (int I = 8; I > 0; I--)
+			{
+				dest[offset + I] = (byte)bits;
+				bits >>>= 8;
+			}
 
-		buffer.flip();
+			return (DOUBLE_SIZE);
+		}
+
+		dest[offset] = INTEGRAL_VALUE;
+		return (1 + writeLong(zigzag((long) value), dest, offset + 1));
+	}
 
-		return (buffer);
+	private static boolean isFloat(double value)
+	{
+		return ((double) (float) value == value || Double.isNaN(value));
 	}
 
+	/**
+	 Negative zero is left out, it would come back as zero.
+	 */
+	private static boolean isIntegral(double value)
+	{
+		return (Math.rint(value) == value && Math.abs(value) < MAX_INTEGRAL &&
+				Double.doubleToRawLongBits(value) != Long.MIN_VALUE);
+	}
+
+	/**
+	 Moves the sign to the low bit so small negative numbers have leading
+	 zero bytes too.
+	 */
+	private static long zigzag(long value)
+	{
+		return ((value << 1) ^ (value >> 63));
+	}
+
+	private static long unzigzag(long value)
+	{
+		return ((value >>> 1) ^ -(value & 1));
+	}
 
 	public static double getDoubleFromByteBuffer(ByteBuffer byteBuffer)
 	{
@@ -81,9 +231,57 @@ public class ValueSerializer
 
 		if (flag == FLOAT_VALUE)
 			ret = byteBuffer.getFloat();
+		else if (flag == INTEGRAL_VALUE)
+			ret = unzigzag(getLongFromByteBuffer(byteBuffer));
 		else
 			ret = byteBuffer.getDouble();
 
 		return (ret);
 	}
+
+	/**
+	 Encodes the values of all the data points into one array.  The returned
+	 buffers are views of that array, one per data point in the same order.
+	 Each buffer starts at its own offset within the array, use position and
+	 remaining rather than the whole backing array.  Doubles are stored as
+	 floats.
+	 */
+	public static ByteBuffer[] toByteBuffers(List<DataPoint> dataPoints)
+	{
+		return (toByteBuffers(dataPoints, DoubleEncoding.FLOAT));
+	}
+
+	/**
+	 Same as toByteBuffers(List) with doubles stored using the encoding.
+	 */
+	public static ByteBuffer[] toByteBuffers(List<DataPoint> dataPoints, DoubleEncoding encoding)
+	{
+		int size = 0;
+		for (DataPoint dataPoint : dataPoints)
+		{
+			if (dataPoint.isInteger())
+				size += getLongSize(dataPoint.getLongValue());
+			else
+				size += getDoubleSize(dataPoint.getDoubleValue(), encoding);
+		}
+
+		byte[] slab = new byte[size];
+		ByteBuffer[] ret = new ByteBuffer[dataPoints.size()];
+		int offset = 0;
+		int index = 0;
+
+		for (DataPoint dataPoint : dataPoints)
+		{
+			int length;
+			if (dataPoint.isInteger())
+				length = writeLong(dataPoint.getLongValue(), slab, offset);
+			else
+				length = writeDouble(dataPoint.getDoubleValue(), encoding, slab, offset);
+
+			ret[index++] = ByteBuffer.wrap(slab, offset, length);
+			offset += length;
+		}
+
+		return (ret);
+	}
 }
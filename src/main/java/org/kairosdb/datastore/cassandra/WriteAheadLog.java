@@ -0,0 +1,562 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.exception.DatastoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ Append only log of the data point sets written to the datastore.  Records
+ are written to memory mapped segment files, each record is the length of
+ the payload, a CRC32 of the payload and the payload.
+
+ Writers append a data point set, add it to the write buffers and then
+ release the segment.  When a segment fills up or has been open for the roll
+ interval it is sealed and once all of its writers have released it a
+ checkpoint is taken from the write buffers.  Closing the log seals the
+ current segment as well so a clean shutdown leaves nothing to replay.
+ The segment file is deleted after the checkpoint reports that everything
+ written to the buffers before it was taken has been flushed to Cassandra.
+ Segments left from a previous run are replayed on startup.
+ */
+public class WriteAheadLog implements Runnable
+{
+	public static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+	public static final String SEGMENT_PREFIX = "segment-";
+	public static final String SEGMENT_SUFFIX = ".wal";
+
+	private static final int RECORD_HEADER_SIZE = 8; //length + crc
+	private static final byte LONG_TYPE = 0x0;
+	private static final byte DOUBLE_TYPE = 0x1;
+
+	public enum SyncPolicy
+	{
+		/** Let the operating system write out the pages. */
+		NONE,
+		/** Force the current segment to disk every sync interval. */
+		PERIODIC,
+		/** Force the segment to disk after every append. */
+		ALWAYS
+	}
+
+	/**
+	 Taken from the write buffers once everything in a sealed segment has
+	 been added to them.
+	 */
+	public interface FlushCheckpoint
+	{
+		/**
+		 @return true once everything added to the write buffers before this
+		 checkpoint was taken has been written to Cassandra.
+		 */
+		public boolean isFlushed();
+	}
+
+	public interface CheckpointFactory
+	{
+		public FlushCheckpoint createCheckpoint();
+	}
+
+	public interface ReplayHandler
+	{
+		public void replay(DataPointSet dps) throws DatastoreException;
+	}
+
+	private final Object m_lock = new Object();
+	private final File m_directory;
+	private final int m_segmentSize;
+	private final SyncPolicy m_syncPolicy;
+	private final long m_syncInterval;
+	private final long m_rollInterval;
+	private final CheckpointFactory m_checkpointFactory;
+
+	private List<File> m_replayFiles;
+	private LinkedList<Segment> m_sealedSegments = new LinkedList<Segment>();
+	private Segment m_currentSegment;
+	private long m_nextSegmentId;
+
+	private Thread m_syncThread;
+	private volatile boolean m_exit = false;
+
+	/**
+	 @param directory Directory to keep the segment files in, it is created if it
+	 does not exist.
+	 @param segmentSize Size in bytes of each segment file
+	 @param syncPolicy When segments are forced to disk
+	 @param syncInterval Milliseconds between forcing the segment to disk when using
+	 the PERIODIC policy, this is also how often flushed segments are deleted.
+	 @param rollInterval Milliseconds a segment with data in it stays open before
+	 it is sealed, so it can be deleted without waiting for it to fill up.
+	 */
+	public WriteAheadLog(File directory, int segmentSize, SyncPolicy syncPolicy,
+			long syncInterval, long rollInterval, CheckpointFactory checkpointFactory) throws IOException
+	{
+		m_directory = checkNotNull(directory);
+		m_segmentSize = segmentSize;
+		m_syncPolicy = checkNotNull(syncPolicy);
+		m_syncInterval = syncInterval;
+		m_rollInterval = rollInterval;
+		m_checkpointFactory = checkNotNull(checkpointFactory);
+
+		m_directory.mkdirs();
+		if (!m_directory.isDirectory())
+			throw new IOException("Unable to create write ahead log directory " + m_directory.getAbsolutePath());
+
+		m_replayFiles = listSegmentFiles(m_directory);
+		m_nextSegmentId = 0L;
+		for (File replayFile : m_replayFiles)
+			m_nextSegmentId = Math.max(m_nextSegmentId, getSegmentId(replayFile) + 1);
+
+		m_currentSegment = openSegment(m_segmentSize);
+
+		m_syncThread = new Thread(this, "write-ahead-log-sync");
+		m_syncThread.setDaemon(true);
+		m_syncThread.start();
+	}
+
+	private static List<File> listSegmentFiles(File directory)
+	{
+		File[] files = directory.listFiles(new FilenameFilter()
+		{
+			@Override
+			public boolean accept(File dir, String name)
+			{
+				return (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+			}
+		});
+
+		List<File> ret = new ArrayList<File>();
+		if (files != null)
+			ret.addAll(Arrays.asList(files));
+
+		Collections.sort(ret, new Comparator<File>()
+		{
+			@Override
+			public int compare(File f1, File f2)
+			{
+				long id1 = getSegmentId(f1);
+				long id2 = getSegmentId(f2);
+				return (id1 < id2 ? -1 : (id1 == id2 ? 0 : 1));
+			}
+		});
+
+		return (ret);
+	}
+
+	private static long getSegmentId(File file)
+	{
+		String name = file.getName();
+		return (Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+				name.length() - SEGMENT_SUFFIX.length())));
+	}
+
+	private Segment openSegment(int size) throws IOException
+	{
+		long id = m_nextSegmentId++;
+		File file = new File(m_directory, String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+
+		RandomAccessFile raFile = new RandomAccessFile(file, "rw");
+		FileChannel channel = raFile.getChannel();
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+		return (new Segment(file, channel, buffer));
+	}
+
+	/**
+	 Replays the segments left over from a previous run.  This must be called
+	 before anything is appended.  The replayed segments are deleted once the
+	 data has been flushed.
+	 @return Number of data point sets replayed
+	 */
+	public int replay(ReplayHandler handler) throws IOException
+	{
+		int count = 0;
+
+		for (File replayFile : m_replayFiles)
+		{
+			logger.info("Replaying write ahead log " + replayFile.getAbsolutePath());
+			count += replaySegment(replayFile, handler);
+		}
+
+		synchronized (m_lock)
+		{
+			for (File replayFile : m_replayFiles)
+			{
+				Segment segment = new Segment(replayFile, null, null);
+				segment.m_sealed = true;
+				segment.m_checkpoint = m_checkpointFactory.createCheckpoint();
+				m_sealedSegments.add(segment);
+			}
+		}
+
+		m_replayFiles = Collections.emptyList();
+
+		return (count);
+	}
+
+	private int replaySegment(File file, ReplayHandler handler) throws IOException
+	{
+		int count = 0;
+		RandomAccessFile raFile = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raFile.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			CRC32 crc = new CRC32();
+
+			while (buffer.remaining() >= RECORD_HEADER_SIZE)
+			{
+				int length = buffer.getInt();
+				int checksum = buffer.getInt();
+				if (length <= 0 || length > buffer.remaining())
+					break; //End of the segment
+
+				byte[] payload = new byte[length];
+				buffer.get(payload);
+
+				crc.reset();
+				crc.update(payload, 0, length);
+				if ((int) crc.getValue() != checksum)
+				{
+					logger.warn("Checksum mismatch in write ahead log " + file.getAbsolutePath() +
+							", skipping the rest of the segment");
+					break;
+				}
+
+				try
+				{
+					handler.replay(readDataPointSet(payload));
+					count++;
+				}
+				catch (DatastoreException e)
+				{
+					logger.error("Unable to replay data points from write ahead log", e);
+				}
+			}
+		}
+		finally
+		{
+			raFile.close();
+		}
+
+		return (count);
+	}
+
+	/**
+	 Appends the data point set to the log.  The returned segment must be
+	 released once the data has been added to the write buffers.
+	 */
+	public Segment append(DataPointSet dps) throws IOException
+	{
+		byte[] record = createRecord(dps);
+
+		synchronized (m_lock)
+		{
+			if (m_currentSegment == null)
+				throw new IOException("Write ahead log is closed");
+
+			if (m_currentSegment.m_buffer.remaining() < record.length)
+				rollSegment(record.length);
+
+			Segment segment = m_currentSegment;
+			segment.m_buffer.put(record);
+			segment.m_pending++;
+
+			if (m_syncPolicy == SyncPolicy.ALWAYS)
+				segment.m_buffer.force();
+
+			return (segment);
+		}
+	}
+
+	/**
+	 Called once the data returned from append has been added to the write
+	 buffers.
+	 */
+	public void release(Segment segment)
+	{
+		synchronized (m_lock)
+		{
+			segment.m_pending--;
+			if (segment.m_sealed && segment.m_pending == 0)
+				segment.m_checkpoint = m_checkpointFactory.createCheckpoint();
+		}
+	}
+
+	/**
+	 Must be called while holding m_lock
+	 */
+	private void rollSegment(int minSize) throws IOException
+	{
+		Segment next = openSegment(Math.max(m_segmentSize, minSize));
+		sealCurrentSegment(m_syncPolicy != SyncPolicy.NONE);
+		m_currentSegment = next;
+	}
+
+	/**
+	 Must be called while holding m_lock
+	 */
+	private void sealCurrentSegment(boolean force)
+	{
+		Segment segment = m_currentSegment;
+
+		if (force)
+			segment.m_buffer.force();
+
+		segment.m_sealed = true;
+		if (segment.m_pending == 0)
+			segment.m_checkpoint = m_checkpointFactory.createCheckpoint();
+		m_sealedSegments.add(segment);
+
+		m_currentSegment = null;
+	}
+
+	/**
+	 Seals the current segment if it has data in it and has been open for the
+	 roll interval.
+	 */
+	/*package*/ void rollIdleSegment(long now)
+	{
+		synchronized (m_lock)
+		{
+			Segment segment = m_currentSegment;
+			if (segment == null || segment.m_buffer.position() == 0 ||
+					(now - segment.m_openTime) < m_rollInterval)
+				return;
+
+			try
+			{
+				rollSegment(0);
+			}
+			catch (IOException e)
+			{
+				logger.error("Unable to open write ahead log segment", e);
+			}
+		}
+	}
+
+	/**
+	 Deletes sealed segments that have been flushed to Cassandra.  Segments are
+	 deleted in the order they were written.
+	 */
+	public void purge()
+	{
+		synchronized (m_lock)
+		{
+			while (!m_sealedSegments.isEmpty())
+			{
+				Segment segment = m_sealedSegments.getFirst();
+				if (segment.m_checkpoint == null || !segment.m_checkpoint.isFlushed())
+					break;
+
+				m_sealedSegments.removeFirst();
+				segment.delete();
+			}
+		}
+	}
+
+	/**
+	 @return Number of segments waiting on data to be flushed
+	 */
+	public int getSealedSegmentCount()
+	{
+		synchronized (m_lock)
+		{
+			return (m_sealedSegments.size());
+		}
+	}
+
+	public void close() throws InterruptedException
+	{
+		m_exit = true;
+		m_syncThread.interrupt();
+		m_syncThread.join();
+
+		synchronized (m_lock)
+		{
+			//The write buffers are closed first, so the final checkpoint is
+			//normally flushed and the purge below removes every segment
+			if (m_currentSegment != null)
+				sealCurrentSegment(true);
+		}
+
+		purge();
+
+		synchronized (m_lock)
+		{
+			for (Segment segment : m_sealedSegments)
+				segment.close();
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		while (!m_exit)
+		{
+			try
+			{
+				Thread.sleep(m_syncInterval);
+			}
+			catch (InterruptedException ignored) {}
+
+			if (m_syncPolicy == SyncPolicy.PERIODIC)
+			{
+				synchronized (m_lock)
+				{
+					if (m_currentSegment != null)
+						m_currentSegment.m_buffer.force();
+				}
+			}
+
+			rollIdleSegment(System.currentTimeMillis());
+			purge();
+		}
+	}
+
+	private static byte[] createRecord(DataPointSet dps) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 + (dps.getDataPoints().size() * 17));
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeInt(0); //Length and checksum are filled in below
+		out.writeInt(0);
+
+		out.writeUTF(dps.getName());
+
+		SortedMap<String, String> tags = dps.getTags();
+		out.writeInt(tags.size());
+		for (Map.Entry<String, String> tag : tags.entrySet())
+		{
+			out.writeUTF(tag.getKey());
+			out.writeUTF(tag.getValue());
+		}
+
+		List<DataPoint> dataPoints = dps.getDataPoints();
+		out.writeInt(dataPoints.size());
+		for (DataPoint dataPoint : dataPoints)
+		{
+			out.writeLong(dataPoint.getTimestamp());
+			if (dataPoint.isInteger())
+			{
+				out.writeByte(LONG_TYPE);
+				out.writeLong(dataPoint.getLongValue());
+			}
+			else
+			{
+				out.writeByte(DOUBLE_TYPE);
+				out.writeDouble(dataPoint.getDoubleValue());
+			}
+		}
+
+		out.flush();
+		byte[] record = bytes.toByteArray();
+		int length = record.length - RECORD_HEADER_SIZE;
+
+		CRC32 crc = new CRC32();
+		crc.update(record, RECORD_HEADER_SIZE, length);
+
+		putInt(record, 0, length);
+		putInt(record, 4, (int) crc.getValue());
+
+		return (record);
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value)
+	{
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+
+	private static DataPointSet readDataPointSet(byte[] payload) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+		DataPointSet dps = new DataPointSet(in.readUTF());
+
+		int tagCount = in.readInt();
+		for (int I = 0; I < tagCount; I++)
+			dps.addTag(in.readUTF(), in.readUTF());
+
+		int dataPointCount = in.readInt();
+		for (int I = 0; I < dataPointCount; I++)
+		{
+			long timestamp = in.readLong();
+			if (in.readByte() == LONG_TYPE)
+				dps.addDataPoint(new DataPoint(timestamp, in.readLong()));
+			else
+				dps.addDataPoint(new DataPoint(timestamp, in.readDouble()));
+		}
+
+		return (dps);
+	}
+
+	/**
+	 A segment file of the log.  Returned from append so the writer can release
+	 it when done.
+	 */
+	public static class Segment
+	{
+		private final File m_file;
+		private final FileChannel m_channel;
+		private final MappedByteBuffer m_buffer;
+		private final long m_openTime = System.currentTimeMillis();
+		private int m_pending = 0;
+		private boolean m_sealed = false;
+		private FlushCheckpoint m_checkpoint;
+
+		private Segment(File file, FileChannel channel, MappedByteBuffer buffer)
+		{
+			m_file = file;
+			m_channel = channel;
+			m_buffer = buffer;
+		}
+
+		private void close()
+		{
+			try
+			{
+				if (m_channel != null)
+					m_channel.close();
+			}
+			catch (IOException e)
+			{
+				logger.error("Unable to close write ahead log segment " + m_file.getAbsolutePath(), e);
+			}
+		}
+
+		private void delete()
+		{
+			close();
+			if (!m_file.delete())
+				logger.error("Unable to delete write ahead log segment " + m_file.getAbsolutePath());
+		}
+	}
+}
@@ -15,152 +15,434 @@
  */
 package org.kairosdb.datastore.cassandra;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import me.prettyprint.cassandra.model.HColumnImpl;
+import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
 import me.prettyprint.cassandra.model.MutatorImpl;
 import me.prettyprint.hector.api.Keyspace;
 import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.exceptions.HPoolExhaustedException;
+import me.prettyprint.hector.api.exceptions.HTimedOutException;
+import me.prettyprint.hector.api.exceptions.HUnavailableException;
+import me.prettyprint.hector.api.exceptions.HectorTransportException;
 import me.prettyprint.hector.api.mutation.Mutator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 
+/**
+ Buffers writes to a column family and sends them to Cassandra from a
+ separate thread.  Writes are added to one of several stripes, each with
+ its own lock, so threads adding data do not contend with each other.  The
+ write thread swaps out the stripes, splits the writes by row key and hands
+ the batches to a pool of flush threads that send them to Cassandra.  The
+ flush threads send the batches in chunks limited by mutation count and by
+ estimated size in bytes, the count is adjusted by a BatchSizeController
+ based on how long Cassandra takes to write each chunk.  Chunks that time
+ out or find Cassandra unavailable are retried, a chunk that fails any other
+ way is split in halves until the mutation that fails on its own is found,
+ and only that one is dropped.
+ */
 public class WriteBuffer<RowKeyType, ColumnKeyType, ValueType>  implements Runnable
 {
 	public static final Logger logger = LoggerFactory.getLogger(WriteBuffer.class);
 
+	/**
+	 Writes are not split across flush threads unless each batch gets at
+	 least this many.
+	 */
+	public static final int MIN_FLUSH_BATCH_SIZE = 1000;
+
+	/**
+	 Smallest number of mutations the batch size controller will send to
+	 Cassandra at one time.
+	 */
+	public static final int MIN_CHUNK_SIZE = 100;
+
+	/**
+	 Rough per mutation overhead in bytes (timestamp and thrift structure) used
+	 when estimating the size of a chunk.
+	 */
+	public static final int MUTATION_OVERHEAD = 24;
+
+	/**
+	 How long close waits for the flush threads, chunks still being retried
+	 after that are dropped.
+	 */
+	public static final long CLOSE_TIMEOUT = 60000L;
+
+	/**
+	 Set on the write threads of all buffers.  The write stats are written
+	 from a write thread and it must never wait on a full buffer.
+	 */
+	private static final ThreadLocal<Boolean> s_writeThread = new ThreadLocal<Boolean>()
+	{
+		@Override
+		protected Boolean initialValue()
+		{
+			return (Boolean.FALSE);
+		}
+	};
+
 	private Keyspace m_keyspace;
 	private String m_cfName;
-	private Mutator<RowKeyType> m_mutator;
-	private volatile int m_bufferCount = 0;
-	private ReentrantLock m_mutatorLock;
-	private Condition m_lockCondition;
+	private Stripe<RowKeyType, ColumnKeyType, ValueType>[] m_stripes;
+	private AtomicInteger m_bufferCount = new AtomicInteger();
+	private ReentrantLock m_fullLock = new ReentrantLock();
+	private Condition m_fullCondition = m_fullLock.newCondition();
 
 	private Thread m_writeThread;
-	private boolean m_exit = false;
+	private volatile boolean m_exit = false;
+	private volatile boolean m_abandoned = false;
 	private int m_writeDelay;
 	private Serializer<RowKeyType> m_rowKeySerializer;
 	private Serializer<ColumnKeyType> m_columnKeySerializer;
 	private Serializer<ValueType> m_valueSerializer;
 	private WriteBufferStats m_writeStats;
 	private int m_maxBufferSize;
-	private int m_initialMaxBufferSize;
+	private long m_maxChunkBytes;
+	private BatchSizeController m_batchSizeController;
+	private int m_flushThreads;
+	private ExecutorService m_flushExecutor;
+	private Semaphore m_flushPermits;
+
+	//Each time the stripes are drained the drain number is incremented, the
+	//outstanding map holds the number of unfinished batches for each drain.
+	private final TreeMap<Long, Integer> m_outstanding = new TreeMap<Long, Integer>();
+	private long m_startedDrain = 0L;
 
+	/**
+	 @param stripes Number of independently locked stripes writes are added
+	 to.  If less than one the number of available processors is used.
+	 @param flushThreads Number of threads sending batches to Cassandra.
+	 @param maxChunkSize Largest number of mutations sent in one call to Cassandra
+	 @param maxChunkBytes Largest estimated size of the mutations sent in one call
+	 @param targetLatency Chunks that take longer than this many milliseconds
+	 reduce the number of mutations sent at one time.
+	 */
+	@SuppressWarnings("unchecked")
 	public WriteBuffer(Keyspace keyspace, String cfName,
 			int writeDelay, int maxWriteSize, Serializer<RowKeyType> keySerializer,
 			Serializer<ColumnKeyType> columnKeySerializer,
 			Serializer<ValueType> valueSerializer,
 			WriteBufferStats stats,
-			ReentrantLock mutatorLock,
-			Condition lockCondition)
+			int stripes,
+			int flushThreads,
+			int maxChunkSize,
+			long maxChunkBytes,
+			long targetLatency)
 	{
 		m_keyspace = keyspace;
 		m_cfName = cfName;
 		m_writeDelay = writeDelay;
-		m_initialMaxBufferSize = m_maxBufferSize = maxWriteSize;
+		m_maxBufferSize = maxWriteSize;
+		m_maxChunkBytes = maxChunkBytes;
+		m_batchSizeController = new BatchSizeController(MIN_CHUNK_SIZE, maxChunkSize, targetLatency);
 		m_rowKeySerializer = keySerializer;
 		m_columnKeySerializer = columnKeySerializer;
 		m_valueSerializer = valueSerializer;
 		m_writeStats = stats;
-		m_mutatorLock = mutatorLock;
-		m_lockCondition = lockCondition;
 
-		m_mutator = new MutatorImpl<RowKeyType>(keyspace, keySerializer);
+		if (stripes < 1)
+			stripes = Runtime.getRuntime().availableProcessors();
+
+		m_stripes = new Stripe[stripes];
+		for (int I = 0; I < stripes; I++)
+			m_stripes[I] = new Stripe<RowKeyType, ColumnKeyType, ValueType>();
+
+		//Two batches per flush thread can be outstanding, after that the write
+		//thread waits and the buffer fills up which blocks the producers.
+		m_flushThreads = Math.max(1, flushThreads);
+		m_flushPermits = new Semaphore(m_flushThreads * 2);
+		m_flushExecutor = Executors.newFixedThreadPool(m_flushThreads,
+				new ThreadFactoryBuilder().setNameFormat("write-buffer-" + cfName + "-%d").build());
+
 		m_writeThread = new Thread(this);
 		m_writeThread.start();
 	}
 
-	public void addData(RowKeyType rowKey, ColumnKeyType columnKey, ValueType value,
-			long timestamp)
+	private Stripe<RowKeyType, ColumnKeyType, ValueType> getStripe()
+	{
+		//Threads stick to the same stripe
+		long id = Thread.currentThread().getId();
+		return (m_stripes[(int) (id % m_stripes.length)]);
+	}
+
+	private void addWrite(WriteOperation<RowKeyType, ColumnKeyType, ValueType> write)
 	{
-		m_mutatorLock.lock();
+		waitOnBufferFull();
+
+		Stripe<RowKeyType, ColumnKeyType, ValueType> stripe = getStripe();
+		stripe.m_lock.lock();
 		try
 		{
-			waitOnBufferFull();
-
-			m_bufferCount ++;
-			m_mutator.addInsertion(rowKey, m_cfName,
-					new HColumnImpl<ColumnKeyType, ValueType>(columnKey, value,
-							timestamp, m_columnKeySerializer, m_valueSerializer));
+			//Counted under the stripe lock so a drain that misses this write
+			//cannot bring the count to zero, see getFlushMarker
+			stripe.m_writes.add(write);
+			m_bufferCount.incrementAndGet();
 		}
 		finally
 		{
-			m_mutatorLock.unlock();
+			stripe.m_lock.unlock();
 		}
 	}
 
+	public void addData(RowKeyType rowKey, ColumnKeyType columnKey, ValueType value,
+			long timestamp)
+	{
+		addData(rowKey, columnKey, value, timestamp, 0);
+	}
+
+	/**
+	 @param ttl Seconds until Cassandra expires the column, 0 for never
+	 */
+	public void addData(RowKeyType rowKey, ColumnKeyType columnKey, ValueType value,
+			long timestamp, int ttl)
+	{
+		addWrite(new WriteOperation<RowKeyType, ColumnKeyType, ValueType>(
+				WriteOperation.INSERT, rowKey, columnKey, value, timestamp, ttl));
+	}
+
 	public void deleteRow(RowKeyType rowKey, long timestamp)
 	{
-		m_mutatorLock.lock();
-		try
-		{
-			waitOnBufferFull();
+		addWrite(new WriteOperation<RowKeyType, ColumnKeyType, ValueType>(
+				WriteOperation.DELETE_ROW, rowKey, null, null, timestamp, 0));
+	}
 
-			m_bufferCount ++;
-			m_mutator.addDeletion(rowKey, m_cfName, timestamp);
+	public void deleteColumn(RowKeyType rowKey, ColumnKeyType columnKey, long timestamp)
+	{
+		addWrite(new WriteOperation<RowKeyType, ColumnKeyType, ValueType>(
+				WriteOperation.DELETE_COLUMN, rowKey, columnKey, null, timestamp, 0));
+	}
+
+	private void waitOnBufferFull()
+	{
+		if ((m_bufferCount.get() > m_maxBufferSize) && !s_writeThread.get())
+		{
+			m_fullLock.lock();
+			try
+			{
+				if (m_bufferCount.get() > m_maxBufferSize)
+					m_fullCondition.await();
+			}
+			catch (InterruptedException ignored) {}
+			finally
+			{
+				m_fullLock.unlock();
+			}
 		}
-		finally
+	}
+
+	/**
+	 Returns a marker that is passed to isFlushed to check if everything added
+	 to the buffer up to now has been written to Cassandra.
+	 */
+	public long getFlushMarker()
+	{
+		synchronized (m_outstanding)
 		{
-			m_mutatorLock.unlock();
+			//Anything still in the stripes goes out with the next drain.  Writes
+			//are counted before their stripe lock is released and a drain only
+			//subtracts what it swapped out, so the count is not zero while a
+			//write is waiting in a stripe.
+			return (m_bufferCount.get() == 0 ? m_startedDrain : m_startedDrain + 1);
 		}
 	}
 
-	public void deleteColumn(RowKeyType rowKey, ColumnKeyType columnKey, long timestamp)
+	/**
+	 @return true once every write added before the marker was taken has been
+	 sent to Cassandra.
+	 */
+	public boolean isFlushed(long flushMarker)
 	{
-		m_mutatorLock.lock();
-		try
+		synchronized (m_outstanding)
 		{
-			waitOnBufferFull();
+			long flushedDrain = m_outstanding.isEmpty() ? m_startedDrain : m_outstanding.firstKey() - 1;
+			return (flushedDrain >= flushMarker);
+		}
+	}
 
-			m_bufferCount ++;
-			m_mutator.addDeletion(rowKey, m_cfName, columnKey, m_columnKeySerializer, timestamp);
-//			m_mutator.delete(rowKey, m_cfName, columnKey, m_columnKeySerializer, timestamp);
+	private void addOutstanding(long drain, int count)
+	{
+		synchronized (m_outstanding)
+		{
+			Integer current = m_outstanding.get(drain);
+			int outstanding = (current == null ? 0 : current) + count;
+			if (outstanding == 0)
+				m_outstanding.remove(drain);
+			else
+				m_outstanding.put(drain, outstanding);
 		}
-		finally
+	}
+
+	public void close() throws InterruptedException
+	{
+		m_exit = true;
+		m_writeThread.interrupt();
+		m_writeThread.join();
+
+		m_flushExecutor.shutdown();
+		if (!m_flushExecutor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS))
 		{
-			m_mutatorLock.unlock();
+			logger.error("Timed out sending data to Cassandra, dropping unsent " + m_cfName + " writes");
+			m_abandoned = true;
+			m_flushExecutor.shutdownNow();
 		}
 	}
 
-	private void waitOnBufferFull()
+	/**
+	 Swaps out the writes from every stripe and releases any threads waiting
+	 on a full buffer.
+	 */
+	private List<WriteOperation<RowKeyType, ColumnKeyType, ValueType>> drainStripes()
 	{
-		if ((m_bufferCount > m_maxBufferSize) && (m_mutatorLock.getHoldCount() == 1))
+		List<WriteOperation<RowKeyType, ColumnKeyType, ValueType>> pending =
+				new ArrayList<WriteOperation<RowKeyType, ColumnKeyType, ValueType>>(m_bufferCount.get());
+
+		for (Stripe<RowKeyType, ColumnKeyType, ValueType> stripe : m_stripes)
 		{
+			List<WriteOperation<RowKeyType, ColumnKeyType, ValueType>> writes;
+			stripe.m_lock.lock();
 			try
 			{
-				m_lockCondition.await();
+				writes = stripe.m_writes;
+				stripe.m_writes = new ArrayList<WriteOperation<RowKeyType, ColumnKeyType, ValueType>>();
 			}
-			catch (InterruptedException ignored) {}
+			finally
+			{
+				stripe.m_lock.unlock();
+			}
+
+			pending.addAll(writes);
+		}
+
+		m_bufferCount.addAndGet(-pending.size());
+
+		m_fullLock.lock();
+		try
+		{
+			m_fullCondition.signalAll();
+		}
+		finally
+		{
+			m_fullLock.unlock();
 		}
+
+		return (pending);
 	}
 
-	public void close() throws InterruptedException
+	/**
+	 Serializes the write once, the buffers are used for both the chunk size
+	 estimate and the mutation so a retried chunk is not serialized again.
+	 Consecutive writes to the same row key share its buffer.
+	 */
+	private void serialize(WriteOperation<RowKeyType, ColumnKeyType, ValueType> write,
+			WriteOperation<RowKeyType, ColumnKeyType, ValueType> previous)
 	{
-		m_exit = true;
-		m_writeThread.interrupt();
-		m_writeThread.join();
+		if (write.m_rowKeyBytes != null)
+			return;
+
+		if ((previous != null) && (previous.m_rowKey == write.m_rowKey) && (previous.m_rowKeyBytes != null))
+			write.m_rowKeyBytes = previous.m_rowKeyBytes;
+		else
+			write.m_rowKeyBytes = m_rowKeySerializer.toByteBuffer(write.m_rowKey);
+
+		if (write.m_columnKey != null)
+			write.m_columnKeyBytes = m_columnKeySerializer.toByteBuffer(write.m_columnKey);
+
+		if (write.m_value != null)
+			write.m_valueBytes = m_valueSerializer.toByteBuffer(write.m_value);
 	}
 
 	/**
-	 This will slowly increase the max buffer size up to the initial size.
-	 The design is that this method is called periodically to correct 3/4
-	 throttling that occurs down below.
+	 Builds the mutation from the serialized writes.  The buffers are
+	 duplicated so they can be sent again if the chunk is retried.
 	 */
-	public void increaseMaxBufferSize()
+	private Mutator<ByteBuffer> createMutator(List<WriteOperation<RowKeyType, ColumnKeyType, ValueType>> writes)
 	{
-		if (m_maxBufferSize < m_initialMaxBufferSize)
+		ByteBufferSerializer serializer = ByteBufferSerializer.get();
+		Mutator<ByteBuffer> mutator = new MutatorImpl<ByteBuffer>(m_keyspace, serializer);
+
+		WriteOperation<RowKeyType, ColumnKeyType, ValueType> previous = null;
+		for (WriteOperation<RowKeyType, ColumnKeyType, ValueType> write : writes)
 		{
-			m_maxBufferSize += 1000;
-			logger.info("Increasing write buffer " + m_cfName + " size to "+m_maxBufferSize);
+			serialize(write, previous);
+			previous = write;
+
+			ByteBuffer rowKey = write.m_rowKeyBytes.duplicate();
+			switch (write.m_type)
+			{
+				case WriteOperation.INSERT:
+					HColumnImpl<ByteBuffer, ByteBuffer> column = new HColumnImpl<ByteBuffer, ByteBuffer>(
+							write.m_columnKeyBytes.duplicate(), write.m_valueBytes.duplicate(),
+							write.m_timestamp, serializer, serializer);
+					if (write.m_ttl > 0)
+						column.setTtl(write.m_ttl);
+
+					mutator.addInsertion(rowKey, m_cfName, column);
+					break;
+				case WriteOperation.DELETE_ROW:
+					mutator.addDeletion(rowKey, m_cfName, write.m_timestamp);
+					break;
+				case WriteOperation.DELETE_COLUMN:
+					mutator.addDeletion(rowKey, m_cfName, write.m_columnKeyBytes.duplicate(),
+							serializer, write.m_timestamp);
+					break;
+			}
 		}
+
+		return (mutator);
 	}
 
 
+	/**
+	 Splits the writes into one batch per flush thread.  Writes for the same
+	 row key always end up in the same batch.
+	 */
+	private List<List<WriteOperation<RowKeyType, ColumnKeyType, ValueType>>> splitBatch(
+			List<WriteOperation<RowKeyType, ColumnKeyType, ValueType>> writes)
+	{
+		int batchCount = Math.min(m_flushThreads, Math.max(1, writes.size() / MIN_FLUSH_BATCH_SIZE));
+
+		List<List<WriteOperation<RowKeyType, ColumnKeyType, ValueType>>> batches =
+				new ArrayList<List<WriteOperation<RowKeyType, ColumnKeyType, ValueType>>>(batchCount);
+
+		if (batchCount == 1)
+		{
+			batches.add(writes);
+			return (batches);
+		}
+
+		for (int I = 0; I < batchCount; I++)
+			batches.add(new ArrayList<WriteOperation<RowKeyType, ColumnKeyType, ValueType>>(
+					writes.size() / batchCount + 1));
+
+		for (WriteOperation<RowKeyType, ColumnKeyType, ValueType> write : writes)
+		{
+			int batch = (write.m_rowKey.hashCode() & 0x7FFFFFFF) % batchCount;
+			batches.get(batch).add(write);
+		}
+
+		return (batches);
+	}
+
 	@Override
 	public void run()
 	{
+		s_writeThread.set(Boolean.TRUE);
+
 		while (!m_exit)
 		{
 			try
@@ -169,63 +451,234 @@ public class WriteBuffer<RowKeyType, ColumnKeyType, ValueType>  implements Runna
 			}
 			catch (InterruptedException ignored) {}
 
-			Mutator<RowKeyType> pendingMutations = null;
-
-			if (m_bufferCount != 0)
+			if (m_bufferCount.get() != 0)
 			{
-				m_mutatorLock.lock();
-				try
-				{
-					m_writeStats.saveWriteSize(m_bufferCount);
+				m_writeStats.saveWriteSize(m_bufferCount.get());
 
-					pendingMutations = m_mutator;
-					m_mutator = new MutatorImpl<RowKeyType>(m_keyspace, m_rowKeySerializer);
-					m_bufferCount = 0;
-					m_lockCondition.signalAll();
+				//The drain holds a place in the outstanding map until all of
+				//its batches have been handed to the flush threads
+				long drain;
+				synchronized (m_outstanding)
+				{
+					drain = ++m_startedDrain;
+					m_outstanding.put(drain, 1);
 				}
-				finally
+
+				List<List<WriteOperation<RowKeyType, ColumnKeyType, ValueType>>> batches = splitBatch(drainStripes());
+				addOutstanding(drain, batches.size());
+
+				for (List<WriteOperation<RowKeyType, ColumnKeyType, ValueType>> batch : batches)
 				{
-					m_mutatorLock.unlock();
+					m_flushPermits.acquireUninterruptibly();
+					m_flushExecutor.execute(new FlushTask(batch, drain));
 				}
+
+				addOutstanding(drain, -1);
 			}
+		}
+	}
+
+	/**
+	 Sends one batch to Cassandra, retrying until it goes through.
+	 */
+	private class FlushTask implements Runnable
+	{
+		private final List<WriteOperation<RowKeyType, ColumnKeyType, ValueType>> m_writes;
+		private final long m_drain;
+
+		public FlushTask(List<WriteOperation<RowKeyType, ColumnKeyType, ValueType>> writes, long drain)
+		{
+			m_writes = writes;
+			m_drain = drain;
+		}
 
+		@Override
+		public void run()
+		{
 			try
 			{
-				if (pendingMutations != null)
-					pendingMutations.execute();
-
-				pendingMutations = null;
+				flush();
 			}
-			catch (Exception e)
+			finally
 			{
-				logger.error("Error sending data to Cassandra", e);
-
-				m_maxBufferSize = m_maxBufferSize * 3 / 4;
-
-				logger.error("Reducing write buffer size to "+m_maxBufferSize+
-						".  You need to increase your cassandra capacity or change the kairosdb.datastore.cassandra.write_buffer_max_size property.");
+				addOutstanding(m_drain, -1);
+				m_flushPermits.release();
 			}
+		}
 
+		private void flush()
+		{
+			int start = 0;
+			while (start < m_writes.size())
+			{
+				int end = getChunkEnd(m_writes, start, m_batchSizeController.getBatchSize());
+				sendChunk(m_writes.subList(start, end));
+				start = end;
+			}
+		}
 
-			//If the batch failed we will retry it without changing the buffer size.
-			while (pendingMutations != null)
+		/**
+		 Sends the chunk to Cassandra.  If it times out and is larger than the
+		 reduced batch size it is split up and the pieces are sent, otherwise
+		 it is retried until it goes through.  Other errors are not retried,
+		 see sendInvalidChunk.
+		 */
+		private void sendChunk(List<WriteOperation<RowKeyType, ColumnKeyType, ValueType>> chunk)
+		{
+			while (!m_abandoned)
 			{
+				long startTime = System.currentTimeMillis();
 				try
 				{
-					Thread.sleep(100);
+					createMutator(chunk).execute();
+					m_batchSizeController.batchSucceeded(System.currentTimeMillis() - startTime);
+					return;
 				}
-				catch (InterruptedException ignored){ }
+				catch (Exception e)
+				{
+					if (!isRetryable(e))
+					{
+						sendInvalidChunk(chunk, e);
+						return;
+					}
 
-				try
+					logger.error("Error sending data to Cassandra", e);
+					m_batchSizeController.batchFailed();
+				}
+
+				int batchSize = m_batchSizeController.getBatchSize();
+				if (chunk.size() > batchSize)
 				{
-					pendingMutations.execute();
-					pendingMutations = null;
+					logger.error("Reducing " + m_cfName + " batch size to " + batchSize +
+							".  You may need to increase your cassandra capacity.");
+
+					int start = 0;
+					while (start < chunk.size())
+					{
+						int end = getChunkEnd(chunk, start, batchSize);
+						sendChunk(chunk.subList(start, end));
+						start = end;
+					}
+					return;
 				}
-				catch (Exception e)
+
+				try
 				{
-					logger.error("Error resending data", e);
+					Thread.sleep(100);
 				}
+				catch (InterruptedException ignored){ }
+			}
+		}
+
+		/**
+		 Drops the mutation if it is on its own, otherwise sends each half of
+		 the chunk separately so only the mutations that can never succeed
+		 are dropped.
+		 */
+		private void sendInvalidChunk(List<WriteOperation<RowKeyType, ColumnKeyType, ValueType>> chunk,
+				Exception e)
+		{
+			if (chunk.size() == 1)
+			{
+				logger.error("Dropping write to " + m_cfName + " rejected by Cassandra", e);
+				return;
 			}
+
+			int middle = chunk.size() / 2;
+			sendChunk(chunk.subList(0, middle));
+			sendChunk(chunk.subList(middle, chunk.size()));
+		}
+	}
+
+	/**
+	 Timeouts and unavailable nodes go away, any other error is assumed to
+	 be caused by the mutations themselves.
+	 */
+	private static boolean isRetryable(Exception e)
+	{
+		return ((e instanceof HTimedOutException) || (e instanceof HUnavailableException) ||
+				(e instanceof HectorTransportException) || (e instanceof HPoolExhaustedException));
+	}
+
+	/**
+	 Returns the end index of a chunk starting at start that has at most
+	 maxCount mutations and does not go over m_maxChunkBytes.  A chunk always
+	 has at least one mutation.  The writes are serialized here and the
+	 buffers kept for createMutator.
+	 */
+	private int getChunkEnd(List<WriteOperation<RowKeyType, ColumnKeyType, ValueType>> writes,
+			int start, int maxCount)
+	{
+		int end = start;
+		long chunkBytes = 0;
+		WriteOperation<RowKeyType, ColumnKeyType, ValueType> previous = (start == 0 ? null : writes.get(start - 1));
+
+		while ((end < writes.size()) && ((end - start) < maxCount))
+		{
+			WriteOperation<RowKeyType, ColumnKeyType, ValueType> write = writes.get(end);
+			serialize(write, previous);
+			long size = MUTATION_OVERHEAD;
+
+			//The row key is only sent once for consecutive writes to the same row
+			if ((previous == null) || (end == start) || (write.m_rowKeyBytes != previous.m_rowKeyBytes))
+				size += write.m_rowKeyBytes.remaining();
+
+			if (write.m_columnKeyBytes != null)
+				size += write.m_columnKeyBytes.remaining();
+
+			if (write.m_valueBytes != null)
+				size += write.m_valueBytes.remaining();
+
+			previous = write;
+
+			if ((end != start) && (chunkBytes + size > m_maxChunkBytes))
+				break;
+
+			chunkBytes += size;
+			end++;
+		}
+
+		return (end);
+	}
+
+	private static class Stripe<RowKeyType, ColumnKeyType, ValueType>
+	{
+		private final ReentrantLock m_lock = new ReentrantLock();
+		private List<WriteOperation<RowKeyType, ColumnKeyType, ValueType>> m_writes =
+				new ArrayList<WriteOperation<RowKeyType, ColumnKeyType, ValueType>>();
+	}
+
+	/**
+	 A buffered insert or delete.  These are turned into Hector mutations
+	 by the write thread.
+	 */
+	/*package*/ static class WriteOperation<RowKeyType, ColumnKeyType, ValueType>
+	{
+		public static final int INSERT = 0;
+		public static final int DELETE_ROW = 1;
+		public static final int DELETE_COLUMN = 2;
+
+		private final int m_type;
+		private final RowKeyType m_rowKey;
+		private final ColumnKeyType m_columnKey;
+		private final ValueType m_value;
+		private final long m_timestamp;
+		private final int m_ttl;
+
+		//Filled in on the flush thread, see serialize
+		private ByteBuffer m_rowKeyBytes;
+		private ByteBuffer m_columnKeyBytes;
+		private ByteBuffer m_valueBytes;
+
+		public WriteOperation(int type, RowKeyType rowKey, ColumnKeyType columnKey,
+				ValueType value, long timestamp, int ttl)
+		{
+			m_type = type;
+			m_rowKey = rowKey;
+			m_columnKey = columnKey;
+			m_value = value;
+			m_timestamp = timestamp;
+			m_ttl = ttl;
 		}
 	}
 }
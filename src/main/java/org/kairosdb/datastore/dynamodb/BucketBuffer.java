@@ -0,0 +1,395 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.dynamodb;
+
+import org.kairosdb.core.DataPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ Holds the data points of each series in memory until their time bucket is
+ over so the bucket is written as one packed item instead of an item per
+ point.  A bucket is closed once its width and the late allowance have
+ passed and is then handed to the BucketWriter.
+
+ Points for a bucket that was already closed, or that started before this
+ buffer was created, open the bucket again and it is marked as not new so the
+ writer merges it with the items already written.  This assumes each series
+ is written by one node at a time.
+
+ The buffered points are only in memory, a crash loses up to the bucket width,
+ late allowance and flush delay of points of every series (about 70 seconds
+ with the defaults) on top of what the write buffers hold.  The number of
+ buffered points is capped, when the cap is reached every bucket is written
+ out early and writers wait for that.  Writing them goes through the write
+ buffer, so writers are held back for as long as it is full.
+ */
+public class BucketBuffer implements Runnable
+{
+  public static final Logger logger = LoggerFactory.getLogger(BucketBuffer.class);
+
+  public interface BucketWriter
+  {
+    /**
+     Called on the flush thread with the buckets that have been closed.
+
+     @return The buckets that could not be written, they are put back in the
+     buffer and written on a later flush
+     */
+    public List<Bucket> writeBuckets(List<Bucket> buckets);
+  }
+
+  private final long m_bucketWidth;
+  private final long m_lateAllowance;
+  private final int m_flushDelay;
+  private final int m_maxPoints;
+  private final BucketWriter m_writer;
+
+  //Buckets starting before this may already have items written
+  private long m_newBucketTime;
+  private int m_pointCount = 0;
+  private boolean m_flushAll = false;
+  //Buckets have been taken out and are being handed to the writer
+  private boolean m_writing = false;
+
+  //Open buckets of each series by start time
+  private final Map<DataPointsRowKey, TreeMap<Long, Bucket>> m_series =
+      new HashMap<DataPointsRowKey, TreeMap<Long, Bucket>>();
+
+  private final Thread m_flushThread;
+  private volatile boolean m_exit = false;
+
+  /**
+   @param bucketWidth Width of the buckets in milliseconds, it has to divide
+   the row width
+   @param lateAllowance How long after a bucket is over points are still taken
+   before it is written
+   @param flushDelay How often closed buckets are written out
+   @param maxPoints Number of buffered points at which all the buckets are
+   written out early
+   */
+  public BucketBuffer(long bucketWidth, long lateAllowance, int flushDelay,
+      int maxPoints, BucketWriter writer)
+  {
+    m_bucketWidth = bucketWidth;
+    m_lateAllowance = lateAllowance;
+    m_flushDelay = flushDelay;
+    m_maxPoints = maxPoints;
+    m_writer = writer;
+    m_newBucketTime = System.currentTimeMillis();
+
+    m_flushThread = new Thread(this);
+    m_flushThread.start();
+  }
+
+  public long getBucketStart(long timestamp)
+  {
+    return timestamp - (timestamp % m_bucketWidth);
+  }
+
+  /**
+   @param rowKey Row key of the series and row the point belongs to
+   @param waitOnFull Whether to wait for the buckets to be written out when
+   the buffer is full, callers holding a write buffer lock must not wait
+   */
+  public synchronized void addDataPoint(DataPointsRowKey rowKey, DataPoint dataPoint, long now,
+      boolean waitOnFull) throws InterruptedException
+  {
+    if (m_pointCount >= m_maxPoints)
+    {
+      m_flushAll = true;
+      notifyAll();
+
+      while (waitOnFull && m_pointCount >= m_maxPoints && !m_exit)
+        wait();
+    }
+
+    TreeMap<Long, Bucket> buckets = m_series.get(rowKey);
+    if (buckets == null)
+    {
+      buckets = new TreeMap<Long, Bucket>();
+      m_series.put(rowKey, buckets);
+    }
+
+    long bucketStart = getBucketStart(dataPoint.getTimestamp());
+    Bucket bucket = buckets.get(bucketStart);
+    if (bucket == null)
+    {
+      boolean isNew = (bucketStart >= m_newBucketTime && !isClosed(bucketStart, now));
+      bucket = new Bucket(rowKey, bucketStart, isNew);
+      buckets.put(bucketStart, bucket);
+    }
+
+    //A later write of the same timestamp replaces the point
+    if (bucket.m_dataPoints.put(dataPoint.getTimestamp(), dataPoint) == null)
+      m_pointCount++;
+  }
+
+  /**
+   Puts back buckets that could not be written.  Points added since they were
+   taken out are newer and are kept.
+   */
+  private synchronized void requeueBuckets(List<Bucket> failed)
+  {
+    for (Bucket failedBucket : failed)
+    {
+      TreeMap<Long, Bucket> buckets = m_series.get(failedBucket.m_rowKey);
+      if (buckets == null)
+      {
+        buckets = new TreeMap<Long, Bucket>();
+        m_series.put(failedBucket.m_rowKey, buckets);
+      }
+
+      //Part of the bucket may have been written before it failed
+      Bucket bucket = new Bucket(failedBucket.m_rowKey, failedBucket.m_startTime, false);
+      bucket.m_dataPoints.putAll(failedBucket.m_dataPoints);
+
+      Bucket current = buckets.put(bucket.m_startTime, bucket);
+      if (current != null)
+      {
+        m_pointCount -= current.m_dataPoints.size();
+        bucket.m_dataPoints.putAll(current.m_dataPoints);
+      }
+
+      m_pointCount += bucket.m_dataPoints.size();
+    }
+  }
+
+  private boolean isClosed(long bucketStart, long now)
+  {
+    return (bucketStart + m_bucketWidth + m_lateAllowance <= now);
+  }
+
+  /**
+   Returns the points of the series that have not been written yet between
+   startTime and endTime inclusive, in time order.
+   */
+  public synchronized List<DataPoint> getDataPoints(DataPointsRowKey rowKey, long startTime, long endTime)
+  {
+    List<DataPoint> ret = new ArrayList<DataPoint>();
+    TreeMap<Long, Bucket> buckets = m_series.get(rowKey);
+    if (buckets == null)
+      return ret;
+
+    for (Bucket bucket : buckets.subMap(getBucketStart(startTime), true, endTime, true).values())
+      ret.addAll(bucket.m_dataPoints.subMap(startTime, true, endTime, true).values());
+
+    return ret;
+  }
+
+  /**
+   Drops the points of the series between startTime and endTime inclusive
+   that have not been written yet.  Buckets being handed to the writer are
+   in neither place, so this waits until they have been handed over.
+   */
+  public synchronized void deleteDataPoints(DataPointsRowKey rowKey, long startTime, long endTime)
+      throws InterruptedException
+  {
+    while (m_writing && m_flushThread.isAlive())
+      wait();
+
+    TreeMap<Long, Bucket> buckets = m_series.get(rowKey);
+    if (buckets == null)
+      return;
+
+    for (Bucket bucket : buckets.subMap(getBucketStart(startTime), true, endTime, true).values())
+    {
+      SortedMap<Long, DataPoint> deleted = bucket.m_dataPoints.subMap(startTime, true, endTime, true);
+      m_pointCount -= deleted.size();
+      deleted.clear();
+    }
+  }
+
+  /**
+   Takes the closed buckets, or all of them, out of the buffer.
+   */
+  private synchronized List<Bucket> removeBuckets(long now, boolean all)
+  {
+    List<Bucket> ret = new ArrayList<Bucket>();
+
+    Iterator<TreeMap<Long, Bucket>> seriesIt = m_series.values().iterator();
+    while (seriesIt.hasNext())
+    {
+      TreeMap<Long, Bucket> buckets = seriesIt.next();
+      Iterator<Bucket> it = buckets.values().iterator();
+      while (it.hasNext())
+      {
+        Bucket bucket = it.next();
+        if (!all && !isClosed(bucket.m_startTime, now))
+          break; //The rest start later
+
+        it.remove();
+        m_pointCount -= bucket.m_dataPoints.size();
+        //Points that come in later for the bucket are merged with it
+        m_newBucketTime = Math.max(m_newBucketTime, bucket.m_startTime + m_bucketWidth);
+
+        //Deletes can empty a bucket
+        if (!bucket.m_dataPoints.isEmpty())
+          ret.add(bucket);
+      }
+
+      if (buckets.isEmpty())
+        seriesIt.remove();
+    }
+
+    m_writing = !ret.isEmpty();
+    notifyAll();
+    return ret;
+  }
+
+  /**
+   Writes out what is left in the buffer and stops the flush thread.
+   */
+  public void close() throws InterruptedException
+  {
+    m_exit = true;
+    m_flushThread.interrupt();
+    m_flushThread.join();
+
+    //Writers waiting on a full buffer add their points without waiting
+    synchronized (this)
+    {
+      notifyAll();
+    }
+  }
+
+  @Override
+  public void run()
+  {
+    while (!m_exit)
+    {
+      try
+      {
+        waitForFlush();
+      }
+      catch (InterruptedException ignored) {}
+
+      flush(takeFlushAll());
+    }
+
+    //Clear an interrupt that came in while writing so the last flush is not cut short
+    Thread.interrupted();
+    flush(true);
+
+    synchronized (this)
+    {
+      if (m_pointCount != 0)
+        logger.error("Dropping " + m_pointCount + " data points that could not be written on close");
+    }
+  }
+
+  /**
+   Waits for the flush delay, or until the buffer is full.
+   */
+  private synchronized void waitForFlush() throws InterruptedException
+  {
+    long flushTime = System.currentTimeMillis() + m_flushDelay;
+    long delay;
+    while (!m_flushAll && (delay = flushTime - System.currentTimeMillis()) > 0)
+      wait(delay);
+  }
+
+  private synchronized boolean takeFlushAll()
+  {
+    boolean ret = m_flushAll;
+    m_flushAll = false;
+    if (ret)
+      logger.warn("Writing out all " + m_pointCount + " buffered data points as the buffer is full");
+    return ret;
+  }
+
+  private void flush(boolean all)
+  {
+    List<Bucket> buckets = removeBuckets(System.currentTimeMillis(), all);
+    if (buckets.isEmpty())
+      return;
+
+    List<Bucket> failed;
+    try
+    {
+      failed = m_writer.writeBuckets(buckets);
+    }
+    catch (Exception e)
+    {
+      logger.error("Error writing " + buckets.size() + " buckets", e);
+      failed = buckets;
+    }
+
+    if (!failed.isEmpty())
+    {
+      logger.warn("Retrying " + failed.size() + " buckets on the next flush");
+      requeueBuckets(failed);
+    }
+
+    synchronized (this)
+    {
+      m_writing = false;
+      notifyAll();
+    }
+  }
+
+  /**
+   The buffered points of one series in one bucket.
+   */
+  public static class Bucket
+  {
+    private final DataPointsRowKey m_rowKey;
+    private final long m_startTime;
+    private final boolean m_new;
+    private final TreeMap<Long, DataPoint> m_dataPoints = new TreeMap<Long, DataPoint>();
+
+    public Bucket(DataPointsRowKey rowKey, long startTime, boolean isNew)
+    {
+      m_rowKey = rowKey;
+      m_startTime = startTime;
+      m_new = isNew;
+    }
+
+    public DataPointsRowKey getRowKey()
+    {
+      return m_rowKey;
+    }
+
+    public long getStartTime()
+    {
+      return m_startTime;
+    }
+
+    /**
+     @return false if items may already have been written for the bucket
+     */
+    public boolean isNew()
+    {
+      return m_new;
+    }
+
+    /**
+     @return The points by timestamp
+     */
+    public SortedMap<Long, DataPoint> getDataPoints()
+    {
+      return m_dataPoints;
+    }
+  }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.dynamodb;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Scopes;
+import org.kairosdb.core.datastore.Datastore;
+
+public class DynamoDBModule extends AbstractModule
+{
+	@Override
+	protected void configure()
+	{
+		bind(Datastore.class).to(DynamoDBDatastore.class).in(Scopes.SINGLETON);
+		bind(DynamoDBDatastore.class).in(Scopes.SINGLETON);
+	}
+}
@@ -15,55 +15,106 @@
  */
 package org.kairosdb.datastore.dynamodb;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.model.*;
 
 import org.kairosdb.datastore.dynamodb.WriteBufferStats;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+/**
+ Buffers puts and deletes for one table and writes them out every write
+ delay.  The buffered requests are split into BatchWriteItem calls of
+ MAX_BATCH_SIZE items that are sent concurrently, unprocessed items are
+ retried with exponential backoff.  When DynamoDB throttles, the number of
+ batches in flight is halved and then grows back one at a time.  Failed
+ batches are retried until they go through except for the ones DynamoDB
+ rejects as invalid, those are split until the invalid items are found and
+ only they are dropped.
+ */
 public class WriteBuffer<RowKeyType, ColumnKeyType, ValueType>  implements Runnable
 {
   public static final Logger logger = LoggerFactory.getLogger(WriteBuffer.class);
 
+  /** Most items DynamoDB takes in one BatchWriteItem call. */
+  public static final int MAX_BATCH_SIZE = 25;
+  public static final int MAX_CONCURRENT_BATCHES = 8;
+  private static final long BASE_BACKOFF = 50L;
+  private static final long MAX_BACKOFF = 10000L;
+
+  /** Error codes DynamoDB and the AWS front end throttle with. */
+  private static final Set<String> THROTTLING_ERRORS = ImmutableSet.of(
+      "ProvisionedThroughputExceededException", "ThrottlingException", "RequestLimitExceeded");
+  private static final String VALIDATION_ERROR = "ValidationException";
+
   private String m_tableName;
+  private List<String> m_keyAttributes;
   private volatile int m_bufferCount = 0;
   private ReentrantLock m_mutatorLock;
   private Condition m_lockCondition;
+  private Condition m_flushCondition;
+  //Flushes taken from the buffer and flushes sent, guarded by the mutator lock
+  private int m_flushStarted = 0;
+  private int m_flushDone = 0;
 
   private Thread m_writeThread;
-  private boolean m_exit = false;
+  private volatile boolean m_exit = false;
   private int m_writeDelay;
   private WriteBufferStats m_writeStats;
-  private int m_maxBufferSize;
+  private volatile int m_maxBufferSize;
   private int m_initialMaxBufferSize;
 
   private AmazonDynamoDBClient m_client;
-  private LinkedList<WriteRequest> m_writeBuffer;
+  private ExecutorService m_batchExecutor;
+  private int m_concurrentBatches = MAX_CONCURRENT_BATCHES;
+  private List<WriteRequest> m_writeBuffer;
 
+  /**
+   @param keyAttributes Key attributes of the table, requests for the same key
+   within a flush are collapsed into the last one as DynamoDB rejects batches
+   with duplicate keys
+   */
   public WriteBuffer(AmazonDynamoDBClient client, 
-      String tableName,
+      String tableName, List<String> keyAttributes,
       int writeDelay, int maxWriteSize,
       WriteBufferStats stats,
       ReentrantLock mutatorLock,
       Condition lockCondition)
   {
     m_tableName = tableName;
+    m_keyAttributes = keyAttributes;
     m_writeDelay = writeDelay;
     m_initialMaxBufferSize = m_maxBufferSize = maxWriteSize;
     m_writeStats = stats;
     m_mutatorLock = mutatorLock;
     m_lockCondition = lockCondition;
+    m_flushCondition = mutatorLock.newCondition();
 
     m_client = client;
-    m_writeBuffer = new LinkedList<WriteRequest> ();
+    m_batchExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_BATCHES);
+    m_writeBuffer = new ArrayList<WriteRequest>();
     m_writeThread = new Thread(this);
     m_writeThread.start();
   }
@@ -83,38 +134,23 @@ public class WriteBuffer<RowKeyType, ColumnKeyType, ValueType>  implements Runna
     }
   }
 
-//  public void deleteRow(RowKeyType rowKey, long timestamp)
-//  {
-//    m_mutatorLock.lock();
-//    try
-//    {
-//      waitOnBufferFull();
-//
-//      m_bufferCount++;
-//      m_mutator.addDeletion(rowKey, m_tableName, timestamp);
-//    }
-//    finally
-//    {
-//      m_mutatorLock.unlock();
-//    }
-//  }
-//
-//  public void deleteColumn(RowKeyType rowKey, ColumnKeyType columnKey, long timestamp)
-//  {
-//    m_mutatorLock.lock();
-//    try
-//    {
-//      waitOnBufferFull();
-//
-//      m_bufferCount++;
-//      m_mutator.addDeletion(rowKey, m_tableName, columnKey, m_columnKeySerializer, timestamp);
-////      m_mutator.delete(rowKey, m_tableName, columnKey, m_columnKeySerializer, timestamp);
-//    }
-//    finally
-//    {
-//      m_mutatorLock.unlock();
-//    }
-//  }
+  /**
+   Deletes the item with the key, the map holds only the key attributes.
+   */
+  public void deleteData(Map<String, AttributeValue> key)
+  {
+    m_mutatorLock.lock();
+    try
+    {
+      waitOnBufferFull();
+      m_bufferCount++;
+      m_writeBuffer.add(new WriteRequest(new DeleteRequest(key)));
+    }
+    finally
+    {
+      m_mutatorLock.unlock();
+    }
+  }
 
   private void waitOnBufferFull()
   {
@@ -128,11 +164,42 @@ public class WriteBuffer<RowKeyType, ColumnKeyType, ValueType>  implements Runna
     }
   }
 
+  /**
+   Waits until the requests added before the call have been sent to DynamoDB.
+   Returns right away once the buffer is closed.
+   */
+  public void waitForFlush() throws InterruptedException
+  {
+    m_mutatorLock.lock();
+    try
+    {
+      //A flush in progress may hold requests added before the call
+      int flush = (m_bufferCount != 0) ? m_flushStarted + 1 : m_flushStarted;
+      while (m_flushDone < flush && !m_exit)
+        m_flushCondition.await();
+    }
+    finally
+    {
+      m_mutatorLock.unlock();
+    }
+  }
+
   public void close() throws InterruptedException
   {
     m_exit = true;
     m_writeThread.interrupt();
     m_writeThread.join();
+    m_batchExecutor.shutdown();
+
+    m_mutatorLock.lock();
+    try
+    {
+      m_flushCondition.signalAll();
+    }
+    finally
+    {
+      m_mutatorLock.unlock();
+    }
   }
 
   @Override
@@ -146,7 +213,7 @@ public class WriteBuffer<RowKeyType, ColumnKeyType, ValueType>  implements Runna
       }
       catch (InterruptedException ignored) {}
 
-      LinkedList<WriteRequest> pending = null;
+      List<WriteRequest> pending = null;
       
       if (m_bufferCount != 0)
       {
@@ -156,8 +223,9 @@ public class WriteBuffer<RowKeyType, ColumnKeyType, ValueType>  implements Runna
           m_writeStats.saveWriteSize(m_bufferCount);
 
           pending = m_writeBuffer;
-          m_writeBuffer = new LinkedList<WriteRequest>();
+          m_writeBuffer = new ArrayList<WriteRequest>();
           m_bufferCount = 0;
+          m_flushStarted++;
           m_lockCondition.signalAll();
         }
         finally
@@ -166,45 +234,271 @@ public class WriteBuffer<RowKeyType, ColumnKeyType, ValueType>  implements Runna
         }
       }
 
-      try
+      if (pending != null)
       {
-        if (pending != null)
-          m_client.batchWriteItem(
-              new BatchWriteItemRequest().addRequestItemsEntry(m_tableName, pending));
+        flush(pending);
 
-        pending = null;
+        m_mutatorLock.lock();
+        try
+        {
+          m_flushDone++;
+          m_flushCondition.signalAll();
+        }
+        finally
+        {
+          m_mutatorLock.unlock();
+        }
       }
-      catch (Exception e)
+    }
+  }
+
+  /**
+   Sends the requests a round of concurrent batches at a time.
+   */
+  private void flush(List<WriteRequest> pending)
+  {
+    List<List<WriteRequest>> batches = toBatches(pending);
+    double consumedCapacity = 0.0;
+    int index = 0;
+
+    while (index < batches.size())
+    {
+      int count = Math.min(m_concurrentBatches, batches.size() - index);
+      List<Future<BatchResult>> futures = new ArrayList<Future<BatchResult>>();
+      for (int I = 0; I < count; I++)
+        futures.add(m_batchExecutor.submit(new BatchWriter(batches.get(index + I))));
+      index += count;
+
+      boolean throttled = false;
+      for (Future<BatchResult> future : futures)
       {
-        logger.error("Error sending data to DynamoDB", e);
+        try
+        {
+          BatchResult result = Uninterruptibles.getUninterruptibly(future);
+          consumedCapacity += result.m_consumedCapacity;
+          throttled |= result.m_throttled;
+        }
+        catch (ExecutionException e)
+        {
+          logger.error("Error sending data to DynamoDB", e.getCause());
+        }
+      }
 
-        m_maxBufferSize = m_maxBufferSize * 3 / 4;
+      adaptRate(throttled);
+    }
+
+    //Taking the lock lets the stats write to this buffer without waiting on it
+    m_mutatorLock.lock();
+    try
+    {
+      m_writeStats.saveConsumedCapacity(consumedCapacity);
+    }
+    finally
+    {
+      m_mutatorLock.unlock();
+    }
+  }
+
+  /**
+   Halves the batches in flight when throttled and adds one back after each
+   round that was not.  If one at a time is still throttled the buffer size is
+   reduced so writers are held back.
+   */
+  private void adaptRate(boolean throttled)
+  {
+    if (throttled)
+    {
+      if (m_concurrentBatches > 1)
+      {
+        m_concurrentBatches = m_concurrentBatches / 2;
+      }
+      else if (m_maxBufferSize > MAX_BATCH_SIZE)
+      {
+        m_maxBufferSize = Math.max(MAX_BATCH_SIZE, m_maxBufferSize * 3 / 4);
 
         logger.error("Reducing write buffer size to " + m_maxBufferSize + ".  " + 
             "You need to increase your dynamodb capacity or change the " + 
                 "kairosdb.datastore.dynamodb.write_buffer_max_size property.");
       }
+    }
+    else
+    {
+      if (m_concurrentBatches < MAX_CONCURRENT_BATCHES)
+        m_concurrentBatches++;
+      else if (m_maxBufferSize < m_initialMaxBufferSize)
+        m_maxBufferSize = Math.min(m_initialMaxBufferSize, m_maxBufferSize * 5 / 4 + 1);
+    }
+  }
+
+  /**
+   Splits the requests into batches of at most MAX_BATCH_SIZE, a later request
+   for a key replaces an earlier one.
+   */
+  private List<List<WriteRequest>> toBatches(List<WriteRequest> pending)
+  {
+    Map<Map<String, AttributeValue>, WriteRequest> requests =
+        new LinkedHashMap<Map<String, AttributeValue>, WriteRequest>();
+    for (WriteRequest request : pending)
+    {
+      Map<String, AttributeValue> key = getKey(request);
+      requests.remove(key);
+      requests.put(key, request);
+    }
 
-      // If the batch failed we will retry it without changing the buffer size.
-      while (pending != null)
+    List<List<WriteRequest>> ret = new ArrayList<List<WriteRequest>>();
+    List<WriteRequest> batch = new ArrayList<WriteRequest>(MAX_BATCH_SIZE);
+    for (WriteRequest request : requests.values())
+    {
+      if (batch.size() == MAX_BATCH_SIZE)
       {
+        ret.add(batch);
+        batch = new ArrayList<WriteRequest>(MAX_BATCH_SIZE);
+      }
+
+      batch.add(request);
+    }
+
+    if (!batch.isEmpty())
+      ret.add(batch);
+
+    return (ret);
+  }
+
+  private Map<String, AttributeValue> getKey(WriteRequest request)
+  {
+    Map<String, AttributeValue> item;
+    if (request.getPutRequest() != null)
+      item = request.getPutRequest().getItem();
+    else
+      item = request.getDeleteRequest().getKey();
+
+    Map<String, AttributeValue> key = new HashMap<String, AttributeValue>();
+    for (String attribute : m_keyAttributes)
+      key.put(attribute, item.get(attribute));
+
+    return (key);
+  }
+
+  private static boolean isThrottling(AmazonServiceException e)
+  {
+    return e instanceof ProvisionedThroughputExceededException || THROTTLING_ERRORS.contains(e.getErrorCode());
+  }
+
+  private static void backoff(int attempt)
+  {
+    long delay = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(attempt, 16));
+
+    //Jitter keeps the concurrent batches from retrying in step
+    Uninterruptibles.sleepUninterruptibly(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1),
+        TimeUnit.MILLISECONDS);
+  }
+
+  private static class BatchResult
+  {
+    private final double m_consumedCapacity;
+    private final boolean m_throttled;
+
+    public BatchResult(double consumedCapacity, boolean throttled)
+    {
+      m_consumedCapacity = consumedCapacity;
+      m_throttled = throttled;
+    }
+  }
+
+  /**
+   Writes one batch, retrying the unprocessed items until they all go through.
+   A batch DynamoDB rejects as invalid is written again in halves, an invalid
+   item on its own is dropped as it can never succeed.
+   */
+  private class BatchWriter implements Callable<BatchResult>
+  {
+    private final List<WriteRequest> m_batch;
+
+    public BatchWriter(List<WriteRequest> batch)
+    {
+      m_batch = batch;
+    }
+
+    @Override
+    public BatchResult call()
+    {
+      List<WriteRequest> batch = m_batch;
+      double consumedCapacity = 0.0;
+      boolean throttled = false;
+      int attempt = 0;
+
+      while (true)
+      {
+        Map<String, List<WriteRequest>> requestItems = new HashMap<String, List<WriteRequest>>();
+        requestItems.put(m_tableName, batch);
+
         try
         {
-          Thread.sleep(100);
-        }
-        catch (InterruptedException ignored){ }
+          BatchWriteItemResult result = m_client.batchWriteItem(new BatchWriteItemRequest()
+              .withRequestItems(requestItems)
+              .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL));
 
-        try
+          if (result.getConsumedCapacity() != null)
+          {
+            for (ConsumedCapacity capacity : result.getConsumedCapacity())
+              consumedCapacity += capacity.getCapacityUnits();
+          }
+
+          Map<String, List<WriteRequest>> unprocessedItems = result.getUnprocessedItems();
+          if (unprocessedItems == null || unprocessedItems.get(m_tableName) == null ||
+              unprocessedItems.get(m_tableName).isEmpty())
+            break;
+
+          //Items are left unprocessed when the table is over its throughput
+          batch = unprocessedItems.get(m_tableName);
+          throttled = true;
+        }
+        catch (AmazonServiceException e)
         {
-          m_client.batchWriteItem(
-              new BatchWriteItemRequest().addRequestItemsEntry(m_tableName, pending));
-          pending = null;
+          if (isThrottling(e))
+          {
+            throttled = true;
+          }
+          else if (VALIDATION_ERROR.equals(e.getErrorCode()))
+          {
+            BatchResult result = writeInvalidBatch(batch, e);
+            return new BatchResult(consumedCapacity + result.m_consumedCapacity,
+                throttled || result.m_throttled);
+          }
+          else
+          {
+            logger.error("Error sending data to DynamoDB", e);
+          }
         }
-        catch (Exception e)
+        catch (AmazonClientException e)
         {
-          logger.error("Error resending data to DynamoDB", e);
+          logger.error("Error sending data to DynamoDB", e);
         }
+
+        backoff(attempt++);
       }
+
+      return (new BatchResult(consumedCapacity, throttled));
+    }
+
+    /**
+     Drops the request if it is on its own, otherwise writes each half of the
+     batch separately so only the invalid requests are dropped.
+     */
+    private BatchResult writeInvalidBatch(List<WriteRequest> batch, AmazonServiceException e)
+    {
+      if (batch.size() == 1)
+      {
+        logger.error("Dropping write to " + m_tableName + " rejected by DynamoDB: " + batch.get(0), e);
+        return new BatchResult(0.0, false);
+      }
+
+      int middle = batch.size() / 2;
+      BatchResult first = new BatchWriter(new ArrayList<WriteRequest>(batch.subList(0, middle))).call();
+      BatchResult second = new BatchWriter(new ArrayList<WriteRequest>(batch.subList(middle, batch.size()))).call();
+
+      return new BatchResult(first.m_consumedCapacity + second.m_consumedCapacity,
+          first.m_throttled || second.m_throttled);
     }
   }
 }
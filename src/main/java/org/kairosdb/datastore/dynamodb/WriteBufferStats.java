@@ -24,4 +24,12 @@ public interface WriteBufferStats
 	 @param pendingWrites
 	 */
 	public void saveWriteSize(int pendingWrites);
+
+	/**
+	 Called after each flush with the write capacity units it used.  This is
+	 called with the buffer lock held so the data can be written back to the
+	 buffer without waiting on it.
+	 @param capacityUnits
+	 */
+	public void saveConsumedCapacity(double capacityUnits);
 }
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.util;
+
+import org.kairosdb.core.DataPoint;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ Compressed encoding for a block of data points, based on the Gorilla paper.
+ Timestamps are stored as the delta of the delta from the previous point,
+ doubles are XORed with the previous double and only the meaningful bits
+ are stored, longs are stored as the zig zag encoded delta from the previous
+ long.  Every point has a one bit type flag so a block can hold both.
+
+ The block starts with a version byte and the number of points, timestamps
+ are relative to the block time.
+ */
+public class DataPointBlock
+{
+	public static final byte VERSION = 0x1;
+
+	private static final int HEADER_SIZE = 5; //version + count
+
+	/**
+	 Encodes the data points, they must be sorted by timestamp and be within
+	 2^31 milliseconds of the block time.
+	 */
+	public static ByteBuffer encode(long blockTime, List<DataPoint> dataPoints)
+	{
+		BitWriter writer = new BitWriter(HEADER_SIZE + dataPoints.size() * 4);
+		writer.writeByte(VERSION);
+		writer.writeBits(dataPoints.size(), 32);
+
+		long prevTimestamp = blockTime;
+		long prevDelta = 0;
+		long prevLong = 0;
+		long prevDouble = 0;
+		int prevLeading = -1;
+		int prevTrailing = 0;
+
+		for (DataPoint dataPoint : dataPoints)
+		{
+			long timestamp = dataPoint.getTimestamp();
+			long delta = timestamp - prevTimestamp;
+			writeDeltaOfDelta(writer, delta - prevDelta);
+			prevTimestamp = timestamp;
+			prevDelta = delta;
+
+			if (dataPoint.isInteger())
+			{
+				writer.writeBit(0);
+				long value = dataPoint.getLongValue();
+				long zigZag = ((value - prevLong) << 1) ^ ((value - prevLong) >> 63);
+				prevLong = value;
+
+				if (zigZag == 0)
+					writer.writeBit(0);
+				else
+				{
+					int length = 64 - Long.numberOfLeadingZeros(zigZag);
+					writer.writeBit(1);
+					writer.writeBits(length - 1, 6);
+					writer.writeBits(zigZag, length);
+				}
+			}
+			else
+			{
+				writer.writeBit(1);
+				long bits = Double.doubleToRawLongBits(dataPoint.getDoubleValue());
+				long xor = bits ^ prevDouble;
+				prevDouble = bits;
+
+				if (xor == 0)
+					writer.writeBit(0);
+				else
+				{
+					writer.writeBit(1);
+					int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+					int trailing = Long.numberOfTrailingZeros(xor);
+
+					if (prevLeading != -1 && leading >= prevLeading && trailing >= prevTrailing)
+					{
+						//Fits in the previous window
+						writer.writeBit(0);
+						writer.writeBits(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+					}
+					else
+					{
+						int length = 64 - leading - trailing;
+						writer.writeBit(1);
+						writer.writeBits(leading, 5);
+						writer.writeBits(length - 1, 6);
+						writer.writeBits(xor >>> trailing, length);
+						prevLeading = leading;
+						prevTrailing = trailing;
+					}
+				}
+			}
+		}
+
+		return (writer.toByteBuffer());
+	}
+
+	private static void writeDeltaOfDelta(BitWriter writer, long dod)
+	{
+		if (dod == 0)
+			writer.writeBit(0);
+		else if (dod >= -64 && dod <= 63)
+		{
+			writer.writeBits(0x2, 2);
+			writer.writeBits(dod, 7);
+		}
+		else if (dod >= -256 && dod <= 255)
+		{
+			writer.writeBits(0x6, 3);
+			writer.writeBits(dod, 9);
+		}
+		else if (dod >= -2048 && dod <= 2047)
+		{
+			writer.writeBits(0xE, 4);
+			writer.writeBits(dod, 12);
+		}
+		else
+		{
+			writer.writeBits(0xF, 4);
+			writer.writeBits(dod, 32);
+		}
+	}
+
+	/**
+	 Decodes the whole block into a list.
+	 */
+	public static List<DataPoint> decode(long blockTime, ByteBuffer block)
+	{
+		Reader reader = new Reader(blockTime, block);
+		List<DataPoint> ret = new ArrayList<DataPoint>(reader.getCount());
+
+		while (reader.next())
+		{
+			if (reader.isInteger())
+				ret.add(new DataPoint(reader.getTimestamp(), reader.getLongValue()));
+			else
+				ret.add(new DataPoint(reader.getTimestamp(), reader.getDoubleValue()));
+		}
+
+		return (ret);
+	}
+
+	/**
+	 Steps through the points in a block without creating objects for them.
+	 */
+	public static class Reader
+	{
+		private final BitReader m_reader;
+		private final int m_count;
+		private int m_read = 0;
+
+		private long m_timestamp;
+		private long m_delta = 0;
+		private boolean m_isInteger;
+		private long m_longValue = 0;
+		private long m_doubleBits = 0;
+		private int m_leading = 0;
+		private int m_trailing = 0;
+
+		public Reader(long blockTime, ByteBuffer block)
+		{
+			m_reader = new BitReader(block.duplicate());
+			byte version = (byte) m_reader.readBits(8);
+			if (version != VERSION)
+				throw new IllegalArgumentException("Unknown data point block version " + version);
+
+			m_count = (int) m_reader.readBits(32);
+			m_timestamp = blockTime;
+		}
+
+		public int getCount()
+		{
+			return (m_count);
+		}
+
+		/**
+		 Moves to the next point.
+		 @return false when there are no more points
+		 */
+		public boolean next()
+		{
+			if (m_read == m_count)
+				return (false);
+
+			m_read++;
+			m_delta += readDeltaOfDelta();
+			m_timestamp += m_delta;
+
+			m_isInteger = (m_reader.readBit() == 0);
+			if (m_isInteger)
+			{
+				if (m_reader.readBit() == 1)
+				{
+					int length = (int) m_reader.readBits(6) + 1;
+					long zigZag = m_reader.readBits(length);
+					m_longValue += (zigZag >>> 1) ^ -(zigZag & 1);
+				}
+			}
+			else
+			{
+				if (m_reader.readBit() == 1)
+				{
+					if (m_reader.readBit() == 1)
+					{
+						m_leading = (int) m_reader.readBits(5);
+						int length = (int) m_reader.readBits(6) + 1;
+						m_trailing = 64 - m_leading - length;
+					}
+
+					long xor = m_reader.readBits(64 - m_leading - m_trailing) << m_trailing;
+					m_doubleBits ^= xor;
+				}
+			}
+
+			return (true);
+		}
+
+		private long readDeltaOfDelta()
+		{
+			if (m_reader.readBit() == 0)
+				return (0);
+			if (m_reader.readBit() == 0)
+				return (m_reader.readSignedBits(7));
+			if (m_reader.readBit() == 0)
+				return (m_reader.readSignedBits(9));
+			if (m_reader.readBit() == 0)
+				return (m_reader.readSignedBits(12));
+
+			return (m_reader.readSignedBits(32));
+		}
+
+		public long getTimestamp()
+		{
+			return (m_timestamp);
+		}
+
+		public boolean isInteger()
+		{
+			return (m_isInteger);
+		}
+
+		public long getLongValue()
+		{
+			return (m_longValue);
+		}
+
+		public double getDoubleValue()
+		{
+			return (Double.longBitsToDouble(m_doubleBits));
+		}
+	}
+
+	private static class BitWriter
+	{
+		private byte[] m_buffer;
+		private int m_bitPosition = 0;
+
+		public BitWriter(int initialSize)
+		{
+			m_buffer = new byte[Math.max(16, initialSize)];
+		}
+
+		public void writeBit(int bit)
+		{
+			ensureCapacity(1);
+			if (bit != 0)
+				m_buffer[m_bitPosition >>> 3] |= (byte) (0x80 >>> (m_bitPosition & 0x7));
+			m_bitPosition++;
+		}
+
+		public void writeByte(byte value)
+		{
+			writeBits(value & 0xFF, 8);
+		}
+
+		/**
+		 Writes the low count bits of value, most significant first.
+		 */
+		public void writeBits(long value, int count)
+		{
+			ensureCapacity(count);
+			for (int I = count - 1; I >= 0; I--)
+			{
+				if (((value >>> I) & 0x1) != 0)
+					m_buffer[m_bitPosition >>> 3] |= (byte) (0x80 >>> (m_bitPosition & 0x7));
+				m_bitPosition++;
+			}
+		}
+
+		private void ensureCapacity(int bits)
+		{
+			int needed = (m_bitPosition + bits + 7) >>> 3;
+			if (needed > m_buffer.length)
+			{
+				byte[] buffer = new byte[Math.max(needed, m_buffer.length * 2)];
+				System.arraycopy(m_buffer, 0, buffer, 0, m_buffer.length);
+				m_buffer = buffer;
+			}
+		}
+
+		public ByteBuffer toByteBuffer()
+		{
+			return (ByteBuffer.wrap(m_buffer, 0, (m_bitPosition + 7) >>> 3).slice());
+		}
+	}
+
+	private static class BitReader
+	{
+		private final ByteBuffer m_buffer;
+		private final int m_start;
+		private long m_bitPosition = 0;
+
+		public BitReader(ByteBuffer buffer)
+		{
+			m_buffer = buffer;
+			m_start = buffer.position();
+		}
+
+		public int readBit()
+		{
+			int b = m_buffer.get(m_start + (int) (m_bitPosition >>> 3));
+			int bit = (b >>> (7 - (int) (m_bitPosition & 0x7))) & 0x1;
+			m_bitPosition++;
+			return (bit);
+		}
+
+		public long readBits(int count)
+		{
+			long ret = 0;
+			for (int I = 0; I < count; I++)
+				ret = (ret << 1) | readBit();
+
+			return (ret);
+		}
+
+		/**
+		 Reads count bits and sign extends them.
+		 */
+		public long readSignedBits(int count)
+		{
+			long value = readBits(count);
+			return ((value << (64 - count)) >> (64 - count));
+		}
+	}
+}
@@ -17,6 +17,7 @@
 package org.kairosdb.util;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  Created with IntelliJ IDEA.
@@ -24,20 +25,46 @@ import java.util.concurrent.ConcurrentHashMap;
  Date: 10/16/13
  Time: 9:44 AM
  To change this template use File | Settings | File Templates.
+
+ A pool with a maximum size is cleared once it fills up so a long lived pool
+ shared by many threads only holds on to the strings currently in use.
  */
 public class StringPool
 {
 	private ConcurrentHashMap<String, String> m_stringPool;
+	private final int m_maxSize;
+	private final AtomicInteger m_size = new AtomicInteger();
 
 	public StringPool()
+	{
+		this(0);
+	}
+
+	/**
+	 @param maxSize Most strings held at one time, zero for no limit
+	 */
+	public StringPool(int maxSize)
 	{
 		m_stringPool = new ConcurrentHashMap<String, String>();
+		m_maxSize = maxSize;
 	}
 
 	public String getString(String str)
 	{
-		String ret = m_stringPool.putIfAbsent(str, str);
+		String ret = m_stringPool.get(str);
+		if (ret != null)
+			return (ret);
+
+		ret = m_stringPool.putIfAbsent(str, str);
+		if (ret != null)
+			return (ret);
+
+		if (m_maxSize > 0 && m_size.incrementAndGet() > m_maxSize)
+		{
+			m_size.set(0);
+			m_stringPool.clear();
+		}
 
-		return (ret == null) ? str : ret;
+		return (str);
 	}
 }
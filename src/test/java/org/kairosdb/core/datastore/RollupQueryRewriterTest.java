@@ -0,0 +1,154 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.core.datastore;
+
+import org.junit.Test;
+import org.kairosdb.core.aggregator.AvgAggregator;
+import org.kairosdb.core.aggregator.RangeAggregator;
+import org.kairosdb.core.aggregator.SumAggregator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+public class RollupQueryRewriterTest
+{
+	private static final long HOUR = 3600000L;
+
+	private static class TestRollupDatastore implements RollupDatastore
+	{
+		private final List<Rollup> m_rollups = new ArrayList<Rollup>();
+
+		public void addRollup(String name, int hours)
+		{
+			addRollup(name, hours, Rollup.SUM, Rollup.MIN, Rollup.MAX);
+		}
+
+		public void addRollup(String name, int hours, String... aggregators)
+		{
+			m_rollups.add(new Rollup(name, "metric.*", new Sampling(hours, TimeUnit.HOURS),
+					Arrays.asList(aggregators)));
+		}
+
+		@Override
+		public List<Rollup> getRollups()
+		{
+			return (m_rollups);
+		}
+
+		@Override
+		public long getRollupStartTime(Rollup rollup)
+		{
+			return (0L);
+		}
+
+		@Override
+		public long getRollupEndTime(Rollup rollup)
+		{
+			return (1000 * HOUR);
+		}
+
+		@Override
+		public void queryRollup(Rollup rollup, String aggregator, DatastoreMetricQuery query,
+				QueryCallback queryCallback)
+		{
+		}
+	}
+
+	private QueryMetric createQuery(RangeAggregator aggregator, long startTime, long endTime, int hours)
+	{
+		aggregator.setSampling(new Sampling(hours, TimeUnit.HOURS));
+		aggregator.setStartTime(startTime);
+
+		return (new QueryMetric(startTime, endTime, 0, "metric1").addAggregator(aggregator));
+	}
+
+	@Test
+	public void test_alignedSumRewritten() throws Exception
+	{
+		TestRollupDatastore datastore = new TestRollupDatastore();
+		datastore.addRollup("hourly", 1);
+
+		//Ranges start at midnight
+		SumAggregator aggregator = new SumAggregator();
+		aggregator.setAlignSampling(true);
+		QueryMetric query = createQuery(aggregator, 10 * HOUR + 5, 20 * HOUR - 1, 2);
+		RollupQuery rollupQuery = new RollupQueryRewriter(datastore).rewrite(query);
+
+		//The partial first hour is read from the raw data
+		assertThat(rollupQuery.getRollup().getName(), equalTo("hourly"));
+		assertThat(rollupQuery.getAggregator(), equalTo(Rollup.SUM));
+		assertThat(rollupQuery.getRollupStartTime(), equalTo(11 * HOUR));
+		assertThat(rollupQuery.getRollupEndTime(), equalTo(20 * HOUR));
+	}
+
+	@Test
+	public void test_unalignedRangesNotRewritten() throws Exception
+	{
+		TestRollupDatastore datastore = new TestRollupDatastore();
+		datastore.addRollup("hourly", 1);
+
+		SumAggregator aggregator = new SumAggregator();
+		aggregator.setAlignSampling(false);
+		QueryMetric query = createQuery(aggregator, 10 * HOUR + 5, 20 * HOUR, 2);
+
+		assertThat(new RollupQueryRewriter(datastore).rewrite(query), nullValue());
+	}
+
+	@Test
+	public void test_avgWithoutCountNotRewritten() throws Exception
+	{
+		TestRollupDatastore datastore = new TestRollupDatastore();
+		datastore.addRollup("hourly", 1);
+
+		QueryMetric query = createQuery(new AvgAggregator(), 10 * HOUR, 20 * HOUR, 2);
+
+		assertThat(new RollupQueryRewriter(datastore).rewrite(query), nullValue());
+	}
+
+	@Test
+	public void test_avgRewrittenWithSumAndCount() throws Exception
+	{
+		TestRollupDatastore datastore = new TestRollupDatastore();
+		datastore.addRollup("hourly", 1, Rollup.SUM, Rollup.COUNT);
+
+		QueryMetric query = createQuery(new AvgAggregator(), 10 * HOUR, 20 * HOUR - 1, 2);
+		RollupQuery rollupQuery = new RollupQueryRewriter(datastore).rewrite(query);
+
+		assertThat(rollupQuery.getAggregator(), equalTo(Rollup.AVG));
+		assertThat(rollupQuery.getRollupStartTime(), equalTo(10 * HOUR));
+		assertThat(rollupQuery.getRollupEndTime(), equalTo(20 * HOUR));
+	}
+
+	@Test
+	public void test_coarsestRollupChosen() throws Exception
+	{
+		TestRollupDatastore datastore = new TestRollupDatastore();
+		datastore.addRollup("hourly", 1);
+		datastore.addRollup("six_hourly", 6);
+		datastore.addRollup("four_hourly", 4);
+
+		QueryMetric query = createQuery(new SumAggregator(), 0L, 48 * HOUR - 1, 12);
+
+		RollupQuery rollupQuery = new RollupQueryRewriter(datastore).rewrite(query);
+		assertThat(rollupQuery.getRollup().getName(), equalTo("six_hourly"));
+	}
+}
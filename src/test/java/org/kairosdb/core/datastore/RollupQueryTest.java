@@ -0,0 +1,310 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.core.datastore;
+
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.aggregator.Aggregator;
+import org.kairosdb.core.aggregator.AvgAggregator;
+import org.kairosdb.core.aggregator.SumAggregator;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.testing.ListDataPointGroup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class RollupQueryTest
+{
+	private static final long HOUR = 3600000L;
+	private static final long MINUTE = 60000L;
+
+	private static final Rollup ROLLUP = new Rollup("hourly", "metric.*", new Sampling(1, TimeUnit.HOURS),
+			Arrays.asList(Rollup.SUM, Rollup.COUNT, Rollup.MIN, Rollup.MAX));
+
+	/**
+	 Answers raw queries from a list of data points and rollup queries from a
+	 list per aggregator, recording the range of each query.
+	 */
+	private static class TestDatastore implements Datastore, RollupDatastore
+	{
+		private final List<DataPoint> m_dataPoints = new ArrayList<DataPoint>();
+		private final Map<String, List<DataPoint>> m_rollupPoints = new HashMap<String, List<DataPoint>>();
+		private final List<String> m_queries = new ArrayList<String>();
+
+		public void addDataPoint(DataPoint dataPoint)
+		{
+			m_dataPoints.add(dataPoint);
+		}
+
+		public void addRollupPoint(String aggregator, DataPoint dataPoint)
+		{
+			if (!m_rollupPoints.containsKey(aggregator))
+				m_rollupPoints.put(aggregator, new ArrayList<DataPoint>());
+
+			m_rollupPoints.get(aggregator).add(dataPoint);
+		}
+
+		public List<String> getQueries()
+		{
+			return (m_queries);
+		}
+
+		private static void sendDataPoints(List<DataPoint> dataPoints, DatastoreMetricQuery query,
+				QueryCallback queryCallback) throws DatastoreException
+		{
+			try
+			{
+				queryCallback.startDataPointSet(Collections.<String, String>emptyMap());
+				for (DataPoint dataPoint : dataPoints)
+				{
+					if (dataPoint.getTimestamp() < query.getStartTime() || dataPoint.getTimestamp() > query.getEndTime())
+						continue;
+
+					if (dataPoint.isInteger())
+						queryCallback.addDataPoint(dataPoint.getTimestamp(), dataPoint.getLongValue());
+					else
+						queryCallback.addDataPoint(dataPoint.getTimestamp(), dataPoint.getDoubleValue());
+				}
+				queryCallback.endDataPoints();
+			}
+			catch (IOException e)
+			{
+				throw new DatastoreException(e);
+			}
+		}
+
+		@Override
+		public void queryDatabase(DatastoreMetricQuery query, QueryCallback queryCallback) throws DatastoreException
+		{
+			m_queries.add("raw " + query.getStartTime() + "-" + query.getEndTime());
+			sendDataPoints(m_dataPoints, query, queryCallback);
+		}
+
+		@Override
+		public void queryRollup(Rollup rollup, String aggregator, DatastoreMetricQuery query,
+				QueryCallback queryCallback) throws DatastoreException
+		{
+			m_queries.add(aggregator + " " + query.getStartTime() + "-" + query.getEndTime());
+			List<DataPoint> dataPoints = m_rollupPoints.get(aggregator);
+			sendDataPoints(dataPoints != null ? dataPoints : Collections.<DataPoint>emptyList(), query, queryCallback);
+		}
+
+		@Override
+		public List<Rollup> getRollups()
+		{
+			return (Collections.singletonList(ROLLUP));
+		}
+
+		@Override
+		public long getRollupStartTime(Rollup rollup)
+		{
+			return (0L);
+		}
+
+		@Override
+		public long getRollupEndTime(Rollup rollup)
+		{
+			return (1000 * HOUR);
+		}
+
+		@Override
+		public void close()
+		{
+		}
+
+		@Override
+		public void putDataPoints(DataPointSet dps)
+		{
+		}
+
+		@Override
+		public Iterable<String> getMetricNames()
+		{
+			return (Collections.emptyList());
+		}
+
+		@Override
+		public Iterable<String> getTagNames()
+		{
+			return (Collections.emptyList());
+		}
+
+		@Override
+		public Iterable<String> getTagValues()
+		{
+			return (Collections.emptyList());
+		}
+
+		@Override
+		public void deleteDataPoints(DatastoreMetricQuery deleteQuery)
+		{
+		}
+
+		@Override
+		public TagSet queryMetricTags(DatastoreMetricQuery query)
+		{
+			return (null);
+		}
+	}
+
+	/**
+	 Collects the data points of all the parts in time order.
+	 */
+	private static class ListCallback implements QueryCallback
+	{
+		private final List<DataPoint> m_dataPoints = new ArrayList<DataPoint>();
+		private int m_endCount = 0;
+
+		@Override
+		public void addDataPoint(long timestamp, long value)
+		{
+			m_dataPoints.add(new DataPoint(timestamp, value));
+		}
+
+		@Override
+		public void addDataPoint(long timestamp, double value)
+		{
+			m_dataPoints.add(new DataPoint(timestamp, value));
+		}
+
+		@Override
+		public void startDataPointSet(Map<String, String> tags)
+		{
+		}
+
+		@Override
+		public void endDataPoints()
+		{
+			m_endCount++;
+		}
+
+		public ListDataPointGroup getGroup()
+		{
+			List<DataPoint> dataPoints = new ArrayList<DataPoint>(m_dataPoints);
+			Collections.sort(dataPoints, new Comparator<DataPoint>()
+			{
+				@Override
+				public int compare(DataPoint dp1, DataPoint dp2)
+				{
+					return (Long.compare(dp1.getTimestamp(), dp2.getTimestamp()));
+				}
+			});
+
+			ListDataPointGroup group = new ListDataPointGroup("metric1");
+			for (DataPoint dataPoint : dataPoints)
+				group.addDataPoint(dataPoint);
+
+			return (group);
+		}
+	}
+
+	private QueryMetric createQuery(Aggregator aggregator, long startTime, long endTime)
+	{
+		return (new QueryMetric(startTime, endTime, 0, "metric1").addAggregator(aggregator));
+	}
+
+	@Test
+	public void test_run_rawHeadAndTailAroundRollup() throws Exception
+	{
+		TestDatastore datastore = new TestDatastore();
+		datastore.addDataPoint(new DataPoint(10 * HOUR + 30 * MINUTE, 1L));
+		datastore.addDataPoint(new DataPoint(11 * HOUR + 30 * MINUTE, 100L));
+		datastore.addDataPoint(new DataPoint(15 * HOUR + 30 * MINUTE, 3L));
+		datastore.addRollupPoint(Rollup.SUM, new DataPoint(11 * HOUR + 10 * MINUTE, 2L));
+
+		QueryMetric query = createQuery(new SumAggregator(), 10 * HOUR + 5, 20 * HOUR - 1);
+		RollupQuery rollupQuery = new RollupQuery(datastore, query, ROLLUP, Rollup.SUM, 11 * HOUR, 15 * HOUR);
+
+		ListCallback callback = new ListCallback();
+		rollupQuery.run(datastore, callback);
+
+		assertThat(datastore.getQueries(), equalTo(Arrays.asList(
+				"raw " + (10 * HOUR + 5) + "-" + (11 * HOUR - 1),
+				"sum " + (11 * HOUR) + "-" + (15 * HOUR - 1),
+				"raw " + (15 * HOUR) + "-" + (20 * HOUR - 1))));
+
+		//The raw point inside the rollup is not read twice
+		assertThat(callback.m_dataPoints, equalTo(Arrays.asList(
+				new DataPoint(10 * HOUR + 30 * MINUTE, 1L),
+				new DataPoint(11 * HOUR + 10 * MINUTE, 2L),
+				new DataPoint(15 * HOUR + 30 * MINUTE, 3L))));
+
+		//The parts are one result
+		assertThat(callback.m_endCount, equalTo(1));
+		assertThat(rollupQuery.getAggregators(query.getAggregators()), equalTo(query.getAggregators()));
+	}
+
+	@Test
+	public void test_run_noRawPartsWhenRollupCoversQuery() throws Exception
+	{
+		TestDatastore datastore = new TestDatastore();
+
+		QueryMetric query = createQuery(new SumAggregator(), 10 * HOUR, 20 * HOUR - 1);
+		RollupQuery rollupQuery = new RollupQuery(datastore, query, ROLLUP, Rollup.SUM, 10 * HOUR, 20 * HOUR);
+
+		rollupQuery.run(datastore, new ListCallback());
+
+		assertThat(datastore.getQueries(), equalTo(Collections.singletonList(
+				"sum " + (10 * HOUR) + "-" + (20 * HOUR - 1))));
+	}
+
+	@Test
+	public void test_run_avgFromSumsAndCounts() throws Exception
+	{
+		TestDatastore datastore = new TestDatastore();
+		datastore.addDataPoint(new DataPoint(10 * HOUR + 30 * MINUTE, 2L));
+		datastore.addDataPoint(new DataPoint(13 * HOUR + 10 * MINUTE, 1.5));
+		datastore.addRollupPoint(Rollup.SUM, new DataPoint(11 * HOUR + 5 * MINUTE, 10L));
+		datastore.addRollupPoint(Rollup.COUNT, new DataPoint(11 * HOUR + 5 * MINUTE, 4L));
+		datastore.addRollupPoint(Rollup.SUM, new DataPoint(12 * HOUR, 6.5));
+		datastore.addRollupPoint(Rollup.COUNT, new DataPoint(12 * HOUR, 2L));
+
+		AvgAggregator avg = new AvgAggregator();
+		avg.setSampling(new Sampling(4, TimeUnit.HOURS));
+		avg.setStartTime(10 * HOUR);
+		QueryMetric query = createQuery(avg, 10 * HOUR, 14 * HOUR - 1);
+		RollupQuery rollupQuery = new RollupQuery(datastore, query, ROLLUP, Rollup.AVG, 11 * HOUR, 13 * HOUR);
+
+		ListCallback callback = new ListCallback();
+		rollupQuery.run(datastore, callback);
+
+		assertThat(datastore.getQueries(), equalTo(Arrays.asList(
+				"raw " + (10 * HOUR) + "-" + (11 * HOUR - 1),
+				"sum " + (11 * HOUR) + "-" + (13 * HOUR - 1),
+				"count " + (11 * HOUR) + "-" + (13 * HOUR - 1),
+				"raw " + (13 * HOUR) + "-" + (14 * HOUR - 1))));
+
+		//(2 + 10 + 6.5 + 1.5) / (1 + 4 + 2 + 1), not the average of the averages
+		List<Aggregator> aggregators = rollupQuery.getAggregators(query.getAggregators());
+		DataPointGroup result = aggregators.get(0).aggregate(callback.getGroup());
+
+		DataPoint dataPoint = result.next();
+		assertThat(dataPoint.getTimestamp(), equalTo(10 * HOUR + 30 * MINUTE));
+		assertThat(dataPoint.getDoubleValue(), equalTo(2.5));
+		assertThat(result.hasNext(), equalTo(false));
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.core.reporting;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class ThreadReporterTest
+{
+	@After
+	public void clear()
+	{
+		ThreadReporter.clear();
+		ThreadReporter.clearTags();
+	}
+
+	@Test
+	public void test_takeSummedData() throws Exception
+	{
+		ThreadReporter.addDataPoint("a", 2);
+		ThreadReporter.addDataPoint("b", 5);
+		ThreadReporter.addDataPoint("a", 3);
+
+		Map<String, Long> data = ThreadReporter.takeSummedData();
+
+		assertThat(data.size(), equalTo(2));
+		assertThat(data.get("a"), equalTo(5L));
+		assertThat(data.get("b"), equalTo(5L));
+		assertThat(ThreadReporter.takeSummedData().size(), equalTo(0));
+	}
+
+	@Test
+	public void test_takeSummedDataOnlyTakesThisThread() throws Exception
+	{
+		ThreadReporter.addDataPoint("a", 1);
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			Map<String, Long> data = executor.submit(new Callable<Map<String, Long>>()
+			{
+				@Override
+				public Map<String, Long> call()
+				{
+					ThreadReporter.addDataPoint("a", 10);
+					return (ThreadReporter.takeSummedData());
+				}
+			}).get();
+
+			assertThat(data.get("a"), equalTo(10L));
+			assertThat(ThreadReporter.takeSummedData().get("a"), equalTo(1L));
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+}
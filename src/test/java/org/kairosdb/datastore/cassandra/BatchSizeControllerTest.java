@@ -0,0 +1,76 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.datastore.cassandra;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class BatchSizeControllerTest
+{
+	@Test
+	public void test_startsAtMax()
+	{
+		BatchSizeController controller = new BatchSizeController(100, 1000, 500);
+
+		assertThat(controller.getBatchSize(), equalTo(1000));
+	}
+
+	@Test
+	public void test_slowBatchHalvesSize()
+	{
+		BatchSizeController controller = new BatchSizeController(100, 1000, 500);
+
+		controller.batchSucceeded(501);
+		assertThat(controller.getBatchSize(), equalTo(500));
+
+		controller.batchSucceeded(1000);
+		assertThat(controller.getBatchSize(), equalTo(250));
+	}
+
+	@Test
+	public void test_fastBatchIncreasesSizeUpToMax()
+	{
+		BatchSizeController controller = new BatchSizeController(100, 1000, 500);
+
+		controller.batchFailed();
+		assertThat(controller.getBatchSize(), equalTo(250));
+
+		controller.batchSucceeded(10);
+		assertThat(controller.getBatchSize(), equalTo(350));
+
+		for (int I = 0; I < 20; I++)
+			controller.batchSucceeded(10);
+
+		assertThat(controller.getBatchSize(), equalTo(1000));
+	}
+
+	@Test
+	public void test_neverBelowMin()
+	{
+		BatchSizeController controller = new BatchSizeController(100, 1000, 500);
+
+		for (int I = 0; I < 10; I++)
+			controller.batchFailed();
+
+		assertThat(controller.getBatchSize(), equalTo(100));
+
+		controller.batchSucceeded(1000);
+		assertThat(controller.getBatchSize(), equalTo(100));
+	}
+}
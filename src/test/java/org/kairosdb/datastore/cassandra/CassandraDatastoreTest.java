@@ -18,6 +18,14 @@ package org.kairosdb.datastore.cassandra;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.SetMultimap;
+import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
+import me.prettyprint.cassandra.serializers.IntegerSerializer;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.cassandra.service.CassandraHostConfigurator;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.Mutator;
 import org.hamcrest.CoreMatchers;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -32,6 +40,7 @@ import org.kairosdb.datastore.DatastoreMetricQueryImpl;
 import org.kairosdb.datastore.DatastoreTestHelper;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import static junit.framework.Assert.assertFalse;
@@ -40,6 +49,7 @@ import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.core.Is.is;
 
 
@@ -54,6 +64,14 @@ public class CassandraDatastoreTest extends DatastoreTestHelper
 
 	private static Random random = new Random();
 	private static CassandraDatastore s_datastore;
+	//Keeps data points in one minute blocks that can be compacted right away
+	//and rolls up hourly periods as soon as they are over
+	private static CassandraDatastore s_blockDatastore;
+	private static Rollup s_hourlyRollup;
+	private static Rollup s_minutelyRollup;
+	//Reads the TTLs the datastores write with
+	private static Keyspace s_keyspace;
+	private static final long HOUR = 3600000L;
 	private static long s_dataPointTime;
 	public static final HashMultimap<String,String> EMPTY_MAP = HashMultimap.create();
 
@@ -168,8 +186,28 @@ public class CassandraDatastoreTest extends DatastoreTestHelper
 	@BeforeClass
 	public static void setupDatastore() throws InterruptedException, DatastoreException
 	{
-		s_datastore = new CassandraDatastore("localhost:9160",
-				null, 1, MAX_ROW_READ_SIZE, MAX_ROW_READ_SIZE, MAX_ROW_READ_SIZE, 1000, 50000, "hostname");
+		s_datastore = new CassandraDatastore(new CassandraHostConfigurator("localhost:9160"),
+				null, 1, MAX_ROW_READ_SIZE, MAX_ROW_READ_SIZE, MAX_ROW_READ_SIZE, 1000, 50000, 0, 2, 10000, 4194304L, 1000L, 4, 4, 1024, 1024, 0L, 600000L, true,
+				Collections.<Rollup>emptyList(), 600000L, "hostname");
+
+		//Rollup times are kept in Cassandra so each run gets its own rollup
+		s_hourlyRollup = new Rollup("hourly" + System.currentTimeMillis(), "RollupMetric.*",
+				new Sampling(1, TimeUnit.HOURS), Arrays.asList(Rollup.SUM, Rollup.COUNT, Rollup.MIN, Rollup.MAX));
+		s_minutelyRollup = new Rollup("minutely" + System.currentTimeMillis(), "PartialDeleteMetric.*",
+				new Sampling(1, TimeUnit.MINUTES), Arrays.asList(Rollup.SUM, Rollup.COUNT));
+
+		s_blockDatastore = new CassandraDatastore(new CassandraHostConfigurator("localhost:9160"),
+				null, 1, MAX_ROW_READ_SIZE, MAX_ROW_READ_SIZE, MAX_ROW_READ_SIZE, 1000, 50000, 0, 2, 10000, 4194304L, 1000L, 4, 4, 1024, 1024, 60000L, 0L, true,
+				Arrays.asList(s_hourlyRollup, s_minutelyRollup), 0L, "hostname");
+
+		//Metrics starting with Ttl are kept an hour, those starting with Narrow
+		//have hour wide rows
+		s_blockDatastore.setRetentionPolicies(Arrays.asList(new RetentionPolicy("Ttl.*", 3600),
+				new RetentionPolicy("NarrowTtl.*", 3600)));
+		s_blockDatastore.setRowWidthPolicies(Collections.singletonList(new RowWidthPolicy("Narrow.*", HOUR)));
+
+		s_keyspace = HFactory.createKeyspace(CassandraDatastore.KEYSPACE,
+				HFactory.getOrCreateCluster("kairosdb-cluster", new CassandraHostConfigurator("localhost:9160")));
 
 		DatastoreTestHelper.s_datastore = new KairosDatastore(s_datastore,
 				new QueryQueuingManager(1, "hostname"),
@@ -189,6 +227,7 @@ public class CassandraDatastoreTest extends DatastoreTestHelper
 			deleteMetric(metricName);
 		}
 
+		s_blockDatastore.close();
 		s_datastore.close();
 	}
 
@@ -232,6 +271,66 @@ public class CassandraDatastoreTest extends DatastoreTestHelper
 		assertEquals(2, keys.size());
 	}
 
+	@Test
+	public void test_getKeysForQuery_acrossTagIndexStart() throws DatastoreException, InterruptedException
+	{
+		String metricName = "TagIndexStartMetric";
+		metricNames.add(metricName);
+
+		//Long before the tag index was turned on so the row is only in the row key index
+		long oldTime = 10 * CassandraDatastore.ROW_WIDTH;
+
+		for (String host : new String[]{"A", "B"})
+		{
+			DataPointSet dps = new DataPointSet(metricName);
+			dps.addTag("host", host);
+			dps.addDataPoint(new DataPoint(oldTime, 1));
+			dps.addDataPoint(new DataPoint(s_dataPointTime, 2));
+			s_datastore.putDataPoints(dps);
+		}
+		Thread.sleep(2000);
+
+		SetMultimap<String, String> tagFilter = HashMultimap.create();
+		tagFilter.put("host", "A");
+		DatastoreMetricQuery query = new DatastoreMetricQueryImpl(metricName,
+				tagFilter, oldTime, s_dataPointTime);
+
+		List<DataPointsRowKey> keys = readIterator(s_datastore.getKeysForQueryIterator(query));
+
+		assertEquals(2, keys.size());
+		assertThat(keys.get(0).getTimestamp(), equalTo(CassandraDatastore.calculateRowTime(oldTime)));
+		assertThat(keys.get(1).getTimestamp(), equalTo(CassandraDatastore.calculateRowTime(s_dataPointTime)));
+		for (DataPointsRowKey key : keys)
+			assertThat(key.getTags().get("host"), equalTo("A"));
+	}
+
+	@Test
+	public void test_readTagIndexStart_latestNodeWins()
+	{
+		long start = s_datastore.readTagIndexStart();
+		assertThat(start <= System.currentTimeMillis(), is(true));
+
+		//Another node that turned the index on later
+		long otherStart = System.currentTimeMillis() + HOUR;
+		long clock = System.currentTimeMillis();
+		Mutator<String> mutator = HFactory.createMutator(s_keyspace, StringSerializer.get());
+		mutator.insert(CassandraDatastore.ROW_KEY_TAG_INDEX_START, CassandraDatastore.CF_STRING_INDEX,
+				HFactory.createColumn("otherhost", String.valueOf(otherStart), clock,
+						StringSerializer.get(), StringSerializer.get()));
+		try
+		{
+			assertThat(s_datastore.readTagIndexStart(), equalTo(otherStart));
+		}
+		finally
+		{
+			mutator.addDeletion(CassandraDatastore.ROW_KEY_TAG_INDEX_START, CassandraDatastore.CF_STRING_INDEX,
+					"otherhost", StringSerializer.get(), clock + 1);
+			mutator.execute();
+		}
+
+		assertThat(s_datastore.readTagIndexStart(), equalTo(start));
+	}
+
 	@Test
 	public void test_rowLargerThanMaxReadSize() throws DatastoreException
 	{
@@ -432,6 +531,486 @@ public class CassandraDatastoreTest extends DatastoreTestHelper
 		s_datastore.putDataPoints(set);
 	}
 
+	@Test
+	public void test_queryDatabase_pointInBlockAndRawColumnReturnedOnce() throws IOException, DatastoreException, InterruptedException
+	{
+		String metricName = "BlockAndRawMetric";
+		metricNames.add(metricName);
+		long rowKeyTime = CassandraDatastore.calculateRowTime(s_dataPointTime) - CassandraDatastore.ROW_WIDTH;
+
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", "A");
+		for (int I = 0; I < 10; I++)
+			dps.addDataPoint(new DataPoint(rowKeyTime + I * 1000L, I));
+
+		s_blockDatastore.putDataPoints(dps);
+		Thread.sleep(2000);
+		s_blockDatastore.compactBlocks();
+
+		//Written again the points are in both the block and the raw columns
+		s_blockDatastore.putDataPoints(dps);
+		Thread.sleep(2000);
+
+		DatastoreMetricQuery query = new DatastoreMetricQueryImpl(metricName, EMPTY_MAP,
+				rowKeyTime, rowKeyTime + CassandraDatastore.ROW_WIDTH - 1);
+		CachedSearchResult res = createCache(metricName);
+		s_blockDatastore.queryDatabase(query, res);
+
+		int count = 0;
+		long total = 0;
+		for (DataPointRow row : res.getRows())
+		{
+			while (row.hasNext())
+			{
+				total += row.next().getLongValue();
+				count++;
+			}
+			row.close();
+		}
+
+		assertThat(count, equalTo(10));
+		assertThat(total, equalTo(45L));
+	}
+
+	private double queryRollupTotal(Rollup rollup, String aggregator, String metricName, long startTime, long endTime)
+			throws IOException, DatastoreException
+	{
+		DatastoreMetricQuery query = new DatastoreMetricQueryImpl(metricName, EMPTY_MAP, startTime, endTime);
+		CachedSearchResult res = createCache(metricName);
+		s_blockDatastore.queryRollup(rollup, aggregator, query, res);
+
+		double total = 0;
+		for (DataPointRow row : res.getRows())
+		{
+			while (row.hasNext())
+			{
+				DataPoint dataPoint = row.next();
+				total += (dataPoint.isInteger() ? dataPoint.getLongValue() : dataPoint.getDoubleValue());
+			}
+			row.close();
+		}
+
+		return (total);
+	}
+
+	@Test
+	public void test_updateRollups_latePointsAndDeletes() throws IOException, DatastoreException, InterruptedException
+	{
+		String metricName = "RollupMetric";
+		metricNames.add(metricName);
+		long hour = 3600000L;
+		long startTime = s_blockDatastore.getRollupStartTime(s_hourlyRollup);
+
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", "A");
+		dps.addDataPoint(new DataPoint(startTime + 1000, 1));
+		dps.addDataPoint(new DataPoint(startTime + 2000, 2));
+		dps.addDataPoint(new DataPoint(startTime + hour + 1000, 3));
+		s_blockDatastore.putDataPoints(dps);
+		Thread.sleep(2000);
+
+		s_blockDatastore.updateRollups(startTime + 2 * hour);
+		assertThat(s_blockDatastore.getRollupEndTime(s_hourlyRollup), equalTo(startTime + 2 * hour));
+		assertThat(queryRollupTotal(s_hourlyRollup, Rollup.SUM, metricName, startTime, startTime + 2 * hour - 1), equalTo(6.0));
+		assertThat(queryRollupTotal(s_hourlyRollup, Rollup.COUNT, metricName, startTime, startTime + 2 * hour - 1), equalTo(3.0));
+
+		//A point for a period already rolled up has it rolled up again
+		dps = new DataPointSet(metricName);
+		dps.addTag("host", "A");
+		dps.addDataPoint(new DataPoint(startTime + 3000, 4));
+		s_blockDatastore.putDataPoints(dps);
+		Thread.sleep(2000);
+
+		s_blockDatastore.updateRollups(startTime + 2 * hour);
+		assertThat(queryRollupTotal(s_hourlyRollup, Rollup.SUM, metricName, startTime, startTime + 2 * hour - 1), equalTo(10.0));
+		assertThat(queryRollupTotal(s_hourlyRollup, Rollup.COUNT, metricName, startTime, startTime + 2 * hour - 1), equalTo(4.0));
+		assertThat(queryRollupTotal(s_hourlyRollup, Rollup.MAX, metricName, startTime, startTime + hour - 1), equalTo(4.0));
+
+		//Both periods are partly deleted and rolled up from what is left
+		s_blockDatastore.deleteDataPoints(new DatastoreMetricQueryImpl(metricName, EMPTY_MAP,
+				startTime + 2500, startTime + hour + 1500));
+		Thread.sleep(2000);
+
+		assertThat(queryRollupTotal(s_hourlyRollup, Rollup.SUM, metricName, startTime, startTime + 2 * hour - 1), equalTo(3.0));
+		assertThat(queryRollupTotal(s_hourlyRollup, Rollup.COUNT, metricName, startTime, startTime + 2 * hour - 1), equalTo(2.0));
+		assertThat(queryRollupTotal(s_hourlyRollup, Rollup.MAX, metricName, startTime, startTime + hour - 1), equalTo(2.0));
+
+		s_blockDatastore.deleteDataPoints(new DatastoreMetricQueryImpl(metricName, EMPTY_MAP, 0L, Long.MAX_VALUE));
+	}
+
+	@Test
+	public void test_updateRollups_latePointBeforeFirstPointReplacesPeriod() throws IOException, DatastoreException, InterruptedException
+	{
+		String metricName = "RollupMetricEarlyLate";
+		metricNames.add(metricName);
+		long hour = 3600000L;
+		long startTime = s_blockDatastore.getRollupStartTime(s_hourlyRollup);
+
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", "A");
+		dps.addDataPoint(new DataPoint(startTime + 5000, 1));
+		s_blockDatastore.putDataPoints(dps);
+		s_blockDatastore.updateRollups(startTime + hour);
+
+		//The recomputed period is stamped with the earlier point, the old
+		//result stamped with the later one must not be left behind
+		dps = new DataPointSet(metricName);
+		dps.addTag("host", "A");
+		dps.addDataPoint(new DataPoint(startTime + 1000, 2));
+		s_blockDatastore.putDataPoints(dps);
+		s_blockDatastore.updateRollups(startTime + hour);
+
+		assertThat(queryRollupTotal(s_hourlyRollup, Rollup.SUM, metricName, startTime, startTime + hour - 1), equalTo(3.0));
+		assertThat(queryRollupTotal(s_hourlyRollup, Rollup.COUNT, metricName, startTime, startTime + hour - 1), equalTo(2.0));
+
+		s_blockDatastore.deleteDataPoints(new DatastoreMetricQueryImpl(metricName, EMPTY_MAP, 0L, Long.MAX_VALUE));
+	}
+
+	private int countDataPoints(CassandraDatastore datastore, String metricName, long startTime, long endTime)
+			throws IOException, DatastoreException
+	{
+		DatastoreMetricQuery query = new DatastoreMetricQueryImpl(metricName, EMPTY_MAP, startTime, endTime);
+		CachedSearchResult res = createCache(metricName);
+		datastore.queryDatabase(query, res);
+
+		int count = 0;
+		for (DataPointRow row : res.getRows())
+		{
+			while (row.hasNext())
+			{
+				row.next();
+				count++;
+			}
+			row.close();
+		}
+
+		return (count);
+	}
+
+	@Test
+	public void test_getTtl()
+	{
+		long now = System.currentTimeMillis();
+
+		assertThat(s_blockDatastore.getTtl("TtlMetric", now - 1000, now), equalTo(3599));
+		//Rounded up so nothing expires early
+		assertThat(s_blockDatastore.getTtl("TtlMetric", now - 1500, now), equalTo(3599));
+		assertThat(s_blockDatastore.getTtl("TtlMetric", now - 999, now), equalTo(3600));
+		assertThat(s_blockDatastore.getTtl("TtlMetric", now - HOUR, now), equalTo(-1));
+		assertThat(s_blockDatastore.getTtl("TtlMetric", now + 100000 * HOUR * 24, now),
+				equalTo(CassandraDatastore.MAX_TTL));
+		assertThat(s_blockDatastore.getTtl("OtherMetric", now - 100 * HOUR, now), equalTo(0));
+	}
+
+	@Test
+	public void test_putDataPoints_pointsPastRetentionSkipped() throws IOException, DatastoreException, InterruptedException
+	{
+		String metricName = "TtlSkippedMetric";
+		metricNames.add(metricName);
+		long now = System.currentTimeMillis();
+
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", "A");
+		dps.addDataPoint(new DataPoint(now - 2 * HOUR, 1));
+		dps.addDataPoint(new DataPoint(now - 1000, 2));
+		s_blockDatastore.putDataPoints(dps);
+		Thread.sleep(2000);
+
+		assertThat(countDataPoints(s_blockDatastore, metricName, 0L, now), equalTo(1));
+	}
+
+	@Test
+	public void test_putDataPoints_rowKeyTtlFromRowEnd() throws DatastoreException, InterruptedException
+	{
+		String metricName = "NarrowTtlKeyMetric";
+		metricNames.add(metricName);
+		long now = System.currentTimeMillis();
+		long timestamp = now - HOUR / 2;
+
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", "A");
+		dps.addDataPoint(new DataPoint(timestamp, 1));
+		s_blockDatastore.putDataPoints(dps);
+		Thread.sleep(2000);
+
+		long rowTime = CassandraDatastore.calculateRowTime(timestamp, HOUR);
+		DataPointsRowKey rowKey = new DataPointsRowKey(metricName, rowTime, dps.getTags());
+		HColumn<DataPointsRowKey, String> column = HFactory.createColumnQuery(s_keyspace, StringSerializer.get(),
+				CassandraDatastore.DATA_POINTS_ROW_KEY_SERIALIZER, StringSerializer.get())
+				.setColumnFamily(CassandraDatastore.CF_ROW_KEY_INDEX)
+				.setKey(metricName)
+				.setName(rowKey)
+				.execute().get();
+
+		//The key has to outlive the last point the row can hold, not the first one written
+		int expected = (int) ((rowTime + HOUR - 1 + HOUR - now + 999) / 1000);
+		assertThat(column.getTtl() <= expected && column.getTtl() >= expected - 5, is(true));
+	}
+
+	@Test
+	public void test_compactBlocks_blockTtlFromLastPoint() throws DatastoreException, InterruptedException
+	{
+		String metricName = "TtlBlockMetric";
+		metricNames.add(metricName);
+		long now = System.currentTimeMillis();
+		long blockTime = now - (now % 60000L) - 10 * 60000L;
+
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", "A");
+		dps.addDataPoint(new DataPoint(blockTime + 1000, 1));
+		dps.addDataPoint(new DataPoint(blockTime + 50000, 2));
+		s_blockDatastore.putDataPoints(dps);
+		Thread.sleep(2000);
+		s_blockDatastore.compactBlocks();
+
+		long rowTime = CassandraDatastore.calculateRowTime(blockTime);
+		DataPointsRowKey rowKey = new DataPointsRowKey(metricName, rowTime, dps.getTags());
+		HColumn<Integer, ByteBuffer> column = HFactory.createColumnQuery(s_keyspace,
+				CassandraDatastore.DATA_POINTS_ROW_KEY_SERIALIZER, IntegerSerializer.get(), ByteBufferSerializer.get())
+				.setColumnFamily(CassandraDatastore.CF_DATA_POINT_BLOCKS)
+				.setKey(rowKey)
+				.setName((int) (blockTime - rowTime))
+				.execute().get();
+
+		int expected = (int) ((blockTime + 50000 + HOUR - now + 999) / 1000);
+		assertThat(column.getTtl() <= expected && column.getTtl() >= expected - 5, is(true));
+	}
+
+	@Test
+	public void test_compactBlocks_rewriteOlderThanCompactionKept() throws DatastoreException, InterruptedException
+	{
+		String metricName = "RewrittenBlockMetric";
+		metricNames.add(metricName);
+		long now = System.currentTimeMillis();
+		long blockTime = now - (now % 60000L) - 10 * 60000L;
+
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", "A");
+		dps.addDataPoint(new DataPoint(blockTime + 1000, 1));
+		s_blockDatastore.putDataPoints(dps);
+		Thread.sleep(2000);
+
+		//A rewrite from a node whose clock is behind, landing after the block was read
+		long rewriteTime = System.currentTimeMillis() - 1;
+		s_blockDatastore.compactBlocks();
+
+		long rowTime = CassandraDatastore.calculateRowTime(blockTime);
+		DataPointsRowKey rowKey = new DataPointsRowKey(metricName, rowTime, dps.getTags());
+		int columnName = CassandraDatastore.getColumnName(rowTime, blockTime + 1000, true);
+		Mutator<DataPointsRowKey> mutator = HFactory.createMutator(s_keyspace,
+				CassandraDatastore.DATA_POINTS_ROW_KEY_SERIALIZER);
+		mutator.insert(rowKey, CassandraDatastore.CF_DATA_POINTS, HFactory.createColumn(columnName,
+				ValueSerializer.toByteBuffer(5L), rewriteTime, IntegerSerializer.get(), ByteBufferSerializer.get()));
+
+		//Only the version merged into the block is deleted
+		HColumn<Integer, ByteBuffer> column = HFactory.createColumnQuery(s_keyspace,
+				CassandraDatastore.DATA_POINTS_ROW_KEY_SERIALIZER, IntegerSerializer.get(), ByteBufferSerializer.get())
+				.setColumnFamily(CassandraDatastore.CF_DATA_POINTS)
+				.setKey(rowKey)
+				.setName(columnName)
+				.execute().get();
+
+		assertThat(column == null, is(false));
+		assertThat(ValueSerializer.getLongFromByteBuffer(column.getValue()), equalTo(5L));
+	}
+
+	@Test
+	public void test_deleteExpiredRows_wholeRowsOfTheMetricWidth() throws IOException, DatastoreException, InterruptedException
+	{
+		String metricName = "NarrowExpiredMetric";
+		metricNames.add(metricName);
+		long now = System.currentTimeMillis();
+
+		//Written before the metric had a retention so without a TTL
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", "A");
+		dps.addDataPoint(new DataPoint(now - 5 * HOUR, 1));
+		dps.addDataPoint(new DataPoint(now - 90 * 60000L, 2));
+		s_blockDatastore.putDataPoints(dps);
+		Thread.sleep(2000);
+
+		List<RetentionPolicy> retentionPolicies = Arrays.asList(new RetentionPolicy("Ttl.*", 3600),
+				new RetentionPolicy("NarrowTtl.*", 3600));
+		try
+		{
+			s_blockDatastore.setRetentionPolicies(Arrays.asList(new RetentionPolicy("NarrowExpired.*", 7200)));
+			s_blockDatastore.deleteExpiredRows();
+			Thread.sleep(2000);
+		}
+		finally
+		{
+			s_blockDatastore.setRetentionPolicies(retentionPolicies);
+		}
+
+		//The hour wide row five hours back is gone, with three week rows it
+		//would have been kept as the row is not over yet
+		assertThat(countDataPoints(s_blockDatastore, metricName, 0L, now - 4 * HOUR), equalTo(0));
+		assertThat(countDataPoints(s_blockDatastore, metricName, now - 2 * HOUR, now), equalTo(1));
+	}
+
+	@Test
+	public void test_deleteDataPoints_partialRowAcrossRawBlocksAndRollup() throws IOException, DatastoreException, InterruptedException
+	{
+		String metricName = "PartialDeleteMetric";
+		metricNames.add(metricName);
+		long minute = 60000L;
+		long now = System.currentTimeMillis();
+		long baseTime = now - (now % minute) - 10 * minute;
+
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", "A");
+		for (int I = 0; I < 18; I++)
+			dps.addDataPoint(new DataPoint(baseTime + I * 10000L, 1));
+		s_blockDatastore.putDataPoints(dps);
+		Thread.sleep(2000);
+		s_blockDatastore.compactBlocks();
+
+		//Raw columns next to the compacted blocks
+		dps = new DataPointSet(metricName);
+		dps.addTag("host", "A");
+		for (int I = 0; I < 18; I++)
+			dps.addDataPoint(new DataPoint(baseTime + 5000 + I * 10000L, 1));
+		s_blockDatastore.putDataPoints(dps);
+
+		//Moves the start of the rollup back so it covers the points, in the
+		//millisecond clock the datastore writes with
+		Mutator<String> mutator = HFactory.createMutator(s_keyspace, StringSerializer.get());
+		mutator.insert(CassandraDatastore.ROW_KEY_ROLLUP_TIMES, CassandraDatastore.CF_STRING_INDEX,
+				HFactory.createColumn(s_minutelyRollup.getName() + ".start", String.valueOf(baseTime),
+						System.currentTimeMillis(), StringSerializer.get(), StringSerializer.get()));
+		mutator.insert(CassandraDatastore.ROW_KEY_ROLLUP_TIMES, CassandraDatastore.CF_STRING_INDEX,
+				HFactory.createColumn(s_minutelyRollup.getName() + ".end", String.valueOf(baseTime),
+						System.currentTimeMillis(), StringSerializer.get(), StringSerializer.get()));
+
+		s_blockDatastore.updateRollups(now);
+		assertThat(queryRollupTotal(s_minutelyRollup, Rollup.COUNT, metricName, baseTime, baseTime + 4 * minute),
+				equalTo(36.0));
+
+		//Takes six block points and six raw points out of two rollup periods
+		s_blockDatastore.deleteDataPoints(new DatastoreMetricQueryImpl(metricName, EMPTY_MAP,
+				baseTime + 65000, baseTime + 124999));
+		Thread.sleep(2000);
+
+		assertThat(countDataPoints(s_blockDatastore, metricName, baseTime, baseTime + 4 * minute), equalTo(24));
+		assertThat(queryRollupTotal(s_minutelyRollup, Rollup.SUM, metricName, baseTime, baseTime + 4 * minute),
+				equalTo(24.0));
+		assertThat(queryRollupTotal(s_minutelyRollup, Rollup.COUNT, metricName, baseTime, baseTime + 4 * minute),
+				equalTo(24.0));
+		assertThat(queryRollupTotal(s_minutelyRollup, Rollup.COUNT, metricName, baseTime + minute, baseTime + 2 * minute - 1),
+				equalTo(1.0));
+	}
+
+	@Test
+	public void test_rowWidthPolicy_narrowRowsAcrossRowBoundaries() throws IOException, DatastoreException, InterruptedException
+	{
+		String metricName = "NarrowBoundaryMetric";
+		metricNames.add(metricName);
+		long rowTime = CassandraDatastore.calculateRowTime(s_dataPointTime, HOUR) - 3 * HOUR;
+
+		//Last point of one row and first point of the next
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", "A");
+		dps.addDataPoint(new DataPoint(rowTime + HOUR - 1, 1));
+		dps.addDataPoint(new DataPoint(rowTime + HOUR, 2));
+		dps.addDataPoint(new DataPoint(rowTime + 2 * HOUR + 1, 3));
+		s_blockDatastore.putDataPoints(dps);
+		Thread.sleep(2000);
+
+		assertThat(s_blockDatastore.getRowWidth(metricName, false), equalTo(HOUR));
+
+		DatastoreMetricQuery query = new DatastoreMetricQueryImpl(metricName, EMPTY_MAP,
+				rowTime + HOUR - 1, rowTime + 2 * HOUR + 1);
+		List<DataPointsRowKey> keys = readIterator(s_blockDatastore.getKeysForQueryIterator(query));
+		assertThat(keys.size(), equalTo(3));
+		for (DataPointsRowKey key : keys)
+			assertThat(key.getTimestamp() % HOUR, equalTo(0L));
+
+		assertThat(countDataPoints(s_blockDatastore, metricName, rowTime, rowTime + 3 * HOUR), equalTo(3));
+		//Ends one millisecond into the middle row
+		assertThat(countDataPoints(s_blockDatastore, metricName, rowTime + HOUR - 1, rowTime + HOUR), equalTo(2));
+	}
+
+	@Test
+	public void test_rowWidthPolicy_existingMetricKeepsRowWidth() throws IOException, DatastoreException, InterruptedException
+	{
+		String metricName = "NarrowExistingMetric";
+		metricNames.add(metricName);
+		long timestamp = s_dataPointTime - 2 * HOUR;
+
+		//Written before the policy matched it
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", "A");
+		dps.addDataPoint(new DataPoint(timestamp, 1));
+		s_datastore.putDataPoints(dps);
+		Thread.sleep(2000);
+
+		dps = new DataPointSet(metricName);
+		dps.addTag("host", "A");
+		dps.addDataPoint(new DataPoint(timestamp + 1000, 2));
+		s_blockDatastore.putDataPoints(dps);
+		Thread.sleep(2000);
+
+		assertThat(s_blockDatastore.getRowWidth(metricName, false), equalTo(CassandraDatastore.ROW_WIDTH));
+		assertThat(countDataPoints(s_blockDatastore, metricName, timestamp, timestamp + 1000), equalTo(2));
+	}
+
+	@Test
+	public void test_rowWidthPolicy_rewriteAfterDeleteUsesPolicy() throws IOException, DatastoreException, InterruptedException
+	{
+		String metricName = "NarrowRewrittenMetric";
+		metricNames.add(metricName);
+		long timestamp = s_dataPointTime - 2 * HOUR;
+
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", "A");
+		dps.addDataPoint(new DataPoint(timestamp, 1));
+		s_datastore.putDataPoints(dps);
+		Thread.sleep(2000);
+		assertThat(s_blockDatastore.getRowWidth(metricName, false), equalTo(CassandraDatastore.ROW_WIDTH));
+
+		//Once the metric is gone it is written as a new metric
+		s_blockDatastore.deleteDataPoints(new DatastoreMetricQueryImpl(metricName, EMPTY_MAP, 0L, Long.MAX_VALUE));
+		Thread.sleep(2000);
+
+		s_blockDatastore.putDataPoints(dps);
+		Thread.sleep(2000);
+
+		assertThat(s_blockDatastore.getRowWidth(metricName, false), equalTo(HOUR));
+		assertThat(countDataPoints(s_blockDatastore, metricName, timestamp, timestamp), equalTo(1));
+	}
+
+	@Test
+	public void test_rowWidthPolicy_deleteRemovesStoredWidth() throws IOException, DatastoreException, InterruptedException
+	{
+		String metricName = "NarrowDeletedMetric";
+		metricNames.add(metricName);
+		long timestamp = s_dataPointTime - 2 * HOUR;
+
+		DataPointSet dps = new DataPointSet(metricName);
+		dps.addTag("host", "A");
+		dps.addDataPoint(new DataPoint(timestamp, 1));
+		s_blockDatastore.putDataPoints(dps);
+		Thread.sleep(2000);
+		assertThat(readStoredRowWidth(metricName), equalTo(String.valueOf(HOUR)));
+
+		s_blockDatastore.deleteDataPoints(new DatastoreMetricQueryImpl(metricName, EMPTY_MAP, 0L, Long.MAX_VALUE));
+		Thread.sleep(2000);
+
+		//Other nodes and restarts read the width from the string index
+		assertThat(readStoredRowWidth(metricName), nullValue());
+	}
+
+	private static String readStoredRowWidth(String metricName)
+	{
+		HColumn<String, String> column = HFactory.createStringColumnQuery(s_keyspace)
+				.setColumnFamily(CassandraDatastore.CF_STRING_INDEX)
+				.setKey(CassandraDatastore.ROW_KEY_ROW_WIDTHS)
+				.setName(metricName)
+				.execute().get();
+
+		return (column == null ? null : column.getValue());
+	}
+
 	private static CachedSearchResult createCache(String metricName) throws IOException
 	{
 		String tempFile = System.getProperty("java.io.tmpdir");
@@ -20,6 +20,9 @@ import org.junit.Test;
 
 import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
 
 public class DataCacheTest
 {
@@ -39,4 +42,64 @@ public class DataCacheTest
 		assertFalse(cache.isCached("three")); //Should have booted 'four'
 		assertTrue(cache.isCached("one"));
 	}
+
+	@Test
+	public void test_counters()
+	{
+		DataCache<String> cache = new DataCache<String>(2);
+
+		cache.isCached("one");
+		cache.isCached("two");
+		cache.isCached("one");
+		cache.isCached("three"); //Boots out 'two'
+
+		assertThat(cache.getHitCount(), equalTo(1L));
+		assertThat(cache.getMissCount(), equalTo(3L));
+		assertThat(cache.getEvictionCount(), equalTo(1L));
+		assertThat(cache.size(), equalTo(2));
+	}
+
+	@Test
+	public void test_getAndClearCounters()
+	{
+		DataCache<String> cache = new DataCache<String>(1);
+
+		cache.isCached("one");
+		cache.isCached("one");
+		cache.isCached("two"); //Boots out 'one'
+
+		assertThat(cache.getAndClearHitCount(), equalTo(1L));
+		assertThat(cache.getAndClearMissCount(), equalTo(2L));
+		assertThat(cache.getAndClearEvictionCount(), equalTo(1L));
+
+		//Only what happened since the last call
+		cache.isCached("two");
+		assertThat(cache.getAndClearHitCount(), equalTo(1L));
+		assertThat(cache.getAndClearMissCount(), equalTo(0L));
+		assertThat(cache.getAndClearEvictionCount(), equalTo(0L));
+	}
+
+	@Test
+	public void test_segmentedCacheSize()
+	{
+		int cacheSize = DataCache.MIN_SEGMENT_SIZE * 8;
+		DataCache<Integer> cache = new DataCache<Integer>(cacheSize);
+
+		for (int I = 0; I < cacheSize * 2; I++)
+			assertFalse(cache.isCached(I));
+
+		assertThat(cache.size(), equalTo(cacheSize));
+		assertThat(cache.getEvictionCount(), equalTo((long) cacheSize));
+	}
+
+	@Test
+	public void test_cacheItemReturnsCachedInstance()
+	{
+		DataCache<String> cache = new DataCache<String>(3);
+		String first = new String("one");
+		String second = new String("one");
+
+		assertThat(cache.cacheItem(first), nullValue());
+		assertTrue(cache.cacheItem(second) == first);
+	}
 }
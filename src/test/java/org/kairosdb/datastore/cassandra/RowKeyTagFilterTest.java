@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.datastore.cassandra;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class RowKeyTagFilterTest
+{
+	private ByteBuffer serialize(String... tags)
+	{
+		DataPointsRowKey rowKey = new DataPointsRowKey("metric", 1234L);
+		for (int I = 0; I < tags.length; I += 2)
+			rowKey.addTag(tags[I], tags[I + 1]);
+
+		return (new DataPointsRowKeySerializer().toByteBuffer(rowKey));
+	}
+
+	private RowKeyTagFilter createFilter()
+	{
+		SetMultimap<String, String> filterTags = HashMultimap.create();
+		filterTags.put("host", "web42");
+		filterTags.put("dc", "east");
+		filterTags.put("dc", "west");
+
+		return (new RowKeyTagFilter(filterTags));
+	}
+
+	@Test
+	public void test_matchesAllFilterTags()
+	{
+		RowKeyTagFilter filter = createFilter();
+
+		assertThat(filter.matches(serialize("dc", "east", "host", "web42")), equalTo(true));
+		assertThat(filter.matches(serialize("az", "1", "dc", "west", "host", "web42", "zone", "b")), equalTo(true));
+	}
+
+	@Test
+	public void test_wrongValueDoesNotMatch()
+	{
+		RowKeyTagFilter filter = createFilter();
+
+		assertThat(filter.matches(serialize("dc", "north", "host", "web42")), equalTo(false));
+		assertThat(filter.matches(serialize("dc", "east", "host", "web4")), equalTo(false));
+	}
+
+	@Test
+	public void test_missingTagDoesNotMatch()
+	{
+		RowKeyTagFilter filter = createFilter();
+
+		assertThat(filter.matches(serialize("host", "web42")), equalTo(false));
+	}
+
+	@Test
+	public void test_emptyFilterMatchesEverything()
+	{
+		RowKeyTagFilter filter = new RowKeyTagFilter(HashMultimap.<String, String>create());
+
+		assertThat(filter.matches(serialize("host", "web42")), equalTo(true));
+	}
+
+	@Test
+	public void test_bufferPositionUnchanged()
+	{
+		ByteBuffer key = serialize("dc", "east", "host", "web42");
+		int position = key.position();
+
+		createFilter().matches(key);
+
+		assertThat(key.position(), equalTo(position));
+	}
+}
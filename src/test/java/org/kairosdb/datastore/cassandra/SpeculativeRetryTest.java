@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.datastore.cassandra;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class SpeculativeRetryTest
+{
+	private ExecutorService m_executor;
+
+	@Before
+	public void setup()
+	{
+		m_executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void cleanup()
+	{
+		m_executor.shutdownNow();
+	}
+
+	private Callable<String> constant(final String value)
+	{
+		return (new Callable<String>()
+		{
+			@Override
+			public String call()
+			{
+				return (value);
+			}
+		});
+	}
+
+	private void warmUp(SpeculativeRetry retry) throws InterruptedException
+	{
+		for (int I = 0; I < SpeculativeRetry.UPDATE_INTERVAL; I++)
+			retry.execute(constant("warm"));
+	}
+
+	@Test
+	public void test_disabledRunsOnCallingThread() throws InterruptedException
+	{
+		SpeculativeRetry retry = new SpeculativeRetry(m_executor, 0, 0L);
+		final Thread caller = Thread.currentThread();
+
+		boolean sameThread = retry.execute(new Callable<Boolean>()
+		{
+			@Override
+			public Boolean call()
+			{
+				return (Thread.currentThread() == caller);
+			}
+		});
+
+		assertThat(sameThread, equalTo(true));
+	}
+
+	@Test
+	public void test_slowReadRetried() throws InterruptedException
+	{
+		SpeculativeRetry retry = new SpeculativeRetry(m_executor, 99, 10L);
+		warmUp(retry);
+
+		final AtomicInteger attempts = new AtomicInteger();
+		long start = System.currentTimeMillis();
+		String result = retry.execute(new Callable<String>()
+		{
+			@Override
+			public String call() throws Exception
+			{
+				if (attempts.incrementAndGet() == 1)
+				{
+					Thread.sleep(10000);
+					return ("slow");
+				}
+
+				return ("fast");
+			}
+		});
+
+		assertThat(result, equalTo("fast"));
+		assertThat(System.currentTimeMillis() - start < 5000, equalTo(true));
+		assertThat(retry.getAndClearRetryCount(), equalTo(1L));
+	}
+
+	@Test
+	public void test_failedAttemptFallsBackToRetry() throws InterruptedException
+	{
+		SpeculativeRetry retry = new SpeculativeRetry(m_executor, 99, 10L);
+		warmUp(retry);
+
+		final AtomicInteger attempts = new AtomicInteger();
+		String result = retry.execute(new Callable<String>()
+		{
+			@Override
+			public String call() throws Exception
+			{
+				if (attempts.incrementAndGet() == 1)
+				{
+					Thread.sleep(200);
+					throw new IllegalStateException("replica down");
+				}
+
+				Thread.sleep(500);
+				return ("retried");
+			}
+		});
+
+		assertThat(result, equalTo("retried"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void test_failureWithoutRetryThrown() throws InterruptedException
+	{
+		SpeculativeRetry retry = new SpeculativeRetry(m_executor, 99, 10000L);
+		warmUp(retry);
+
+		retry.execute(new Callable<String>()
+		{
+			@Override
+			public String call()
+			{
+				throw new IllegalStateException("replica down");
+			}
+		});
+	}
+}
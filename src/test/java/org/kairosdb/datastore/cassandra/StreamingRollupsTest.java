@@ -0,0 +1,232 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.datastore.cassandra;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.datastore.Rollup;
+import org.kairosdb.core.datastore.Sampling;
+import org.kairosdb.core.datastore.TimeUnit;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+public class StreamingRollupsTest
+{
+	private static final long MINUTE = 60000L;
+
+	private Rollup m_rollup;
+	private CassandraDatastore m_datastore;
+	private long m_periodStart;
+
+	//Counts of the periods written out and the periods marked dirty
+	private final AtomicLong m_writtenCount = new AtomicLong();
+	private final List<SortedMap<String, String>> m_writtenSeries =
+			Collections.synchronizedList(new ArrayList<SortedMap<String, String>>());
+	private final Set<Long> m_dirtyPeriods =
+			Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setup()
+	{
+		m_rollup = new Rollup("minutely", "metric.*", new Sampling(1, TimeUnit.MINUTES),
+				Collections.singletonList(Rollup.COUNT), true);
+
+		m_datastore = mock(CassandraDatastore.class);
+		doReturn(Collections.singletonList(m_rollup)).when(m_datastore).getRollups();
+
+		doAnswer(new Answer<Void>()
+		{
+			@Override
+			public Void answer(InvocationOnMock invocation)
+			{
+				Object[] args = invocation.getArguments();
+				RollupPeriod period = (RollupPeriod) args[4];
+				m_writtenCount.addAndGet(ValueSerializer.getLongFromByteBuffer(
+						period.getValue(Rollup.COUNT, ValueSerializer.DoubleEncoding.DOUBLE)));
+				m_writtenSeries.add((SortedMap<String, String>) args[2]);
+				return (null);
+			}
+		}).when(m_datastore).writeRollupPeriod(any(Rollup.class), anyString(), any(SortedMap.class),
+				anyLong(), any(RollupPeriod.class), anyLong());
+
+		doAnswer(new Answer<Void>()
+		{
+			@Override
+			public Void answer(InvocationOnMock invocation)
+			{
+				m_dirtyPeriods.add((Long) invocation.getArguments()[2]);
+				return (null);
+			}
+		}).when(m_datastore).markRollupPeriodDirty(any(Rollup.class), anyString(), anyLong());
+
+		//The first period kept in memory is the first one starting after now
+		m_periodStart = System.currentTimeMillis() + MINUTE - 1;
+		m_periodStart = m_periodStart - (m_periodStart % MINUTE);
+	}
+
+	private DataPointSet createDataPoints(String host, long... timestamps)
+	{
+		DataPointSet dps = new DataPointSet("metric1");
+		dps.addTag("host", host);
+		for (long timestamp : timestamps)
+			dps.addDataPoint(new DataPoint(timestamp, 1L));
+
+		return (dps);
+	}
+
+	private long getMetric(StreamingRollups streamingRollups, String metricName)
+	{
+		for (DataPointSet dps : streamingRollups.getMetrics(System.currentTimeMillis()))
+		{
+			if (dps.getName().equals(metricName))
+				return (dps.getDataPoints().get(0).getLongValue());
+		}
+
+		throw new IllegalArgumentException("No metric " + metricName);
+	}
+
+	@Test
+	public void test_flush_writesPeriodsOnceOver()
+	{
+		StreamingRollups streamingRollups = new StreamingRollups(m_datastore, 0L, 100, "hostname");
+
+		streamingRollups.dataPoints(createDataPoints("A", m_periodStart + 1000, m_periodStart + 2000));
+		streamingRollups.dataPoints(createDataPoints("B", m_periodStart + 3000, m_periodStart + MINUTE));
+
+		//The period is not over yet
+		streamingRollups.flush(m_periodStart + MINUTE - 1);
+		assertThat(m_writtenCount.get(), equalTo(0L));
+
+		streamingRollups.flush(m_periodStart + MINUTE);
+		assertThat(m_writtenCount.get(), equalTo(3L));
+		assertThat(m_writtenSeries.size(), equalTo(2));
+		assertThat(getMetric(streamingRollups, "kairosdb.datastore.rollup.open_buckets"), equalTo(1L));
+
+		streamingRollups.flush(m_periodStart + 2 * MINUTE);
+		assertThat(m_writtenCount.get(), equalTo(4L));
+		assertThat(m_dirtyPeriods.isEmpty(), equalTo(true));
+	}
+
+	@Test
+	public void test_dataPoints_latePointsMarkedDirty()
+	{
+		StreamingRollups streamingRollups = new StreamingRollups(m_datastore, 0L, 100, "hostname");
+
+		//Started before the node so it is rolled up from the data points
+		streamingRollups.dataPoints(createDataPoints("A", m_periodStart - 1));
+		assertThat(m_dirtyPeriods, equalTo(Collections.singleton(m_periodStart - MINUTE)));
+
+		//Arrives after its period was written
+		streamingRollups.dataPoints(createDataPoints("A", m_periodStart + 1000));
+		streamingRollups.flush(m_periodStart + MINUTE);
+		streamingRollups.dataPoints(createDataPoints("A", m_periodStart + 2000));
+
+		assertThat(m_writtenCount.get(), equalTo(1L));
+		assertThat(m_dirtyPeriods.contains(m_periodStart), equalTo(true));
+		assertThat(getMetric(streamingRollups, "kairosdb.datastore.rollup.late_points"), equalTo(2L));
+	}
+
+	@Test
+	public void test_dataPoints_periodDroppedOverMaxOpenBuckets()
+	{
+		StreamingRollups streamingRollups = new StreamingRollups(m_datastore, 0L, 2, "hostname");
+
+		streamingRollups.dataPoints(createDataPoints("A", m_periodStart + 1000));
+		streamingRollups.dataPoints(createDataPoints("B", m_periodStart + 1000));
+		streamingRollups.dataPoints(createDataPoints("C", m_periodStart + 1000));
+
+		assertThat(m_dirtyPeriods, equalTo(Collections.singleton(m_periodStart)));
+		assertThat(getMetric(streamingRollups, "kairosdb.datastore.rollup.dropped_periods"), equalTo(1L));
+		assertThat(getMetric(streamingRollups, "kairosdb.datastore.rollup.open_buckets"), equalTo(0L));
+
+		//Only the points after the drop are in memory, the rollup job
+		//replaces what is written for the period
+		streamingRollups.dataPoints(createDataPoints("A", m_periodStart + 2000));
+		streamingRollups.flush(m_periodStart + MINUTE);
+		assertThat(m_writtenCount.get(), equalTo(1L));
+	}
+
+	@Test
+	public void test_flush_racingWritersLoseNoPoints() throws InterruptedException
+	{
+		final StreamingRollups streamingRollups = new StreamingRollups(m_datastore, 0L, 100000, "hostname");
+		final int pointCount = 10000;
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> writers = new ArrayList<Thread>();
+
+		for (int I = 0; I < 4; I++)
+		{
+			final String host = "host" + I;
+			Thread writer = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+
+					for (int J = 0; J < pointCount; J++)
+						streamingRollups.dataPoints(createDataPoints(host, m_periodStart + (J % MINUTE)));
+				}
+			});
+			writer.start();
+			writers.add(writer);
+		}
+
+		start.countDown();
+		Thread.sleep(5);
+		streamingRollups.flush(m_periodStart + MINUTE);
+
+		for (Thread writer : writers)
+			writer.join();
+
+		streamingRollups.flush(m_periodStart + MINUTE);
+
+		//Every point is either in the written period or has it rolled up again
+		if (m_writtenCount.get() != 4L * pointCount)
+			assertThat(m_dirtyPeriods.contains(m_periodStart), equalTo(true));
+
+		assertThat(getMetric(streamingRollups, "kairosdb.datastore.rollup.open_buckets"), equalTo(0L));
+	}
+}
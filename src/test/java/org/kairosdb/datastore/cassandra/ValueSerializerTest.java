@@ -17,8 +17,11 @@
 package org.kairosdb.datastore.cassandra;
 
 import org.junit.Test;
+import org.kairosdb.core.DataPoint;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import static junit.framework.Assert.assertTrue;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -98,4 +101,95 @@ public class ValueSerializerTest
 		assertThat(buf.remaining(), equalTo(8));
 		assertThat(ValueSerializer.getLongFromByteBuffer(buf), equalTo(-1L));
 	}
+
+	@Test
+	public void testBatchEncoding()
+	{
+		List<DataPoint> dataPoints = new ArrayList<DataPoint>();
+		dataPoints.add(new DataPoint(1L, 0L));
+		dataPoints.add(new DataPoint(2L, 256L));
+		dataPoints.add(new DataPoint(3L, 1.5));
+		dataPoints.add(new DataPoint(4L, -1L));
+
+		ByteBuffer[] buffers = ValueSerializer.toByteBuffers(dataPoints);
+
+		assertThat(buffers.length, equalTo(4));
+		assertThat(buffers[0].remaining(), equalTo(0));
+		assertThat(ValueSerializer.getLongFromByteBuffer(buffers[0]), equalTo(0L));
+		assertThat(buffers[1].remaining(), equalTo(2));
+		assertThat(ValueSerializer.getLongFromByteBuffer(buffers[1]), equalTo(256L));
+		assertThat(buffers[2].remaining(), equalTo(5));
+		assertThat(ValueSerializer.getDoubleFromByteBuffer(buffers[2]), equalTo(1.5));
+		assertThat(buffers[3].remaining(), equalTo(8));
+		assertThat(ValueSerializer.getLongFromByteBuffer(buffers[3]), equalTo(-1L));
+	}
+
+	@Test
+	public void testFloats()
+	{
+		ByteBuffer buf = ValueSerializer.toByteBuffer(3.25f);
+		assertThat(buf.remaining(), equalTo(5));
+		assertThat(ValueSerializer.getDoubleFromByteBuffer(buf), equalTo(3.25));
+	}
+
+	@Test
+	public void testCompactDoubles()
+	{
+		ValueSerializer.DoubleEncoding compact = ValueSerializer.DoubleEncoding.COMPACT;
+
+		ByteBuffer buf = ValueSerializer.toByteBuffer(0.0, compact);
+		assertThat(buf.remaining(), equalTo(1));
+		assertThat(ValueSerializer.getDoubleFromByteBuffer(buf), equalTo(0.0));
+
+		buf = ValueSerializer.toByteBuffer(-5.0, compact);
+		assertThat(buf.remaining(), equalTo(2));
+		assertThat(ValueSerializer.getDoubleFromByteBuffer(buf), equalTo(-5.0));
+
+		buf = ValueSerializer.toByteBuffer(1234567890123.0, compact);
+		assertThat(buf.remaining(), equalTo(7));
+		assertThat(ValueSerializer.getDoubleFromByteBuffer(buf), equalTo(1234567890123.0));
+
+		buf = ValueSerializer.toByteBuffer(1.5, compact);
+		assertThat(buf.remaining(), equalTo(5));
+		assertThat(ValueSerializer.getDoubleFromByteBuffer(buf), equalTo(1.5));
+
+		buf = ValueSerializer.toByteBuffer(0.1, compact);
+		assertThat(buf.remaining(), equalTo(9));
+		assertThat(ValueSerializer.getDoubleFromByteBuffer(buf), equalTo(0.1));
+
+		buf = ValueSerializer.toByteBuffer(-0.0, compact);
+		assertThat(Double.doubleToRawLongBits(ValueSerializer.getDoubleFromByteBuffer(buf)),
+				equalTo(Double.doubleToRawLongBits(-0.0)));
+	}
+
+	@Test
+	public void testDoubleEncodings()
+	{
+		ByteBuffer buf = ValueSerializer.toByteBuffer(0.1, ValueSerializer.DoubleEncoding.DOUBLE);
+		assertThat(buf.remaining(), equalTo(9));
+		assertThat(ValueSerializer.getDoubleFromByteBuffer(buf), equalTo(0.1));
+
+		buf = ValueSerializer.toByteBuffer(0.1, ValueSerializer.DoubleEncoding.FLOAT);
+		assertThat(buf.remaining(), equalTo(5));
+		assertThat(ValueSerializer.getDoubleFromByteBuffer(buf), equalTo((double) 0.1f));
+	}
+
+	@Test
+	public void testCompactBatchEncoding()
+	{
+		List<DataPoint> dataPoints = new ArrayList<DataPoint>();
+		dataPoints.add(new DataPoint(1L, 256L));
+		dataPoints.add(new DataPoint(2L, 42.0));
+		dataPoints.add(new DataPoint(3L, Math.PI));
+
+		ByteBuffer[] buffers = ValueSerializer.toByteBuffers(dataPoints,
+				ValueSerializer.DoubleEncoding.COMPACT);
+
+		assertThat(buffers[0].remaining(), equalTo(2));
+		assertThat(ValueSerializer.getLongFromByteBuffer(buffers[0]), equalTo(256L));
+		assertThat(buffers[1].remaining(), equalTo(2));
+		assertThat(ValueSerializer.getDoubleFromByteBuffer(buffers[1]), equalTo(42.0));
+		assertThat(buffers[2].remaining(), equalTo(9));
+		assertThat(ValueSerializer.getDoubleFromByteBuffer(buffers[2]), equalTo(Math.PI));
+	}
 }
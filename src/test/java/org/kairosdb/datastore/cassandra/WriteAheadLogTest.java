@@ -0,0 +1,214 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.datastore.cassandra;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class WriteAheadLogTest
+{
+	private File m_walDir;
+	private boolean m_flushed;
+
+	private WriteAheadLog.CheckpointFactory m_checkpointFactory = new WriteAheadLog.CheckpointFactory()
+	{
+		@Override
+		public WriteAheadLog.FlushCheckpoint createCheckpoint()
+		{
+			return (new WriteAheadLog.FlushCheckpoint()
+			{
+				@Override
+				public boolean isFlushed()
+				{
+					return (m_flushed);
+				}
+			});
+		}
+	};
+
+	private static class ListReplayHandler implements WriteAheadLog.ReplayHandler
+	{
+		private List<DataPointSet> m_dataPointSets = new ArrayList<DataPointSet>();
+
+		@Override
+		public void replay(DataPointSet dps)
+		{
+			m_dataPointSets.add(dps);
+		}
+	}
+
+	@Before
+	public void setup() throws IOException
+	{
+		m_walDir = File.createTempFile("wal", "");
+		m_walDir.delete();
+		m_walDir.mkdir();
+		m_flushed = false;
+	}
+
+	@After
+	public void cleanup()
+	{
+		for (File file : m_walDir.listFiles())
+			file.delete();
+		m_walDir.delete();
+	}
+
+	private WriteAheadLog createLog(int segmentSize) throws IOException
+	{
+		return (new WriteAheadLog(m_walDir, segmentSize, WriteAheadLog.SyncPolicy.NONE,
+				60000, 60000, m_checkpointFactory));
+	}
+
+	private DataPointSet createDataPointSet(String name, long timestamp)
+	{
+		DataPointSet dps = new DataPointSet(name);
+		dps.addTag("host", "server1");
+		dps.addTag("customer", "acme");
+		dps.addDataPoint(new DataPoint(timestamp, 42));
+		dps.addDataPoint(new DataPoint(timestamp + 1, 4.2));
+
+		return (dps);
+	}
+
+	private void append(WriteAheadLog log, DataPointSet dps) throws IOException
+	{
+		log.release(log.append(dps));
+	}
+
+	@Test
+	public void test_replayAfterRestart() throws IOException, InterruptedException
+	{
+		WriteAheadLog log = createLog(4096);
+		append(log, createDataPointSet("metric1", 1000L));
+		append(log, createDataPointSet("metric2", 2000L));
+		log.close();
+
+		ListReplayHandler handler = new ListReplayHandler();
+		log = createLog(4096);
+		assertThat(log.replay(handler), equalTo(2));
+		log.close();
+
+		DataPointSet dps = handler.m_dataPointSets.get(1);
+		assertThat(dps.getName(), equalTo("metric2"));
+		assertThat(dps.getTags().get("host"), equalTo("server1"));
+		assertThat(dps.getTags().get("customer"), equalTo("acme"));
+		assertThat(dps.getDataPoints().size(), equalTo(2));
+		assertThat(dps.getDataPoints().get(0).getTimestamp(), equalTo(2000L));
+		assertThat(dps.getDataPoints().get(0).isInteger(), equalTo(true));
+		assertThat(dps.getDataPoints().get(0).getLongValue(), equalTo(42L));
+		assertThat(dps.getDataPoints().get(1).isInteger(), equalTo(false));
+		assertThat(dps.getDataPoints().get(1).getDoubleValue(), equalTo(4.2));
+	}
+
+	@Test
+	public void test_rollsSegmentsAndPurgesOnceFlushed() throws IOException, InterruptedException
+	{
+		WriteAheadLog log = createLog(256);
+		for (int I = 0; I < 10; I++)
+			append(log, createDataPointSet("metric", I * 1000L));
+
+		assertThat(log.getSealedSegmentCount() > 0, equalTo(true));
+
+		log.purge();
+		assertThat(log.getSealedSegmentCount() > 0, equalTo(true));
+
+		m_flushed = true;
+		log.purge();
+		assertThat(log.getSealedSegmentCount(), equalTo(0));
+		log.close();
+
+		//Closing sealed and purged the current segment
+		ListReplayHandler handler = new ListReplayHandler();
+		log = createLog(256);
+		assertThat(log.replay(handler), equalTo(0));
+		log.close();
+	}
+
+	@Test
+	public void test_rollsIdleSegment() throws IOException, InterruptedException
+	{
+		long now = System.currentTimeMillis();
+		WriteAheadLog log = createLog(4096);
+
+		//An empty segment is never rolled
+		log.rollIdleSegment(now + 120000);
+		assertThat(log.getSealedSegmentCount(), equalTo(0));
+
+		append(log, createDataPointSet("metric", 1000L));
+		log.rollIdleSegment(now);
+		assertThat(log.getSealedSegmentCount(), equalTo(0));
+
+		log.rollIdleSegment(now + 120000);
+		assertThat(log.getSealedSegmentCount(), equalTo(1));
+
+		m_flushed = true;
+		log.purge();
+		assertThat(log.getSealedSegmentCount(), equalTo(0));
+		log.close();
+	}
+
+	@Test
+	public void test_closeKeepsUnflushedSegment() throws IOException, InterruptedException
+	{
+		WriteAheadLog log = createLog(4096);
+		append(log, createDataPointSet("metric1", 1000L));
+		log.close();
+
+		//The final checkpoint was not flushed so the data is replayed and
+		//the segment deleted by the next close once it is
+		ListReplayHandler handler = new ListReplayHandler();
+		log = createLog(4096);
+		assertThat(log.replay(handler), equalTo(1));
+		m_flushed = true;
+		log.close();
+
+		assertThat(m_walDir.listFiles().length, equalTo(0));
+	}
+
+	@Test
+	public void test_segmentNotPurgedWhileWritePending() throws IOException, InterruptedException
+	{
+		m_flushed = true;
+		WriteAheadLog log = createLog(256);
+
+		WriteAheadLog.Segment segment = log.append(createDataPointSet("metric", 0L));
+		for (int I = 1; I < 10; I++)
+			append(log, createDataPointSet("metric", I * 1000L));
+
+		//The first segment holds up the ones after it
+		int sealedCount = log.getSealedSegmentCount();
+		log.purge();
+		assertThat(log.getSealedSegmentCount(), equalTo(sealedCount));
+
+		log.release(segment);
+		log.purge();
+		assertThat(log.getSealedSegmentCount(), equalTo(0));
+		log.close();
+	}
+}
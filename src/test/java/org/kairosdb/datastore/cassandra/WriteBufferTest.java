@@ -0,0 +1,247 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.cassandra;
+
+import me.prettyprint.cassandra.model.ExecutingKeyspace;
+import me.prettyprint.cassandra.model.ExecutionResult;
+import me.prettyprint.cassandra.model.KeyspaceOperationCallback;
+import me.prettyprint.cassandra.serializers.AbstractSerializer;
+import me.prettyprint.cassandra.serializers.LongSerializer;
+import me.prettyprint.cassandra.service.Operation;
+import me.prettyprint.hector.api.exceptions.HInvalidRequestException;
+import me.prettyprint.hector.api.exceptions.HTimedOutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+public class WriteBufferTest
+{
+	private AtomicLong m_serialized = new AtomicLong();
+	private AtomicLong m_added = new AtomicLong();
+	private volatile boolean m_stop;
+	private WriteBuffer<Long, Long, Long> m_buffer;
+
+	/**
+	 Counts the values serialized, every write is serialized once right
+	 before it is sent.
+	 */
+	private class CountingSerializer extends AbstractSerializer<Long>
+	{
+		@Override
+		public ByteBuffer toByteBuffer(Long obj)
+		{
+			m_serialized.incrementAndGet();
+			return (LongSerializer.get().toByteBuffer(obj));
+		}
+
+		@Override
+		public Long fromByteBuffer(ByteBuffer byteBuffer)
+		{
+			return (LongSerializer.get().fromByteBuffer(byteBuffer));
+		}
+	}
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setup()
+	{
+		//Every mutation succeeds right away
+		ExecutingKeyspace keyspace = mock(ExecutingKeyspace.class);
+		ExecutionResult result = mock(ExecutionResult.class);
+		doReturn(result).when(keyspace).doExecuteOperation(any(Operation.class));
+		doReturn(result).when(keyspace).doExecute(any(KeyspaceOperationCallback.class));
+
+		m_buffer = new WriteBuffer<Long, Long, Long>(keyspace, "test", 1, 100000,
+				LongSerializer.get(), LongSerializer.get(), new CountingSerializer(),
+				new WriteBufferStats()
+				{
+					@Override
+					public void saveWriteSize(int pendingWrites)
+					{
+					}
+				}, 4, 2, 1000, 1000000L, 1000L);
+	}
+
+	@After
+	public void cleanup() throws InterruptedException
+	{
+		m_buffer.close();
+	}
+
+	@Test(timeout = 60000)
+	public void test_flushMarkerCoversWritesAddedConcurrently() throws InterruptedException
+	{
+		List<Thread> producers = new ArrayList<Thread>();
+		for (int I = 0; I < 4; I++)
+		{
+			final long rowKey = I;
+			Thread producer = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					long column = 0;
+					while (!m_stop)
+					{
+						m_buffer.addData(rowKey, column++, 42L, 0L);
+						m_added.incrementAndGet();
+						Thread.yield();
+					}
+				}
+			});
+			producer.start();
+			producers.add(producer);
+		}
+
+		try
+		{
+			for (int I = 0; I < 1000; I++)
+			{
+				//Everything added before the marker was taken must have been
+				//sent once the marker is flushed
+				long added = m_added.get();
+				long marker = m_buffer.getFlushMarker();
+				while (!m_buffer.isFlushed(marker))
+					Thread.sleep(1);
+
+				assertThat(m_serialized.get(), greaterThanOrEqualTo(added));
+			}
+		}
+		finally
+		{
+			m_stop = true;
+			for (Thread producer : producers)
+				producer.join();
+		}
+	}
+
+	/**
+	 Runs each mutation with the next scripted result, null succeeds.  Once
+	 the script is used up every mutation succeeds.
+	 */
+	@SuppressWarnings("unchecked")
+	private static ExecutingKeyspace newScriptedKeyspace(final AtomicInteger calls, RuntimeException... results)
+	{
+		final LinkedList<RuntimeException> script = new LinkedList<RuntimeException>(Arrays.asList(results));
+		final ExecutionResult result = mock(ExecutionResult.class);
+		Answer<ExecutionResult> answer = new Answer<ExecutionResult>()
+		{
+			@Override
+			public ExecutionResult answer(InvocationOnMock invocation)
+			{
+				calls.incrementAndGet();
+				RuntimeException e = script.isEmpty() ? null : script.removeFirst();
+				if (e != null)
+					throw e;
+
+				return (result);
+			}
+		};
+
+		ExecutingKeyspace keyspace = mock(ExecutingKeyspace.class);
+		doAnswer(answer).when(keyspace).doExecuteOperation(any(Operation.class));
+		doAnswer(answer).when(keyspace).doExecute(any(KeyspaceOperationCallback.class));
+		return (keyspace);
+	}
+
+	private static WriteBuffer<Long, Long, Long> newBuffer(ExecutingKeyspace keyspace)
+	{
+		//Long write delay so the writes are added before the first drain
+		return (new WriteBuffer<Long, Long, Long>(keyspace, "test", 500, 100000,
+				LongSerializer.get(), LongSerializer.get(), LongSerializer.get(),
+				new WriteBufferStats()
+				{
+					@Override
+					public void saveWriteSize(int pendingWrites)
+					{
+					}
+				}, 1, 1, 1000, 1000000L, 1000L));
+	}
+
+	private static void waitForFlush(WriteBuffer<Long, Long, Long> buffer) throws InterruptedException
+	{
+		long marker = buffer.getFlushMarker();
+		while (!buffer.isFlushed(marker))
+			Thread.sleep(10);
+	}
+
+	@Test(timeout = 60000)
+	public void test_timedOutChunkRetried() throws InterruptedException
+	{
+		AtomicInteger calls = new AtomicInteger();
+		WriteBuffer<Long, Long, Long> buffer = newBuffer(newScriptedKeyspace(calls,
+				new HTimedOutException("timed out"), new HTimedOutException("timed out")));
+		try
+		{
+			for (long I = 0; I < 4; I++)
+				buffer.addData(1L, I, I, 0L);
+			waitForFlush(buffer);
+
+			//The chunk is smaller than the minimum batch size so it is sent whole each time
+			assertThat(calls.get(), equalTo(3));
+		}
+		finally
+		{
+			buffer.close();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void test_invalidMutationDroppedOnItsOwn() throws InterruptedException
+	{
+		AtomicInteger calls = new AtomicInteger();
+		HInvalidRequestException invalid = new HInvalidRequestException("invalid");
+		//With the third of four writes invalid: all four fail, the first half
+		//goes through, the second half fails, the third fails and is dropped
+		//and the fourth goes through
+		WriteBuffer<Long, Long, Long> buffer = newBuffer(newScriptedKeyspace(calls,
+				invalid, null, invalid, invalid, null));
+		try
+		{
+			for (long I = 0; I < 4; I++)
+				buffer.addData(1L, I, I, 0L);
+			waitForFlush(buffer);
+			assertThat(calls.get(), equalTo(5));
+
+			//The flush thread is not stuck on the dropped write
+			buffer.addData(1L, 5L, 5L, 0L);
+			waitForFlush(buffer);
+			assertThat(calls.get(), equalTo(6));
+		}
+		finally
+		{
+			buffer.close();
+		}
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.dynamodb;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+
+public class BucketBufferTest
+{
+	private static final long WIDTH = 60000L;
+
+	private static class TestWriter implements BucketBuffer.BucketWriter
+	{
+		private final List<BucketBuffer.Bucket> m_buckets = new ArrayList<BucketBuffer.Bucket>();
+		private int m_failures = 0;
+
+		@Override
+		public synchronized List<BucketBuffer.Bucket> writeBuckets(List<BucketBuffer.Bucket> buckets)
+		{
+			if (m_failures > 0)
+			{
+				m_failures--;
+				return (buckets);
+			}
+
+			m_buckets.addAll(buckets);
+			return (new ArrayList<BucketBuffer.Bucket>());
+		}
+
+		public synchronized List<BucketBuffer.Bucket> getBuckets()
+		{
+			return (new ArrayList<BucketBuffer.Bucket>(m_buckets));
+		}
+	}
+
+	private static DataPointsRowKey newRowKey()
+	{
+		DataPointsRowKey rowKey = new DataPointsRowKey("metric", 0L);
+		rowKey.addTag("host", "A");
+		return (rowKey);
+	}
+
+	@Test
+	public void test_closeWritesOpenBuckets() throws InterruptedException
+	{
+		TestWriter writer = new TestWriter();
+		//Long flush delay so only close writes
+		BucketBuffer buffer = new BucketBuffer(WIDTH, 0L, 600000, 1000, writer);
+		long now = System.currentTimeMillis();
+		long bucketStart = buffer.getBucketStart(now) + WIDTH;
+
+		buffer.addDataPoint(newRowKey(), new DataPoint(bucketStart + 10, 1), now, true);
+		buffer.addDataPoint(newRowKey(), new DataPoint(bucketStart + 5, 2), now, true);
+		buffer.addDataPoint(newRowKey(), new DataPoint(bucketStart + 10, 3), now, true);
+		buffer.close();
+
+		assertThat(writer.m_buckets.size(), equalTo(1));
+		BucketBuffer.Bucket bucket = writer.m_buckets.get(0);
+		assertThat(bucket.getStartTime(), equalTo(bucketStart));
+		assertThat(bucket.isNew(), equalTo(true));
+		assertThat(bucket.getDataPoints().values(), contains(new DataPoint(bucketStart + 5, 2),
+				new DataPoint(bucketStart + 10, 3)));
+	}
+
+	@Test
+	public void test_closedBucketIsNotNew() throws InterruptedException
+	{
+		TestWriter writer = new TestWriter();
+		BucketBuffer buffer = new BucketBuffer(WIDTH, 0L, 600000, 1000, writer);
+		long now = System.currentTimeMillis();
+
+		buffer.addDataPoint(newRowKey(), new DataPoint(now - 10 * WIDTH, 1), now, true);
+		buffer.close();
+
+		assertThat(writer.m_buckets.size(), equalTo(1));
+		assertThat(writer.m_buckets.get(0).isNew(), equalTo(false));
+	}
+
+	@Test
+	public void test_getAndDeleteDataPoints() throws InterruptedException
+	{
+		TestWriter writer = new TestWriter();
+		BucketBuffer buffer = new BucketBuffer(WIDTH, 0L, 600000, 1000, writer);
+		long now = System.currentTimeMillis();
+		long start = buffer.getBucketStart(now);
+
+		for (int I = 0; I < 4; I++)
+			buffer.addDataPoint(newRowKey(), new DataPoint(start + I * WIDTH / 2, I), now, true);
+
+		assertThat(buffer.getDataPoints(newRowKey(), start + 1, start + WIDTH),
+				contains(new DataPoint(start + WIDTH / 2, 1), new DataPoint(start + WIDTH, 2)));
+
+		buffer.deleteDataPoints(newRowKey(), start, start + WIDTH / 2);
+		assertThat(buffer.getDataPoints(newRowKey(), 0L, Long.MAX_VALUE),
+				contains(new DataPoint(start + WIDTH, 2), new DataPoint(start + 3 * WIDTH / 2, 3)));
+
+		buffer.close();
+		//The bucket emptied by the delete is not written
+		assertThat(writer.m_buckets.size(), equalTo(1));
+	}
+
+	@Test
+	public void test_failedBucketRetried() throws InterruptedException
+	{
+		TestWriter writer = new TestWriter();
+		writer.m_failures = 1;
+		BucketBuffer buffer = new BucketBuffer(WIDTH, 0L, 10, 1000, writer);
+		long now = System.currentTimeMillis();
+		long bucketStart = buffer.getBucketStart(now) - 10 * WIDTH;
+
+		buffer.addDataPoint(newRowKey(), new DataPoint(bucketStart, 1), now, true);
+
+		long waitUntil = System.currentTimeMillis() + 5000;
+		while (writer.getBuckets().isEmpty() && System.currentTimeMillis() < waitUntil)
+			Thread.sleep(10);
+		buffer.close();
+
+		assertThat(writer.m_failures, equalTo(0));
+		assertThat(writer.getBuckets().size(), equalTo(1));
+		assertThat(writer.getBuckets().get(0).isNew(), equalTo(false));
+		assertThat(writer.getBuckets().get(0).getDataPoints().values(), contains(new DataPoint(bucketStart, 1)));
+	}
+
+	@Test
+	public void test_fullBufferWritesOpenBucketsEarly() throws InterruptedException
+	{
+		TestWriter writer = new TestWriter();
+		//Long flush delay so only a full buffer or close writes
+		BucketBuffer buffer = new BucketBuffer(WIDTH, 0L, 600000, 2, writer);
+		long now = System.currentTimeMillis();
+		long bucketStart = buffer.getBucketStart(now) + WIDTH;
+
+		buffer.addDataPoint(newRowKey(), new DataPoint(bucketStart, 1), now, true);
+		buffer.addDataPoint(newRowKey(), new DataPoint(bucketStart + 1, 2), now, true);
+		//Waits for the first two to be taken out of the buffer
+		buffer.addDataPoint(newRowKey(), new DataPoint(bucketStart + 2, 3), now, true);
+
+		long waitUntil = System.currentTimeMillis() + 5000;
+		while (writer.getBuckets().isEmpty() && System.currentTimeMillis() < waitUntil)
+			Thread.sleep(10);
+
+		assertThat(writer.getBuckets().size(), equalTo(1));
+		assertThat(writer.getBuckets().get(0).isNew(), equalTo(true));
+		assertThat(writer.getBuckets().get(0).getDataPoints().size(), equalTo(2));
+
+		buffer.close();
+
+		//The rest of the bucket is merged with what was written early
+		assertThat(writer.getBuckets().size(), equalTo(2));
+		assertThat(writer.getBuckets().get(1).isNew(), equalTo(false));
+		assertThat(writer.getBuckets().get(1).getDataPoints().values(), contains(new DataPoint(bucketStart + 2, 3)));
+	}
+
+	@Test
+	public void test_fullBufferDoesNotWaitWhenAsked() throws InterruptedException
+	{
+		TestWriter writer = new TestWriter();
+		BucketBuffer buffer = new BucketBuffer(WIDTH, 0L, 600000, 1, writer);
+		long now = System.currentTimeMillis();
+		long bucketStart = buffer.getBucketStart(now) + WIDTH;
+
+		buffer.addDataPoint(newRowKey(), new DataPoint(bucketStart, 1), now, false);
+		buffer.addDataPoint(newRowKey(), new DataPoint(bucketStart + 1, 2), now, false);
+		buffer.addDataPoint(newRowKey(), new DataPoint(bucketStart + 2, 3), now, false);
+		buffer.close();
+
+		int count = 0;
+		for (BucketBuffer.Bucket bucket : writer.getBuckets())
+			count += bucket.getDataPoints().size();
+		assertThat(count, equalTo(3));
+	}
+
+	@Test
+	public void test_deleteWaitsForBucketsBeingWritten() throws InterruptedException
+	{
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		BucketBuffer.BucketWriter writer = new BucketBuffer.BucketWriter()
+		{
+			@Override
+			public List<BucketBuffer.Bucket> writeBuckets(List<BucketBuffer.Bucket> buckets)
+			{
+				writing.countDown();
+				Uninterruptibles.awaitUninterruptibly(release);
+				return (new ArrayList<BucketBuffer.Bucket>());
+			}
+		};
+		final BucketBuffer buffer = new BucketBuffer(WIDTH, 0L, 10, 1000, writer);
+		long now = System.currentTimeMillis();
+		final long bucketStart = buffer.getBucketStart(now) - 10 * WIDTH;
+
+		buffer.addDataPoint(newRowKey(), new DataPoint(bucketStart, 1), now, true);
+		assertThat(writing.await(5, TimeUnit.SECONDS), equalTo(true));
+
+		Thread delete = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					buffer.deleteDataPoints(newRowKey(), bucketStart, bucketStart);
+				}
+				catch (InterruptedException ignored) {}
+			}
+		};
+		delete.start();
+		delete.join(200);
+		assertThat(delete.isAlive(), equalTo(true));
+
+		release.countDown();
+		delete.join(5000);
+		assertThat(delete.isAlive(), equalTo(false));
+		buffer.close();
+	}
+}
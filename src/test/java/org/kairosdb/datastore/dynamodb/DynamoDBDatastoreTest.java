@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.dynamodb;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.google.common.collect.HashMultimap;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointListener;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.datastore.KairosDatastore;
+import org.kairosdb.core.datastore.QueryQueuingManager;
+import org.kairosdb.core.datastore.TagSet;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.datastore.DatastoreMetricQueryImpl;
+import org.kairosdb.datastore.DatastoreTestHelper;
+
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ Runs against DynamoDB Local listening on localhost:8000.
+ */
+@Ignore
+public class DynamoDBDatastoreTest extends DatastoreTestHelper
+{
+	private static final int WRITE_DELAY = 500;
+	public static final HashMultimap<String, String> EMPTY_MAP = HashMultimap.create();
+
+	private static DynamoDBDatastore s_datastore;
+
+	@BeforeClass
+	public static void setupDatastore() throws InterruptedException, DatastoreException
+	{
+		AmazonDynamoDBClient client = new AmazonDynamoDBClient(new BasicAWSCredentials("local", "local"));
+		client.setEndpoint("http://localhost:8000");
+
+		s_datastore = new DynamoDBDatastore(client, WRITE_DELAY, 1000, 4, "hostname");
+
+		DatastoreTestHelper.s_datastore = new KairosDatastore(s_datastore,
+				new QueryQueuingManager(1, "hostname"),
+				Collections.<DataPointListener>emptyList(), "hostname");
+
+		loadData();
+
+		metricNames.add("MetricToDelete");
+		DataPointSet dpSet = new DataPointSet("MetricToDelete");
+		dpSet.addTag("host", "A");
+		dpSet.addDataPoint(new DataPoint(System.currentTimeMillis(), 13));
+		s_datastore.putDataPoints(dpSet);
+
+		//Writes are buffered
+		Thread.sleep(WRITE_DELAY * 4);
+	}
+
+	@AfterClass
+	public static void closeDatastore() throws InterruptedException, DatastoreException
+	{
+		for (String metricName : metricNames)
+		{
+			s_datastore.deleteDataPoints(new DatastoreMetricQueryImpl(metricName, EMPTY_MAP,
+					0L, Long.MAX_VALUE));
+		}
+
+		Thread.sleep(WRITE_DELAY * 4);
+		s_datastore.close();
+	}
+
+	@Test
+	public void test_queryMetricTags() throws DatastoreException
+	{
+		TagSet tagSet = s_datastore.queryMetricTags(new DatastoreMetricQueryImpl("metric1",
+				EMPTY_MAP, 0L, Long.MAX_VALUE));
+
+		assertThat(tagSet.getTagNames(), hasItem("host"));
+		assertThat(tagSet.getTagValues("host"), hasItem("A"));
+		assertThat(tagSet.getTagValues("host"), hasItem("B"));
+		assertThat(tagSet.getTagValues("client"), hasItem("bar"));
+	}
+
+	@Test
+	public void test_deleteMetric() throws DatastoreException, InterruptedException
+	{
+		s_datastore.deleteDataPoints(new DatastoreMetricQueryImpl("MetricToDelete", EMPTY_MAP,
+				0L, Long.MAX_VALUE));
+
+		Thread.sleep(WRITE_DELAY * 4);
+
+		assertThat(s_datastore.getMetricNames(), not(hasItem("MetricToDelete")));
+	}
+}
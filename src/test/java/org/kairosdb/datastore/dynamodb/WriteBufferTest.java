@@ -0,0 +1,302 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.kairosdb.datastore.dynamodb;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class WriteBufferTest
+{
+	private static final String TABLE = "test_table";
+
+	private WriteBuffer<String, String, String> m_buffer;
+	private final ReentrantLock m_lock = new ReentrantLock();
+
+	/**
+	 Records the batches written, each call is first given to fail.
+	 */
+	private static class TestClient extends AmazonDynamoDBClient
+	{
+		private final List<List<WriteRequest>> m_batches = new ArrayList<List<WriteRequest>>();
+		private final List<String> m_written = new ArrayList<String>();
+		private int m_callCount = 0;
+
+		/**
+		 Throws to fail the call or returns the requests left unprocessed.
+		 */
+		protected List<WriteRequest> fail(int call, List<WriteRequest> batch)
+		{
+			return (Collections.emptyList());
+		}
+
+		@Override
+		public synchronized BatchWriteItemResult batchWriteItem(BatchWriteItemRequest request)
+		{
+			List<WriteRequest> batch = request.getRequestItems().get(TABLE);
+			m_batches.add(batch);
+
+			List<WriteRequest> unprocessed = fail(m_callCount++, batch);
+			for (WriteRequest writeRequest : batch)
+			{
+				if (!unprocessed.contains(writeRequest))
+					m_written.add(getName(writeRequest));
+			}
+
+			Map<String, List<WriteRequest>> unprocessedItems = new HashMap<String, List<WriteRequest>>();
+			if (!unprocessed.isEmpty())
+				unprocessedItems.put(TABLE, unprocessed);
+
+			return (new BatchWriteItemResult().withUnprocessedItems(unprocessedItems));
+		}
+
+		public synchronized List<String> getWritten()
+		{
+			return (new ArrayList<String>(m_written));
+		}
+
+		public synchronized List<List<WriteRequest>> getBatches()
+		{
+			return (new ArrayList<List<WriteRequest>>(m_batches));
+		}
+
+		public synchronized int getCallCount()
+		{
+			return (m_callCount);
+		}
+	}
+
+	private static String getName(WriteRequest request)
+	{
+		if (request.getPutRequest() != null)
+			return ("put " + request.getPutRequest().getItem().get("key").getS() + "=" +
+					request.getPutRequest().getItem().get("value").getS());
+		else
+			return ("delete " + request.getDeleteRequest().getKey().get("key").getS());
+	}
+
+	private static AmazonServiceException newServiceException(String errorCode)
+	{
+		AmazonServiceException e = new AmazonServiceException(errorCode);
+		e.setErrorCode(errorCode);
+		e.setErrorType(AmazonServiceException.ErrorType.Client);
+		return (e);
+	}
+
+	private static Map<String, AttributeValue> newItem(String key, String value)
+	{
+		Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+		item.put("key", new AttributeValue().withS(key));
+		if (value != null)
+			item.put("value", new AttributeValue().withS(value));
+		return (item);
+	}
+
+	private WriteBuffer<String, String, String> createBuffer(AmazonDynamoDBClient client)
+	{
+		m_buffer = new WriteBuffer<String, String, String>(client, TABLE,
+				Collections.singletonList("key"), 50, 1000,
+				new WriteBufferStats()
+				{
+					@Override
+					public void saveWriteSize(int pendingWrites)
+					{
+					}
+
+					@Override
+					public void saveConsumedCapacity(double capacityUnits)
+					{
+					}
+				}, m_lock, m_lock.newCondition());
+
+		return (m_buffer);
+	}
+
+	/**
+	 Adds the items while holding the lock so they go out in one flush.
+	 */
+	private void addItems(WriteBuffer<String, String, String> buffer, int count)
+	{
+		m_lock.lock();
+		try
+		{
+			for (int I = 0; I < count; I++)
+				buffer.addData(newItem("k" + I, "v" + I));
+		}
+		finally
+		{
+			m_lock.unlock();
+		}
+	}
+
+	private static void waitForWrites(TestClient client, int count) throws InterruptedException
+	{
+		long waitUntil = System.currentTimeMillis() + 10000;
+		while (client.getWritten().size() < count && System.currentTimeMillis() < waitUntil)
+			Thread.sleep(10);
+
+		//Anything more would show up in the assertions
+		Thread.sleep(200);
+	}
+
+	@After
+	public void closeBuffer() throws InterruptedException
+	{
+		if (m_buffer != null)
+			m_buffer.close();
+	}
+
+	@Test
+	public void test_writesInBatchesOfMaxBatchSize() throws InterruptedException
+	{
+		TestClient client = new TestClient();
+		WriteBuffer<String, String, String> buffer = createBuffer(client);
+
+		addItems(buffer, 60);
+		waitForWrites(client, 60);
+
+		assertThat(client.getWritten().size(), equalTo(60));
+		assertThat(client.getBatches().size(), equalTo(3));
+		for (List<WriteRequest> batch : client.getBatches())
+			assertThat(batch.size(), lessThanOrEqualTo(WriteBuffer.MAX_BATCH_SIZE));
+	}
+
+	@Test
+	public void test_requestsForTheSameKeyCollapsed() throws InterruptedException
+	{
+		TestClient client = new TestClient();
+		WriteBuffer<String, String, String> buffer = createBuffer(client);
+
+		m_lock.lock();
+		try
+		{
+			buffer.addData(newItem("k1", "v1"));
+			buffer.addData(newItem("k2", "v1"));
+			buffer.addData(newItem("k1", "v2"));
+			buffer.deleteData(newItem("k2", null));
+			buffer.deleteData(newItem("k3", null));
+			buffer.addData(newItem("k3", "v1"));
+		}
+		finally
+		{
+			m_lock.unlock();
+		}
+
+		waitForWrites(client, 3);
+
+		//DynamoDB rejects a batch with two requests for one key
+		assertThat(client.getBatches().size(), equalTo(1));
+		assertThat(client.getWritten(), containsInAnyOrder("put k1=v2", "delete k2", "put k3=v1"));
+	}
+
+	@Test
+	public void test_throttledAndUnprocessedWritesRetried() throws InterruptedException
+	{
+		TestClient client = new TestClient()
+		{
+			@Override
+			protected List<WriteRequest> fail(int call, List<WriteRequest> batch)
+			{
+				switch (call)
+				{
+					case 0:
+						throw new ProvisionedThroughputExceededException("Over throughput");
+					case 1:
+						throw newServiceException("ThrottlingException");
+					case 2:
+						throw newServiceException("RequestLimitExceeded");
+					case 3:
+						throw newServiceException("InternalServerError");
+					case 4:
+						return (batch.subList(0, batch.size() / 2));
+					default:
+						return (Collections.emptyList());
+				}
+			}
+		};
+		WriteBuffer<String, String, String> buffer = createBuffer(client);
+
+		addItems(buffer, 10);
+		waitForWrites(client, 10);
+
+		assertThat(client.getCallCount(), equalTo(6));
+		assertThat(client.getWritten().size(), equalTo(10));
+		//Only the unprocessed half is sent again
+		assertThat(client.getBatches().get(5).size(), equalTo(5));
+	}
+
+	@Test
+	public void test_invalidWriteDroppedOnItsOwn() throws InterruptedException
+	{
+		TestClient client = new TestClient()
+		{
+			@Override
+			protected List<WriteRequest> fail(int call, List<WriteRequest> batch)
+			{
+				for (WriteRequest request : batch)
+				{
+					if (getName(request).equals("put k7=v7"))
+						throw newServiceException("ValidationException");
+				}
+
+				return (Collections.emptyList());
+			}
+		};
+		WriteBuffer<String, String, String> buffer = createBuffer(client);
+
+		addItems(buffer, 10);
+		waitForWrites(client, 9);
+
+		List<String> expected = new ArrayList<String>();
+		for (int I = 0; I < 10; I++)
+		{
+			if (I != 7)
+				expected.add("put k" + I + "=v" + I);
+		}
+
+		assertThat(client.getWritten(), containsInAnyOrder(expected.toArray(new String[expected.size()])));
+	}
+
+	@Test
+	public void test_waitForFlush() throws InterruptedException
+	{
+		TestClient client = new TestClient();
+		WriteBuffer<String, String, String> buffer = createBuffer(client);
+
+		addItems(buffer, 30);
+		buffer.waitForFlush();
+
+		assertThat(client.getWritten().size(), equalTo(30));
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 Proofpoint Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.kairosdb.util;
+
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+
+public class DataPointBlockTest
+{
+	private static final long BLOCK_TIME = 1369785600000L;
+
+	private void assertRoundTrip(List<DataPoint> dataPoints)
+	{
+		ByteBuffer block = DataPointBlock.encode(BLOCK_TIME, dataPoints);
+		List<DataPoint> decoded = DataPointBlock.decode(BLOCK_TIME, block);
+
+		assertThat(decoded.size(), equalTo(dataPoints.size()));
+		for (int I = 0; I < dataPoints.size(); I++)
+		{
+			DataPoint expected = dataPoints.get(I);
+			DataPoint actual = decoded.get(I);
+
+			assertThat(actual.getTimestamp(), equalTo(expected.getTimestamp()));
+			assertThat(actual.isInteger(), equalTo(expected.isInteger()));
+			if (expected.isInteger())
+				assertThat(actual.getLongValue(), equalTo(expected.getLongValue()));
+			else
+				assertThat(actual.getDoubleValue(), equalTo(expected.getDoubleValue()));
+		}
+	}
+
+	@Test
+	public void test_emptyBlock()
+	{
+		assertRoundTrip(new ArrayList<DataPoint>());
+	}
+
+	@Test
+	public void test_regularDoubles()
+	{
+		List<DataPoint> dataPoints = new ArrayList<DataPoint>();
+		for (int I = 0; I < 360; I++)
+			dataPoints.add(new DataPoint(BLOCK_TIME + I * 10000L, 20.0 + (I % 10) * 0.25));
+
+		assertRoundTrip(dataPoints);
+
+		//Far less than the 17 bytes a point takes uncompressed
+		assertThat(DataPointBlock.encode(BLOCK_TIME, dataPoints).remaining(), lessThan(360 * 2));
+	}
+
+	@Test
+	public void test_mixedTypesAndIrregularTimestamps()
+	{
+		Random random = new Random(42);
+		List<DataPoint> dataPoints = new ArrayList<DataPoint>();
+		long timestamp = BLOCK_TIME;
+
+		for (int I = 0; I < 1000; I++)
+		{
+			timestamp += random.nextInt(3) == 0 ? random.nextInt(100000) : 1000;
+			if (random.nextBoolean())
+				dataPoints.add(new DataPoint(timestamp, random.nextLong()));
+			else
+				dataPoints.add(new DataPoint(timestamp, random.nextDouble() * 1000));
+		}
+
+		assertRoundTrip(dataPoints);
+	}
+
+	@Test
+	public void test_extremeValues()
+	{
+		List<DataPoint> dataPoints = new ArrayList<DataPoint>();
+		dataPoints.add(new DataPoint(BLOCK_TIME, Long.MAX_VALUE));
+		dataPoints.add(new DataPoint(BLOCK_TIME, Long.MIN_VALUE));
+		dataPoints.add(new DataPoint(BLOCK_TIME + 1, 0L));
+		dataPoints.add(new DataPoint(BLOCK_TIME + 3600000L, Double.MAX_VALUE));
+		dataPoints.add(new DataPoint(BLOCK_TIME + 3600000L, -0.0));
+
+		assertRoundTrip(dataPoints);
+	}
+}